@@ -0,0 +1,119 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.benchmark;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.broadinstitute.dropseqrna.annotation.AnnotationUtils;
+import org.broadinstitute.dropseqrna.annotation.GeneFromGTF;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.OverlapDetector;
+import picard.annotation.Gene;
+import picard.annotation.LocusFunction;
+
+/**
+ * Locus function of reads against a synthetic annotation: genes of 2-3 transcripts with several exons each,
+ * and reads that are exonic, spliced, intronic or intergenic.  Reported per read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class AnnotationUtilsBenchmark {
+
+	private static final String CONTIG="chr1";
+	private static final int NUM_GENES=2000;
+	private static final int GENE_SPACING=50000;
+	private static final int NUM_READS=4096;
+
+	private OverlapDetector<Gene> geneOverlapDetector;
+	private SAMRecord [] reads;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		this.geneOverlapDetector = new OverlapDetector<>(0, 0);
+		for (int g=0; g<NUM_GENES; g++) {
+			int geneStart = g*GENE_SPACING + 1 + random.nextInt(10000);
+			int geneEnd = geneStart + 20000 + random.nextInt(10000);
+			GeneFromGTF gene = new GeneFromGTF(CONTIG, geneStart, geneEnd, random.nextBoolean(), "GENE" + g, "gene", "GENE" + g, "protein_coding", 1);
+			int numTranscripts = 2 + random.nextInt(2);
+			for (int t=0; t<numTranscripts; t++) {
+				int numExons = 3 + random.nextInt(6);
+				int exonSpacing = (geneEnd - geneStart) / numExons;
+				GeneFromGTF.TranscriptFromGTF tx = gene.addTranscript("TX" + g + "." + t, geneStart, geneEnd, geneStart+100, geneEnd-500, numExons, "TX" + g + "." + t, "TX" + g + "." + t, "protein_coding");
+				for (int e=0; e<numExons; e++) {
+					int exonStart = geneStart + e*exonSpacing + (e==0 ? 0 : random.nextInt(50));
+					int exonEnd = e==numExons-1 ? geneEnd : exonStart + 100 + random.nextInt(200);
+					tx.addExon(exonStart, exonEnd);
+				}
+			}
+			geneOverlapDetector.addLhs(gene, gene);
+		}
+
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSequenceDictionary(new SAMSequenceDictionary());
+		header.getSequenceDictionary().addSequence(new SAMSequenceRecord(CONTIG, NUM_GENES*GENE_SPACING + GENE_SPACING));
+		this.reads = new SAMRecord [NUM_READS];
+		for (int i=0; i<NUM_READS; i++) {
+			SAMRecord r = new SAMRecord(header);
+			r.setReadName("read" + i);
+			r.setReferenceName(CONTIG);
+			r.setAlignmentStart(1 + random.nextInt(NUM_GENES*GENE_SPACING));
+			r.setCigarString(random.nextInt(4)==0 ? "30M1000N30M" : "60M");
+			r.setReadNegativeStrandFlag(random.nextBoolean());
+			reads[i]=r;
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUM_READS)
+	public int getLocusFunctionForReadByGene() {
+		int sum=0;
+		for (SAMRecord r: reads) {
+			Map<Gene, LocusFunction> m = AnnotationUtils.getInstance().getLocusFunctionForReadByGene(r, geneOverlapDetector);
+			sum+=m.size();
+		}
+		return sum;
+	}
+}
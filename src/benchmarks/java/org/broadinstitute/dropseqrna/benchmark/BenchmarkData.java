@@ -0,0 +1,125 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.broadinstitute.dropseqrna.utils.ObjectCounter;
+
+/**
+ * Generators for synthetic but realistically shaped benchmark inputs.
+ * Everything is driven by a caller supplied Random, so a fixed seed gives the same data in every fork.
+ */
+public class BenchmarkData {
+
+	private static final char [] BASES = {'A', 'C', 'G', 'T'};
+
+	private BenchmarkData() {
+	}
+
+	public static String randomBases (final Random random, final int length) {
+		char [] result = new char [length];
+		for (int i=0; i<length; i++)
+			result[i]=BASES[random.nextInt(BASES.length)];
+		return new String(result);
+	}
+
+	/**
+	 * Change numSubstitutions distinct positions of the sequence to a different base.
+	 */
+	public static String substitute (final Random random, final String sequence, final int numSubstitutions) {
+		char [] result = sequence.toCharArray();
+		boolean [] changed = new boolean [result.length];
+		int count=0;
+		while (count<numSubstitutions && count<result.length) {
+			int pos = random.nextInt(result.length);
+			if (changed[pos]) continue;
+			char base = result[pos];
+			while (base==result[pos])
+				base=BASES[random.nextInt(BASES.length)];
+			result[pos]=base;
+			changed[pos]=true;
+			count++;
+		}
+		return new String(result);
+	}
+
+	/**
+	 * Delete one base and pad the end with a random base, the way a synthesis error shifts a barcode.
+	 */
+	public static String shift (final Random random, final String sequence) {
+		int pos = random.nextInt(sequence.length());
+		return sequence.substring(0, pos) + sequence.substring(pos+1) + BASES[random.nextInt(BASES.length)];
+	}
+
+	/**
+	 * Pairs of sequences that are a small number of substitutions or a shift apart, as seen when comparing barcodes that might collapse.
+	 */
+	public static String [][] similarPairs (final Random random, final int numPairs, final int length) {
+		String [][] result = new String [numPairs][];
+		for (int i=0; i<numPairs; i++) {
+			String a = randomBases(random, length);
+			String b = random.nextInt(4)==0 ? shift(random, a) : substitute(random, a, random.nextInt(4));
+			result[i]= new String [] {a, b};
+		}
+		return result;
+	}
+
+	/**
+	 * Barcode counts that follow a Zipf distribution, the way reads per cell or reads per UMI do.
+	 * The barcode of rank r has about maxCount/r^exponent reads.  Barcodes with enough reads also get a few
+	 * low count children 1 substitution away, which is what edit distance collapse is there to find.
+	 * @param numBarcodes The number of distinct parent barcodes.
+	 * @param length The barcode length.
+	 * @param exponent The Zipf exponent.  1 is typical of cell barcodes.
+	 * @param maxCount The count of the most common barcode.
+	 */
+	public static ObjectCounter<String> zipfBarcodeCounts (final Random random, final int numBarcodes, final int length, final double exponent, final int maxCount) {
+		ObjectCounter<String> result = new ObjectCounter<>();
+		for (int rank=1; rank<=numBarcodes; rank++) {
+			String barcode = randomBases(random, length);
+			int count = (int) Math.max(1, Math.round(maxCount / Math.pow(rank, exponent)));
+			result.incrementByCount(barcode, count);
+			int numChildren = count / 50;
+			for (int i=0; i<numChildren && i<3; i++)
+				result.incrementByCount(substitute(random, barcode, 1), 1+random.nextInt(2));
+		}
+		return result;
+	}
+
+	/**
+	 * A list of sequences drawn from a count distribution, one entry per count, in random order.
+	 */
+	public static List<String> expand (final Random random, final ObjectCounter<String> counts) {
+		List<String> result = new ArrayList<>(counts.getTotalCount());
+		for (String key: counts.getKeys())
+			for (int i=0; i<counts.getCountForKey(key); i++)
+				result.add(key);
+		Collections.shuffle(result, random);
+		return result;
+	}
+}
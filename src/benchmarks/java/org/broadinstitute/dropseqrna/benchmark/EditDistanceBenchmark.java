@@ -0,0 +1,115 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.broadinstitute.dropseqrna.utils.editdistance.HammingDistance;
+import org.broadinstitute.dropseqrna.utils.editdistance.LevenshteinDistance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Pairwise distances between barcodes that are close to each other, reported per comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class EditDistanceBenchmark {
+
+	private static final int NUM_PAIRS=1024;
+
+	// cell barcodes, UMIs and a longer sequence.
+	@Param({"12", "8", "40"})
+	public int length;
+
+	private String [][] pairs;
+
+	@Setup
+	public void setup() {
+		this.pairs=BenchmarkData.similarPairs(new Random(1), NUM_PAIRS, length);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUM_PAIRS)
+	public int hammingDistance() {
+		int sum=0;
+		for (String [] p: pairs)
+			sum+=HammingDistance.getHammingDistance(p[0], p[1]);
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUM_PAIRS)
+	public int levenshteinDistance() {
+		int sum=0;
+		for (String [] p: pairs)
+			sum+=LevenshteinDistance.getDistance(p[0], p[1]);
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUM_PAIRS)
+	public int indelSlidingWindowEditDistance() {
+		int sum=0;
+		for (String [] p: pairs)
+			sum+=LevenshteinDistance.getIndelSlidingWindowEditDistance(p[0], p[1]);
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUM_PAIRS)
+	public int indelSlidingWindowEditDistanceWithin1() {
+		int sum=0;
+		for (String [] p: pairs)
+			if (LevenshteinDistance.isWithinIndelSlidingWindowEditDistance(p[0], p[1], 1)) sum++;
+		return sum;
+	}
+
+	/**
+	 * The traceback based distance, for comparison with the bit-parallel one.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(NUM_PAIRS)
+	public int indelCorrectedTraceback() {
+		int sum=0;
+		for (String [] p: pairs)
+			sum+=LevenshteinDistance.computeLevenshteinDistanceResult(p[0], p[1], 1, 1, 2).getEditDistanceIndelCorrected();
+		return sum;
+	}
+}
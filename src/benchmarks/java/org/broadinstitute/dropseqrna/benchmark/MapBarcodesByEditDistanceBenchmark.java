@@ -0,0 +1,92 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.benchmark;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.broadinstitute.dropseqrna.utils.ObjectCounter;
+import org.broadinstitute.dropseqrna.utils.editdistance.BottomUpCollapseResult;
+import org.broadinstitute.dropseqrna.utils.editdistance.MapBarcodesByEditDistance;
+import org.broadinstitute.dropseqrna.utils.editdistance.NeighborSearchStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Collapse of Zipf distributed 12 base cell barcodes, single threaded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=2, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class MapBarcodesByEditDistanceBenchmark {
+
+	@Param({"1000", "10000"})
+	public int numBarcodes;
+
+	@Param({"FULL_SCAN", "INDEXED"})
+	public NeighborSearchStrategy neighborSearchStrategy;
+
+	private ObjectCounter<String> barcodes;
+	private MapBarcodesByEditDistance med;
+
+	@Setup
+	public void setup() {
+		this.barcodes=BenchmarkData.zipfBarcodeCounts(new Random(1), numBarcodes, 12, 1.0, 100000);
+		this.med=new MapBarcodesByEditDistance(false, 1, 0, neighborSearchStrategy);
+	}
+
+	@Benchmark
+	public Map<String, List<String>> collapseBarcodes() {
+		return med.collapseBarcodes(barcodes, false, 1);
+	}
+
+	@Benchmark
+	public Map<String, List<String>> collapseBarcodesWithIndels() {
+		return med.collapseBarcodes(barcodes, true, 1);
+	}
+
+	@Benchmark
+	public BottomUpCollapseResult bottomUpCollapse() {
+		return med.bottomUpCollapse(barcodes, 1);
+	}
+
+	@Benchmark
+	public Map<String, List<String>> mutationalCollapse() {
+		return med.collapseBarcodesByMutationalCollapse(barcodes, false, 3, 1, 1);
+	}
+}
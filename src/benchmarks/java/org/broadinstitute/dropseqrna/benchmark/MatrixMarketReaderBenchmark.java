@@ -0,0 +1,112 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketConstants;
+import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketReader;
+import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a sparse integer DGE matrix in MatrixMarket format, genes by cells, with Zipf distributed cell sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=2, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class MatrixMarketReaderBenchmark {
+
+	private static final int NUM_GENES=20000;
+
+	@Param({"1000", "10000"})
+	public int numCells;
+
+	private File matrixFile;
+
+	@Setup
+	public void setup() throws IOException {
+		Random random = new Random(1);
+		// the number of genes detected in each cell.
+		int [] genesPerCell = new int [numCells];
+		int numElements=0;
+		for (int c=0; c<numCells; c++) {
+			genesPerCell[c] = (int) Math.max(200, Math.min(NUM_GENES, 8000 / Math.pow(c+1, 0.3)));
+			numElements+=genesPerCell[c];
+		}
+		List<String> genes = new ArrayList<>(NUM_GENES);
+		for (int g=0; g<NUM_GENES; g++)
+			genes.add("GENE" + g);
+		List<String> cells = new ArrayList<>(numCells);
+		for (int c=0; c<numCells; c++)
+			cells.add(BenchmarkData.randomBases(random, 12));
+
+		this.matrixFile = File.createTempFile("MatrixMarketReaderBenchmark.", ".mtx");
+		this.matrixFile.deleteOnExit();
+		MatrixMarketWriter writer = new MatrixMarketWriter(matrixFile, MatrixMarketConstants.ElementType.integer, NUM_GENES, numCells, numElements, genes, cells, "GENE", "CELL_BARCODE");
+		for (int c=0; c<numCells; c++) {
+			// genes in increasing order, spaced out to give the requested number per cell.
+			double step = (double) NUM_GENES / genesPerCell[c];
+			for (int i=0; i<genesPerCell[c]; i++)
+				writer.writeTriplet((int) (i*step), c, 1 + (int) Math.round(Math.exp(random.nextGaussian())));
+		}
+		writer.close();
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.matrixFile.delete();
+	}
+
+	@Benchmark
+	public long readIntMatrix() throws IOException {
+		long sum=0;
+		MatrixMarketReader reader = new MatrixMarketReader(matrixFile);
+		Iterator<MatrixMarketReader.IntElement> iter = reader.intIterator();
+		while (iter.hasNext())
+			sum+=iter.next().val;
+		reader.close();
+		return sum;
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.benchmark;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.broadinstitute.dropseqrna.utils.ObjectCounter;
+import org.broadinstitute.dropseqrna.utils.OpenHashObjectCounter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Counting a stream of Zipf distributed barcodes, one increment per read, and ordering the result by count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class ObjectCounterBenchmark {
+
+	@Param({"10000", "100000"})
+	public int numBarcodes;
+
+	private List<String> reads;
+	private ObjectCounter<String> counts;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		this.counts=BenchmarkData.zipfBarcodeCounts(random, numBarcodes, 12, 1.0, 10000);
+		this.reads=BenchmarkData.expand(random, counts);
+	}
+
+	@Benchmark
+	public ObjectCounter<String> increment() {
+		ObjectCounter<String> result = new ObjectCounter<>();
+		for (String r: reads)
+			result.increment(r);
+		return result;
+	}
+
+	@Benchmark
+	public ObjectCounter<String> incrementOpenHash() {
+		ObjectCounter<String> result = new OpenHashObjectCounter<>();
+		for (String r: reads)
+			result.increment(r);
+		return result;
+	}
+
+	@Benchmark
+	public List<String> getKeysOrderedByCount() {
+		return counts.getKeysOrderedByCount(true);
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.broadinstitute.dropseqrna.readtrimming.AdapterDescriptor;
+import org.broadinstitute.dropseqrna.readtrimming.PolyAWithAdapterFinder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import picard.util.ClippingUtility;
+
+/**
+ * PolyA and adapter search on 60 base reads, with the defaults of PolyATrimmer.  Reported per read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class PolyAFinderBenchmark {
+
+	private static final int NUM_READS=1024;
+	private static final int READ_LENGTH=60;
+
+	private PolyAWithAdapterFinder finder;
+	private String [] reads;
+	private String [] adapters;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		this.finder = new PolyAWithAdapterFinder(new AdapterDescriptor(AdapterDescriptor.DEFAULT_ADAPTER), 4, ClippingUtility.MAX_ERROR_RATE, 20, 6, 0.1, 6);
+		this.reads = new String [NUM_READS];
+		this.adapters = new String [NUM_READS];
+		for (int i=0; i<NUM_READS; i++) {
+			// the adapter is the UMI, the cell barcode and the fixed sequence.
+			this.adapters[i]=BenchmarkData.randomBases(random, 20) + "ACGTACTCTGCGTTGCTACCACTG";
+			// a third of reads have no polyA, a third polyA to the end, and a third polyA followed by adapter.
+			int polyAStart = READ_LENGTH - random.nextInt(40);
+			StringBuilder b = new StringBuilder(BenchmarkData.randomBases(random, polyAStart));
+			switch (i % 3) {
+				case 0: break;
+				case 1: while (b.length()<READ_LENGTH) b.append('A'); break;
+				default: for (int j=0; j<25 && b.length()<READ_LENGTH; j++) b.append('A'); b.append(adapters[i]); break;
+			}
+			if (b.length()<READ_LENGTH) b.append(BenchmarkData.randomBases(random, READ_LENGTH-b.length()));
+			this.reads[i]=b.substring(0, READ_LENGTH);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUM_READS)
+	public int getPolyAStart() {
+		int sum=0;
+		for (int i=0; i<NUM_READS; i++)
+			sum+=finder.getPolyAStart(reads[i], adapters[i]).startPos;
+		return sum;
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.UMICollection;
+import org.broadinstitute.dropseqrna.utils.ObjectCounter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * UMI collapse for one cell and gene, as done for every entry of a DGE matrix.  Reported per UMICollection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class UMICollectionBenchmark {
+
+	private static final int NUM_COLLECTIONS=1000;
+
+	// the largest number of distinct molecules for one cell and gene.  Most collections have far fewer.
+	@Param({"10", "200"})
+	public int maxMolecules;
+
+	private List<UMICollection> collections;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		this.collections = new ArrayList<>(NUM_COLLECTIONS);
+		for (int i=0; i<NUM_COLLECTIONS; i++) {
+			UMICollection c = new UMICollection(BenchmarkData.randomBases(random, 12), "GENE" + i);
+			ObjectCounter<String> umis = BenchmarkData.zipfBarcodeCounts(random, 1+random.nextInt(maxMolecules), 8, 0.5, 100);
+			for (String umi: umis.getKeys())
+				c.incrementMolecularBarcodeCount(umi, umis.getCountForKey(umi));
+			collections.add(c);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUM_COLLECTIONS)
+	public int getDigitalExpression() {
+		int sum=0;
+		for (UMICollection c: collections)
+			sum+=c.getDigitalExpression(1, 1, false);
+		return sum;
+	}
+}
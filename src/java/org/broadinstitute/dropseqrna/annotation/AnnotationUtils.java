@@ -52,7 +52,8 @@ public class AnnotationUtils {
 	@SuppressWarnings("unused")
 	private final Log log = Log.getInstance(AnnotationUtils.class);
 
-	private static AnnotationUtils singleton=null;
+	// created eagerly, as reads may be annotated from many threads.
+	private static final AnnotationUtils singleton=new AnnotationUtils();
 
 	private static Map<LocusFunction, Integer> functionScores;
 
@@ -66,8 +67,6 @@ public class AnnotationUtils {
 	}
 
 	public static AnnotationUtils getInstance() {
-		if (singleton==null)
-			singleton=new AnnotationUtils();
 		return singleton;
 	}
 
@@ -9,6 +9,7 @@ import org.broadinstitute.dropseqrna.metrics.TagReadWithGeneFunction;
 import org.broadinstitute.dropseqrna.utils.ObjectCounter;
 import org.broadinstitute.dropseqrna.utils.readiterators.GeneFunctionIteratorWrapper;
 import org.broadinstitute.dropseqrna.utils.readiterators.StrandStrategy;
+import org.broadinstitute.dropseqrna.utils.io.ParallelSamIO;
 import picard.annotation.LocusFunction;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.StandardOptionDefinitions;
@@ -61,6 +62,9 @@ public class CompareAnnotationFlags extends CommandLineProgram {
 	@Argument(doc="Gene Function tag.  For a given gene name <GENE_NAME_TAG>, this is the function of the gene at this read's position: UTR/CODING/INTRONIC/...")
 	public String GENE_FUNCTION_TAG="gf";
 
+	@Argument(doc="Number of threads used to decompress INPUT and to compress OUTPUT and OUTPUT_SPLIT_READ_BUG.")
+	public int IO_THREADS=1;
+
 	private String DELIMITER = ",";
 
 	private String [] problemGenes={"CDK11A", "RP1-283E3.8"};
@@ -86,10 +90,10 @@ public class CompareAnnotationFlags extends CommandLineProgram {
 		IOUtil.assertFileIsWritable(this.OUTPUT_SPLIT_READ_BUG);
 		if (AMBIGUOUS_GENE_OUTPUT!=null) IOUtil.assertFileIsWritable(AMBIGUOUS_GENE_OUTPUT);
 
-		SamReader inputSam = SamReaderFactory.makeDefault().open(INPUT);
+		SamReader inputSam = ParallelSamIO.openReader(INPUT, IO_THREADS);
 		SAMFileHeader header = inputSam.getFileHeader();
-		SAMFileWriter writer= new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, OUTPUT);
-		SAMFileWriter writer2= new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, OUTPUT_SPLIT_READ_BUG);
+		SAMFileWriter writer= ParallelSamIO.makeSAMOrBAMWriter(header, true, OUTPUT, IO_THREADS);
+		SAMFileWriter writer2= ParallelSamIO.makeSAMOrBAMWriter(header, true, OUTPUT_SPLIT_READ_BUG, IO_THREADS);
 
 		int counter=0;
 		int totalNumReads=0;
@@ -0,0 +1,74 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.annotation;
+
+import java.io.File;
+
+import org.broadinstitute.barclay.argparser.Argument;
+import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
+import org.broadinstitute.dropseqrna.cmdline.MetaData;
+import org.broadinstitute.dropseqrna.utils.DropSeqSamUtil;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.OverlapDetector;
+import picard.annotation.Gene;
+import picard.cmdline.CommandLineProgram;
+import picard.cmdline.StandardOptionDefinitions;
+
+@CommandLineProgramProperties(
+        summary = "Parses an annotations file once and writes the genes to a binary index next to the annotations file.  " +
+        		"Programs that read ANNOTATIONS_FILE load genes from the index when it was built from the same annotations file and sequence dictionary.",
+        oneLineSummary = "Create a binary index of an annotations file for faster loading",
+        programGroup = MetaData.class
+)
+public class CreateGeneAnnotationIndex extends CommandLineProgram {
+
+	@Argument(doc="The annotations set to index.  This can be a GTF or a refFlat file.")
+	public File ANNOTATIONS_FILE;
+
+	@Argument(shortName = StandardOptionDefinitions.SEQUENCE_DICTIONARY_SHORT_NAME, doc="The reference sequence dictionary.  This must have the same sequences as the BAMs the annotations will be used with, or the index is ignored.  This can be a .dict file or a SAM/BAM file.")
+	public File SEQUENCE_DICTIONARY;
+
+	@Argument(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc="The index file to write.  If not set, the index is written next to the annotations file as <ANNOTATIONS_FILE>" + GeneAnnotationIndex.FILE_EXTENSION, optional=true)
+	public File OUTPUT;
+
+	@Override
+	protected int doWork() {
+		IOUtil.assertFileIsReadable(this.ANNOTATIONS_FILE);
+		IOUtil.assertFileIsReadable(this.SEQUENCE_DICTIONARY);
+		if (this.OUTPUT==null) this.OUTPUT=GeneAnnotationIndex.getIndexFile(this.ANNOTATIONS_FILE);
+		IOUtil.assertFileIsWritable(this.OUTPUT);
+
+		SAMSequenceDictionary dict = DropSeqSamUtil.loadSequenceDictionary(this.SEQUENCE_DICTIONARY);
+		OverlapDetector<Gene> od = GeneAnnotationReader.parseAnnotationsFile(this.ANNOTATIONS_FILE, dict);
+		GeneAnnotationIndex.write(od.getAll(), this.ANNOTATIONS_FILE, dict, this.OUTPUT);
+		return 0;
+	}
+
+	/** Stock main method. */
+	public static void main(final String[] args) {
+		System.exit(new CreateGeneAnnotationIndex().instanceMain(args));
+	}
+}
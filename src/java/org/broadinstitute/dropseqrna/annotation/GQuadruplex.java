@@ -23,6 +23,7 @@
  */
 package org.broadinstitute.dropseqrna.annotation;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -101,6 +102,54 @@ public class GQuadruplex {
 		return (result);
 	}
 
+	/**
+	 * Count the G-Quadruplexes that {@link #find(String, String)} would find, without building Strings for the
+	 * sequence or the matches.
+	 * @param bases The sequence to search, as ASCII bases.
+	 */
+	public static int count (final byte [] bases) {
+		Matcher matcher = pattern.matcher(new ByteCharSequence(bases, 0, bases.length));
+		int count=0;
+		while (matcher.find())
+			count++;
+		return count;
+	}
+
+	/**
+	 * A view of ASCII bases as characters, so they can be matched without copying them into a String.
+	 */
+	private static class ByteCharSequence implements CharSequence {
+		private final byte [] bases;
+		private final int start;
+		private final int end;
+
+		ByteCharSequence (final byte [] bases, final int start, final int end) {
+			this.bases=bases;
+			this.start=start;
+			this.end=end;
+		}
+
+		@Override
+		public int length() {
+			return end-start;
+		}
+
+		@Override
+		public char charAt(final int index) {
+			return (char) bases[start+index];
+		}
+
+		@Override
+		public CharSequence subSequence(final int from, final int to) {
+			return new ByteCharSequence(bases, start+from, start+to);
+		}
+
+		@Override
+		public String toString() {
+			return new String(bases, start, end-start, StandardCharsets.US_ASCII);
+		}
+	}
+
 	@Override
 	public String toString () {
 		StringBuilder b = new StringBuilder();
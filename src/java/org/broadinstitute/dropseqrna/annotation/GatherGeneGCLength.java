@@ -28,8 +28,10 @@ import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.builder.EqualsBuilder;
@@ -39,12 +41,14 @@ import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.cmdline.MetaData;
 import org.broadinstitute.dropseqrna.utils.FastaSequenceFileWriter;
 import org.broadinstitute.dropseqrna.utils.io.ErrorCheckingPrintStream;
-import org.broadinstitute.dropseqrna.utils.referencetools.ReferenceUtils;
+import org.broadinstitute.dropseqrna.utils.io.OrderedParallelExecutor;
 
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
 import htsjdk.samtools.reference.ReferenceSequenceFileWalker;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
@@ -53,6 +57,7 @@ import htsjdk.samtools.util.IntervalList;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.OverlapDetector;
 import htsjdk.samtools.util.SequenceUtil;
+import htsjdk.samtools.util.StringUtil;
 import picard.annotation.Gene;
 import picard.annotation.Gene.Transcript;
 import picard.annotation.Gene.Transcript.Exon;
@@ -85,6 +90,13 @@ public class GatherGeneGCLength extends CommandLineProgram {
 	@Argument(doc="The sequences of each transcript", optional=true)
 	public File OUTPUT_TRANSCRIPT_SEQUENCES;
 
+	@Argument(doc="Number of threads used to compute metrics.  When more than 1 and the reference is indexed, contigs are processed in parallel "
+			+ "and their genes written in genomic order.")
+	public int NUM_THREADS=1;
+
+	// each contig in flight holds all of its bases.
+	private static final int CONTIGS_IN_FLIGHT_PER_THREAD=2;
+
     @Override
     protected boolean requiresReference() {
         return true;
@@ -126,43 +138,141 @@ public class GatherGeneGCLength extends CommandLineProgram {
 
         OverlapDetector<Gene> geneOverlapDetector= GeneAnnotationReader.loadAnnotationsFile(GTF, dict);
 
-        List<SAMSequenceRecord> records = dict.getSequences();
-
-		for (SAMSequenceRecord record: records) {
-			String seqName = record.getSequenceName();
-			int seqIndex=dict.getSequenceIndex(seqName);
-			ReferenceSequence fastaRef=refFileWalker.get(seqIndex);
-
-			// get the genes for this contig.
-			Interval i = new Interval(seqName, 1, record.getSequenceLength());
-			Collection< Gene> genes = geneOverlapDetector.getOverlaps(i);
-			for (Gene g: genes) {
-				List<GCResult> gcList = calculateGCContentGene(g, fastaRef, dict);
-				if (this.OUTPUT_TRANSCRIPT_LEVEL!=null)
-					writeResultTranscript(gcList, outTranscript);
-				GCIsoformSummary summary = new GCIsoformSummary(g, gcList);
-				if (this.OUTPUT_TRANSCRIPT_SEQUENCES!=null)
-					writeTranscriptSequence(g, fastaRef, dict, outSequence);
+        boolean parallel = this.NUM_THREADS>1 && isIndexed(REFERENCE_SEQUENCE);
+        if (this.NUM_THREADS>1 && !parallel)
+			log.warn("Reference " + REFERENCE_SEQUENCE.getAbsolutePath() + " is not indexed, processing contigs on a single thread");
 
-				GCResult gc = calculateGCContentUnionExons(g, fastaRef, dict);
-
-				writeResult(gc, summary, out);
+        if (parallel) {
+        	CloserUtil.close(refFileWalker);
+        	processContigsParallel(dict, geneOverlapDetector, out, outTranscript, outSequence);
+        } else {
+			for (SAMSequenceRecord record: dict.getSequences()) {
+				List<Gene> genes = getGenes(record, geneOverlapDetector);
+				if (genes.isEmpty()) continue;
+				ReferenceSequence fastaRef=refFileWalker.get(record.getSequenceIndex());
+				writeContig(processContig(genes, fastaRef.getBases(), dict), out, outTranscript, outSequence);
 			}
-		}
-		CloserUtil.close(refFileWalker);
+			CloserUtil.close(refFileWalker);
+        }
 		CloserUtil.close(out);
 		if (this.OUTPUT_TRANSCRIPT_LEVEL!=null) CloserUtil.close(outTranscript);
 		if (this.OUTPUT_TRANSCRIPT_SEQUENCES!=null) CloserUtil.close(outSequence);
         return 0;
 	}
 
+	private static boolean isIndexed (final File reference) {
+		ReferenceSequenceFile ref = ReferenceSequenceFileFactory.getReferenceSequenceFile(reference);
+		try {
+			return ref.isIndexed();
+		} finally {
+			CloserUtil.close(ref);
+		}
+	}
+
+	/**
+	 * The genes on a contig in genomic order.
+	 */
+	private List<Gene> getGenes (final SAMSequenceRecord record, final OverlapDetector<Gene> geneOverlapDetector) {
+		Interval i = new Interval(record.getSequenceName(), 1, record.getSequenceLength());
+		List<Gene> genes = new ArrayList<>(geneOverlapDetector.getOverlaps(i));
+		Collections.sort(genes);
+		return genes;
+	}
+
+	/**
+	 * Compute the metrics of each contig on a pool of threads, each with its own indexed reader.
+	 * Contigs are written in dictionary order as they complete, so the output is identical to the single threaded version.
+	 */
+	private void processContigsParallel (final SAMSequenceDictionary dict, final OverlapDetector<Gene> geneOverlapDetector,
+			final PrintStream out, final PrintStream outTranscript, final FastaSequenceFileWriter outSequence) {
+		log.info("Processing " + dict.size() + " contigs on " + NUM_THREADS + " threads");
+		BlockingQueue<ReferenceSequenceFile> readers = new ArrayBlockingQueue<>(this.NUM_THREADS);
+		try (OrderedParallelExecutor<List<GeneResult>> executor = new OrderedParallelExecutor<>("computing gene metrics", this.NUM_THREADS,
+				CONTIGS_IN_FLIGHT_PER_THREAD, results -> writeContig(results, out, outTranscript, outSequence))) {
+			for (int i=0; i<this.NUM_THREADS; i++)
+				readers.add(ReferenceSequenceFileFactory.getReferenceSequenceFile(REFERENCE_SEQUENCE));
+			for (SAMSequenceRecord record: dict.getSequences()) {
+				List<Gene> genes = getGenes(record, geneOverlapDetector);
+				if (genes.isEmpty()) continue;
+				executor.submit(() -> processContig(readers, record.getSequenceName(), genes, dict));
+			}
+			executor.finish();
+		} finally {
+			for (ReferenceSequenceFile reader: readers)
+				CloserUtil.close(reader);
+		}
+	}
+
+	private List<GeneResult> processContig (final BlockingQueue<ReferenceSequenceFile> readers, final String contig, final List<Gene> genes,
+			final SAMSequenceDictionary dict) throws InterruptedException {
+		byte [] bases;
+		ReferenceSequenceFile reader = readers.take();
+		try {
+			bases = reader.getSequence(contig).getBases();
+		} finally {
+			readers.add(reader);
+		}
+		return processContig(genes, bases, dict);
+	}
+
+	private void writeContig (final List<GeneResult> results, final PrintStream out, final PrintStream outTranscript, final FastaSequenceFileWriter outSequence) {
+		for (GeneResult r: results) {
+			if (outTranscript!=null)
+				writeResultTranscript(r.transcriptGC, outTranscript);
+			if (outSequence!=null)
+				for (int i=0; i<r.transcriptGC.size(); i++)
+					outSequence.writeSequence(r.summary.getGene().getName()+" " + r.transcriptGC.get(i).getTranscript().name, r.transcriptSequences.get(i));
+			writeResult(r.unionExonGC, r.summary, out);
+		}
+	}
+
+	/**
+	 * Compute the metrics for the genes of a contig from the bases of the contig.
+	 * This only reads shared state, so contigs can be processed concurrently.
+	 */
+	private List<GeneResult> processContig (final List<Gene> genes, final byte [] fastaRefBases, final SAMSequenceDictionary dict) {
+		boolean keepSequences = this.OUTPUT_TRANSCRIPT_SEQUENCES!=null;
+		List<GeneResult> result = new ArrayList<>(genes.size());
+		for (Gene g: genes) {
+			List<GCResult> gcList = new ArrayList<>();
+			List<String> sequences = keepSequences ? new ArrayList<>() : null;
+			for (Transcript t : g) {
+				byte [] seq = getTranscriptBases(t, fastaRefBases);
+				gcList.add(calculateGCContentTranscript(t, seq));
+				if (keepSequences) sequences.add(StringUtil.bytesToString(seq));
+			}
+			GCIsoformSummary summary = new GCIsoformSummary(g, gcList);
+			GCResult gc = calculateGCContentUnionExons(g, fastaRefBases, dict);
+			result.add(new GeneResult(gcList, summary, gc, sequences));
+		}
+		return result;
+	}
+
+	/**
+	 * The metrics of one gene, computed on a worker and written in order on the main thread.
+	 */
+	private static class GeneResult {
+		private final List<GCResult> transcriptGC;
+		private final GCIsoformSummary summary;
+		private final GCResult unionExonGC;
+		// the sequence of each transcript, or null if sequences are not written.
+		private final List<String> transcriptSequences;
+
+		GeneResult (final List<GCResult> transcriptGC, final GCIsoformSummary summary, final GCResult unionExonGC, final List<String> transcriptSequences) {
+			this.transcriptGC=transcriptGC;
+			this.summary=summary;
+			this.unionExonGC=unionExonGC;
+			this.transcriptSequences=transcriptSequences;
+		}
+	}
+
 	/**
 	 * For a GC record and a fasta sequence, calculate the GC content.
 	 * Builds intervals of the unique sequences overlapped by exons, calculates the GC content for each, and aggregates results.
-	 * @param fastaRef
+	 * @param fastaRefBases
 	 * @return
 	 */
-	private GCResult calculateGCContentUnionExons(final Gene gene, final ReferenceSequence fastaRef, final SAMSequenceDictionary dict) {
+	private GCResult calculateGCContentUnionExons(final Gene gene, final byte [] fastaRefBases, final SAMSequenceDictionary dict) {
 		// make an interval list.
 		SAMFileHeader h = new SAMFileHeader();
 		h.setSequenceDictionary(dict);
@@ -178,28 +288,36 @@ public class GatherGeneGCLength extends CommandLineProgram {
 		// track aggregated GC.
 		GCResult result = new GCResult(0, 0, 0);
 
-		for (Interval i: uniqueIntervals) {
-			GCResult gcResultInterval = calculateGCContentExon(i, fastaRef);
-			result.increment(gcResultInterval);
-		}
+		for (Interval i: uniqueIntervals)
+			// the byte [] is base 0, the coordinates are base 1.
+			countGC(fastaRefBases, i.getStart()-1, i.getEnd(), i.isNegativeStrand(), result);
 		return result;
 	}
 
+	private GCResult calculateGCContentTranscript (final Transcript transcript, final byte [] transcriptBases) {
+		GCResult gc = new GCResult(0, 0, 0);
+		countGC(transcriptBases, 0, transcriptBases.length, false, gc);
+		gc.setTranscript(transcript);
+		// check for GQuadruplexes.
+		gc.incrementGQuadruplexCount(GQuadruplex.count(transcriptBases));
+		return gc;
+	}
 
-	private List<GCResult> calculateGCContentGene (final Gene gene, final ReferenceSequence fastaRef, final SAMSequenceDictionary dict) {
-		List<GCResult> result = new ArrayList<>();
-
-		for (Transcript t : gene) {
-			String seq=getTranscriptSequence(t, fastaRef, dict);
-			GCResult gc = new GCResult(seq);
-			gc.setTranscript(t);
-
-			// check for GQuadruplexes.
-			List<GQuadruplex> gq = GQuadruplex.find(t.name, seq);
-			gc.incrementGQuadruplexCount(gq.size());
-			result.add(gc);
-		}
-		return (result);
+	/**
+	 * Add the length and the G and C bases of bases[from, to) to the result, ignoring case.
+	 * On the negative strand the sequence is reverse complemented, so a reference G is counted as a C and vice versa.
+	 */
+	private static void countGC (final byte [] bases, final int from, final int to, final boolean negativeStrand, final GCResult result) {
+		int gCount=0;
+		int cCount=0;
+		for (int i=from; i<to; i++) {
+			byte b = StringUtil.toUpperCase(bases[i]);
+			if (b=='G') gCount++;
+			else if (b=='C') cCount++;
+		}
+		result.incrementRegionLength(to-from);
+		result.incrementG(negativeStrand ? cCount : gCount);
+		result.incrementC(negativeStrand ? gCount : cCount);
 	}
 
 
@@ -237,30 +355,27 @@ public class GatherGeneGCLength extends CommandLineProgram {
 	 * @return
 	 */
 	public String getTranscriptSequence (final Transcript transcript, final ReferenceSequence fastaRef, final SAMSequenceDictionary dict) {
+		return StringUtil.bytesToString(getTranscriptBases(transcript, fastaRef.getBases()));
+	}
 
-		StringBuilder b = new StringBuilder();
-
+	/**
+	 * The bases of {@link #getTranscriptSequence}, copied directly out of the reference bases.
+	 */
+	private byte [] getTranscriptBases (final Transcript transcript, final byte [] fastaRefBases) {
+		int length=0;
+		for (Exon e: transcript.exons)
+			length+=e.end-e.start+1;
+		byte [] result = new byte [length];
+		int pos=0;
 		for (Exon e: transcript.exons) {
-			Interval i= new Interval ( transcript.getGene().getContig(), e.start, e.end, transcript.getGene().isNegativeStrand(), transcript.getGene().getName());
-			String seq=ReferenceUtils.getSequence (fastaRef.getBases(), i);
-			b.append(seq);
+			int exonLength=e.end-e.start+1;
+			// the byte [] is base 0, the coordinates are base 1.
+			System.arraycopy(fastaRefBases, e.start-1, result, pos, exonLength);
+			pos+=exonLength;
 		}
 		// build the sequence in genomic order, upper case, reverse compliment if needed.
-		String finalSeq = b.toString();
-		finalSeq=finalSeq.toUpperCase();
-		// if the sequence is on the negative strand, reverse compliemnt.
-		if (transcript.getGene().isNegativeStrand()) finalSeq=SequenceUtil.reverseComplement(finalSeq);
-		// log.info(">" + transcript.name + "\n" + finalSeq);
-		return (finalSeq);
-	}
-
-
-	private GCResult calculateGCContentExon (final Interval interval, final ReferenceSequence fastaRef) {
-		//ensure that the start and end positions occur within the genome.
-		String seq=ReferenceUtils.getSequence (fastaRef.getBases(), interval);
-		// if the sequence is on the negative strand, reverse compliemnt.
-		if (interval.isNegativeStrand()) seq=SequenceUtil.reverseComplement(seq);
-		GCResult result = new GCResult(seq);
+		StringUtil.toUpperCase(result);
+		if (transcript.getGene().isNegativeStrand()) SequenceUtil.reverseComplement(result);
 		return (result);
 	}
 
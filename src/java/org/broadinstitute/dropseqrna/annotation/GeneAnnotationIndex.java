@@ -0,0 +1,352 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.annotation;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.OverlapDetector;
+import htsjdk.samtools.util.RuntimeIOException;
+import picard.annotation.Gene;
+
+/**
+ * A binary index of the genes in an annotations file, so the GTF or refFlat doesn't have to be parsed again by every program.
+ *
+ * The index is a sidecar file next to the annotations file [annotations.gtf.dsidx].  It records the length and modification time
+ * of the annotations file and a checksum of the sequence dictionary it was built with, and is only used if all of them still match.
+ * The annotations file itself is not read to validate the index, so loading stays cheap for large annotations.  Genes, transcripts and exons are
+ * stored as flat primitive arrays with a shared string table, and read back through a memory mapped file.
+ *
+ * Genes loaded from a GTF are restored as {@link GeneFromGTF}, so the GTF specific fields are retained.
+ */
+public class GeneAnnotationIndex {
+
+	private static final Log log = Log.getInstance(GeneAnnotationIndex.class);
+
+	public static final String FILE_EXTENSION=".dsidx";
+
+	private static final byte [] MAGIC = "DSIDX".getBytes(StandardCharsets.US_ASCII);
+	private static final int VERSION=2;
+	private static final int NULL_VALUE=-1;
+	private static final int MD5_LENGTH=16;
+
+	/**
+	 * @return The sidecar index file for an annotations file.
+	 */
+	public static File getIndexFile (final File annotationsFile) {
+		return new File(annotationsFile.getPath() + FILE_EXTENSION);
+	}
+
+	/**
+	 * Write an index of the genes loaded from an annotations file.
+	 * @param genes The genes loaded from <annotationsFile> with <sequenceDictionary>.
+	 * @param annotationsFile The annotations file the genes were loaded from.
+	 * @param sequenceDictionary The sequence dictionary the genes were loaded with.
+	 * @param indexFile The file to write.
+	 */
+	public static void write (final Collection<Gene> genes, final File annotationsFile, final SAMSequenceDictionary sequenceDictionary, final File indexFile) {
+		StringTable strings = new StringTable();
+		int numGenes = genes.size();
+		int [] geneContig = new int [numGenes];
+		int [] geneStart = new int [numGenes];
+		int [] geneEnd = new int [numGenes];
+		byte [] geneNegative = new byte [numGenes];
+		int [] geneName = new int [numGenes];
+		byte [] geneFromGTF = new byte [numGenes];
+		int [] geneID = new int [numGenes];
+		int [] geneTranscriptType = new int [numGenes];
+		int [] geneFeatureType = new int [numGenes];
+		int [] geneVersion = new int [numGenes];
+		int [] geneNumTranscripts = new int [numGenes];
+
+		List<Gene.Transcript> transcripts = new ArrayList<>();
+		int g=0;
+		for (Gene gene: genes) {
+			geneContig[g]=strings.add(gene.getContig());
+			geneStart[g]=gene.getStart();
+			geneEnd[g]=gene.getEnd();
+			geneNegative[g]=(byte) (gene.isNegativeStrand() ? 1 : 0);
+			geneName[g]=strings.add(gene.getName());
+			geneID[g]=NULL_VALUE;
+			geneTranscriptType[g]=NULL_VALUE;
+			geneFeatureType[g]=NULL_VALUE;
+			geneVersion[g]=NULL_VALUE;
+			if (gene instanceof GeneFromGTF) {
+				GeneFromGTF gtfGene = (GeneFromGTF) gene;
+				geneFromGTF[g]=1;
+				geneID[g]=strings.add(gtfGene.getGeneID());
+				geneTranscriptType[g]=strings.add(gtfGene.getTranscriptType());
+				geneFeatureType[g]=strings.add(gtfGene.getFeatureType());
+				if (gtfGene.getGeneVersion()!=null) geneVersion[g]=gtfGene.getGeneVersion();
+			}
+			for (Gene.Transcript t: gene) {
+				transcripts.add(t);
+				geneNumTranscripts[g]++;
+			}
+			g++;
+		}
+
+		int numTranscripts = transcripts.size();
+		int [] txName = new int [numTranscripts];
+		int [] txStart = new int [numTranscripts];
+		int [] txEnd = new int [numTranscripts];
+		int [] txCodingStart = new int [numTranscripts];
+		int [] txCodingEnd = new int [numTranscripts];
+		int [] txNumExons = new int [numTranscripts];
+		int [] txTranscriptName = new int [numTranscripts];
+		int [] txTranscriptID = new int [numTranscripts];
+		int [] txTranscriptType = new int [numTranscripts];
+		int numExons=0;
+		for (int t=0; t<numTranscripts; t++) {
+			Gene.Transcript tx = transcripts.get(t);
+			txName[t]=strings.add(tx.name);
+			txStart[t]=tx.transcriptionStart;
+			txEnd[t]=tx.transcriptionEnd;
+			txCodingStart[t]=tx.codingStart;
+			txCodingEnd[t]=tx.codingEnd;
+			txNumExons[t]=tx.exons.length;
+			txTranscriptName[t]=NULL_VALUE;
+			txTranscriptID[t]=NULL_VALUE;
+			txTranscriptType[t]=NULL_VALUE;
+			if (tx instanceof GeneFromGTF.TranscriptFromGTF) {
+				GeneFromGTF.TranscriptFromGTF gtfTx = (GeneFromGTF.TranscriptFromGTF) tx;
+				txTranscriptName[t]=strings.add(gtfTx.getTranscriptName());
+				txTranscriptID[t]=strings.add(gtfTx.getTranscriptID());
+				txTranscriptType[t]=strings.add(gtfTx.getTranscriptType());
+			}
+			numExons+=tx.exons.length;
+		}
+		int [] exonStart = new int [numExons];
+		int [] exonEnd = new int [numExons];
+		int e=0;
+		for (Gene.Transcript tx: transcripts)
+			for (Gene.Transcript.Exon exon: tx.exons) {
+				exonStart[e]=exon.start;
+				exonEnd[e]=exon.end;
+				e++;
+			}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(annotationsFile.length());
+			out.writeLong(annotationsFile.lastModified());
+			out.write(getChecksum(sequenceDictionary));
+			out.writeInt(strings.size());
+			for (String s: strings.values) {
+				byte [] b = s.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(b.length);
+				out.write(b);
+			}
+			out.writeInt(numGenes);
+			writeInts(out, geneContig, geneStart, geneEnd, geneName, geneID, geneTranscriptType, geneFeatureType, geneVersion, geneNumTranscripts);
+			out.write(geneNegative);
+			out.write(geneFromGTF);
+			out.writeInt(numTranscripts);
+			writeInts(out, txName, txStart, txEnd, txCodingStart, txCodingEnd, txNumExons, txTranscriptName, txTranscriptID, txTranscriptType);
+			out.writeInt(numExons);
+			writeInts(out, exonStart, exonEnd);
+		} catch (IOException ex) {
+			throw new RuntimeIOException("Exception writing annotation index " + indexFile, ex);
+		}
+		log.info("Wrote index of [" + numGenes + "] genes to " + indexFile);
+	}
+
+	private static void writeInts (final DataOutputStream out, final int [] ... arrays) throws IOException {
+		for (int [] a: arrays)
+			for (int v: a)
+				out.writeInt(v);
+	}
+
+	/**
+	 * Load the genes from an index.
+	 * @param indexFile The index to load.
+	 * @param annotationsFile The annotations file the index should have been built from.
+	 * @param sequenceDictionary The sequence dictionary the index should have been built with.
+	 * @return The genes, or null if the index was built from a different annotations file or sequence dictionary.
+	 */
+	public static OverlapDetector<Gene> load (final File indexFile, final File annotationsFile, final SAMSequenceDictionary sequenceDictionary) {
+		try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r"); FileChannel channel = raf.getChannel()) {
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			byte [] magic = new byte [MAGIC.length];
+			buf.get(magic);
+			if (!Arrays.equals(magic, MAGIC) || buf.getInt()!=VERSION) {
+				log.warn("Not a recognized annotation index, ignoring " + indexFile);
+				return null;
+			}
+			long annotationsLength = buf.getLong();
+			long annotationsLastModified = buf.getLong();
+			byte [] dictionaryChecksum = new byte [MD5_LENGTH];
+			buf.get(dictionaryChecksum);
+			if (annotationsLength!=annotationsFile.length() || annotationsLastModified!=annotationsFile.lastModified()) {
+				log.warn("Annotations file has changed since the annotation index was built, ignoring " + indexFile);
+				return null;
+			}
+			if (!Arrays.equals(dictionaryChecksum, getChecksum(sequenceDictionary))) {
+				log.warn("Annotation index was built with a different sequence dictionary, ignoring " + indexFile);
+				return null;
+			}
+			String [] strings = new String [buf.getInt()];
+			for (int i=0; i<strings.length; i++) {
+				byte [] b = new byte [buf.getInt()];
+				buf.get(b);
+				strings[i]=new String(b, StandardCharsets.UTF_8);
+			}
+
+			int numGenes = buf.getInt();
+			int [] geneContig = readInts(buf, numGenes);
+			int [] geneStart = readInts(buf, numGenes);
+			int [] geneEnd = readInts(buf, numGenes);
+			int [] geneName = readInts(buf, numGenes);
+			int [] geneID = readInts(buf, numGenes);
+			int [] geneTranscriptType = readInts(buf, numGenes);
+			int [] geneFeatureType = readInts(buf, numGenes);
+			int [] geneVersion = readInts(buf, numGenes);
+			int [] geneNumTranscripts = readInts(buf, numGenes);
+			byte [] geneNegative = new byte [numGenes];
+			buf.get(geneNegative);
+			byte [] geneFromGTF = new byte [numGenes];
+			buf.get(geneFromGTF);
+
+			int numTranscripts = buf.getInt();
+			int [] txName = readInts(buf, numTranscripts);
+			int [] txStart = readInts(buf, numTranscripts);
+			int [] txEnd = readInts(buf, numTranscripts);
+			int [] txCodingStart = readInts(buf, numTranscripts);
+			int [] txCodingEnd = readInts(buf, numTranscripts);
+			int [] txNumExons = readInts(buf, numTranscripts);
+			int [] txTranscriptName = readInts(buf, numTranscripts);
+			int [] txTranscriptID = readInts(buf, numTranscripts);
+			int [] txTranscriptType = readInts(buf, numTranscripts);
+
+			int numExons = buf.getInt();
+			int [] exonStart = readInts(buf, numExons);
+			int [] exonEnd = readInts(buf, numExons);
+
+			final OverlapDetector<Gene> overlapDetector = new OverlapDetector<>(0, 0);
+			int t=0;
+			int e=0;
+			for (int g=0; g<numGenes; g++) {
+				Gene gene;
+				if (geneFromGTF[g]==1)
+					gene = new GeneFromGTF(strings[geneContig[g]], geneStart[g], geneEnd[g], geneNegative[g]==1, strings[geneName[g]],
+							getString(strings, geneFeatureType[g]), getString(strings, geneID[g]), getString(strings, geneTranscriptType[g]),
+							geneVersion[g]==NULL_VALUE ? null : geneVersion[g]);
+				else
+					gene = new Gene(strings[geneContig[g]], geneStart[g], geneEnd[g], geneNegative[g]==1, strings[geneName[g]]);
+				for (int i=0; i<geneNumTranscripts[g]; i++, t++) {
+					Gene.Transcript tx;
+					if (geneFromGTF[g]==1)
+						tx = ((GeneFromGTF) gene).addTranscript(strings[txName[t]], txStart[t], txEnd[t], txCodingStart[t], txCodingEnd[t], txNumExons[t],
+								getString(strings, txTranscriptName[t]), getString(strings, txTranscriptID[t]), getString(strings, txTranscriptType[t]));
+					else
+						tx = gene.addTranscript(strings[txName[t]], txStart[t], txEnd[t], txCodingStart[t], txCodingEnd[t], txNumExons[t]);
+					for (int j=0; j<txNumExons[t]; j++, e++)
+						tx.addExon(exonStart[e], exonEnd[e]);
+				}
+				overlapDetector.addLhs(gene, gene);
+			}
+			return overlapDetector;
+		} catch (IOException ex) {
+			throw new RuntimeIOException("Exception reading annotation index " + indexFile, ex);
+		}
+	}
+
+	private static int [] readInts (final ByteBuffer buf, final int length) {
+		int [] result = new int [length];
+		buf.asIntBuffer().get(result);
+		buf.position(buf.position()+length*Integer.BYTES);
+		return result;
+	}
+
+	private static String getString (final String [] strings, final int index) {
+		if (index==NULL_VALUE) return null;
+		return strings[index];
+	}
+
+	/**
+	 * Only the names and lengths of the sequences are used, as those are all that loading annotations depends on.
+	 * @return The MD5 of the sequence names and lengths of a sequence dictionary.
+	 */
+	static byte [] getChecksum (final SAMSequenceDictionary sequenceDictionary) {
+		MessageDigest md5 = getMD5();
+		for (SAMSequenceRecord s: sequenceDictionary.getSequences()) {
+			md5.update(s.getSequenceName().getBytes(StandardCharsets.UTF_8));
+			md5.update((byte) '\t');
+			md5.update(Integer.toString(s.getSequenceLength()).getBytes(StandardCharsets.UTF_8));
+			md5.update((byte) '\n');
+		}
+		return md5.digest();
+	}
+
+	private static MessageDigest getMD5 () {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Assigns each distinct string an index, so repeated names [contigs, transcript types] are stored once.
+	 */
+	private static class StringTable {
+		private final Map<String, Integer> index = new HashMap<>();
+		private final List<String> values = new ArrayList<>();
+
+		int add (final String s) {
+			if (s==null) return NULL_VALUE;
+			Integer i = index.get(s);
+			if (i==null) {
+				i=values.size();
+				index.put(s, i);
+				values.add(s);
+			}
+			return i;
+		}
+
+		int size () {
+			return values.size();
+		}
+	}
+}
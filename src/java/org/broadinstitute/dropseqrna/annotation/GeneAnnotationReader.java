@@ -28,6 +28,7 @@ import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.OverlapDetector;
 import picard.annotation.Gene;
 
@@ -40,7 +41,28 @@ import java.io.File;
  */
 public class GeneAnnotationReader {
 
+	private static final Log log = Log.getInstance(GeneAnnotationReader.class);
+
+	/**
+	 * Load the genes in an annotations file.  If there's an up to date {@link GeneAnnotationIndex} next to the annotations file,
+	 * the genes are loaded from the index instead of parsing the annotations file.
+	 */
 	public static OverlapDetector<Gene> loadAnnotationsFile(final File annotationFile, final SAMSequenceDictionary sequenceDictionary) {
+		File indexFile = GeneAnnotationIndex.getIndexFile(annotationFile);
+		if (sequenceDictionary!=null && indexFile.canRead()) {
+			OverlapDetector<Gene> result = GeneAnnotationIndex.load(indexFile, annotationFile, sequenceDictionary);
+			if (result!=null) {
+				log.info("Loaded genes from annotation index " + indexFile);
+				return result;
+			}
+		}
+		return parseAnnotationsFile(annotationFile, sequenceDictionary);
+	}
+
+	/**
+	 * Load the genes in an annotations file, ignoring any index.
+	 */
+	public static OverlapDetector<Gene> parseAnnotationsFile(final File annotationFile, final SAMSequenceDictionary sequenceDictionary) {
 
 		// trim off the potential compression tags on the file.
 		String f = annotationFile.getName();
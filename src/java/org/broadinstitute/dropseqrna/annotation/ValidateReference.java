@@ -30,11 +30,13 @@ import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.reference.ReferenceSequence;
 import htsjdk.samtools.reference.ReferenceSequenceFile;
 import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.StringUtil;
 import org.broadinstitute.barclay.argparser.Argument;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.cmdline.MetaData;
 import org.broadinstitute.dropseqrna.utils.io.ErrorCheckingPrintStream;
+import org.broadinstitute.dropseqrna.utils.io.OrderedParallelExecutor;
 import picard.PicardException;
 import picard.annotation.Gene;
 import picard.cmdline.CommandLineProgram;
@@ -63,6 +65,13 @@ import java.util.*;
             doc="Write report in json format, for unit testing only.")
     public File OUTPUT;
 
+    @Argument(doc="Number of threads used to check the bases of the reference.  The reference is read once, and with more than 1 thread " +
+            "the bases of each sequence are checked while the following sequences are read.")
+    public int NUM_THREADS = 1;
+
+    // each sequence in flight holds all of its bases.
+    private static final int SEQUENCES_IN_FLIGHT_PER_THREAD = 2;
+
     public static void main(final String[] args) {
         new ValidateReference().instanceMainWithExit(args);
     }
@@ -96,7 +105,7 @@ import java.util.*;
     protected int doWork() {
         // LinkedHashSets used to preserve insertion order, which presumably has some intuitive meaning.
 
-        final SAMSequenceDictionary sequenceDictionary = makeSequenceDictionary(REFERENCE_SEQUENCE);
+        final SAMSequenceDictionary sequenceDictionary = readReference(REFERENCE_SEQUENCE);
         final GTFReader gtfReader = new GTFReader(GTF, sequenceDictionary);
         // Use
         final Set<String> sequencesInReference = new LinkedHashSet<>();
@@ -121,8 +130,6 @@ import java.util.*;
         }
         messages.geneBiotypes.addAll(transcriptTypes);
 
-        validateReferenceBases(REFERENCE_SEQUENCE);
-
         messages.sequencesOnlyInReference.addAll(subtract(sequencesInReference, sequencesInGtf));
         messages.sequencesOnlyInGtf.addAll(gtfReader.getUnrecognizedSequences());
 
@@ -174,35 +181,52 @@ import java.util.*;
         return 0;
     }
 
-    private SAMSequenceDictionary makeSequenceDictionary(final File referenceFile) {
+    /**
+     * Read the reference once, building the sequence dictionary and checking the bases of each sequence as it is read.
+     * With more than 1 thread the bases are checked on a pool of threads, and problems are reported in reference order.
+     */
+    private SAMSequenceDictionary readReference(final File referenceFile) {
         final ReferenceSequenceFile refSeqFile =
                 ReferenceSequenceFileFactory.getReferenceSequenceFile(referenceFile, true);
-        ReferenceSequence refSeq;
         final List<SAMSequenceRecord> ret = new ArrayList<>();
         final Set<String> sequenceNames = new HashSet<>();
-        while ((refSeq = refSeqFile.nextSequence()) != null) {
-            if (sequenceNames.contains(refSeq.getName())) {
-                throw new PicardException("Sequence name appears more than once in reference: " + refSeq.getName());
+        try (OrderedParallelExecutor<String> executor = new OrderedParallelExecutor<>("validating reference bases",
+                NUM_THREADS, SEQUENCES_IN_FLIGHT_PER_THREAD, this::recordBaseError)) {
+            ReferenceSequence refSeq;
+            while ((refSeq = refSeqFile.nextSequence()) != null) {
+                if (sequenceNames.contains(refSeq.getName())) {
+                    throw new PicardException("Sequence name appears more than once in reference: " + refSeq.getName());
+                }
+                sequenceNames.add(refSeq.getName());
+                ret.add(new SAMSequenceRecord(refSeq.getName(), refSeq.length()));
+                final ReferenceSequence sequence = refSeq;
+                executor.submit(() -> findBaseError(sequence));
             }
-            sequenceNames.add(refSeq.getName());
-            ret.add(new SAMSequenceRecord(refSeq.getName(), refSeq.length()));
+            executor.finish();
+        } finally {
+            CloserUtil.close(refSeqFile);
         }
         return new SAMSequenceDictionary(ret);
     }
 
-
-    private void validateReferenceBases(File referenceFile) {
-        final ReferenceSequenceFile refSeqFile = ReferenceSequenceFileFactory.getReferenceSequenceFile(referenceFile, true);
-        ReferenceSequence sequence;
-        while ((sequence = refSeqFile.nextSequence()) != null) {
-            for (final byte base: sequence.getBases()) {
-                if (!IUPAC_TABLE[base]) {
-                    messages.baseErrors = String.format("WARNING: AT least one invalid base '%c' (decimal %d) in reference sequence named %s",
-                            StringUtil.byteToChar(base), base, sequence.getName());
-                    break;
-                }
+    /**
+     * @return A description of the first invalid base in the sequence, or null if all bases are valid.
+     */
+    private static String findBaseError(final ReferenceSequence sequence) {
+        for (final byte base: sequence.getBases()) {
+            if (!IUPAC_TABLE[base & 0xFF]) {
+                return String.format("WARNING: AT least one invalid base '%c' (decimal %d) in reference sequence named %s",
+                        StringUtil.byteToChar(base), base, sequence.getName());
             }
         }
+        return null;
+    }
+
+    // the report keeps the last sequence with an invalid base.
+    private void recordBaseError(final String baseError) {
+        if (baseError != null) {
+            messages.baseErrors = baseError;
+        }
     }
 
     private static <T> Set<T> subtract(final Set<T> setToSubtractFrom, final Set<T> setToSubtract) {
@@ -30,6 +30,7 @@ import org.broadinstitute.dropseqrna.metrics.BamTagHistogram;
 import org.broadinstitute.dropseqrna.metrics.BamTagOfTagCounts;
 import org.broadinstitute.dropseqrna.metrics.TagOfTagResults;
 import org.broadinstitute.dropseqrna.utils.ObjectCounter;
+import org.broadinstitute.dropseqrna.utils.editdistance.PackedBarcodeCounter;
 import org.broadinstitute.dropseqrna.utils.readiterators.StrandStrategy;
 import picard.annotation.LocusFunction;
 
@@ -120,7 +121,7 @@ public class BarcodeListRetrieval {
     public List<String> getListCellBarcodesByReadCount(final CloseableIterator<SAMRecord> input, final String cellBarcodeTag, final int readQuality, final Integer minNumReads, final Integer numReadsCore) {
 
         BamTagHistogram bth = new BamTagHistogram();
-        ObjectCounter<String> cellBarcodes = bth.getBamTagCounts (input, cellBarcodeTag, readQuality, false);
+        PackedBarcodeCounter cellBarcodes = bth.getPackedBamTagCounts (input, cellBarcodeTag, readQuality, false);
 
         List<String> result=null;
 
@@ -176,6 +177,10 @@ public class BarcodeListRetrieval {
 	}
 	*/
 	public List<String> getCoreBarcodesByReadCount(final ObjectCounter<String> barcodes, final Integer numReadsCore) {
+		return getCoreBarcodesByReadCount(new PackedBarcodeCounter(barcodes), numReadsCore);
+	}
+
+	public List<String> getCoreBarcodesByReadCount(final PackedBarcodeCounter barcodes, final Integer numReadsCore) {
 		List<String> result = new ArrayList<String>();
 		log.info("Looking for cell barcodes that have at least " + numReadsCore + " reads");
 		for (String bc: barcodes.getKeysOrderedByCount(true)) {
@@ -191,6 +196,10 @@ public class BarcodeListRetrieval {
 	}
 
 	public List<String> getTopCoreBarcodesByReadCount(final ObjectCounter<String> barcodes, final Integer numCells) {
+		return getTopCoreBarcodesByReadCount(new PackedBarcodeCounter(barcodes), numCells);
+	}
+
+	public List<String> getTopCoreBarcodesByReadCount(final PackedBarcodeCounter barcodes, final Integer numCells) {
 		List<String> result = new ArrayList<String>();
 		log.info("Looking for the top " + numCells +" cell barcodes");
 		int numCellsAdded=0;
@@ -39,12 +39,16 @@ import org.apache.commons.lang.StringUtils;
 import org.broadinstitute.barclay.argparser.Argument;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.barnyard.DGELongFormatRecord.CellBarcodeOrderComparator;
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.BinaryDgeConstants;
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.BinaryDgeWriter;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeader;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeaderCodec;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeaderLibrary;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.UMICollection;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
+import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketConstants;
 import org.broadinstitute.dropseqrna.utils.io.ErrorCheckingPrintStream;
+import org.broadinstitute.dropseqrna.utils.io.OrderedParallelExecutor;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamFileMergeUtil;
 import org.broadinstitute.dropseqrna.utils.readiterators.UMIIterator;
 
@@ -57,6 +61,7 @@ import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
 import htsjdk.samtools.util.SortingCollection;
 import htsjdk.samtools.util.StringUtil;
 import picard.cmdline.StandardOptionDefinitions;
@@ -105,6 +110,16 @@ public class DigitalExpression extends DGECommandLineBase {
     @Argument(shortName = "UEI", doc="If OUTPUT_HEADER=true, this is required", optional = true)
     public String UNIQUE_EXPERIMENT_ID;
 
+    @Argument(doc="Number of threads to use to collapse the UMIs of cell/gene pairs.")
+    public int NUM_THREADS=1;
+
+    @Argument(doc="Format of OUTPUT.  DENSE is a tab-separated gene by cell matrix.  BINARY is a compressed sparse format indexed " +
+            "by both cell and gene, so a single cell or gene can be read without reading the whole file.  BINARY output " +
+            "is never gzipped, regardless of file extension, and holds the DGE header if OUTPUT_HEADER=true.")
+    public OutputFormat OUTPUT_FORMAT=OutputFormat.DENSE;
+
+    public enum OutputFormat {DENSE, BINARY}
+
     private boolean OUTPUT_EXPRESSED_GENES_ONLY=false;
 
     @Override
@@ -176,20 +191,22 @@ public class DigitalExpression extends DGECommandLineBase {
     }
 
     private void digitalExpression(final List<String> cellBarcodes) {
-        PrintStream out = new ErrorCheckingPrintStream(IOUtil.openFileForWriting(OUTPUT));
-
-        if (OUTPUT_HEADER)
-			writeDgeHeader(out);
-
-        writeHeader(out, cellBarcodes);
+        PrintStream out = null;
+        BinaryDgeWriter binaryOut = null;
+        if (OUTPUT_FORMAT==OutputFormat.BINARY)
+			binaryOut = new BinaryDgeWriter(OUTPUT, MatrixMarketConstants.ElementType.integer, Collections.emptyList(), cellBarcodes,
+					OUTPUT_HEADER ? buildDgeHeader() : null, BinaryDgeConstants.DEFAULT_GENE_COLUMN_LABEL, MAX_RECORDS_IN_RAM, getTmpDirs());
+		else {
+			out = new ErrorCheckingPrintStream(IOUtil.openFileForWriting(OUTPUT));
+			if (OUTPUT_HEADER)
+				writeDgeHeader(out);
+			writeHeader(out, cellBarcodes);
+		}
         //TODO should the ambiguous reads handling be a parameter?  It's set to false by default for DGE to get rid of ambiguous gene assignments on reads
         UMIIterator umiIterator = new UMIIterator(SamFileMergeUtil.mergeInputs(Collections.singletonList(this.INPUT), false),
         		GENE_NAME_TAG, GENE_STRAND_TAG, GENE_FUNCTION_TAG, this.STRAND_STRATEGY, this.LOCUS_FUNCTION_LIST,
-        		this.CELL_BARCODE_TAG, this.MOLECULAR_BARCODE_TAG, this.READ_MQ, false, cellBarcodes);
+        		this.CELL_BARCODE_TAG, this.MOLECULAR_BARCODE_TAG, this.READ_MQ, false, cellBarcodes, false, true);
 
-        String gene = null;
-        Map<String, Integer> transcriptCountMap = new HashMap<>();
-        Map<String, Integer> readCountMap = new HashMap<>();
         Map<String, DESummary> summaryMap = initializeSummary(cellBarcodes);
 
     	// key: cell barcode.  value: counts of UMIs per gene.
@@ -198,50 +215,27 @@ public class DigitalExpression extends DGECommandLineBase {
         if (this.OUTPUT_LONG_FORMAT!=null)
         	longFormatRecordCollection=makeSortingCollection(cellBarcodes);
 
-        UMICollection batch;
-        while ((batch=umiIterator.next())!=null) {
-            if (batch==null || batch.isEmpty())
-				continue;
-            String currentGene = batch.getGeneName();
-            // if just starting the loop
-            if (gene==null) gene=currentGene;
-            // if the gene is the same, you're still gathering expression on that gene.
-            if (gene.equals(currentGene)) {
-
-                if (this.RARE_UMI_FILTER_THRESHOLD>0) batch.filterByUMIFrequency(this.RARE_UMI_FILTER_THRESHOLD);
-                int molBCCount = batch.getDigitalExpression(this.MIN_BC_READ_THRESHOLD, this.EDIT_DISTANCE, this.OUTPUT_READS_INSTEAD);
-                transcriptCountMap.put(batch.getCellBarcode(), molBCCount);
-                int readCount = batch.getDigitalExpression(this.MIN_BC_READ_THRESHOLD, this.EDIT_DISTANCE, true);
-                readCountMap.put(batch.getCellBarcode(), readCount);
-
-                // if you're gather the long file format, do it here.
-                if (longFormatRecordCollection!=null)
-                	addLongFormatRecord(longFormatRecordCollection, batch.getCellBarcode(), batch.getGeneName(), molBCCount);
-            }
-            // you've gathered all the data for the gene, write it out and start on the next.
-            if (!gene.equals(currentGene)) {
-                writeStats (gene, transcriptCountMap, cellBarcodes, out);
-                addToSummary(readCountMap, transcriptCountMap, summaryMap);
-                transcriptCountMap.clear();
-                // start the next gene
-                if (this.RARE_UMI_FILTER_THRESHOLD>0) batch.filterByUMIFrequency(this.RARE_UMI_FILTER_THRESHOLD);
-                int molBCCount = batch.getDigitalExpression(this.MIN_BC_READ_THRESHOLD, this.EDIT_DISTANCE, this.OUTPUT_READS_INSTEAD);
-                transcriptCountMap.put(batch.getCellBarcode(), molBCCount);
-                int readCount = batch.getDigitalExpression(this.MIN_BC_READ_THRESHOLD, this.EDIT_DISTANCE, true);
-                readCountMap.put(batch.getCellBarcode(), readCount);
-                gene=currentGene;
-                // if you're gather the long file format, do it here.
-                if (longFormatRecordCollection!=null)
-                	addLongFormatRecord(longFormatRecordCollection, batch.getCellBarcode(), batch.getGeneName(), molBCCount);
-
-            }
-        }
+        ExpressionAccumulator accumulator = new ExpressionAccumulator(cellBarcodes, summaryMap, longFormatRecordCollection, out, binaryOut);
+        if (this.NUM_THREADS>1)
+			processBatchesParallel(umiIterator, accumulator);
+		else {
+			UMICollection batch;
+			while ((batch=umiIterator.next())!=null) {
+				if (batch==null || batch.isEmpty())
+					continue;
+				accumulator.add(computeExpression(batch));
+			}
+		}
         // write out remainder
-        if (transcriptCountMap.isEmpty()==false) {
-            writeStats (gene, transcriptCountMap, cellBarcodes, out);
-            addToSummary(readCountMap, transcriptCountMap, summaryMap);
-        }
-        out.close();
+        accumulator.finish();
+        if (out!=null)
+			out.close();
+        if (binaryOut!=null)
+			try {
+				binaryOut.close();
+			} catch (IOException e) {
+				throw new RuntimeIOException("Exception writing " + OUTPUT, e);
+			}
         if (this.SUMMARY!=null)
 			writeSummary(summaryMap.values(), this.SUMMARY);
 
@@ -251,6 +245,109 @@ public class DigitalExpression extends DGECommandLineBase {
 
     }
 
+    /**
+     * Collapse the UMIs of each cell/gene pair on a pool of worker threads.
+     * The UMIIterator is still read on this thread, and results are handed to the accumulator in the order the
+     * cell/gene pairs were read, so the output is identical to the single threaded version.
+     */
+    private void processBatchesParallel (final UMIIterator umiIterator, final ExpressionAccumulator accumulator) {
+    	try (OrderedParallelExecutor<CellGeneExpression> executor =
+    			new OrderedParallelExecutor<>("calculating digital expression", this.NUM_THREADS, accumulator::add)) {
+    		UMICollection batch;
+    		while ((batch=umiIterator.next())!=null) {
+    			if (batch.isEmpty())
+    				continue;
+    			final UMICollection b = batch;
+    			executor.submit(() -> computeExpression(b));
+    		}
+    		executor.finish();
+    	}
+    }
+
+    /**
+     * Filter and collapse the UMIs of a single cell/gene pair.
+     * This only touches the batch, so it's safe to run on many batches at once.
+     */
+    private CellGeneExpression computeExpression (final UMICollection batch) {
+    	if (this.RARE_UMI_FILTER_THRESHOLD>0) batch.filterByUMIFrequency(this.RARE_UMI_FILTER_THRESHOLD);
+    	int molBCCount = batch.getDigitalExpression(this.MIN_BC_READ_THRESHOLD, this.EDIT_DISTANCE, this.OUTPUT_READS_INSTEAD);
+    	int readCount = batch.getDigitalExpression(this.MIN_BC_READ_THRESHOLD, this.EDIT_DISTANCE, true);
+    	return new CellGeneExpression(batch.getCellBarcode(), batch.getGeneName(), molBCCount, readCount);
+    }
+
+    /**
+     * The expression of one gene in one cell.
+     */
+    private static class CellGeneExpression {
+    	private final String cellBarcode;
+    	private final String gene;
+    	private final int molBCCount;
+    	private final int readCount;
+
+    	CellGeneExpression (final String cellBarcode, final String gene, final int molBCCount, final int readCount) {
+    		this.cellBarcode=cellBarcode;
+    		this.gene=gene;
+    		this.molBCCount=molBCCount;
+    		this.readCount=readCount;
+    	}
+    }
+
+    /**
+     * The state machine of the main loop.  Gathers the expression of each cell for a gene, and when the gene changes writes
+     * the gene out and starts on the next.
+     */
+    private class ExpressionAccumulator {
+    	private final List<String> cellBarcodes;
+    	private final Map<String, DESummary> summaryMap;
+    	private final SortingCollection<DGELongFormatRecord> longFormatRecordCollection;
+    	private final PrintStream out;
+    	private final BinaryDgeWriter binaryOut;
+    	private String gene = null;
+    	private final Map<String, Integer> transcriptCountMap = new HashMap<>();
+    	private final Map<String, Integer> readCountMap = new HashMap<>();
+
+    	ExpressionAccumulator (final List<String> cellBarcodes, final Map<String, DESummary> summaryMap,
+    			final SortingCollection<DGELongFormatRecord> longFormatRecordCollection, final PrintStream out,
+    			final BinaryDgeWriter binaryOut) {
+    		this.cellBarcodes=cellBarcodes;
+    		this.summaryMap=summaryMap;
+    		this.longFormatRecordCollection=longFormatRecordCollection;
+    		this.out=out;
+    		this.binaryOut=binaryOut;
+    	}
+
+    	private void writeGene () {
+    		if (binaryOut!=null)
+    			writeStats (gene, transcriptCountMap, cellBarcodes, binaryOut);
+    		else
+    			writeStats (gene, transcriptCountMap, cellBarcodes, out);
+    	}
+
+    	void add (final CellGeneExpression e) {
+    		// if just starting the loop
+    		if (gene==null) gene=e.gene;
+    		// you've gathered all the data for the gene, write it out and start on the next.
+    		if (!gene.equals(e.gene)) {
+    			writeGene();
+    			addToSummary(readCountMap, transcriptCountMap, summaryMap);
+    			transcriptCountMap.clear();
+    			gene=e.gene;
+    		}
+    		transcriptCountMap.put(e.cellBarcode, e.molBCCount);
+    		readCountMap.put(e.cellBarcode, e.readCount);
+    		// if you're gather the long file format, do it here.
+    		if (longFormatRecordCollection!=null)
+    			addLongFormatRecord(longFormatRecordCollection, e.cellBarcode, e.gene, e.molBCCount);
+    	}
+
+    	void finish () {
+    		if (transcriptCountMap.isEmpty()==false) {
+    			writeGene();
+    			addToSummary(readCountMap, transcriptCountMap, summaryMap);
+    		}
+    	}
+    }
+
     private void addLongFormatRecord (final SortingCollection<DGELongFormatRecord> longFormatRecords, final String cellBarcode, final String gene, final int umiCount) {
     	DGELongFormatRecord r = new DGELongFormatRecord(cellBarcode, gene, umiCount);
     	longFormatRecords.add(r);
@@ -279,6 +376,16 @@ public class DigitalExpression extends DGECommandLineBase {
     }
 
     private void writeDgeHeader(final PrintStream out) {
+        final OutputStreamWriter writer = new OutputStreamWriter(out);
+        new DgeHeaderCodec().encode(writer, buildDgeHeader());
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Exception writing " + OUTPUT, e);
+        }
+    }
+
+    private DgeHeader buildDgeHeader() {
         DgeHeader header = new DgeHeader();
         header.setExpressionFormat(DgeHeader.ExpressionFormat.raw);
         DgeHeaderLibrary lib = new DgeHeaderLibrary(UNIQUE_EXPERIMENT_ID);
@@ -306,13 +413,13 @@ public class DigitalExpression extends DGECommandLineBase {
         setDgeHeaderLibraryField(lib, "LOCUS_FUNCTION_LIST", this.LOCUS_FUNCTION_LIST.toString());
         header.addLibrary(lib);
         header.addCommand(getCommandLine());
-        final OutputStreamWriter writer = new OutputStreamWriter(out);
-        new DgeHeaderCodec().encode(writer, header);
-        try {
-            writer.flush();
-        } catch (IOException e) {
-            throw new RuntimeException("Exception writing " + OUTPUT, e);
-        }
+        return header;
+    }
+
+    private List<File> getTmpDirs() {
+        if (TMP_DIR == null || TMP_DIR.isEmpty())
+			return Collections.singletonList(IOUtil.getDefaultTmpDir());
+        return TMP_DIR;
     }
 
     private <T> void setDgeHeaderLibraryField(final DgeHeaderLibrary lib, final String key, final T value) {
@@ -350,6 +457,26 @@ public class DigitalExpression extends DGECommandLineBase {
     }
 
 
+    /**
+     * Like writeStats for the text matrix, but only the non-zero cells of the gene are written.
+     */
+    private void writeStats (final String gene, final Map<String, Integer> countMap, final List<String> cellBarcodes, final BinaryDgeWriter binaryOut) {
+        int totalCount=0;
+        for (String b: cellBarcodes) {
+            Integer count = countMap.get(b);
+            if (count!=null) totalCount+=count;
+        }
+        if (OUTPUT_EXPRESSED_GENES_ONLY & totalCount==0) return;
+        if (MIN_SUM_EXPRESSION!=null && totalCount < MIN_SUM_EXPRESSION) return;
+
+        int geneIndex = binaryOut.addGene(gene);
+        for (int i=0; i<cellBarcodes.size(); i++) {
+            Integer count = countMap.get(cellBarcodes.get(i));
+            if (count!=null && count!=0)
+				binaryOut.writeTriplet(geneIndex, i, count);
+        }
+    }
+
     private void writeHeader(final PrintStream out, final List<String> cellBarcodes) {
         List<String> header = new ArrayList<>(cellBarcodes.size()+1);
         header.add("GENE");
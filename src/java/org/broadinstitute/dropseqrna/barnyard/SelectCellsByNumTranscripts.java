@@ -125,7 +125,7 @@ public class SelectCellsByNumTranscripts
         // gene/exon tags are sorted first, followed by cells
         UMIIterator umiIterator = new UMIIterator(headerAndIterator, GENE_NAME_TAG, GENE_STRAND_TAG, GENE_FUNCTION_TAG,
         		this.STRAND_STRATEGY, this.LOCUS_FUNCTION_LIST, this.CELL_BARCODE_TAG, this.MOLECULAR_BARCODE_TAG,
-        		this.READ_MQ, false, cellBarcodes);
+        		this.READ_MQ, false, cellBarcodes, false, true);
 
 
         String gene = null;
@@ -0,0 +1,52 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.barnyard.digitalexpression;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Layout of the binary sparse DGE format written by {@link BinaryDgeWriter} and read by {@link BinaryDgeReader}.
+ *
+ * <pre>
+ * MAGIC VERSION
+ * one block per cell (CSC), in cell order
+ * one block per gene (CSR), in gene order
+ * metadata
+ * metadata offset (long) MAGIC
+ * </pre>
+ *
+ * Each block holds the non-zero entries of one cell or one gene: the number of entries and the length of the body as
+ * varints, then the deflated body, which is a (index delta, value) pair per entry.  Indices of the other dimension
+ * are delta-encoded varints, integer values are zigzag varints and real values are 8-byte doubles.
+ * The metadata holds the element type, the dimensions, the DGE header, the gene and cell names, and the offsets of
+ * the blocks, so any one cell or gene can be read with a single seek.
+ * The file itself is never gzipped, because that would defeat random access.
+ */
+public class BinaryDgeConstants {
+    public static final byte[] MAGIC = "DSDGEBIN".getBytes(StandardCharsets.US_ASCII);
+    public static final int VERSION = 1;
+    /** Length of the trailer: the metadata offset followed by MAGIC. */
+    public static final int TRAILER_LENGTH = Long.BYTES + MAGIC.length;
+    public static final String DEFAULT_GENE_COLUMN_LABEL = "GENE";
+}
@@ -0,0 +1,359 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.barnyard.digitalexpression;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketConstants;
+
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.RuntimeIOException;
+
+/**
+ * Random access to a DGE in the binary sparse format described in {@link BinaryDgeConstants}.
+ * Only the metadata is read when the reader is constructed.  The entries of a single cell or gene are read with one
+ * positional read, so a reader may be shared by several threads.
+ */
+public class BinaryDgeReader
+        implements Closeable {
+
+    /**
+     * The non-zero entries of one cell or one gene.  indices are 0-based indices of the other dimension, in ascending
+     * order.  Depending on the element type, either values or realValues is populated.
+     */
+    public static class SparseVector {
+        public final int[] indices;
+        public final int[] values;
+        public final double[] realValues;
+
+        SparseVector(final int[] indices, final int[] values, final double[] realValues) {
+            this.indices = indices;
+            this.values = values;
+            this.realValues = realValues;
+        }
+
+        public int size() {
+            return indices.length;
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final MatrixMarketConstants.ElementType elementType;
+    private final int numGenes;
+    private final int numCells;
+    private final long numNonZeroElements;
+    private final String geneColumnLabel;
+    private final DgeHeader dgeHeader;
+    private final List<String> genes;
+    private final List<String> cellBarcodes;
+    private final long[] cellOffsets;
+    private final long[] geneOffsets;
+    private Map<String, Integer> geneIndices;
+    private Map<String, Integer> cellIndices;
+
+    /**
+     * @return true if the file starts with the binary DGE magic bytes.
+     */
+    public static boolean isBinaryDge(final File file) {
+        if (!file.isFile() || file.length() < BinaryDgeConstants.MAGIC.length)
+            return false;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final byte[] magic = new byte[BinaryDgeConstants.MAGIC.length];
+            raf.readFully(magic);
+            return Arrays.equals(magic, BinaryDgeConstants.MAGIC);
+        } catch (IOException e) {
+            throw new RuntimeIOException("Exception reading " + file.getAbsolutePath(), e);
+        }
+    }
+
+    public BinaryDgeReader(final File file) {
+        this.file = file;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            channel = randomAccessFile.getChannel();
+            final long length = channel.size();
+            final int prefixLength = BinaryDgeConstants.MAGIC.length + Integer.BYTES;
+            if (length < prefixLength + BinaryDgeConstants.TRAILER_LENGTH)
+                throw new RuntimeException(file.getAbsolutePath() + " is too short to be a binary DGE");
+            final DataInputStream prefix = new DataInputStream(new ByteArrayInputStream(read(0, prefixLength)));
+            checkMagic(prefix);
+            final int version = prefix.readInt();
+            if (version != BinaryDgeConstants.VERSION)
+                throw new RuntimeException(String.format("%s has binary DGE version %d, but only version %d is supported",
+                        file.getAbsolutePath(), version, BinaryDgeConstants.VERSION));
+
+            final long trailerOffset = length - BinaryDgeConstants.TRAILER_LENGTH;
+            final DataInputStream trailer = new DataInputStream(new ByteArrayInputStream(
+                    read(trailerOffset, BinaryDgeConstants.TRAILER_LENGTH)));
+            final long metadataOffset = trailer.readLong();
+            checkMagic(trailer);
+            if (metadataOffset < prefixLength || metadataOffset > trailerOffset)
+                throw new RuntimeException(file.getAbsolutePath() + " has a bad binary DGE trailer");
+
+            final DataInputStream metadata = new DataInputStream(new ByteArrayInputStream(
+                    read(metadataOffset, (int) (trailerOffset - metadataOffset))));
+            elementType = MatrixMarketConstants.ElementType.valueOf(metadata.readUTF());
+            numGenes = metadata.readInt();
+            numCells = metadata.readInt();
+            numNonZeroElements = metadata.readLong();
+            geneColumnLabel = metadata.readUTF();
+            // A DGE written without a header gets the same header as a text DGE without one.
+            final int headerLength = metadata.readInt();
+            final byte[] headerBytes = new byte[Math.max(headerLength, 0)];
+            metadata.readFully(headerBytes);
+            dgeHeader = new DgeHeaderCodec().decode(
+                    new BufferedReader(new StringReader(new String(headerBytes, StandardCharsets.UTF_8))),
+                    file.getAbsolutePath());
+            genes = readNames(metadata, numGenes);
+            cellBarcodes = readNames(metadata, numCells);
+            cellOffsets = readOffsets(metadata, numCells + 1);
+            geneOffsets = readOffsets(metadata, numGenes + 1);
+        } catch (IOException e) {
+            close();
+            throw new RuntimeIOException("Exception reading " + file.getAbsolutePath(), e);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void checkMagic(final DataInputStream in) throws IOException {
+        final byte[] magic = new byte[BinaryDgeConstants.MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, BinaryDgeConstants.MAGIC))
+            throw new RuntimeException(file.getAbsolutePath() + " is not a binary DGE");
+    }
+
+    private static List<String> readNames(final DataInputStream in, final int count) throws IOException {
+        final List<String> ret = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i)
+            ret.add(in.readUTF());
+        return Collections.unmodifiableList(ret);
+    }
+
+    private static long[] readOffsets(final DataInputStream in, final int count) throws IOException {
+        final long[] ret = new long[count];
+        for (int i = 0; i < count; ++i)
+            ret[i] = in.readLong();
+        return ret;
+    }
+
+    private byte[] read(final long position, final int length) throws IOException {
+        // One extra byte, because an Inflater without zlib wrapping may need a dummy byte past the end of its input.
+        final ByteBuffer buffer = ByteBuffer.allocate(length + 1);
+        buffer.limit(length);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new RuntimeException(file.getAbsolutePath() + " is truncated");
+        return buffer.array();
+    }
+
+    @Override
+    public void close() {
+        CloserUtil.close(channel);
+        CloserUtil.close(randomAccessFile);
+    }
+
+    public String getFilename() {
+        return file.getAbsolutePath();
+    }
+
+    public MatrixMarketConstants.ElementType getElementType() {
+        return elementType;
+    }
+
+    public int getNumGenes() {
+        return numGenes;
+    }
+
+    public int getNumCells() {
+        return numCells;
+    }
+
+    public long getNumNonZeroElements() {
+        return numNonZeroElements;
+    }
+
+    public String getGeneColumnLabel() {
+        return geneColumnLabel;
+    }
+
+    /**
+     * @return the DGE header stored in the file.  If none was stored, its expression format is unknown.
+     */
+    public DgeHeader getDgeHeader() {
+        return dgeHeader;
+    }
+
+    public List<String> getGenes() {
+        return genes;
+    }
+
+    public List<String> getCellBarcodes() {
+        return cellBarcodes;
+    }
+
+    /**
+     * @return the 0-based index of the gene, or -1 if it isn't in the DGE.
+     */
+    public synchronized int getGeneIndex(final String gene) {
+        if (geneIndices == null)
+            geneIndices = makeIndex(genes);
+        return geneIndices.getOrDefault(gene, -1);
+    }
+
+    /**
+     * @return the 0-based index of the cell, or -1 if it isn't in the DGE.
+     */
+    public synchronized int getCellIndex(final String cellBarcode) {
+        if (cellIndices == null)
+            cellIndices = makeIndex(cellBarcodes);
+        return cellIndices.getOrDefault(cellBarcode, -1);
+    }
+
+    private static Map<String, Integer> makeIndex(final List<String> names) {
+        final Map<String, Integer> ret = new HashMap<>(names.size() * 2);
+        for (int i = 0; i < names.size(); ++i)
+            ret.put(names.get(i), i);
+        return ret;
+    }
+
+    /**
+     * @return the non-zero entries of the cell, indexed by gene.
+     */
+    public SparseVector getCell(final int cellIndex) {
+        if (cellIndex < 0 || cellIndex >= numCells)
+            throw new IllegalArgumentException(String.format("cell(%d) out of range for %d cells", cellIndex, numCells));
+        return readBlock(cellOffsets[cellIndex], cellOffsets[cellIndex + 1]);
+    }
+
+    public SparseVector getCell(final String cellBarcode) {
+        final int cellIndex = getCellIndex(cellBarcode);
+        if (cellIndex == -1)
+            throw new IllegalArgumentException("Cell barcode " + cellBarcode + " not found in " + file.getAbsolutePath());
+        return getCell(cellIndex);
+    }
+
+    /**
+     * @return the non-zero entries of the gene, indexed by cell.
+     */
+    public SparseVector getGene(final int geneIndex) {
+        if (geneIndex < 0 || geneIndex >= numGenes)
+            throw new IllegalArgumentException(String.format("gene(%d) out of range for %d genes", geneIndex, numGenes));
+        return readBlock(geneOffsets[geneIndex], geneOffsets[geneIndex + 1]);
+    }
+
+    public SparseVector getGene(final String gene) {
+        final int geneIndex = getGeneIndex(gene);
+        if (geneIndex == -1)
+            throw new IllegalArgumentException("Gene " + gene + " not found in " + file.getAbsolutePath());
+        return getGene(geneIndex);
+    }
+
+    private SparseVector readBlock(final long start, final long end) {
+        final byte[] block;
+        try {
+            block = read(start, (int) (end - start));
+        } catch (IOException e) {
+            throw new RuntimeIOException("Exception reading " + file.getAbsolutePath(), e);
+        }
+        final int blockLength = (int) (end - start);
+        final int[] pos = {0};
+        final int count = readVarint(block, pos);
+        final int bodyLength = readVarint(block, pos);
+        final byte[] body = new byte[bodyLength];
+        if (bodyLength > 0) {
+            final Inflater inflater = new Inflater(true);
+            try {
+                // Include the dummy byte past the end of the block.
+                inflater.setInput(block, pos[0], blockLength - pos[0] + 1);
+                int inflated = 0;
+                while (inflated < bodyLength && !inflater.finished()) {
+                    final int n = inflater.inflate(body, inflated, bodyLength - inflated);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    inflated += n;
+                }
+                if (inflated != bodyLength)
+                    throw new RuntimeException(file.getAbsolutePath() + " has a corrupt binary DGE block");
+            } catch (DataFormatException e) {
+                throw new RuntimeException(file.getAbsolutePath() + " has a corrupt binary DGE block", e);
+            } finally {
+                inflater.end();
+            }
+        }
+        final int[] indices = new int[count];
+        final boolean real = elementType == MatrixMarketConstants.ElementType.real;
+        final int[] values = real ? null : new int[count];
+        final double[] realValues = real ? new double[count] : null;
+        pos[0] = 0;
+        int index = -1;
+        for (int i = 0; i < count; ++i) {
+            index += readVarint(body, pos) + 1;
+            indices[i] = index;
+            if (real) {
+                long bits = 0;
+                for (int j = 0; j < Long.BYTES; ++j)
+                    bits = (bits << 8) | (body[pos[0]++] & 0xFF);
+                realValues[i] = Double.longBitsToDouble(bits);
+            } else {
+                final int zigzag = readVarint(body, pos);
+                values[i] = (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        return new SparseVector(indices, values, realValues);
+    }
+
+    private static int readVarint(final byte[] buf, final int[] pos) {
+        int ret = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf[pos[0]++];
+            ret |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return ret;
+    }
+}
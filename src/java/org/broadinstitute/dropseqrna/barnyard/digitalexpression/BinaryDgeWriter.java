@@ -0,0 +1,398 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.barnyard.digitalexpression;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketConstants;
+
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.SAMFileWriterImpl;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.PositionalOutputStream;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.samtools.util.SortingCollection;
+
+/**
+ * Writes a DGE in the binary sparse format described in {@link BinaryDgeConstants}.
+ * Non-zero entries may be written in any order.  They are sorted by cell and by gene in SortingCollections, which
+ * spill to disk as needed, and the per-cell and per-gene blocks are written when the writer is closed.
+ * Genes may be given up front, or added one at a time with {@link #addGene(String)} before their entries are written.
+ */
+public class BinaryDgeWriter
+        implements Closeable {
+
+    private final File outputFile;
+    private final MatrixMarketConstants.ElementType elementType;
+    private final List<String> genes;
+    private final List<String> cellBarcodes;
+    private final DgeHeader dgeHeader;
+    private final String geneColumnLabel;
+    private final SortingCollection<Entry> byCell;
+    private final SortingCollection<Entry> byGene;
+    private long numNonZeroElements = 0;
+    private boolean closed = false;
+
+    /**
+     * Write a DGE, spilling entries to the default temporary directory.
+     * @param outputFile Written uncompressed regardless of extension, so that it can be randomly accessed.
+     * @param genes row names.  May be empty if genes will be added with addGene.
+     * @param cellBarcodes column names.
+     * @param dgeHeader If non-null, stored in the file.
+     */
+    public BinaryDgeWriter(final File outputFile,
+                           final MatrixMarketConstants.ElementType elementType,
+                           final List<String> genes,
+                           final List<String> cellBarcodes,
+                           final DgeHeader dgeHeader) {
+        this(outputFile, elementType, genes, cellBarcodes, dgeHeader, BinaryDgeConstants.DEFAULT_GENE_COLUMN_LABEL,
+                SAMFileWriterImpl.getDefaultMaxRecordsInRam(), Collections.singletonList(IOUtil.getDefaultTmpDir()));
+    }
+
+    /**
+     * @param outputFile Written uncompressed regardless of extension, so that it can be randomly accessed.
+     * @param genes row names.  May be empty if genes will be added with addGene.
+     * @param cellBarcodes column names.
+     * @param dgeHeader If non-null, stored in the file.
+     * @param geneColumnLabel The label of the gene column, as in the first line of a tabular DGE.
+     * @param maxRecordsInRam Number of entries held in memory before spilling.  Each entry is sorted twice, so this
+     *                        is split evenly between the by-cell and by-gene sorts.
+     * @param tmpDirs Directories where entries are spilled.
+     */
+    public BinaryDgeWriter(final File outputFile,
+                           final MatrixMarketConstants.ElementType elementType,
+                           final List<String> genes,
+                           final List<String> cellBarcodes,
+                           final DgeHeader dgeHeader,
+                           final String geneColumnLabel,
+                           final int maxRecordsInRam,
+                           final Collection<File> tmpDirs) {
+        IOUtil.assertFileIsWritable(outputFile);
+        this.outputFile = outputFile;
+        this.elementType = elementType;
+        this.genes = new ArrayList<>(genes);
+        this.cellBarcodes = new ArrayList<>(cellBarcodes);
+        this.dgeHeader = dgeHeader;
+        this.geneColumnLabel = geneColumnLabel;
+        final Path[] tmpDirArray = tmpDirs.stream().map(File::toPath).toArray(Path[]::new);
+        final Comparator<Entry> cellOrder = Comparator.<Entry>comparingInt(e -> e.cell).thenComparingInt(e -> e.gene);
+        final Comparator<Entry> geneOrder = Comparator.<Entry>comparingInt(e -> e.gene).thenComparingInt(e -> e.cell);
+        final int maxRecordsInRamPerSort = Math.max(1, maxRecordsInRam / 2);
+        byCell = SortingCollection.newInstance(Entry.class, new EntryCodec(), cellOrder, maxRecordsInRamPerSort, tmpDirArray);
+        byGene = SortingCollection.newInstance(Entry.class, new EntryCodec(), geneOrder, maxRecordsInRamPerSort, tmpDirArray);
+    }
+
+    /**
+     * Append a gene to the row names.
+     * @return the 0-based index of the gene.
+     */
+    public int addGene(final String gene) {
+        genes.add(gene);
+        return genes.size() - 1;
+    }
+
+    public int getNumGenes() {
+        return genes.size();
+    }
+
+    /**
+     * It is legal to call this overload regardless of whether writing integer or real format.
+     * @param gene 0-based
+     * @param cell 0-based
+     * @param val value to be written
+     */
+    public void writeTriplet(final int gene, final int cell, final int val) {
+        if (elementType == MatrixMarketConstants.ElementType.real)
+            writeTriplet(gene, cell, (double)val);
+        else
+            add(new Entry(gene, cell, val));
+    }
+
+    /**
+     * It is illegal to call this overload if writing integer format.
+     * @param gene 0-based
+     * @param cell 0-based
+     * @param val value to be written
+     */
+    public void writeTriplet(final int gene, final int cell, final double val) {
+        if (elementType != MatrixMarketConstants.ElementType.real)
+            throw new UnsupportedOperationException("Cannot write floating-point value to integer matrix");
+        add(new Entry(gene, cell, Double.doubleToLongBits(val)));
+    }
+
+    private void add(final Entry entry) {
+        if (entry.gene < 0 || entry.gene >= genes.size())
+            throw new IllegalArgumentException(String.format("gene(%d) out of range for %d genes", entry.gene, genes.size()));
+        if (entry.cell < 0 || entry.cell >= cellBarcodes.size())
+            throw new IllegalArgumentException(String.format("cell(%d) out of range for %d cells", entry.cell, cellBarcodes.size()));
+        byCell.add(entry);
+        byGene.add(entry);
+        ++numNonZeroElements;
+    }
+
+    /**
+     * Sort the entries and write the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        final PositionalOutputStream positionalStream =
+                new PositionalOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile), Defaults.BUFFER_SIZE));
+        final DataOutputStream out = new DataOutputStream(positionalStream);
+        try {
+            out.write(BinaryDgeConstants.MAGIC);
+            out.writeInt(BinaryDgeConstants.VERSION);
+            final long[] cellOffsets = writeBlocks(byCell, cellBarcodes.size(), true, out, positionalStream);
+            final long[] geneOffsets = writeBlocks(byGene, genes.size(), false, out, positionalStream);
+            out.flush();
+            final long metadataOffset = positionalStream.getPosition();
+            writeMetadata(out, cellOffsets, geneOffsets);
+            out.writeLong(metadataOffset);
+            out.write(BinaryDgeConstants.MAGIC);
+            out.close();
+        } finally {
+            CloserUtil.close(out);
+            byCell.cleanup();
+            byGene.cleanup();
+        }
+    }
+
+    /**
+     * Write one block for each index of the major dimension, including empty ones.
+     * @return the offsets of the blocks, plus the offset of the end of the last block.
+     */
+    private long[] writeBlocks(final SortingCollection<Entry> entries, final int numMajor, final boolean cellMajor,
+                               final DataOutputStream out, final PositionalOutputStream positionalStream) throws IOException {
+        final long[] offsets = new long[numMajor + 1];
+        final BlockEncoder encoder = new BlockEncoder();
+        final CloseableIterator<Entry> it = entries.iterator();
+        try {
+            int major = 0;
+            while (it.hasNext()) {
+                final Entry entry = it.next();
+                final int entryMajor = cellMajor ? entry.cell : entry.gene;
+                final int entryMinor = cellMajor ? entry.gene : entry.cell;
+                while (major < entryMajor) {
+                    out.flush();
+                    offsets[major++] = positionalStream.getPosition();
+                    encoder.writeTo(out);
+                }
+                encoder.add(entryMinor, entry.value, cellMajor ? cellBarcodes.get(major) : genes.get(major));
+            }
+            while (major < numMajor) {
+                out.flush();
+                offsets[major++] = positionalStream.getPosition();
+                encoder.writeTo(out);
+            }
+        } finally {
+            it.close();
+            encoder.end();
+        }
+        out.flush();
+        offsets[numMajor] = positionalStream.getPosition();
+        return offsets;
+    }
+
+    private void writeMetadata(final DataOutputStream out, final long[] cellOffsets, final long[] geneOffsets) throws IOException {
+        out.writeUTF(elementType.name());
+        out.writeInt(genes.size());
+        out.writeInt(cellBarcodes.size());
+        out.writeLong(numNonZeroElements);
+        out.writeUTF(geneColumnLabel);
+        if (dgeHeader != null) {
+            final StringWriter headerWriter = new StringWriter();
+            new DgeHeaderCodec().encode(headerWriter, dgeHeader);
+            final byte[] headerBytes = headerWriter.toString().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(headerBytes.length);
+            out.write(headerBytes);
+        } else
+            out.writeInt(-1);
+        for (final String gene : genes)
+            out.writeUTF(gene);
+        for (final String cellBarcode : cellBarcodes)
+            out.writeUTF(cellBarcode);
+        for (final long offset : cellOffsets)
+            out.writeLong(offset);
+        for (final long offset : geneOffsets)
+            out.writeLong(offset);
+    }
+
+    /**
+     * Accumulates the entries of one block, and deflates them when the block is written.
+     */
+    private class BlockEncoder {
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private byte[] body = new byte[1024];
+        private int bodyLength = 0;
+        private byte[] deflated = new byte[1024];
+        private int count = 0;
+        private int lastMinor = -1;
+
+        void add(final int minor, final long value, final String majorName) {
+            if (minor <= lastMinor)
+                throw new IllegalArgumentException("More than one value written for the same gene and cell in " +
+                        majorName + " of " + outputFile.getAbsolutePath());
+            writeVarint(minor - lastMinor - 1);
+            if (elementType == MatrixMarketConstants.ElementType.real)
+                writeLong(value);
+            else
+                writeVarint(((int) value << 1) ^ ((int) value >> 31));
+            lastMinor = minor;
+            ++count;
+        }
+
+        void writeTo(final DataOutputStream out) throws IOException {
+            writeVarint(out, count);
+            writeVarint(out, bodyLength);
+            if (bodyLength > 0) {
+                deflater.reset();
+                deflater.setInput(body, 0, bodyLength);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    final int n = deflater.deflate(deflated);
+                    out.write(deflated, 0, n);
+                }
+            }
+            bodyLength = 0;
+            count = 0;
+            lastMinor = -1;
+        }
+
+        void end() {
+            deflater.end();
+        }
+
+        private void ensureCapacity(final int extra) {
+            if (bodyLength + extra > body.length)
+                body = Arrays.copyOf(body, Math.max(body.length * 2, bodyLength + extra));
+        }
+
+        private void writeVarint(int v) {
+            ensureCapacity(5);
+            while ((v & ~0x7F) != 0) {
+                body[bodyLength++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            body[bodyLength++] = (byte) v;
+        }
+
+        private void writeLong(final long v) {
+            ensureCapacity(Long.BYTES);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                body[bodyLength++] = (byte) (v >>> shift);
+        }
+
+        private void writeVarint(final OutputStream out, int v) throws IOException {
+            while ((v & ~0x7F) != 0) {
+                out.write((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.write(v);
+        }
+    }
+
+    /**
+     * One non-zero entry.  Real values are held as their raw long bits.
+     */
+    static class Entry {
+        final int gene;
+        final int cell;
+        final long value;
+
+        Entry(final int gene, final int cell, final long value) {
+            this.gene = gene;
+            this.cell = cell;
+            this.value = value;
+        }
+    }
+
+    static class EntryCodec implements SortingCollection.Codec<Entry> {
+        private DataOutputStream outputStream = null;
+        private DataInputStream inputStream = null;
+
+        @Override
+        public void setOutputStream(final OutputStream stream) {
+            this.outputStream = new DataOutputStream(stream);
+        }
+
+        @Override
+        public void setInputStream(final InputStream stream) {
+            this.inputStream = new DataInputStream(stream);
+        }
+
+        @Override
+        public void encode(final Entry val) {
+            try {
+                outputStream.writeInt(val.gene);
+                outputStream.writeInt(val.cell);
+                outputStream.writeLong(val.value);
+            } catch (IOException e) {
+                throw new RuntimeIOException("Could not encode DGE entry for a sorting collection", e);
+            }
+        }
+
+        @Override
+        public Entry decode() {
+            try {
+                final int gene;
+                try {
+                    gene = inputStream.readInt();
+                } catch (EOFException e) {
+                    return null;
+                }
+                return new Entry(gene, inputStream.readInt(), inputStream.readLong());
+            } catch (IOException e) {
+                throw new RuntimeIOException("Exception reading DGE entry from temporary file", e);
+            }
+        }
+
+        @Override
+        public SortingCollection.Codec<Entry> clone() {
+            return new EntryCodec();
+        }
+    }
+}
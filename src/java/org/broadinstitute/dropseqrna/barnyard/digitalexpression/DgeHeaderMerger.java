@@ -111,9 +111,16 @@ public class DgeHeaderMerger {
         final DgeHeaderCodec codec = new DgeHeaderCodec();
         for (int i = 0; i < input.size(); ++i) {
             final File file = input.get(i);
-            final BufferedReader reader = IOUtil.openFileForBufferedReading(file);
-            final DgeHeader dgeHeader = codec.decode(reader, file.getAbsolutePath());
-            CloserUtil.close(reader);
+            final DgeHeader dgeHeader;
+            if (BinaryDgeReader.isBinaryDge(file)) {
+                final BinaryDgeReader reader = new BinaryDgeReader(file);
+                dgeHeader = reader.getDgeHeader();
+                reader.close();
+            } else {
+                final BufferedReader reader = IOUtil.openFileForBufferedReading(file);
+                dgeHeader = codec.decode(reader, file.getAbsolutePath());
+                CloserUtil.close(reader);
+            }
             if (!prefix.isEmpty()) {
                 if (dgeHeader.getNumLibraries() > 1) {
                     throw new DgeMergerException("Cannot set PREFIX when input DGE has more than one LIBRARY");
@@ -21,67 +21,108 @@
  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
  * SOFTWARE.
  */
-
 package org.broadinstitute.dropseqrna.barnyard.digitalexpression;
 
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeIterator.DgeLine;
+import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketConstants;
 
+import htsjdk.samtools.Defaults;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
-import picard.util.TabbedInputParser;
+import htsjdk.samtools.util.RuntimeIOException;
 
 /**
  * Given a DGE file, parse the header and return DGE data a line at a time.
  * Also holds convenience methods to loop up cell barcode information (position, list of cell barcodes)
+ * Integer DGEs in the binary format written by {@link BinaryDgeWriter} are read a gene at a time as well.
+ *
+ * Text lines are tokenized directly from the input bytes.  After {@link #subset(Set)}, only the selected columns are
+ * parsed; the others are skipped without being converted, which makes pulling a few cells out of a wide DGE cheap.
+ * With {@link #setReuseLines(boolean)}, the same DgeLine and expression buffer are refilled for every line.
  * @author nemesh
  *
  */
 public class DgeIterator implements Iterator <DgeLine>{
 
+	private static final byte TAB = '\t';
+	private static final byte LINEFEED = '\n';
+	private static final byte CARRIAGE_RETURN = '\r';
+
 	private final BufferedInputStream inputStream;
+	private final String filename;
 	private final DgeHeader dgeHeader;
-	private TabbedInputParser parser;
-	// map of cell barcode to position.
-	private final LinkedHashMap<String, Integer> identifierMap;
+	// set instead of inputStream when reading a binary DGE.
+	private final BinaryDgeReader binaryReader;
+	private int nextGeneIndex=0;
+	// all identifiers in the input, in input order.
+	private final List<String> allIdentifiers;
+	// map of selected cell barcode to position.
+	private LinkedHashMap<String, Integer> identifierMap;
+	// for each column of the input, its position among the selected identifiers, or -1 if it isn't selected.
+	private int [] columnPositions;
 	private final String geneColumnLabel;
 
-	public DgeIterator (final File input) {
-		this(new BufferedInputStream(IOUtil.openFileForReading(input)), input.getAbsolutePath());
-	}
+	// text input buffer.
+	private final byte [] buffer = new byte [Defaults.BUFFER_SIZE];
+	private int bufferPosition=0;
+	private int bufferLength=0;
+	// holds the gene name while it's being read.
+	private byte [] token = new byte [256];
+	// 1-based number of the last line read, for error messages.
+	private int lineNumber=0;
 
-	public DgeIterator (final BufferedInputStream inputStream, final String filename) {
-		this.inputStream=inputStream;
-		final DgeHeaderCodec headerCodec = new DgeHeaderCodec();
-        this.dgeHeader = headerCodec.decode(inputStream, filename);
-        // set up a tabbed input parser for the line by line data.
-        this.parser = new TabbedInputParser(false, inputStream);
+	private boolean reuseLines=false;
+	private DgeLine sharedLine=null;
 
-        if (!parser.hasNext())  { // empty file.
-            parser.close();
-            identifierMap=new LinkedHashMap<>();
-            geneColumnLabel="";
-            return;
-        }
+	public DgeIterator (final File input) {
+		this(input, BinaryDgeReader.isBinaryDge(input));
+	}
 
-        String [] header = parser.next();
-        geneColumnLabel = header[0];
+	private DgeIterator (final File input, final boolean binary) {
+		this(binary ? null : new BufferedInputStream(IOUtil.openFileForReading(input)), input.getAbsolutePath(),
+				binary ? new BinaryDgeReader(input) : null);
+	}
 
-        // provide dependable iteration order for keys.
-        LinkedHashMap<String, Integer> tempMap=new LinkedHashMap<>();
-        // populate cell barcode map.
-        for (int i=1; i<header.length; i++)
-        	// position map 0 based.
-        	tempMap.put(header[i], i-1);
-        this.identifierMap= tempMap;
+	public DgeIterator (final BufferedInputStream inputStream, final String filename) {
+		this(inputStream, filename, null);
+	}
 
+	private DgeIterator (final BufferedInputStream inputStream, final String filename, final BinaryDgeReader binaryReader) {
+		this.inputStream=inputStream;
+		this.filename=filename;
+		this.binaryReader=binaryReader;
+		if (binaryReader!=null) {
+			if (binaryReader.getElementType()!=MatrixMarketConstants.ElementType.integer) {
+				binaryReader.close();
+				throw new IllegalArgumentException(filename + " is not an integer DGE");
+			}
+			this.dgeHeader = binaryReader.getDgeHeader();
+			this.geneColumnLabel = binaryReader.getGeneColumnLabel();
+			this.allIdentifiers = binaryReader.getCellBarcodes();
+		} else {
+			final DgeHeaderCodec headerCodec = new DgeHeaderCodec();
+			this.dgeHeader = headerCodec.decode(inputStream, filename);
+			if (!hasNext()) { // empty file.
+				geneColumnLabel="";
+				allIdentifiers=new ArrayList<>();
+			} else {
+				List<String> header = readHeaderLine();
+				geneColumnLabel = header.get(0);
+				allIdentifiers = header.subList(1, header.size());
+			}
+		}
+		selectColumns(null);
 	}
 
 	public DgeHeader getDgeHeader () {
@@ -90,33 +131,124 @@ public class DgeIterator implements Iterator <DgeLine>{
 
 	@Override
 	public boolean hasNext() {
-		return parser.hasNext();
+		if (binaryReader!=null)
+			return nextGeneIndex < binaryReader.getNumGenes();
+		// skip blank lines.
+		while (true) {
+			if (bufferPosition==bufferLength && !fill())
+				return false;
+			byte b = buffer[bufferPosition];
+			if (b!=LINEFEED && b!=CARRIAGE_RETURN)
+				return true;
+			if (b==LINEFEED)
+				lineNumber++;
+			bufferPosition++;
+		}
 	}
 
 	@Override
 	public DgeLine next() {
 		if (!hasNext()) return null;
-		String [] line = this.parser.next();
-		return new DgeLine(this.identifierMap, line);
+		DgeLine line = getLineToFill();
+		if (binaryReader!=null) {
+			BinaryDgeReader.SparseVector entries = binaryReader.getGene(nextGeneIndex);
+			Arrays.fill(line.expression, 0);
+			for (int i=0; i<entries.size(); i++) {
+				int pos = columnPositions[entries.indices[i]];
+				if (pos>=0)
+					line.expression[pos]=entries.values[i];
+			}
+			line.gene=binaryReader.getGenes().get(nextGeneIndex++);
+			return line;
+		}
+		lineNumber++;
+		line.gene=readGene();
+		int [] expression=line.expression;
+		int column=0;
+		int last=readByte();
+		while (last==TAB) {
+			if (column>=columnPositions.length)
+				throw new RuntimeException("Too many columns in " + filename + " line " + lineNumber);
+			int pos = columnPositions[column++];
+			if (pos>=0) {
+				// parseValue consumes the delimiter after the value.
+				expression[pos]=parseValue();
+				last=lastDelimiter;
+			} else
+				last=skipValue();
+		}
+		if (column!=columnPositions.length)
+			throw new RuntimeException("Expected " + columnPositions.length + " values but found " + column + " in " + filename + " line " + lineNumber);
+		return line;
+	}
+
+	private DgeLine getLineToFill () {
+		if (reuseLines && sharedLine!=null && sharedLine.identifierMap==this.identifierMap)
+			return sharedLine;
+		DgeLine line = new DgeLine(this.identifierMap, null, new int [identifierMap.size()]);
+		if (reuseLines)
+			sharedLine=line;
+		return line;
 	}
 
 	public void close() {
-		CloserUtil.close(this.parser);
 		CloserUtil.close(this.inputStream);
+		CloserUtil.close(this.binaryReader);
 	}
 
+	/**
+	 * Restrict the lines returned by next() to these identifiers.  The values of other columns are skipped without
+	 * being parsed.  Identifiers keep the order of the input, and identifiers not in the input are ignored.
+	 * Affects the lines read after this call, as well as getIdentifiers().
+	 * @param identifiers The identifiers to keep, or null to keep all of them.
+	 */
 	public void subset (final Set<String> identifiers) {
+		selectColumns(identifiers);
+	}
+
+	private void selectColumns (final Set<String> identifiers) {
+		LinkedHashMap<String, Integer> tempMap=new LinkedHashMap<>();
+		columnPositions = new int [allIdentifiers.size()];
+		for (int i=0; i<columnPositions.length; i++) {
+			String id = allIdentifiers.get(i);
+			if (identifiers==null || identifiers.contains(id)) {
+				// position map 0 based.
+				columnPositions[i]=tempMap.size();
+				tempMap.put(id, tempMap.size());
+			} else
+				columnPositions[i]=-1;
+		}
+		this.identifierMap=tempMap;
+	}
 
+	/**
+	 * If true, next() refills and returns the same DgeLine, so no memory is allocated per line.  A line returned
+	 * by next() is then only valid until the following call to next(); use DgeLine.subset or copy the expression to
+	 * keep it.
+	 */
+	public void setReuseLines (final boolean reuseLines) {
+		this.reuseLines=reuseLines;
+		if (!reuseLines)
+			this.sharedLine=null;
 	}
 
 	/**
 	 * Identifiers are ordered in the same way they are originally input.
-	 * @return
+	 * @return the selected identifiers, or all of them if subset() hasn't been called.
 	 */
 	public List<String> getIdentifiers () {
 		return new ArrayList<>(this.identifierMap.keySet());
 	}
 
+	/**
+	 * @return the position of the identifier in the expression of lines returned by next(), or -1 if the
+	 * identifier isn't selected.  Use with DgeLine.getExpression(int) to avoid a lookup by name for every line.
+	 */
+	public int getIdentifierIndex (final String identifier) {
+		Integer pos = identifierMap.get(identifier);
+		return pos==null ? -1 : pos;
+	}
+
 	/**
 	 * Get the identifier at the top right hand corner of the matrix that labels the gene column.
 	 * This is usually "GENE" for DGE files, but may be different for meta-cells or eQTL data.
@@ -126,19 +258,126 @@ public class DgeIterator implements Iterator <DgeLine>{
 		return geneColumnLabel;
 	}
 
+	private boolean fill () {
+		try {
+			int n = inputStream.read(buffer, 0, buffer.length);
+			if (n<=0) {
+				bufferPosition=bufferLength=0;
+				return false;
+			}
+			bufferPosition=0;
+			bufferLength=n;
+			return true;
+		} catch (IOException e) {
+			throw new RuntimeIOException("Exception reading " + filename, e);
+		}
+	}
+
+	/**
+	 * @return the next byte, or -1 at end of input.  A CR before a LF is dropped.
+	 */
+	private int readByte () {
+		if (bufferPosition==bufferLength && !fill())
+			return -1;
+		byte b = buffer[bufferPosition++];
+		if (b==CARRIAGE_RETURN) {
+			if (bufferPosition==bufferLength && !fill())
+				return LINEFEED;
+			if (buffer[bufferPosition]==LINEFEED)
+				bufferPosition++;
+			return LINEFEED;
+		}
+		return b;
+	}
+
+	private List<String> readHeaderLine () {
+		lineNumber++;
+		List<String> ret = new ArrayList<>();
+		int last;
+		do {
+			int length=0;
+			while ((last=readByte())!=TAB && last!=LINEFEED && last!=-1) {
+				if (length==token.length)
+					token=Arrays.copyOf(token, token.length*2);
+				token[length++]=(byte) last;
+			}
+			ret.add(new String(token, 0, length, StandardCharsets.UTF_8));
+		} while (last==TAB);
+		return ret;
+	}
+
+	/**
+	 * Reads the first field of a line, leaving the tab after it (if any) to be read next.
+	 */
+	private String readGene () {
+		int length=0;
+		while (true) {
+			if (bufferPosition==bufferLength && !fill())
+				break;
+			byte b = buffer[bufferPosition];
+			if (b==TAB || b==LINEFEED || b==CARRIAGE_RETURN)
+				break;
+			if (length==token.length)
+				token=Arrays.copyOf(token, token.length*2);
+			token[length++]=b;
+			bufferPosition++;
+		}
+		return new String(token, 0, length, StandardCharsets.UTF_8);
+	}
+
+	// the delimiter that ended the value read by parseValue.
+	private int lastDelimiter;
+
+	private int parseValue () {
+		int b = readByte();
+		boolean negative = b=='-';
+		if (negative)
+			b=readByte();
+		if (b<'0' || b>'9')
+			throw badValue();
+		long value=0;
+		do {
+			value = value*10 + (b-'0');
+			if (value > (long) Integer.MAX_VALUE + 1)
+				throw badValue();
+			b=readByte();
+		} while (b>='0' && b<='9');
+		if (b!=TAB && b!=LINEFEED && b!=-1)
+			throw badValue();
+		lastDelimiter=b;
+		value = negative ? -value : value;
+		if (value > Integer.MAX_VALUE)
+			throw badValue();
+		return (int) value;
+	}
+
+	/**
+	 * @return the delimiter after the skipped value.
+	 */
+	private int skipValue () {
+		while (true) {
+			if (bufferPosition==bufferLength && !fill())
+				return -1;
+			byte b = buffer[bufferPosition++];
+			if (b==TAB || b==LINEFEED)
+				return b;
+			if (b==CARRIAGE_RETURN) {
+				// let readByte fold CR LF into LF.
+				bufferPosition--;
+				return readByte();
+			}
+		}
+	}
+
+	private RuntimeException badValue () {
+		return new RuntimeException("Non-integer expression value in " + filename + " line " + lineNumber);
+	}
+
 	public class DgeLine {
 		private String gene;
 		private int [] expression;
 		LinkedHashMap<String, Integer> identifierMap;
 
-		DgeLine (final LinkedHashMap<String, Integer> identifierMap, final String [] line) {
-			this.identifierMap=identifierMap;
-			expression= new int [line.length-1];
-			this.gene=line[0];
-			for (int i=1; i<line.length; i++)
-				expression[i-1]=Integer.parseInt(line[i]);
-		}
-
 		DgeLine (final LinkedHashMap<String, Integer> identifierMap, final String gene, final int [] expression) {
 			this.identifierMap=identifierMap;
 			this.gene=gene;
@@ -156,6 +395,13 @@ public class DgeIterator implements Iterator <DgeLine>{
 			return expression[pos];
 		}
 
+		/**
+		 * @param index the position of the identifier, as returned by DgeIterator.getIdentifierIndex
+		 */
+		public int getExpression (final int index) {
+			return expression[index];
+		}
+
 		public void setExpression (final String identifier, final int value) {
 			Integer pos = identifierMap.get(identifier);
 			if (pos==null)
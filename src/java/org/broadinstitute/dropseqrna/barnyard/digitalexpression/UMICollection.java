@@ -29,6 +29,7 @@ import java.util.Collection;
 
 import org.broadinstitute.dropseqrna.utils.ObjectCounter;
 import org.broadinstitute.dropseqrna.utils.editdistance.MapBarcodesByEditDistance;
+import org.broadinstitute.dropseqrna.utils.editdistance.PackedBarcodeCounter;
 
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
@@ -44,13 +45,14 @@ public class UMICollection {
 
 	private String cellBarcode;
 	private String geneName;
-	private ObjectCounter<String> molecularBarcodeCounts;
+	// UMIs are stored packed to save memory, as there are many of these objects in flight.
+	private PackedBarcodeCounter molecularBarcodeCounts;
 	private static MapBarcodesByEditDistance mbed =new MapBarcodesByEditDistance(false);
 
 	public UMICollection (final String cellBarcode, final String geneName) {
 		this.cellBarcode = cellBarcode;
 		this.geneName = geneName;
-		molecularBarcodeCounts=new ObjectCounter<>();
+		molecularBarcodeCounts=new PackedBarcodeCounter();
 	}
 
 	public void incrementMolecularBarcodeCount (final String molecularBarcode, final int count) {
@@ -69,8 +71,12 @@ public class UMICollection {
 		return geneName;
 	}
 
+	/**
+	 * @return A copy of the UMI counts.  The counts are held packed, so this is no longer the live counter: changes
+	 * to the returned counter do not change this collection.
+	 */
 	public ObjectCounter<String> getMolecularBarcodeCounts() {
-		return this.molecularBarcodeCounts;
+		return this.molecularBarcodeCounts.toObjectCounter();
 	}
 
 	public Collection<String> getMolecularBarcodes() {
@@ -81,9 +87,16 @@ public class UMICollection {
 		return this.molecularBarcodeCounts.getSize()==0;
 	}
 
+	/**
+	 * @return The number of distinct molecular barcodes.
+	 */
+	public int getNumMolecularBarcodes () {
+		return this.molecularBarcodeCounts.getSize();
+	}
+
 	public ObjectCounter<String> getMolecularBarcodeCountsCollapsed(final int editDistance) {
-		ObjectCounter<String> counts = collapseByEditDistance(this.molecularBarcodeCounts, editDistance);
-		return counts;
+		PackedBarcodeCounter counts = collapseByEditDistance(this.molecularBarcodeCounts, editDistance);
+		return counts.toObjectCounter();
 	}
 
 	/**
@@ -117,9 +130,9 @@ public class UMICollection {
 			return (count);
 		}
 		// harder, collapse molecular barcodes and count them.
-		ObjectCounter<String> counts = collapseByEditDistance(this.molecularBarcodeCounts, editDistance);
+		PackedBarcodeCounter counts = collapseByEditDistance(this.molecularBarcodeCounts, editDistance);
 		counts.filterByMinCount(minBCReadThreshold);
-		int count = counts.getKeys().size();
+		int count = counts.getSize();
 		return count;
 	}
 
@@ -130,8 +143,8 @@ public class UMICollection {
 	 * @param threshold
 	 * @return
 	 */
-	private ObjectCounter<String> collapseByEditDistance (final ObjectCounter<String> counts, final int editDistance) {
-		ObjectCounter<String> result = mbed.collapseAndMergeBarcodes(counts, false, editDistance);
+	private PackedBarcodeCounter collapseByEditDistance (final PackedBarcodeCounter counts, final int editDistance) {
+		PackedBarcodeCounter result = mbed.collapseAndMergeBarcodes(counts, editDistance);
 		return (result);
 	}
 
@@ -34,23 +34,18 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeader;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeaderCodec;
 import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketConstants;
 import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketReader;
 import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketWriter;
-import org.la4j.Matrix;
-import org.la4j.Vectors;
-import org.la4j.iterator.MatrixIterator;
-import org.la4j.matrix.SparseMatrix;
-import org.la4j.matrix.sparse.CRSMatrix;
-import org.la4j.vector.functor.VectorAccumulator;
 
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
@@ -81,8 +76,7 @@ public class DGEMatrix {
 	private final Map<String, Integer> cellBarcodeMap;
 
 	// the expression data in a matrix
-	private Matrix expressionMatrix;
-	private final double SPARSE_VALUE=0;
+	private SparseExpressionMatrix expressionMatrix;
 
 	public DGEMatrix(final List<String> cellBarcodes, final List<String> geneNames, final double [] [] expressionMatrix) {
 		if (expressionMatrix.length!=geneNames.size())
@@ -91,7 +85,7 @@ public class DGEMatrix {
 			throw new IllegalArgumentException("Columns of expression matrix [" + expressionMatrix[0].length +"] not equal to number of cells [" + cellBarcodes.size()+ "]");
 
 		// add data
-		this.expressionMatrix = CRSMatrix.from2DArray(expressionMatrix);
+		this.expressionMatrix = SparseExpressionMatrix.fromDense(expressionMatrix);
 		this.geneMap = listToMap(geneNames);
 		this.cellBarcodeMap=listToMap(cellBarcodes);
 
@@ -104,12 +98,12 @@ public class DGEMatrix {
 	 */
 	public DGEMatrix(final List<String> cellBarcodes, final List<String> geneNames) {
 		// add data
-		this.expressionMatrix = CRSMatrix.zero(geneNames.size(), cellBarcodes.size());
+		this.expressionMatrix = SparseExpressionMatrix.zero(geneNames.size(), cellBarcodes.size());
 		this.geneMap = listToMap(geneNames);
 		this.cellBarcodeMap=listToMap(cellBarcodes);
 	}
 
-	private DGEMatrix(final List<String> cellBarcodes, final List<String> geneNames, final Matrix m) {
+	private DGEMatrix(final List<String> cellBarcodes, final List<String> geneNames, final SparseExpressionMatrix m) {
 		this.expressionMatrix = m;
 		this.geneMap = listToMap(geneNames);
 		this.cellBarcodeMap=listToMap(cellBarcodes);
@@ -129,7 +123,7 @@ public class DGEMatrix {
 		return (result);
 	}
 
-	Matrix getMatrix () {
+	SparseExpressionMatrix getMatrix () {
 		return this.expressionMatrix;
 	}
 
@@ -141,19 +135,19 @@ public class DGEMatrix {
 	}
 
 	/**
-	 * Convert the storage format to a dense matrix.
+	 * Store every element of the matrix, including zeros.
 	 * Useful if you started sparse, but now have (or will soon have) non-zero values in at least 1/2 of the matrix elements
 	 */
 	public void toDenseMatrix () {
-		this.expressionMatrix=this.expressionMatrix.toDenseMatrix();
+		this.expressionMatrix.densify();
 	}
 
 	/**
-	 * Convert the storage format to a dense matrix.
+	 * Only store the non-zero elements of the matrix.
 	 * Useful if you started dense, but now have (or will soon have) zero values in at least 1/2 of the matrix elements
 	 */
 	public void toSparseMatrix() {
-		this.expressionMatrix.toSparseMatrix();
+		this.expressionMatrix.compact();
 	}
 
 	/**
@@ -185,20 +179,8 @@ public class DGEMatrix {
 	 * @param cellBarcodes A list of cell barcodes to remove from all genes.
 	 */
 	public void removeCellBarcodes (final Collection <String> cellBarcodes) {
-		// get the indexes where data will be removed.
-		List<Integer> toRemove = new ArrayList<>();
-		for (String cell: cellBarcodes) {
-			Integer idx = this.cellBarcodeMap.get(cell);
-			if (idx!=null) {
-				toRemove.add(idx);
-				removeFromMap(cell, this.cellBarcodeMap);
-			}
-		}
-		Collections.sort(toRemove);
-		Collections.reverse(toRemove);
-		// if I remove elements from the end and work forward, I will not mess up if columns are filling in the gaps behind me.
-		for (Integer idx: toRemove)
-			this.expressionMatrix=this.expressionMatrix.removeColumn(idx);
+		boolean [] toRemove = getIndexesToRemove(cellBarcodes, this.cellBarcodeMap);
+		this.expressionMatrix.removeColumns(toRemove);
 	}
 
 	/**
@@ -207,8 +189,7 @@ public class DGEMatrix {
 	 */
 	public void removeCellsWithLowExpression(final int numGenes) {
 		if (numGenes==0) return;  // short circuit.
-		VectorAccumulator nonZeroAccumulator = nonZeroAccumulator();
-		double [] nonZeroExpression = this.expressionMatrix.foldColumns(nonZeroAccumulator);
+		int [] nonZeroExpression = this.expressionMatrix.columnNonZeroCounts();
 		List<String> cells = this.getCellBarcodes();
 		List<String> cellsToRemove = new ArrayList<>();
 		for (int i=0; i<nonZeroExpression.length; i++)
@@ -223,8 +204,7 @@ public class DGEMatrix {
 	 */
 	public void removeGenesWithLowExpression(final int numCells) {
 		if (numCells==0) return; // short circuit.
-		VectorAccumulator nonZeroAccumulator = nonZeroAccumulator();
-		double [] nonZeroExpression = this.expressionMatrix.foldRows(nonZeroAccumulator);
+		int [] nonZeroExpression = this.expressionMatrix.rowNonZeroCounts();
 		List<String> genes = this.getGenes();
 		List<String> genesToRemove = new ArrayList<>();
 		for (int i=0; i<nonZeroExpression.length; i++)
@@ -244,104 +224,41 @@ public class DGEMatrix {
 
 	/**
 	 * Remove genes from this data set.  Removes the rows of expression that have these genes.
-	 * TODO: For LARGE data sets, this is horribly slow....
 	 * @param geneNames A list of genes.
 	 */
 	public void removeGenes(final List<String> geneNames) {
-		// get the indexes where data will be removed.
-		List<Integer> toRemove = new ArrayList<>();
-		for (String gene : geneNames) {
-			Integer idx = this.geneMap.get(gene);
-			if (idx != null)
-				toRemove.add(idx);
-		}
-
-		// remove from map.
-		for (String gene : geneNames)
-			removeFromMap(gene, this.geneMap);
-
-		Collections.sort(toRemove);
-		Collections.reverse(toRemove);
-
-		/*
-		 *this is ridiculously, horribly slow.
-		if (this.expressionMatrix instanceof CRSMatrix) {
-			log.info("Converting Matrix");
-			this.expressionMatrix=this.expressionMatrix.toColumnMajorSparseMatrix();
-			log.info("Matrix Converted");
-		}
-		*/
-		// if I remove elements from the end and work forward, I will not mess
-		// up if columns are filling in the gaps behind me.
-		int counter=0;
-		for (Integer idx : toRemove) {
-			counter++;
-			this.expressionMatrix = this.expressionMatrix.removeRow(idx);
-			// if (counter%100==0) log.info("Removed " + counter + "genes of [" + toRemove.size() +"]");
-		}
+		boolean [] toRemove = getIndexesToRemove(geneNames, this.geneMap);
+		this.expressionMatrix.removeRows(toRemove);
 	}
 
 	/**
-	 * After items are removed from the map, need to shift the indexes to point at the right indexes.
-	 * For example, if you have 5 entries from 0-4 and entry 2 is removed, you'd need to shift all indexes
-	 * past the removal to the left by 1.
+	 * Removes keys from a map of names to positions, and shifts the positions of the remaining entries to close the gaps.
+	 * For example, if you have 5 entries from 0-4 and entry 2 is removed, entries 3 and 4 become 2 and 3.
+	 * @return One flag per original position, true if that position was removed.
 	 */
-	private void removeFromMap (final String key, final Map<String, Integer> map) {
-		Integer idx = map.get(key);
-		if (idx==null) return;
-		map.remove(key);
-		for (String k: map.keySet()) {
-			Integer value = map.get(k);
-			if (value>idx) {
-				value--;
-				map.put(k, value);
-			}
+	private boolean [] getIndexesToRemove (final Collection<String> keys, final Map<String, Integer> map) {
+		boolean [] toRemove = new boolean [map.size()];
+		for (String key: keys) {
+			Integer idx = map.get(key);
+			if (idx!=null) toRemove[idx]=true;
 		}
-
+		List<String> names = mapToList(map);
+		map.clear();
+		for (int i=0; i<names.size(); i++)
+			if (!toRemove[i]) map.put(names.get(i), map.size());
+		return toRemove;
 	}
+
 	/**
 	 * Returns expression for a gene, or null if the gene does not exist.
 	 * The cells represented are in the same order as getCellBarcodes() returns.
 	 * @param gene the gene name to get expression for
 	 * @return An array of expression data.  If there is no gene with this name, return null.
 	 */
-	// TODO: evaluate if getting a vector is faster than pulling single values out.
 	public double [] getExpression (final String gene) {
-		if (this.expressionMatrix instanceof CRSMatrix)
-			return (getExpressionSparse(gene));
-		else
-			return (getExpressionDense(gene));
-	}
-
-	private double [] getExpressionSparse (final String gene) {
-		CRSMatrix thisM = (CRSMatrix) this.expressionMatrix;
 		Integer rowIdx = this.geneMap.get(gene);
 		if (rowIdx==null) return null;
-		double [] result = new double [this.cellBarcodeMap.size()];
-		for (int i=0; i<result.length; i++)
-			result[i] = thisM.getOrElse(rowIdx, i, this.SPARSE_VALUE);
-		return result;
-	}
-
-	private double [] getExpressionDense (final String gene) {
-		Integer rowIdx = this.geneMap.get(gene);
-		if (rowIdx==null) return null;
-		double [] result = new double [this.cellBarcodeMap.size()];
-		for (int i=0; i<result.length; i++)
-			result[i] = this.expressionMatrix.get(rowIdx, i);
-		return result;
-	}
-
-	/**
-	 * Convenience method
-	 * If the input DGE row is not null, return it's expression array
-	 * If it is null, return a new array with numElements length filled with the missing value.
-	 */
-	private double [] getExpressionWithNull (final double [] r, final float missingValue, final int numElements) {
-		if (r!=null) return r;
-		double [] result = new double [numElements];
-		Arrays.fill(result, missingValue);
-		return (result);
+		return this.expressionMatrix.getRow(rowIdx);
 	}
 
 	/**
@@ -351,7 +268,7 @@ public class DGEMatrix {
 	 * @return a 2d float matrix of expression data.  This is a copy of the original data.
 	 */
 	public double [] [] getExpressionMatrix () {
-		return this.expressionMatrix.toDenseMatrix().toArray();
+		return this.expressionMatrix.toArray();
 	}
 
 	/**
@@ -369,23 +286,7 @@ public class DGEMatrix {
 		// merge the cell barcodes.
 		List <String> cellBarcodes = new ArrayList<>(this.getCellBarcodes());
 		cellBarcodes.addAll(other.getCellBarcodes());
-		List<String> allGenes = new ArrayList<> (CollectionUtils.union(this.getGenes(), other.getGenes()));
-		Collections.sort(allGenes);
-
-		int numCellsThis=this.getCellBarcodes().size();
-		int numCellsOther=other.getCellBarcodes().size();
-		CRSMatrix m = new CRSMatrix(allGenes.size(), cellBarcodes.size());
-
-		for (int rowIdx=0; rowIdx<allGenes.size(); rowIdx++) {
-			String g = allGenes.get(rowIdx);
-			double [] thisExp = getExpressionWithNull(this.getExpression(g), 0, numCellsThis);
-			double [] otherExp = getExpressionWithNull(other.getExpression(g), 0, numCellsOther);
-			double [] expression  = ArrayUtils.addAll(thisExp, otherExp);
-			for (int columnIdx=0; columnIdx<expression.length; columnIdx++)
-				if (expression[columnIdx]!=0)
-					m.set(rowIdx, columnIdx, expression[columnIdx]);
-		}
-		return (new DGEMatrix(cellBarcodes, allGenes, m));
+		return (merge(other, cellBarcodes));
 	}
 
 	/**
@@ -398,52 +299,50 @@ public class DGEMatrix {
 	public DGEMatrix mergeWithCollapse (final DGEMatrix other) {
 		// start with this data set's cell barcodes, find barcodes that are new to the 2nd matrix, and add those.
 		List<String> cellBarcodes = new ArrayList<>(this.getCellBarcodes());
+		Set<String> cellBarcodesThis = new HashSet<>(cellBarcodes);
 		// get the other list of cell barcodes, remove cells from the first list.
-		List<String> cellBarcodesOther = new ArrayList<>(other.getCellBarcodes());
-		cellBarcodesOther.removeAll(cellBarcodes);
-		//merge results together
-		cellBarcodes.addAll(cellBarcodesOther);
+		for (String cell: other.getCellBarcodes())
+			if (!cellBarcodesThis.contains(cell))
+				cellBarcodes.add(cell);
+		return (merge(other, cellBarcodes));
+	}
 
-		// merge the genes.
+	/**
+	 * Merge by remapping the row and column indexes of both matrixes onto the merged matrix.
+	 * The genes of the merged matrix are the sorted union of the genes of both matrixes.
+	 * Cells that are in both matrixes have their expression summed.
+	 */
+	private DGEMatrix merge (final DGEMatrix other, final List<String> cellBarcodes) {
 		List<String> allGenes = new ArrayList<> (CollectionUtils.union(this.getGenes(), other.getGenes()));
 		Collections.sort(allGenes);
 
-		int numCellsThis=this.getCellBarcodes().size();
-		int numCellsOther=other.getCellBarcodes().size();
-
-		// for a donor, get their position in each array [can be null in one array but not both].
-		// return the expression value of the donor.
-		// need a map from the donor name to the position in the array.
-
-		CRSMatrix m = new CRSMatrix(allGenes.size(), cellBarcodes.size());
-
-		for (int rowIdx=0; rowIdx<allGenes.size(); rowIdx++) {
-			String g = allGenes.get(rowIdx);
-			double [] thisExp = getExpressionWithNull(this.getExpression(g), 0, numCellsThis);
-			double [] otherExp = getExpressionWithNull(other.getExpression(g), 0, numCellsOther);
-			double [] expression  = getExpression(cellBarcodes, thisExp, otherExp, this.cellBarcodeMap, other.cellBarcodeMap);
-			for (int columnIdx=0; columnIdx<expression.length; columnIdx++)
-				if (expression[columnIdx]!=0)
-					m.set(rowIdx, columnIdx, expression[columnIdx]);
-		}
+		Map<String, Integer> cellMap = listToMap(cellBarcodes);
+		SparseExpressionMatrix m = SparseExpressionMatrix.merge(allGenes.size(), cellBarcodes.size(),
+				this.expressionMatrix, getRowIndexes(allGenes, this.geneMap), getColumnIndexes(this.getCellBarcodes(), cellMap),
+				other.expressionMatrix, getRowIndexes(allGenes, other.geneMap), getColumnIndexes(other.getCellBarcodes(), cellMap));
 		return (new DGEMatrix(cellBarcodes, allGenes, m));
 	}
 
-	private double [] getExpression (final List<String> cellBarcodes, final double [] expressionOne, final double [] expressionTwo, final Map<String,Integer> mapOne, final Map<String,Integer> mapTwo) {
-		double [] expression = new double [cellBarcodes.size()];
-		for (int i=0; i<cellBarcodes.size(); i++)
-			expression[i]=getExpression(cellBarcodes.get(i), expressionOne, expressionTwo, mapOne, mapTwo);
-		return expression;
+	/**
+	 * @return for each of the genes, its row in this gene map, or -1 if it isn't present.
+	 */
+	private static int [] getRowIndexes (final List<String> genes, final Map<String, Integer> geneMap) {
+		int [] result = new int [genes.size()];
+		for (int i=0; i<result.length; i++) {
+			Integer idx = geneMap.get(genes.get(i));
+			result[i] = (idx==null) ? -1 : idx;
+		}
+		return result;
 	}
-	private double getExpression (final String cellBarcode, final double [] expressionOne, final double [] expressionTwo, final Map<String,Integer> mapOne, final Map<String,Integer> mapTwo) {
-		Integer posOne = mapOne.get(cellBarcode);
-		Integer posTwo = mapTwo.get(cellBarcode);
-		if (posOne!=null && posTwo==null) return expressionOne[posOne];
-		if (posOne==null && posTwo!=null) return expressionTwo[posTwo];
-		if (posOne==null && posTwo==null)
-			// this should never happen.
-			throw new IllegalArgumentException("Requested a cell barcode [" + cellBarcode +"] not present in either data set.");
-		return expressionOne[posOne]+expressionTwo[posTwo];
+
+	/**
+	 * @return for each of the cell barcodes, its column in the merged cell barcode map.
+	 */
+	private static int [] getColumnIndexes (final List<String> cellBarcodes, final Map<String, Integer> mergedCellMap) {
+		int [] result = new int [cellBarcodes.size()];
+		for (int i=0; i<result.length; i++)
+			result[i]=mergedCellMap.get(cellBarcodes.get(i));
+		return result;
 	}
 
 	/**
@@ -451,9 +350,7 @@ public class DGEMatrix {
 	 * @return The total expression of each sample.
 	 */
 	public double [] getTotalExpressionPerSample () {
-		final VectorAccumulator sumAccum = Vectors.asSumAccumulator(0);
-		final double [] sums = expressionMatrix.foldColumns(sumAccum);
-		return sums;
+		return expressionMatrix.columnSums();
 	}
 
 	/**
@@ -513,7 +410,7 @@ public class DGEMatrix {
         TabbedInputParser parser = new TabbedInputParser(false, inputStream);
         if (!parser.hasNext())  {
             parser.close();
-            return new DGEMatrix(new ArrayList<String>(), new ArrayList<String>(), CRSMatrix.zero(0, 0));
+            return new DGEMatrix(new ArrayList<String>(), new ArrayList<String>(), SparseExpressionMatrix.zero(0, 0));
         }
 
         String [] header = parser.next();
@@ -528,7 +425,7 @@ public class DGEMatrix {
         if (verbose) log.info("Found [" + (lines-1) + "] genes and [" + cellBarcodes.size() +"] cells");
 
         // initialize the sparse matrix
-        CRSMatrix m = CRSMatrix.zero(lines-1, cellBarcodes.size());
+        SparseExpressionMatrix.Builder m = new SparseExpressionMatrix.Builder(lines-1, cellBarcodes.size());
 
         List<String> geneNames = new ArrayList<>();
 
@@ -540,7 +437,7 @@ public class DGEMatrix {
             for (int columnIdx=1; columnIdx<line.length; columnIdx++) {
                 double expression=Double.parseDouble(line[columnIdx]);
                 if (expression!=0)
-                    m.set(rowIdx, columnIdx-1, expression);
+                    m.add(rowIdx, columnIdx-1, expression);
             }
             rowIdx++;
             if (rowIdx%1000==0)
@@ -548,7 +445,7 @@ public class DGEMatrix {
         }
 
         parser.close();
-		return (new DGEMatrix(cellBarcodes, geneNames, m));
+		return (new DGEMatrix(cellBarcodes, geneNames, m.build()));
     }
 
     /**
@@ -611,12 +508,12 @@ public class DGEMatrix {
         log.info("Found [" + rows + "] genes and [" + cols +"] cells");
 
         // initialize the sparse matrix
-        CRSMatrix m = CRSMatrix.zero(rows, cols);
+        SparseExpressionMatrix.Builder m = new SparseExpressionMatrix.Builder(rows, cols);
         for (final MatrixMarketReader.Element element: matrixReader)
-			m.set(element.row, element.col, element.realValue());
+			m.add(element.row, element.col, element.realValue());
 
         CloserUtil.close(matrixReader);
-		return (new DGEMatrix(cellBarcodes, geneNames, m));
+		return (new DGEMatrix(cellBarcodes, geneNames, m.build()));
 
     }
 
@@ -746,32 +643,13 @@ public class DGEMatrix {
 	public void writeDropSeqMatrixMarket(final File output, final boolean formatAsInteger, final boolean transpose) {
 		try {
 			IOUtil.assertFileIsWritable(output);
-			final int cardinality;
-			if (expressionMatrix instanceof SparseMatrix)
-				cardinality = ((SparseMatrix) expressionMatrix).cardinality();
-			else
-				cardinality = expressionMatrix.columns() * expressionMatrix.columns();
+			final int cardinality = expressionMatrix.cardinality();
 			final MatrixMarketWriter writer = new MatrixMarketWriter(output, MatrixMarketConstants.ElementType.real,
 					transpose? expressionMatrix.columns(): expressionMatrix.rows(),
 					transpose? expressionMatrix.rows(): expressionMatrix.columns(),
 					cardinality, this.getGenes(),this.getCellBarcodes(),
 					MatrixMarketConstants.GENES, MatrixMarketConstants.CELL_BARCODES);
-			if (expressionMatrix instanceof SparseMatrix) {
-                final SparseMatrix mat = (SparseMatrix)expressionMatrix;
-                final MatrixIterator it = mat.nonZeroIterator();
-                while (it.hasNext()) {
-					final double val = it.next();
-                    final int row = it.rowIndex();
-                    final int col = it.columnIndex();
-					writeMatrixMarketTriplet(writer, row, col, val, formatAsInteger, transpose);
-                }
-            } else
-				for (int i = 0; i < expressionMatrix.rows(); ++i)
-					for (int j = 0; j < expressionMatrix.columns(); ++j) {
-						double exp = expressionMatrix.get(i, j);
-						if (exp != SPARSE_VALUE)
-							writeMatrixMarketTriplet(writer, i, j, exp, formatAsInteger, transpose);
-					}
+			expressionMatrix.forEachNonZero((row, col, val) -> writeMatrixMarketTriplet(writer, row, col, val, formatAsInteger, transpose));
 			writer.close();
 		} catch (IOException e) {
 			throw new RuntimeException("Trouble writing " + output.getAbsolutePath(), e);
@@ -813,25 +691,4 @@ public class DGEMatrix {
 		return String.format("%d %d %d", nrows, ncols, cardinality);
 	}
 
-	private static VectorAccumulator nonZeroAccumulator() {
-        return new VectorAccumulator() {
-
-            private int count=0;
-            @Override
-            public void update(final int i, final double value) {
-            	if (value!=0)
-					count++;
-            }
-
-            @Override
-            public double accumulate() {
-                double result = count;
-                // if you don't reset the variables, further calls to this accumulator will gain the old results
-                count=0;
-                return result;
-            }
-        };
-    }
-
-
 }
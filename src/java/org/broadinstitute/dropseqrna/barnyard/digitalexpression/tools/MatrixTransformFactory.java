@@ -23,14 +23,9 @@
  */
 package org.broadinstitute.dropseqrna.barnyard.digitalexpression.tools;
 
-import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
-import org.la4j.Matrix;
-import org.la4j.Vectors;
-import org.la4j.vector.functor.VectorAccumulator;
-import org.la4j.vector.functor.VectorFunction;
+import java.util.function.DoubleUnaryOperator;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
+import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
 
 /**
  * Produces functions that transform a matrix.
@@ -51,15 +46,10 @@ public class MatrixTransformFactory {
 		return new MatrixTransformI() {
 
 			@Override
-			public void apply(final Matrix m) {
-				final VectorAccumulator sumAccum = Vectors.asSumAccumulator(0);
-				final double [] sums = m.foldColumns(sumAccum);
+			public void apply(final SparseExpressionMatrix m) {
+				final double [] sums = m.columnSums();
 				// divide by the sums.  This is like an apply to each column.
-				for (int i=0; i<sums.length; i++) {
-					// make a function with the set value to divide by.
-					VectorFunction f = Vectors.asDivFunction(sums[i]);
-					m.updateColumn(i, f);
-				}
+				m.divideColumns(sums);
 			}
 		};
 
@@ -79,14 +69,9 @@ public class MatrixTransformFactory {
 			 private final int a = add;
 
 			 @Override
-			 public void apply(final Matrix m) {
-				 // Note, I tried this as a MatrixFunction and called m.update(function) on it, but it gave me the wrong results.
-				 // Lots of elements were 0?
-				 // apply by row/column seems to work ok though.
-				 VectorFunction f = logTransform(multiply, add);
-				 int numRows = m.rows();
-				 for (int i=0; i<numRows; i++)
-					m.updateRow(i, f);
+			 public void apply(final SparseExpressionMatrix m) {
+				 // when log(add) is 0 only the non-zero elements are transformed.
+				 m.update(logTransform(mult, a));
 			 }
 		 };
 	}
@@ -128,28 +113,24 @@ public class MatrixTransformFactory {
 		return new MatrixTransformI() {
 
 			@Override
-			public void apply(final Matrix m) {
-				// this forces the data to be dense instead of sparse.
-				// this doesn't work somehow, this m is being changed but the changes aren't occurring to the m that was passed in.
-				// side effect not working?
-				// m=m.toDenseMatrix();
-				// m.toDenseMatrix(); // this returns a dense matrix, but we don't capture that.
-				// calculate means
-				VectorAccumulator meanAccumulator = meanAccumulator(retainZeros);
-				double [] means = m.foldRows(meanAccumulator);
-				// subtract means from rows.
-				for (int i=0; i<means.length; i++) {
-					// make a function with the set value to divide by.
-					VectorFunction f = Vectors.asMinusFunction(means[i]);
-					m.updateRow(i, f);
-				}
-				// calculate SD
-				VectorAccumulator sdAccumulator = sdAccumulator(retainZeros);
-				double [] sd = m.foldRows(sdAccumulator);
-				for (int i=0; i<sd.length; i++) {
-					// make a function with the set value to divide by.
-					VectorFunction f = Vectors.asDivFunction(sd[i]);
-					m.updateRow(i, f);
+			public void apply(final SparseExpressionMatrix m) {
+				// subtracting the means fills in the zeros of the matrix, so store them.
+				if (retainZeros) m.densify();
+				for (int i=0; i<m.rows(); i++) {
+					// with the zeros stored these are all the values of the row, otherwise only the non-zero values.
+					double [] values = m.getStoredRowValues(i);
+					StandardDeviation sd = new StandardDeviation();
+					double sum=0;
+					int count=0;
+					for (double v: values)
+						if (retainZeros || v!=0) {
+							sum+=v;
+							sd.increment(v);
+							count++;
+						}
+					final double mean = sum/count;
+					final double sdValue = sd.getResult();
+					m.updateRow(i, v -> (retainZeros || v!=0) ? (v-mean)/sdValue : v);
 				}
 			}
 		};
@@ -162,64 +143,8 @@ public class MatrixTransformFactory {
 	 * @param add add this value
 	 * @return
 	 */
-	private static VectorFunction logTransform(final int multiply, final int add) {
-        return new VectorFunction() {
-            private final int m = multiply;
-            private final int a = add;
-
-            @Override
-            public double evaluate(final int i, final double value) {
-                double vv = (value*m)+a;
-                double vvv=Math.log(vv);
-                return vvv;
-            }
-        };
-    }
-
-	private static VectorAccumulator meanAccumulator(final boolean retainZeros) {
-        return new VectorAccumulator() {
-            private BigDecimal result = new BigDecimal(0);
-            private int count=0;
-            @Override
-            public void update(final int i, final double value) {
-            	if (retainZeros || value!=0) {
-            		result = result.add(new BigDecimal(value));
-            		count++;
-            	}
-            }
-
-            @Override
-            public double accumulate() {
-                double value = result.setScale(Vectors.ROUND_FACTOR, RoundingMode.CEILING).doubleValue();
-                double mean = value / count;
-                // if you don't reset the variables, further calls to this accumulator will gain the old results
-                count=0;
-                result = new BigDecimal(0);
-                return mean;
-            }
-        };
-    }
-
-	private static VectorAccumulator sdAccumulator(final boolean retainZeros) {
-        return new VectorAccumulator() {
-            StandardDeviation d = new StandardDeviation();
-
-            @Override
-            public void update(final int i, final double value) {
-            	if (retainZeros || value!=0)
-					d.increment(value);
-
-            }
-
-            @Override
-            public double accumulate() {
-                double sd = d.getResult();
-                d=new StandardDeviation();
-                return sd;
-            }
-        };
-    }
-
-
+	private static DoubleUnaryOperator logTransform(final int multiply, final int add) {
+		return value -> Math.log((value*multiply)+add);
+	}
 
 }
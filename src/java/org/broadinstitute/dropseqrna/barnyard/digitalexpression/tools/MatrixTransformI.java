@@ -23,9 +23,7 @@
  */
 package org.broadinstitute.dropseqrna.barnyard.digitalexpression.tools;
 
-import org.la4j.Matrix;
-
 public interface MatrixTransformI {
 
-	public void apply (Matrix m);
+	public void apply (SparseExpressionMatrix m);
 }
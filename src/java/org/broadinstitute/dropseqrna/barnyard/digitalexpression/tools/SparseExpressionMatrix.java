@@ -0,0 +1,475 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.barnyard.digitalexpression.tools;
+
+import java.util.Arrays;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * A sparse matrix of expression values in compressed sparse row (CSR) format.
+ * Rows are genes and columns are cells, as in {@link DGEMatrix}.
+ *
+ * The non-zero entries of row r are at positions rowStart[r] to rowStart[r+1]-1 of the columns and values arrays,
+ * ordered by column.  Operations on columns (sums, scaling) are single passes over the flat values array, operations
+ * on rows are passes over a contiguous slice of it, and rows and columns are removed in place by compacting the arrays.
+ * Values are doubles so that normalized and log transformed expression can be held in the same matrix as counts.
+ *
+ * Entries may hold an explicit 0 after a transform; they are skipped when reporting non-zero entries.
+ */
+public class SparseExpressionMatrix {
+
+	private int numRows;
+	private int numColumns;
+	private int [] rowStart;
+	private int [] columns;
+	private double [] values;
+
+	private SparseExpressionMatrix (final int numRows, final int numColumns, final int [] rowStart, final int [] columns, final double [] values) {
+		this.numRows=numRows;
+		this.numColumns=numColumns;
+		this.rowStart=rowStart;
+		this.columns=columns;
+		this.values=values;
+	}
+
+	/**
+	 * @return A matrix with the given dimensions where every value is 0.
+	 */
+	public static SparseExpressionMatrix zero (final int numRows, final int numColumns) {
+		return new SparseExpressionMatrix(numRows, numColumns, new int [numRows+1], new int [0], new double [0]);
+	}
+
+	/**
+	 * Copy the non-zero values of a dense matrix indexed [row][column].
+	 */
+	public static SparseExpressionMatrix fromDense (final double [] [] data) {
+		int numColumns = (data.length==0) ? 0 : data[0].length;
+		Builder b = new Builder(data.length, numColumns);
+		for (int r=0; r<data.length; r++)
+			for (int c=0; c<numColumns; c++)
+				if (data[r][c]!=0) b.add(r, c, data[r][c]);
+		return b.build();
+	}
+
+	public int rows () {
+		return this.numRows;
+	}
+
+	public int columns () {
+		return this.numColumns;
+	}
+
+	/**
+	 * @return The number of non-zero values in the matrix.
+	 */
+	public int cardinality () {
+		int result=0;
+		for (int k=0; k<this.rowStart[this.numRows]; k++)
+			if (this.values[k]!=0) result++;
+		return result;
+	}
+
+	public double get (final int row, final int column) {
+		int k = Arrays.binarySearch(this.columns, this.rowStart[row], this.rowStart[row+1], column);
+		return (k<0) ? 0 : this.values[k];
+	}
+
+	/**
+	 * @return The values of a row as a dense array.
+	 */
+	public double [] getRow (final int row) {
+		double [] result = new double [this.numColumns];
+		for (int k=this.rowStart[row]; k<this.rowStart[row+1]; k++)
+			result[this.columns[k]]=this.values[k];
+		return result;
+	}
+
+	/**
+	 * @return A dense copy of the matrix indexed [row][column].
+	 */
+	public double [] [] toArray () {
+		double [] [] result = new double [this.numRows] [];
+		for (int r=0; r<this.numRows; r++)
+			result[r]=getRow(r);
+		return result;
+	}
+
+	public double [] columnSums () {
+		double [] result = new double [this.numColumns];
+		for (int k=0; k<this.rowStart[this.numRows]; k++)
+			result[this.columns[k]]+=this.values[k];
+		return result;
+	}
+
+	public double [] rowSums () {
+		double [] result = new double [this.numRows];
+		for (int r=0; r<this.numRows; r++)
+			for (int k=this.rowStart[r]; k<this.rowStart[r+1]; k++)
+				result[r]+=this.values[k];
+		return result;
+	}
+
+	/**
+	 * @return For each column, the number of rows with a non-zero value.
+	 */
+	public int [] columnNonZeroCounts () {
+		int [] result = new int [this.numColumns];
+		for (int k=0; k<this.rowStart[this.numRows]; k++)
+			if (this.values[k]!=0) result[this.columns[k]]++;
+		return result;
+	}
+
+	/**
+	 * @return For each row, the number of columns with a non-zero value.
+	 */
+	public int [] rowNonZeroCounts () {
+		int [] result = new int [this.numRows];
+		for (int r=0; r<this.numRows; r++)
+			for (int k=this.rowStart[r]; k<this.rowStart[r+1]; k++)
+				if (this.values[k]!=0) result[r]++;
+		return result;
+	}
+
+	/**
+	 * Divide each column by a value, in place.  Only non-zero entries are touched, so the matrix stays sparse.
+	 * @param divisors One value per column.
+	 */
+	public void divideColumns (final double [] divisors) {
+		if (divisors.length!=this.numColumns)
+			throw new IllegalArgumentException("Expected [" + this.numColumns + "] divisors, found [" + divisors.length + "]");
+		for (int k=0; k<this.rowStart[this.numRows]; k++)
+			this.values[k]/=divisors[this.columns[k]];
+	}
+
+	/**
+	 * Apply a function to every value of the matrix, in place.
+	 * If the function maps 0 to 0 only the non-zero entries are visited and the matrix stays sparse, otherwise every
+	 * entry of the matrix is filled in.
+	 */
+	public void update (final DoubleUnaryOperator function) {
+		if (function.applyAsDouble(0)!=0) densify();
+		for (int k=0; k<this.rowStart[this.numRows]; k++)
+			this.values[k]=function.applyAsDouble(this.values[k]);
+	}
+
+	/**
+	 * @return The values stored for a row, in column order.  Unless the matrix is dense this is only the non-zero values.
+	 */
+	public double [] getStoredRowValues (final int row) {
+		return Arrays.copyOfRange(this.values, this.rowStart[row], this.rowStart[row+1]);
+	}
+
+	/**
+	 * Apply a function to the values stored for one row, in place.
+	 * Unlike {@link #update(DoubleUnaryOperator)} zeros that aren't stored are left alone, so call {@link #densify()}
+	 * first if the function should apply to every element of the row.
+	 */
+	public void updateRow (final int row, final DoubleUnaryOperator function) {
+		for (int k=this.rowStart[row]; k<this.rowStart[row+1]; k++)
+			this.values[k]=function.applyAsDouble(this.values[k]);
+	}
+
+	/**
+	 * Store every entry of the matrix explicitly, so functions that don't map 0 to 0 can be applied.
+	 */
+	public void densify () {
+		long size = (long) this.numRows*this.numColumns;
+		if (this.rowStart[this.numRows]==size) return;
+		if (size>Integer.MAX_VALUE)
+			throw new IllegalStateException("Matrix with [" + this.numRows + "] rows and [" + this.numColumns + "] columns is too large to fill in");
+		int [] newColumns = new int [(int) size];
+		double [] newValues = new double [(int) size];
+		int [] newRowStart = new int [this.numRows+1];
+		for (int r=0; r<this.numRows; r++) {
+			int offset = r*this.numColumns;
+			newRowStart[r]=offset;
+			for (int c=0; c<this.numColumns; c++)
+				newColumns[offset+c]=c;
+			for (int k=this.rowStart[r]; k<this.rowStart[r+1]; k++)
+				newValues[offset+this.columns[k]]=this.values[k];
+		}
+		newRowStart[this.numRows]=(int) size;
+		this.rowStart=newRowStart;
+		this.columns=newColumns;
+		this.values=newValues;
+	}
+
+	/**
+	 * Drop any explicitly stored 0 values, in place.
+	 */
+	public void compact () {
+		int kept=0;
+		int start=0;
+		for (int r=0; r<this.numRows; r++) {
+			int end=this.rowStart[r+1];
+			for (int k=start; k<end; k++)
+				if (this.values[k]!=0) {
+					this.columns[kept]=this.columns[k];
+					this.values[kept]=this.values[k];
+					kept++;
+				}
+			start=end;
+			this.rowStart[r+1]=kept;
+		}
+		trim();
+	}
+
+	/**
+	 * Remove columns in place.  The remaining columns keep their order, and are renumbered to close the gaps.
+	 * @param remove One flag per column, true if that column should be removed.
+	 */
+	public void removeColumns (final boolean [] remove) {
+		if (remove.length!=this.numColumns)
+			throw new IllegalArgumentException("Expected [" + this.numColumns + "] flags, found [" + remove.length + "]");
+		// the new index of each column that is kept.
+		int [] newIndex = new int [this.numColumns];
+		int numKept=0;
+		for (int c=0; c<this.numColumns; c++)
+			if (!remove[c]) newIndex[c]=numKept++;
+		int kept=0;
+		int start=0;
+		for (int r=0; r<this.numRows; r++) {
+			int end=this.rowStart[r+1];
+			for (int k=start; k<end; k++)
+				if (!remove[this.columns[k]]) {
+					this.columns[kept]=newIndex[this.columns[k]];
+					this.values[kept]=this.values[k];
+					kept++;
+				}
+			start=end;
+			this.rowStart[r+1]=kept;
+		}
+		this.numColumns=numKept;
+		trim();
+	}
+
+	/**
+	 * Remove rows in place.  The remaining rows keep their order, and are renumbered to close the gaps.
+	 * @param remove One flag per row, true if that row should be removed.
+	 */
+	public void removeRows (final boolean [] remove) {
+		if (remove.length!=this.numRows)
+			throw new IllegalArgumentException("Expected [" + this.numRows + "] flags, found [" + remove.length + "]");
+		int kept=0;
+		int newRow=0;
+		for (int r=0; r<this.numRows; r++) {
+			int start=this.rowStart[r];
+			int end=this.rowStart[r+1];
+			if (remove[r]) continue;
+			System.arraycopy(this.columns, start, this.columns, kept, end-start);
+			System.arraycopy(this.values, start, this.values, kept, end-start);
+			this.rowStart[newRow]=kept;
+			kept+=end-start;
+			newRow++;
+		}
+		this.rowStart[newRow]=kept;
+		this.numRows=newRow;
+		this.rowStart=Arrays.copyOf(this.rowStart, newRow+1);
+		trim();
+	}
+
+	// release unused space at the end of the entry arrays.
+	private void trim () {
+		int size = this.rowStart[this.numRows];
+		if (size < this.values.length/2) {
+			this.columns=Arrays.copyOf(this.columns, size);
+			this.values=Arrays.copyOf(this.values, size);
+		}
+	}
+
+	/**
+	 * Build a new matrix from the rows of two matrixes, without expanding either to dense rows.
+	 * Values that land in the same row and column are summed.
+	 * @param numRows The number of rows of the new matrix
+	 * @param numColumns The number of columns of the new matrix
+	 * @param a The first matrix
+	 * @param aRows For each row of the new matrix, the row of a that fills it, or -1 if a has no such row.
+	 * @param aColumns For each column of a, the column of the new matrix it moves to.
+	 * @param b The second matrix
+	 * @param bRows For each row of the new matrix, the row of b that fills it, or -1 if b has no such row.
+	 * @param bColumns For each column of b, the column of the new matrix it moves to.
+	 */
+	public static SparseExpressionMatrix merge (final int numRows, final int numColumns,
+			final SparseExpressionMatrix a, final int [] aRows, final int [] aColumns,
+			final SparseExpressionMatrix b, final int [] bRows, final int [] bColumns) {
+		Builder builder = new Builder(numRows, numColumns, a.rowStart[a.numRows]+b.rowStart[b.numRows]);
+		for (int r=0; r<numRows; r++) {
+			if (aRows[r]>=0) a.addRowTo(builder, aRows[r], r, aColumns);
+			if (bRows[r]>=0) b.addRowTo(builder, bRows[r], r, bColumns);
+		}
+		return builder.build();
+	}
+
+	private void addRowTo (final Builder builder, final int row, final int newRow, final int [] newColumns) {
+		for (int k=this.rowStart[row]; k<this.rowStart[row+1]; k++)
+			if (this.values[k]!=0) builder.add(newRow, newColumns[this.columns[k]], this.values[k]);
+	}
+
+	/**
+	 * Visits the non-zero entries of the matrix in row order, then column order within a row.
+	 */
+	public interface EntryConsumer {
+		void accept (int row, int column, double value);
+	}
+
+	public void forEachNonZero (final EntryConsumer consumer) {
+		for (int r=0; r<this.numRows; r++)
+			for (int k=this.rowStart[r]; k<this.rowStart[r+1]; k++)
+				if (this.values[k]!=0) consumer.accept(r, this.columns[k], this.values[k]);
+	}
+
+	/**
+	 * Two matrixes are equal if they have the same dimensions and the same non-zero values.
+	 */
+	@Override
+	public boolean equals (final Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		SparseExpressionMatrix other = (SparseExpressionMatrix) obj;
+		if (this.numRows!=other.numRows || this.numColumns!=other.numColumns) return false;
+		for (int r=0; r<this.numRows; r++) {
+			int k=this.rowStart[r];
+			int j=other.rowStart[r];
+			while (true) {
+				while (k<this.rowStart[r+1] && this.values[k]==0) k++;
+				while (j<other.rowStart[r+1] && other.values[j]==0) j++;
+				boolean thisDone = k==this.rowStart[r+1];
+				boolean otherDone = j==other.rowStart[r+1];
+				if (thisDone || otherDone) {
+					if (thisDone!=otherDone) return false;
+					break;
+				}
+				if (this.columns[k]!=other.columns[j] || this.values[k]!=other.values[j]) return false;
+				k++;
+				j++;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode () {
+		final int[] result = {31 * this.numRows + this.numColumns};
+		forEachNonZero((r, c, v) -> result[0] += (31*r + c) ^ Double.hashCode(v));
+		return result[0];
+	}
+
+	/**
+	 * Accumulates entries in any order and builds a SparseExpressionMatrix from them.
+	 * Entries added more than once for the same row and column are summed.
+	 */
+	public static class Builder {
+		private final int numRows;
+		private final int numColumns;
+		private int [] entryRows;
+		private int [] entryColumns;
+		private double [] entryValues;
+		private int size;
+
+		public Builder (final int numRows, final int numColumns) {
+			this(numRows, numColumns, 16);
+		}
+
+		public Builder (final int numRows, final int numColumns, final int expectedEntries) {
+			this.numRows=numRows;
+			this.numColumns=numColumns;
+			int capacity=Math.max(expectedEntries, 16);
+			this.entryRows=new int [capacity];
+			this.entryColumns=new int [capacity];
+			this.entryValues=new double [capacity];
+		}
+
+		public void add (final int row, final int column, final double value) {
+			if (row<0 || row>=this.numRows || column<0 || column>=this.numColumns)
+				throw new IllegalArgumentException("Entry [" + row + "," + column + "] is outside of a [" + this.numRows + "," + this.numColumns + "] matrix");
+			if (this.size==this.entryValues.length) {
+				int capacity=this.size*2;
+				this.entryRows=Arrays.copyOf(this.entryRows, capacity);
+				this.entryColumns=Arrays.copyOf(this.entryColumns, capacity);
+				this.entryValues=Arrays.copyOf(this.entryValues, capacity);
+			}
+			this.entryRows[this.size]=row;
+			this.entryColumns[this.size]=column;
+			this.entryValues[this.size]=value;
+			this.size++;
+		}
+
+		public SparseExpressionMatrix build () {
+			// counting sort of the entries by row.
+			int [] rowStart = new int [this.numRows+1];
+			for (int i=0; i<this.size; i++)
+				rowStart[this.entryRows[i]+1]++;
+			for (int r=0; r<this.numRows; r++)
+				rowStart[r+1]+=rowStart[r];
+			int [] next = Arrays.copyOf(rowStart, this.numRows);
+			int [] columns = new int [this.size];
+			double [] values = new double [this.size];
+			for (int i=0; i<this.size; i++) {
+				int k = next[this.entryRows[i]]++;
+				columns[k]=this.entryColumns[i];
+				values[k]=this.entryValues[i];
+			}
+			// order each row by column, summing duplicates.
+			int kept=0;
+			for (int r=0; r<this.numRows; r++) {
+				int start=rowStart[r];
+				int end=rowStart[r+1];
+				if (!isStrictlyIncreasing(columns, start, end)) sortRow(columns, values, start, end);
+				rowStart[r]=kept;
+				for (int k=start; k<end; k++)
+					if (k>start && columns[k]==columns[kept-1])
+						values[kept-1]+=values[k];
+					else {
+						columns[kept]=columns[k];
+						values[kept]=values[k];
+						kept++;
+					}
+			}
+			rowStart[this.numRows]=kept;
+			return new SparseExpressionMatrix(this.numRows, this.numColumns, rowStart, columns, values);
+		}
+
+		private static boolean isStrictlyIncreasing (final int [] columns, final int start, final int end) {
+			for (int k=start+1; k<end; k++)
+				if (columns[k]<=columns[k-1]) return false;
+			return true;
+		}
+
+		private static void sortRow (final int [] columns, final double [] values, final int start, final int end) {
+			// sort the column together with the original position, then permute the values to match.
+			long [] keys = new long [end-start];
+			for (int k=start; k<end; k++)
+				keys[k-start]=((long) columns[k] << 32) | (k-start);
+			Arrays.sort(keys);
+			double [] rowValues = Arrays.copyOfRange(values, start, end);
+			for (int i=0; i<keys.length; i++) {
+				columns[start+i]=(int) (keys[i] >>> 32);
+				values[start+i]=rowValues[(int) keys[i]];
+			}
+		}
+	}
+
+}
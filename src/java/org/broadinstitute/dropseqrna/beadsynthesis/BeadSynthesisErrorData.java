@@ -64,6 +64,19 @@ public class BeadSynthesisErrorData implements Serializable {
 		this.numUMIs=-1;
 	}
 
+	/**
+	 * Build from base counts and UMI counts that have already been gathered.
+	 */
+	BeadSynthesisErrorData (final String cellBarcode, final BaseDistributionMetricCollection baseCounts, final ObjectCounter<String> umiCounts, final int numReads, final int numTranscripts) {
+		this.cellBarcode=cellBarcode;
+		this.baseCounts=baseCounts;
+		this.umiCounts=umiCounts;
+		this.dataChanged=true;
+		this.numReads=numReads;
+		this.numTranscripts=numTranscripts;
+		this.numUMIs=-1;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder b = new StringBuilder();
@@ -0,0 +1,96 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.beadsynthesis;
+
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.UMICollection;
+import org.broadinstitute.dropseqrna.utils.BaseDistributionMetric;
+import org.broadinstitute.dropseqrna.utils.BaseDistributionMetricCollection;
+import org.broadinstitute.dropseqrna.utils.ObjectCounter;
+
+/**
+ * Gathers the UMIs of a single cell barcode across all genes.  Bases are counted at each UMI position in an array
+ * instead of the maps of a BaseDistributionMetricCollection, which is only built once all the UMIs have been added.
+ */
+public class CellUMIAccumulator {
+
+	// the order of the counts at each position.
+	private static final String BASES = "ACGTN";
+
+	private final String cellBarcode;
+	private int [][] baseCounts = new int [0][];
+	private final ObjectCounter<String> umiCounts = new ObjectCounter<>();
+	private int numReads=0;
+	private int numTranscripts=0;
+
+	public CellUMIAccumulator (final String cellBarcode) {
+		this.cellBarcode=cellBarcode;
+	}
+
+	/**
+	 * Add the UMIs of one gene of the cell.
+	 */
+	public void add (final UMICollection umis) {
+		for (String umi: umis.getMolecularBarcodes())
+			addUMI(umi);
+		this.numTranscripts+=umis.getDigitalExpression(1, 1, false);
+		this.numReads+=umis.getDigitalExpression(1, 1, true);
+	}
+
+	private void addUMI (final String umi) {
+		umiCounts.increment(umi);
+		if (umi.length()>baseCounts.length) {
+			int [][] grown = new int [umi.length()][];
+			System.arraycopy(baseCounts, 0, grown, 0, baseCounts.length);
+			for (int i=baseCounts.length; i<grown.length; i++)
+				grown[i]=new int [BASES.length()];
+			baseCounts=grown;
+		}
+		for (int i=0; i<umi.length(); i++) {
+			int index = BASES.indexOf(umi.charAt(i));
+			if (index<0)
+				throw new IllegalArgumentException("Unexpected base in UMI [" + umi + "] of cell barcode [" + cellBarcode + "]");
+			baseCounts[i][index]++;
+		}
+	}
+
+	public String getCellBarcode() {
+		return cellBarcode;
+	}
+
+	public int getNumTranscripts() {
+		return numTranscripts;
+	}
+
+	/**
+	 * @return the accumulated UMIs as a BeadSynthesisErrorData, which can be tested for synthesis errors.
+	 */
+	public BeadSynthesisErrorData toBeadSynthesisErrorData () {
+		BaseDistributionMetricCollection bases = new BaseDistributionMetricCollection();
+		for (int i=0; i<baseCounts.length; i++) {
+			int [] c = baseCounts[i];
+			bases.setDistributionAtPosition(i, new BaseDistributionMetric(c[0], c[1], c[2], c[3], c[4]));
+		}
+		return new BeadSynthesisErrorData(cellBarcode, bases, umiCounts, numReads, numTranscripts);
+	}
+}
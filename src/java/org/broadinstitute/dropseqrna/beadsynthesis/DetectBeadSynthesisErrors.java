@@ -50,15 +50,16 @@ import org.broadinstitute.dropseqrna.utils.Bases;
 import org.broadinstitute.dropseqrna.utils.GroupingIterator;
 import org.broadinstitute.dropseqrna.utils.ObjectCounter;
 import org.broadinstitute.dropseqrna.utils.SamHeaderUtil;
-import org.broadinstitute.dropseqrna.utils.StringInterner;
 import org.broadinstitute.dropseqrna.utils.editdistance.MapBarcodesByEditDistance;
+import org.broadinstitute.dropseqrna.utils.editdistance.NeighborSearchStrategy;
 import org.broadinstitute.dropseqrna.utils.io.ErrorCheckingPrintStream;
+import org.broadinstitute.dropseqrna.utils.io.OrderedParallelExecutor;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamFileMergeUtil;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamHeaderAndIterator;
 import org.broadinstitute.dropseqrna.utils.readiterators.UMIIterator;
+import org.broadinstitute.dropseqrna.utils.io.ParallelSamIO;
 
 import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.metrics.MetricsFile;
@@ -145,9 +146,15 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 	@Argument (doc="Which base to scan for UMI bias when repairing intended sequences with substitution errors.  This is typically the last base of the UMI.  If set to null, program will use the last base of the UMI.  This argument only needs to be set if you've done something unusual with your data.", optional=true)
 	public Integer UMI_BIAS_BASE=null;
 
-	@Argument(doc="Number of threads to use for edit distance collapse.  Defaults to 1.")
+	@Argument(doc="Number of threads to use to test cell barcodes for synthesis errors, and for edit distance collapse.  Defaults to 1.")
 	public int NUM_THREADS=1;
 
+	@Argument(doc="How to find barcodes within the edit distance of each barcode: FULL_SCAN compares every pair of barcodes, INDEXED only compares barcodes that share a segment.  Both give the same results.")
+	public NeighborSearchStrategy NEIGHBOR_SEARCH_STRATEGY=NeighborSearchStrategy.FULL_SCAN;
+
+	@Argument(doc="Number of threads used to decompress the INPUT BAMs and compress OUTPUT while the repaired BAM is written.  Has no effect when OUTPUT is not set.")
+	public int IO_THREADS=1;
+
 	Double EXTREME_BASE_RATIO=0.8;
 	DetectPrimerInUMI detectPrimerTool=null;
 
@@ -157,6 +164,9 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 	private static DecimalFormat df2 = new DecimalFormat("#.##");
 	int MAX_BARCODE_ERRORS_IN_RAM=10000;
 
+	// cells are tested for synthesis errors in batches of this many cells.
+	int CELLS_PER_BATCH=1000;
+
 	@Override
 	protected int doWork() {
 		// primer detection if requested.
@@ -167,6 +177,19 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 
 		UMIIterator iterator = prepareUMIIterator();
 		BiasedBarcodeCollection biasedBarcodeCollection = findBiasedBarcodes(iterator, out, this.SUMMARY, UMI_BIAS_BASE);
+		Map<String, BarcodeRepair> repairs = findBarcodeRepairs(biasedBarcodeCollection);
+
+		// clean up the BAM if desired.  Only the repairs are held in memory while the BAM is rewritten.
+		if (this.OUTPUT!=null)
+			cleanBAM(repairs);
+		return 0;
+	}
+
+	/**
+	 * Find intended sequences for the biased barcodes, write the report, and decide how to repair each biased barcode.
+	 * @return a map from each biased cell barcode to its repair.
+	 */
+	private Map<String, BarcodeRepair> findBarcodeRepairs (final BiasedBarcodeCollection biasedBarcodeCollection) {
 		Map<String, BeadSynthesisErrorData> errorBarcodesWithPositions = biasedBarcodeCollection.getBiasedBarcodes();
 
 		ObjectCounter<String> umisPerCell = biasedBarcodeCollection.getUMICounts();
@@ -181,11 +204,10 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 		// write report about which sequences were collapsed and why
 		writeReport(umisPerCell, barcodeNeighborGroups.values(), intendedSequenceMap, umiBias, this.REPORT);
 
-
-		// clean up the BAM if desired.
-		if (this.OUTPUT!=null)
-			cleanBAM(errorBarcodesWithPositions, intendedSequenceMap);
-		return 0;
+		Map<String, BarcodeRepair> result = new HashMap<>();
+		for (BeadSynthesisErrorData bsed: errorBarcodesWithPositions.values())
+			result.put(bsed.getCellBarcode(), getBarcodeRepair(bsed, intendedSequenceMap));
+		return result;
 	}
 
 	/**
@@ -207,7 +229,7 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 
 		List<String> repairedCellBarcodes = new ArrayList<>(biasedGroups.keySet());
 
-		MapBarcodesByEditDistance mbed = new MapBarcodesByEditDistance(true, this.NUM_THREADS);
+		MapBarcodesByEditDistance mbed = new MapBarcodesByEditDistance(true, this.NUM_THREADS, 0, this.NEIGHBOR_SEARCH_STRATEGY);
 		Map<String, String> intendedSequenceMap = mbed.findIntendedIndelSequences (repairedCellBarcodes, potentialIntendedBarcodesList, 1);
 
 		Map<String,String> result = new HashMap<>();
@@ -271,10 +293,6 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 		// Used for cleanup of BAMs.
 		Map<String, BeadSynthesisErrorData> errorBarcodesWithPositions = new HashMap<>();
 
- 		// for holding UMI Strings efficiently
-		// TODO: evaluate if this is needed this anymore now that the report is written out disk immediately.
-		StringInterner  umiStringCache = new StringInterner();
-
 		// a sorting collection so big data can spill to disk before it's sorted and written out as a report.
 		SortingCollection<BeadSynthesisErrorData> sortingCollection= SortingCollection.newInstance(BeadSynthesisErrorData.class, new BeadSynthesisErrorDataCodec(), new BeadSynthesisErrorData.SizeComparator(), this.MAX_BARCODE_ERRORS_IN_RAM);
 
@@ -290,44 +308,24 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
      	// a log for processing
      	ProgressLogger prog = new ProgressLogger(log, 1000000, "Processed Cell/Gene UMIs");
 
-     	// main data generation loop.
-     	// to ease memory usage, after generating the BeadSynthesisErrorData object, use its cell barcode string for registering additional data.
-        for (final List<UMICollection> umiCollectionList : groupingIterator) {
-            BeadSynthesisErrorData bsed = buildBeadSynthesisErrorData(umiCollectionList, umiStringCache, prog);
-            // if the cell has too few UMIs, then go to the next cell and skip all processing.
-            if (bsed.getNumTranscripts() < this.MIN_UMIS_PER_CELL)
-				// not sure I even want to track this...
-            	// summary.LOW_UMI_COUNT++;
-            	continue;
-
-            // add the result to the summary
-            summary=addDataToSummary(bsed, summary);
-            umisPerCellBarcode.incrementByCount(bsed.getCellBarcode(), bsed.getNumTranscripts()); // track the cell barcode if it's sufficiently large to process.
-
-            // explicitly call getting the error type.
-            BeadSynthesisErrorType errorType=bsed.getErrorType(this.EXTREME_BASE_RATIO, this.detectPrimerTool, this.EDIT_DISTANCE);
-
-            // gather up the UMI bias at the last base.  Note: this can be over-ridden by supplying a last base position.
-            double barcodeUMIBias = bsed.getPolyTFrequencyLastBase();
-            if (lastUMIBase!=null)  {
-            	// bounds check
-            	double freqs [] = bsed.getPolyTFrequency();
-            	if (lastUMIBase>freqs.length)
-            		throw new IllegalArgumentException("Trying to override UMI last base position with ["+ lastUMIBase +"] but UMI length is [" + freqs.length +"]");
-            	barcodeUMIBias=freqs[lastUMIBase-1];
-            }
-
-            umiBias.put(bsed.getCellBarcode(), barcodeUMIBias);
-
-            // finalize object so it uses less memory.
-            bsed.finalize();
-            // only add to the collection if you have UMIs and a repairable error.
-            if (bsed.getUMICount()>=this.MIN_UMIS_PER_CELL && errorType==BeadSynthesisErrorType.SYNTH_MISSING_BASE)
-            	errorBarcodesWithPositions.put(bsed.getCellBarcode(), bsed);
-
-            // add to sorting collection if you have enough UMIs.
-            sortingCollection.add(bsed);
-        }
+     	// main data generation loop.  Cells are tested in batches, possibly on other threads, and the results of each
+     	// batch are gathered here in the order the cells were read.
+     	try (OrderedParallelExecutor<List<CellResult>> executor = new OrderedParallelExecutor<>("testing cell barcodes for synthesis errors",
+     			this.NUM_THREADS, results -> addResults(results, summary, umisPerCellBarcode, umiBias, errorBarcodesWithPositions, sortingCollection))) {
+     		List<List<UMICollection>> batch = new ArrayList<>(CELLS_PER_BATCH);
+     		for (final List<UMICollection> umiCollectionList : groupingIterator) {
+     			for (int i=0; i<umiCollectionList.size(); i++)
+     				prog.record(null, 0);
+     			batch.add(umiCollectionList);
+     			if (batch.size()==CELLS_PER_BATCH) {
+     				submitBatch(executor, batch, lastUMIBase);
+     				batch = new ArrayList<>(CELLS_PER_BATCH);
+     			}
+     		}
+     		if (!batch.isEmpty())
+     			submitBatch(executor, batch, lastUMIBase);
+     		executor.finish();
+     	}
 
         PeekableIterator<BeadSynthesisErrorData> bsedIter = new PeekableIterator<>(sortingCollection.iterator());
 
@@ -344,26 +342,79 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 	}
 
 	/**
-	 * For a single cell barcode, gather up all the reads/UMIs to test for UMI errors.
-	 * @param umiCollectionList A collection of UMIs for a cell.
-	 * @param umiStringCache A cache to save space on UMIs - there are only 4^length possible UMIs, and length is usually 8-9, so UMIs are often repeated.
-	 * @param prog A progress logger.
-	 * @return A BeadSynthesisErrorData object for a single cell barcode across all UMIs.
+	 * The tested data of a cell, and its UMI bias.
 	 */
-	private BeadSynthesisErrorData buildBeadSynthesisErrorData (final List<UMICollection> umiCollectionList, final StringInterner umiStringCache, final ProgressLogger prog) {
-		final String cellBarcode = umiCollectionList.get(0).getCellBarcode();
-		BeadSynthesisErrorData bsed = new BeadSynthesisErrorData(cellBarcode);
-		for (final UMICollection umis : umiCollectionList) {
-			int transcriptCounts = umis.getDigitalExpression(1, 1, false);
-			int readCounts = umis.getDigitalExpression(1, 1, true);
-			Collection<String> umiCol = umis.getMolecularBarcodes();
-			umiCol = getUMIsFromCache(umiCol, umiStringCache);
-			bsed.addUMI(umiCol);
-			bsed.incrementReads(readCounts);
-			bsed.incrementTranscripts(transcriptCounts);
-			prog.record(null, 0);
+	private static class CellResult {
+		private final BeadSynthesisErrorData data;
+		private final double umiBias;
+
+		CellResult (final BeadSynthesisErrorData data, final double umiBias) {
+			this.data=data;
+			this.umiBias=umiBias;
+		}
+	}
+
+	/**
+	 * Test a batch of cells for synthesis errors, on another thread if the executor has more than 1.
+	 */
+	private void submitBatch (final OrderedParallelExecutor<List<CellResult>> executor, final List<List<UMICollection>> batch, final Integer lastUMIBase) {
+		executor.submit(() -> analyzeCells(batch, lastUMIBase));
+	}
+
+	/**
+	 * For each cell barcode, gather up all the UMIs and test for UMI errors.  Cells with too few UMIs are skipped.
+	 * The results are finalized, so the error type and UMI bias are cached, and the UMIs themselves are discarded.
+	 * @param cells The UMIs of each cell, across all genes.
+	 * @param lastUMIBase If not null, the UMI base to measure the UMI bias at.  Otherwise, the last base of the UMI.
+	 */
+	private List<CellResult> analyzeCells (final List<List<UMICollection>> cells, final Integer lastUMIBase) {
+		List<CellResult> result = new ArrayList<>(cells.size());
+		for (List<UMICollection> umiCollectionList: cells) {
+			CellUMIAccumulator accumulator = new CellUMIAccumulator(umiCollectionList.get(0).getCellBarcode());
+			for (UMICollection umis: umiCollectionList)
+				accumulator.add(umis);
+			// if the cell has too few UMIs, then go to the next cell and skip all processing.
+			if (accumulator.getNumTranscripts() < this.MIN_UMIS_PER_CELL)
+				continue;
+			BeadSynthesisErrorData bsed = accumulator.toBeadSynthesisErrorData();
+			// explicitly call getting the error type.
+			bsed.getErrorType(this.EXTREME_BASE_RATIO, this.detectPrimerTool, this.EDIT_DISTANCE);
+			double barcodeUMIBias = getUMIBias(bsed, lastUMIBase);
+			// finalize object so it uses less memory.
+			bsed.finalize();
+			result.add(new CellResult(bsed, barcodeUMIBias));
+		}
+		return result;
+	}
+
+	/**
+	 * Gather up the UMI bias at the last base.  Note: this can be over-ridden by supplying a last base position.
+	 */
+	private double getUMIBias (final BeadSynthesisErrorData bsed, final Integer lastUMIBase) {
+		if (lastUMIBase==null)
+			return bsed.getPolyTFrequencyLastBase();
+		// bounds check
+		double freqs [] = bsed.getPolyTFrequency();
+		if (lastUMIBase>freqs.length)
+			throw new IllegalArgumentException("Trying to override UMI last base position with ["+ lastUMIBase +"] but UMI length is [" + freqs.length +"]");
+		return freqs[lastUMIBase-1];
+	}
+
+	private void addResults (final List<CellResult> cells, BeadSynthesisErrorsSummaryMetric summary, final ObjectCounter<String> umisPerCellBarcode,
+			final Map<String, Double> umiBias, final Map<String, BeadSynthesisErrorData> errorBarcodesWithPositions, final SortingCollection<BeadSynthesisErrorData> sortingCollection) {
+		for (CellResult cell: cells) {
+			BeadSynthesisErrorData bsed = cell.data;
+			// add the result to the summary
+			summary=addDataToSummary(bsed, summary);
+			umisPerCellBarcode.incrementByCount(bsed.getCellBarcode(), bsed.getNumTranscripts()); // track the cell barcode if it's sufficiently large to process.
+			umiBias.put(bsed.getCellBarcode(), cell.umiBias);
+			// only add to the collection if you have UMIs and a repairable error.
+			BeadSynthesisErrorType errorType=bsed.getErrorType(this.EXTREME_BASE_RATIO, this.detectPrimerTool, this.EDIT_DISTANCE);
+			if (bsed.getUMICount()>=this.MIN_UMIS_PER_CELL && errorType==BeadSynthesisErrorType.SYNTH_MISSING_BASE)
+				errorBarcodesWithPositions.put(bsed.getCellBarcode(), bsed);
+			// add to sorting collection if you have enough UMIs.
+			sortingCollection.add(bsed);
 		}
-		return bsed;
 	}
 
 
@@ -397,16 +448,16 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 	 * For each problematic cell, replace cell barcodes positions with N.
 	 * Take the replaced bases and prepend them to the UMI, and trim the last <X> bases off the end of the UMI.
 	 */
-	private void cleanBAM (final Map<String, BeadSynthesisErrorData> errorBarcodesWithPositions, final Map<String, String> intendedSequenceMap) {
+	private void cleanBAM (final Map<String, BarcodeRepair> repairs) {
 		log.info("Cleaning BAM");
-        final SamHeaderAndIterator headerAndIterator = SamFileMergeUtil.mergeInputs(INPUT, true);
+        final SamHeaderAndIterator headerAndIterator = SamFileMergeUtil.mergeInputs(INPUT, true, SamReaderFactory.makeDefault(), IO_THREADS);
 		SamHeaderUtil.addPgRecord(headerAndIterator.header, this);
 
-		SAMFileWriter writer= new SAMFileWriterFactory().setCreateIndex(CREATE_INDEX).makeSAMOrBAMWriter(headerAndIterator.header, true, OUTPUT);
+		SAMFileWriter writer= ParallelSamIO.makeSAMOrBAMWriter(headerAndIterator.header, true, OUTPUT, CREATE_INDEX, IO_THREADS);
 		ProgressLogger pl = new ProgressLogger(log);
 		for (SAMRecord r: new IterableAdapter<>(headerAndIterator.iterator)) {
 			pl.record(r);
-			r=padCellBarcodeFix(r, errorBarcodesWithPositions, intendedSequenceMap, this.CELL_BARCODE_TAG, this.MOLECULAR_BARCODE_TAG, this.EXTREME_BASE_RATIO);
+			r=repairRead(r, repairs, this.CELL_BARCODE_TAG, this.MOLECULAR_BARCODE_TAG);
 			if (r!=null)
 				writer.addAlignment(r);
 		}
@@ -414,42 +465,62 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 		writer.close();
 	}
 
-
 	/**
-	 * @return null if the read should not be included in the output BAM.
+	 * How to repair the reads of a cell barcode with a synthesis error.
 	 */
-	SAMRecord padCellBarcodeFix (final SAMRecord r, final Map<String, BeadSynthesisErrorData> errorBarcodesWithPositions, final Map<String, String> intendedSequenceMap, final String cellBarcodeTag, final String molecularBarcodeTag, final double extremeBaseRatio) {
-		String cellBC=r.getStringAttribute(cellBarcodeTag);
-
-		BeadSynthesisErrorData bsed = errorBarcodesWithPositions.get(cellBC);
-		if (bsed==null) return (r); // no correction data, no fix.
+	static class BarcodeRepair {
+		// the cell barcode reads are moved to.  Null if the reads should be removed.
+		final String cellBarcode;
+		// the position in the UMI where the error occurred, 1 based.
+		final int errorPosition;
+
+		BarcodeRepair (final String cellBarcode, final int errorPosition) {
+			this.cellBarcode=cellBarcode;
+			this.errorPosition=errorPosition;
+		}
+	}
 
+	/**
+	 * Decide how to repair the reads of a cell barcode.
+	 * @param bsed A cell barcode with a synthesis error.
+	 * @param intendedSequenceMap A map from the biased barcodes to the intended sequences, where they could be found.
+	 */
+	BarcodeRepair getBarcodeRepair (final BeadSynthesisErrorData bsed, final Map<String, String> intendedSequenceMap) {
 		// we're only going to fix cells where there's one or more synthesis errors
-		BeadSynthesisErrorType bset = bsed.getErrorType(extremeBaseRatio, this.detectPrimerTool, this.EDIT_DISTANCE);
-		if (bset==BeadSynthesisErrorType.NO_ERROR) return (r); // no error, return.
+		BeadSynthesisErrorType bset = bsed.getErrorType(this.EXTREME_BASE_RATIO, this.detectPrimerTool, this.EDIT_DISTANCE);
+		if (bset==BeadSynthesisErrorType.NO_ERROR) return (null); // no error, no fix.
 		// has an error, not a synthesis error...
 		if (bset!=BeadSynthesisErrorType.SYNTH_MISSING_BASE)
-			return (null);
+			return new BarcodeRepair(null, -1);
 
 		// has a synthesis error
 		int polyTErrorPosition = bsed.getPolyTErrorPosition(this.EXTREME_BASE_RATIO);
 		int umiLength = bsed.getBaseLength();
 		int numErrors= umiLength-polyTErrorPosition+1;
-		// if there are too many errors, or the errors aren't all polyT, return null.
+		// if there are too many errors, or the errors aren't all polyT, remove the reads.
 		if (numErrors > MAX_NUM_ERRORS)
-			return null;
-
-		// apply the fix and return the fixed read.
-		String umi = r.getStringAttribute(molecularBarcodeTag);
-		String cellBCFixed = padCellBarcode(cellBC, polyTErrorPosition, umiLength);
-		String umiFixed = fixUMI(cellBC, umi, polyTErrorPosition);
+			return new BarcodeRepair(null, -1);
 
 		// if there's an intended sequence, use that instead of the default padded cell barcode.
-		String intendedSeq = intendedSequenceMap.get(cellBC);
+		String intendedSeq = intendedSequenceMap.get(bsed.getCellBarcode());
 		if (intendedSeq!=null)
-			cellBCFixed=intendedSeq;
+			return new BarcodeRepair(intendedSeq, polyTErrorPosition);
+		return new BarcodeRepair(padCellBarcode(bsed.getCellBarcode(), polyTErrorPosition, umiLength), polyTErrorPosition);
+	}
+
+	/**
+	 * @return null if the read should not be included in the output BAM.
+	 */
+	SAMRecord repairRead (final SAMRecord r, final Map<String, BarcodeRepair> repairs, final String cellBarcodeTag, final String molecularBarcodeTag) {
+		String cellBC=r.getStringAttribute(cellBarcodeTag);
+		BarcodeRepair repair = repairs.get(cellBC);
+		if (repair==null) return (r); // no correction data, no fix.
+		if (repair.cellBarcode==null) return (null);
 
-		r.setAttribute(cellBarcodeTag, cellBCFixed);
+		// apply the fix and return the fixed read.
+		String umi = r.getStringAttribute(molecularBarcodeTag);
+		String umiFixed = fixUMI(cellBC, umi, repair.errorPosition);
+		r.setAttribute(cellBarcodeTag, repair.cellBarcode);
 		r.setAttribute(molecularBarcodeTag, umiFixed);
 		return r;
 	}
@@ -547,20 +618,6 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 	}
 
 
-	/**
-	 * Gets a reference to the UMI strings from the cache.  Has the side effect of populating the cache with additional
-	 * strings.  This reduces total memory footprint by returning references to repeated strings instead of
-	 * holding new objects for the same UMI over and over.
-	 * @param umis A list of strings to get references to
-	 * @param umiStringCache The cache of strings holding references.
-	 */
-	private Collection<String> getUMIsFromCache (final Collection<String> umis, final StringInterner umiStringCache) {
-		List<String> result = new ArrayList<>(umis.size());
-		for (String umi: umis)
-			result.add(umiStringCache.intern(umi));
-		return (result);
-	}
-
 	/**
 	 * Take the original cell barcode and UMI, and move bases from the end of the cell barcode to the start of the UMI,
 	 * then trim an equal number of bases off the end of the UMI so the length is the same.
@@ -596,7 +653,7 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 		UMIIterator umiIterator = new UMIIterator(SamFileMergeUtil.mergeInputs(INPUT, false, samReaderFactory),
 				GENE_NAME_TAG, GENE_STRAND_TAG, GENE_FUNCTION_TAG,
         		this.STRAND_STRATEGY, this.LOCUS_FUNCTION_LIST, this.CELL_BARCODE_TAG, this.MOLECULAR_BARCODE_TAG,
-        		this.READ_MQ, false, barcodes, true);
+        		this.READ_MQ, false, barcodes, true, true);
 
 				return (umiIterator);
 	}
@@ -26,6 +26,7 @@ package org.broadinstitute.dropseqrna.beadsynthesis;
 import org.broadinstitute.dropseqrna.utils.editdistance.EDUtils;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Some of the cell barcodes can strongly resemble the primer.
@@ -41,32 +42,47 @@ public class DetectPrimerInUMI {
 	// if you always alter the length of the comparison, this will not help, but that's not the imagined use pattern.
 	private Map<Integer, List<String>> primerSubstrings;
 	
+	// the hamming neighborhood of the substrings of each length, keyed by length and edit distance.
+	// empty if the substrings can't be indexed, in which case they are scanned instead.
+	private final Map<Long, Optional<PrimerNeighborhoodIndex>> neighborhoodIndexes = new ConcurrentHashMap<>();
+	
 	public DetectPrimerInUMI(String primer) {
 		this.primer=primer;
-		primerSubstrings = new HashMap<Integer, List<String>>();
+		// cells may be tested for primer sequence on many threads.
+		primerSubstrings = new ConcurrentHashMap<Integer, List<String>>();
 	}
 	
 	public boolean isStringInPrimer (String str, int editDistance) {
+		long key = PrimerNeighborhoodIndex.pack(str);
+		if (!PrimerNeighborhoodIndex.isEmpty(key)) {
+			Optional<PrimerNeighborhoodIndex> index = getNeighborhoodIndex(str.length(), editDistance);
+			if (index.isPresent())
+				return index.get().contains(key);
+		}
 		List<String> primerSubstrings = getSubstrings(str.length());
 		Set<String> matchingPrimerSubstrings = EDUtils.getInstance().getStringsWithinHammingDistance(str, primerSubstrings, editDistance);
 		return !matchingPrimerSubstrings.isEmpty();
 	}
 	
+	private Optional<PrimerNeighborhoodIndex> getNeighborhoodIndex (int length, int editDistance) {
+		return neighborhoodIndexes.computeIfAbsent(((long) length << 32) | (editDistance & 0xFFFFFFFFL),
+				k -> Optional.ofNullable(PrimerNeighborhoodIndex.build(getSubstrings(length), length, editDistance)));
+	}
+	
 	/**
 	 * Get all substrings of the string 
 	 * @param length How long is each substring
 	 * @return A list of substrings
 	 */
 	public List<String> getSubstrings (int length) {
-		if (primerSubstrings.containsKey(length)) return primerSubstrings.get(length);
-		List<String> result = new ArrayList<String>();
-		
-		for (int startPos=0; startPos<(this.primer.length()-length)+1; startPos++) {
-			String r = this.primer.substring(startPos, startPos+length);
-			result.add(r);
-		}
-		this.primerSubstrings.put(length, result);
-		return result;
+		return primerSubstrings.computeIfAbsent(length, l -> {
+			List<String> result = new ArrayList<String>();
+			for (int startPos=0; startPos<(this.primer.length()-l)+1; startPos++) {
+				String r = this.primer.substring(startPos, startPos+l);
+				result.add(r);
+			}
+			return result;
+		});
 	}
 	
 	
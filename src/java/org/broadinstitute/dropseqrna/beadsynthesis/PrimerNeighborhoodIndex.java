@@ -0,0 +1,154 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.beadsynthesis;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Every string within a hamming distance of any of a set of equal length substrings, packed 2 bits per base into a
+ * long and held in an open addressing hash set, so a string can be tested with a single lookup instead of comparing
+ * it to each substring.  The index is immutable once built, so it can be shared across threads.
+ *
+ * Only strings of A, C, G and T of at most MAX_LENGTH bases can be indexed or looked up.
+ */
+class PrimerNeighborhoodIndex {
+
+	/** The longest substring that can be indexed.  Keys of up to 62 bits never collide with the EMPTY slot marker. */
+	static final int MAX_LENGTH=31;
+
+	/** Indexes larger than this aren't built; the substrings are scanned instead. */
+	static final long MAX_SIZE=1L << 22;
+
+	private static final long EMPTY=-1L;
+
+	private final long [] table;
+	private final int mask;
+
+	private PrimerNeighborhoodIndex (final int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(2, expectedSize*2-1)) << 1;
+		this.table=new long [capacity];
+		Arrays.fill(this.table, EMPTY);
+		this.mask=capacity-1;
+	}
+
+	/**
+	 * Index all strings within the hamming distance of the substrings.
+	 * @param substrings Strings of the same length, made of A, C, G and T.
+	 * @return The index, or null if the substrings can't be indexed or the index would be larger than MAX_SIZE.
+	 */
+	static PrimerNeighborhoodIndex build (final List<String> substrings, final int length, final int editDistance) {
+		if (length>MAX_LENGTH || editDistance<0) return null;
+		for (String s: substrings)
+			if (pack(s)==EMPTY) return null;
+		long neighborhood = neighborhoodSize(length, editDistance);
+		if (neighborhood<0 || neighborhood*substrings.size() > MAX_SIZE) return null;
+		PrimerNeighborhoodIndex result = new PrimerNeighborhoodIndex((int) (neighborhood*substrings.size()));
+		for (String s: substrings)
+			result.addNeighborhood(pack(s), length, 0, Math.min(editDistance, length));
+		return result;
+	}
+
+	/**
+	 * @return true if the packed string is within the hamming distance of one of the substrings.
+	 */
+	boolean contains (final long key) {
+		for (int slot = hash(key) & mask; ; slot = (slot+1) & mask) {
+			long v = table[slot];
+			if (v==key) return true;
+			if (v==EMPTY) return false;
+		}
+	}
+
+	/**
+	 * Pack a string 2 bits per base.
+	 * @return the packed string, or EMPTY if the string is too long or contains a base other than A, C, G or T.
+	 */
+	static long pack (final String s) {
+		if (s.length()>MAX_LENGTH) return EMPTY;
+		long result=0;
+		for (int i=0; i<s.length(); i++) {
+			long code;
+			switch (s.charAt(i)) {
+				case 'A': code=0; break;
+				case 'C': code=1; break;
+				case 'G': code=2; break;
+				case 'T': code=3; break;
+				default: return EMPTY;
+			}
+			result|= code << (2*i);
+		}
+		return result;
+	}
+
+	static boolean isEmpty (final long key) {
+		return key==EMPTY;
+	}
+
+	/**
+	 * Add the key, and every key that differs from it by at most <changes> substitutions at positions from <start> on.
+	 */
+	private void addNeighborhood (final long key, final int length, final int start, final int changes) {
+		add(key);
+		if (changes==0) return;
+		for (int i=start; i<length; i++) {
+			long base = (key >>> (2*i)) & 3L;
+			for (long other=0; other<4; other++)
+				if (other!=base)
+					addNeighborhood((key & ~(3L << (2*i))) | (other << (2*i)), length, i+1, changes-1);
+		}
+	}
+
+	private void add (final long key) {
+		for (int slot = hash(key) & mask; ; slot = (slot+1) & mask) {
+			long v = table[slot];
+			if (v==key) return;
+			if (v==EMPTY) {
+				table[slot]=key;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The number of strings within the hamming distance of a string: the sum over k of (length choose k) * 3^k.
+	 * @return the size, or -1 if it's too large to count.
+	 */
+	static long neighborhoodSize (final int length, final int editDistance) {
+		long total=0;
+		long term=1;
+		for (int k=0; k<=Math.min(editDistance, length); k++) {
+			total+=term;
+			if (total>MAX_SIZE) return -1;
+			// (length choose k+1) * 3^(k+1) from (length choose k) * 3^k
+			term = term * (length-k) * 3 / (k+1);
+		}
+		return total;
+	}
+
+	private static int hash (final long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
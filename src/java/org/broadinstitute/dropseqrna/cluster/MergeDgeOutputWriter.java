@@ -24,6 +24,9 @@
 package org.broadinstitute.dropseqrna.cluster;
 
 import htsjdk.samtools.util.RuntimeIOException;
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.BinaryDgeConstants;
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.BinaryDgeWriter;
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeader;
 import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketConstants;
 import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketWriter;
 
@@ -32,41 +35,62 @@ import java.io.IOException;
 import java.util.List;
 
 /**
- * Writer for raw and scaled DGE in Drop-seq Matrix Market format.
+ * Writer for raw and scaled DGE in Drop-seq Matrix Market format, or in binary DGE format.
  */
 class MergeDgeOutputWriter {
 
     private final MatrixMarketWriter rawDgeWriter;
     private final MatrixMarketWriter scaledDgeWriter;
+    private final BinaryDgeWriter rawBinaryDgeWriter;
+    private final BinaryDgeWriter scaledBinaryDgeWriter;
 
     /**
-     * Prepare to write Drop-seq style Matrix Market sparse matrix files
+     * Prepare to write Matrix Market or binary DGE files.
      * At least one of rawDgeFile and scaledDgeFile must be non-null
      * @param rawDgeFile output for raw (integer) output
      * @param scaledDgeFile output for scaled (columns sum to 1) output
+     * @param outputFormat format of both outputs
      * @param numNonZeroElements total non-zero elements that will be written
      * @param genes row names.
      * @param cellBarcodes column names.
+     * @param dgeHeader If non-null and writing binary DGE, stored in the outputs.
+     * @param maxRecordsInRam Only used for binary DGE, which sorts the entries before writing them.
+     * @param tmpDirs Only used for binary DGE, which sorts the entries before writing them.
      */
-    public MergeDgeOutputWriter(final File rawDgeFile, final File scaledDgeFile, final int numNonZeroElements,
-                                final List<String> genes, final List<String> cellBarcodes) {
+    public MergeDgeOutputWriter(final File rawDgeFile, final File scaledDgeFile,
+                                final MergeDgeSparse.OutputFormat outputFormat, final int numNonZeroElements,
+                                final List<String> genes, final List<String> cellBarcodes, final DgeHeader dgeHeader,
+                                final int maxRecordsInRam, final List<File> tmpDirs) {
         if (rawDgeFile == null && scaledDgeFile == null) {
             throw new IllegalArgumentException("Doesn't make sense to construct with both files null");
         }
-        if (rawDgeFile != null) {
+        final boolean binary = outputFormat == MergeDgeSparse.OutputFormat.BINARY;
+        if (rawDgeFile != null && !binary) {
             rawDgeWriter = new MatrixMarketWriter(rawDgeFile, MatrixMarketConstants.ElementType.integer,
                     genes.size(), cellBarcodes.size(), numNonZeroElements, genes, cellBarcodes,
                     MatrixMarketConstants.GENES, MatrixMarketConstants.CELL_BARCODES);
         } else {
             rawDgeWriter = null;
         }
-        if (scaledDgeFile != null) {
+        if (scaledDgeFile != null && !binary) {
             scaledDgeWriter = new MatrixMarketWriter(scaledDgeFile, MatrixMarketConstants.ElementType.real,
                     genes.size(), cellBarcodes.size(), numNonZeroElements, genes, cellBarcodes,
                     MatrixMarketConstants.GENES, MatrixMarketConstants.CELL_BARCODES);
         } else {
             scaledDgeWriter = null;
         }
+        if (rawDgeFile != null && binary) {
+            rawBinaryDgeWriter = new BinaryDgeWriter(rawDgeFile, MatrixMarketConstants.ElementType.integer, genes,
+                    cellBarcodes, dgeHeader, BinaryDgeConstants.DEFAULT_GENE_COLUMN_LABEL, maxRecordsInRam, tmpDirs);
+        } else {
+            rawBinaryDgeWriter = null;
+        }
+        if (scaledDgeFile != null && binary) {
+            scaledBinaryDgeWriter = new BinaryDgeWriter(scaledDgeFile, MatrixMarketConstants.ElementType.real, genes,
+                    cellBarcodes, dgeHeader, BinaryDgeConstants.DEFAULT_GENE_COLUMN_LABEL, maxRecordsInRam, tmpDirs);
+        } else {
+            scaledBinaryDgeWriter = null;
+        }
     }
 
     public void close() {
@@ -77,6 +101,12 @@ class MergeDgeOutputWriter {
             if (scaledDgeWriter != null) {
                 scaledDgeWriter.close();
             }
+            if (rawBinaryDgeWriter != null) {
+                rawBinaryDgeWriter.close();
+            }
+            if (scaledBinaryDgeWriter != null) {
+                scaledBinaryDgeWriter.close();
+            }
         } catch (IOException e) {
             throw new RuntimeIOException(e);
         }
@@ -96,5 +126,11 @@ class MergeDgeOutputWriter {
         if (scaledDgeWriter != null) {
             scaledDgeWriter.writeTriplet(geneIndex, cellIndex, scaled);
         }
+        if (rawBinaryDgeWriter != null) {
+            rawBinaryDgeWriter.writeTriplet(geneIndex, cellIndex, raw);
+        }
+        if (scaledBinaryDgeWriter != null) {
+            scaledBinaryDgeWriter.writeTriplet(geneIndex, cellIndex, scaled);
+        }
     }
 }
@@ -28,6 +28,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -38,6 +39,7 @@ import java.util.regex.Pattern;
 
 import org.broadinstitute.barclay.argparser.Argument;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeader;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeaderCodec;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeaderMerger;
 import org.broadinstitute.dropseqrna.cmdline.CustomCommandLineValidationHelper;
@@ -113,6 +115,17 @@ public class MergeDgeSparse
     @Argument(doc="Controls stringency of DGE header merging.  Only relevant if DGE_HEADER_OUTPUT_FILE is set.")
     public DgeHeaderMerger.Stringency HEADER_STRINGENCY = DgeHeaderMerger.Stringency.STRICT;
 
+    @Argument(doc="Number of threads used to parse each uncompressed Matrix Market input DGE.")
+    public int NUM_THREADS = 1;
+
+    @Argument(doc="Format of RAW_DGE_OUTPUT_FILE and SCALED_DGE_OUTPUT_FILE.  BINARY is a compressed sparse format " +
+            "indexed by both cell and gene, so a single cell or gene can be read without reading the whole file.  " +
+            "It is never gzipped, regardless of file extension.  If DGE_HEADER_OUTPUT_FILE is set, the merged header " +
+            "is stored in BINARY outputs as well.")
+    public OutputFormat OUTPUT_FORMAT = OutputFormat.MATRIX_MARKET;
+
+    public enum OutputFormat {MATRIX_MARKET, BINARY}
+
     private static final Log LOG = Log.getInstance(MergeDgeSparse.class);
 
     // Yaml keys organized hierarchically
@@ -156,20 +169,21 @@ public class MergeDgeSparse
         writeCellSizesFile(dges);
         writeDiscardedCellsFile(dges);
 
-        writeDgeHeader(dataSets);
+        final DgeHeader mergedHeader = writeDgeHeader(dataSets);
 
+        // First pass over the non-zero entries decides which genes are kept.
         final GeneFiltererSorter geneFiltererSorter = new GeneFiltererSorter(MIN_CELLS, dges);
 
-        int totalNumElements = 0;
         final List<String> cellBarcodes = new ArrayList<>();
         for (final SparseDge dge : dges) {
-            totalNumElements += dge.getNumNonZeroEntries();
             for (int i = 0; i < dge.getNumCells(); ++i)
 				cellBarcodes.add(dge.getCellBarcode(i));
         }
 
+        // Second pass streams the entries of the kept genes to the output.
         final MergeDgeOutputWriter writer = new MergeDgeOutputWriter(RAW_DGE_OUTPUT_FILE, SCALED_DGE_OUTPUT_FILE,
-                totalNumElements, geneFiltererSorter.getSortedGeneNames(), cellBarcodes);
+                OUTPUT_FORMAT, geneFiltererSorter.getNumOutputElements(), geneFiltererSorter.getSortedGeneNames(),
+                cellBarcodes, mergedHeader, MAX_RECORDS_IN_RAM, Arrays.asList(getTmpDirs()));
 
         int cellIndexOffset = 0;
         int numFilteredElements = 0;
@@ -187,6 +201,7 @@ public class MergeDgeSparse
                 writer.writeValue(geneIndex, cellIndex, triplet.value, scaled);
             }
             cellIndexOffset += dge.getNumCells();
+            dge.close();
         }
         writer.close();
         LOG.info(numFilteredElements + " filtered by a gene filter.");
@@ -230,6 +245,7 @@ public class MergeDgeSparse
 
     private class GeneFiltererSorter {
         private int numOutputGenes = 0;
+        private int numOutputElements = 0;
         private final int[] geneIdMapping;
         private final List<String> sortedGeneNames;
 
@@ -238,9 +254,10 @@ public class MergeDgeSparse
             geneIdMapping = new int[geneEnumerator.getGenes().size()];
             final Map<String, Integer> geneMap = new TreeMap<>();
             for (int i = 0; i < geneIdMapping.length; ++i)
-				if (cellsPerGene[i] >= minCellsPerGene)
+				if (cellsPerGene[i] >= minCellsPerGene) {
 					geneMap.put(geneEnumerator.getGeneName(i), i);
-				else
+					numOutputElements += cellsPerGene[i];
+				} else
 					geneIdMapping[i] = -1;
             for (final Map.Entry<String, Integer> entry : geneMap.entrySet())
 				geneIdMapping[entry.getValue()] = numOutputGenes++;
@@ -259,6 +276,13 @@ public class MergeDgeSparse
             return numOutputGenes;
         }
 
+        /**
+         * @return The number of non-zero entries of the genes that are kept.
+         */
+        public int getNumOutputElements() {
+            return numOutputElements;
+        }
+
         public int getOutputGeneIndex(final int originalGeneIndex) {
             return geneIdMapping[originalGeneIndex];
         }
@@ -268,7 +292,10 @@ public class MergeDgeSparse
         }
     }
 
-    private void writeDgeHeader(final List<Map> dataSets) {
+    /**
+     * @return the merged header, or null if DGE_HEADER_OUTPUT_FILE is not set.
+     */
+    private DgeHeader writeDgeHeader(final List<Map> dataSets) {
         if (DGE_HEADER_OUTPUT_FILE != null) {
             LOG.info("Writing " + DGE_HEADER_OUTPUT_FILE.getAbsolutePath());
             final List<File> inputDges = new ArrayList<>(dataSets.size());
@@ -277,8 +304,11 @@ public class MergeDgeSparse
                 inputDges.add(new File((String)dataSet.get(YamlKeys.DatasetsKeys.PATH_KEY)));
                 prefixes.add((String)getValueOrDefault(dataSet, YamlKeys.DatasetsKeys.NAME_KEY, ""));
             }
-            new DgeHeaderCodec().encode(DGE_HEADER_OUTPUT_FILE, DgeHeaderMerger.mergeDgeHeaders(inputDges, prefixes, HEADER_STRINGENCY));
+            final DgeHeader mergedHeader = DgeHeaderMerger.mergeDgeHeaders(inputDges, prefixes, HEADER_STRINGENCY);
+            new DgeHeaderCodec().encode(DGE_HEADER_OUTPUT_FILE, mergedHeader);
+            return mergedHeader;
         }
+        return null;
     }
 
     private void writeCellSizesFile(final List<SparseDge> dges) {
@@ -321,7 +351,7 @@ public class MergeDgeSparse
             final Map datasetMap = (Map)dataset;
             final File dgePath = new File((String)getRequiredValue(datasetMap, YamlKeys.DatasetsKeys.PATH_KEY));
             String prefix = (String)getValueOrDefault(datasetMap, YamlKeys.DatasetsKeys.NAME_KEY, "");
-            final SparseDge dge = new SparseDge(dgePath, geneEnumerator);
+            final SparseDge dge = new SparseDge(dgePath, geneEnumerator, getTmpDirs(), NUM_THREADS);
             LOG.info(String.format("Loaded %d cells from %s", dge.getNumCells(), dgePath.getAbsolutePath()));
 
             if (!prefix.isEmpty())
@@ -348,6 +378,12 @@ public class MergeDgeSparse
         return dges;
     }
 
+    private File[] getTmpDirs() {
+        if (TMP_DIR == null || TMP_DIR.isEmpty())
+			return new File[] {IOUtil.getDefaultTmpDir()};
+        return TMP_DIR.toArray(new File[TMP_DIR.size()]);
+    }
+
     private Object getRequiredValue(final Map map, final String key) {
         final Object ret = map.get(key);
         if (ret == null)
@@ -24,33 +24,49 @@
 package org.broadinstitute.dropseqrna.cluster;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.reflect.Array;
 import java.util.*;
 
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.BinaryDgeReader;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeader;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeaderCodec;
+import org.broadinstitute.dropseqrna.matrixmarket.MappedMatrixMarketReader;
 import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketConstants;
 import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketReader;
 
+import htsjdk.samtools.Defaults;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.RuntimeIOException;
 import picard.util.TabbedInputParser;
 
 /**
- * Reads a DGE text file (in tabular or Drop-seq Matrix Market format) and stores it in sparse format.
+ * Reads a DGE file (tabular text, Drop-seq Matrix Market format, or integer binary DGE) and stores it in sparse format.
  * Currently any DGE header is ignored.
  * Cells are sorted in descending order by size.
+ *
+ * Only the per-cell summaries are held in memory.  The non-zero entries are spilled to a temporary file of
+ * primitive ints as the DGE is read, and streamed back from there by {@link #getTriplets()}, so the memory used
+ * doesn't grow with the number of non-zero entries.  Discarding cells only changes the mapping from the cell
+ * columns of the input to cell indices; discarded cells are skipped when the entries are streamed back.
+ * Call {@link #close()} to delete the temporary file.
  */
-public class SparseDge {
+public class SparseDge implements Closeable {
     private static final String GENE = "GENE";
 
-    // If memory becomes an issue (which is likely) consider using FastUtil or Trove
     public static class Triplet {
         final int geneIndex;
-        int cellIndex;
+        final int cellIndex;
         final int value;
 
         Triplet(final int geneIndex, final int cellIndex, final int value) {
@@ -65,32 +81,82 @@ public class SparseDge {
     private int numTranscripts[];
     private int numGenes[];
     private String cellBarcode[];
-    private final Collection<Triplet> triplets;
+    // non-zero entries as (gene index, input cell column, value) ints.
+    private final File tripletFile;
+    private final long numRawTriplets;
+    // for each cell column of the input, its current cell index, or -1 if the cell has been discarded.
+    private int[] rawToCellIndex;
     private final ArrayList<String> discardedCells = new ArrayList<>();
 
     /**
-     * Load a DGE into a sparse in-memory format.
-     * @param input Either tabular DGE text, or Drop-seq Matrix Market sparse format.  May be gzipped.
+     * Load a DGE, spilling its non-zero entries to the default temporary directory.
+     * @param input Tabular DGE text, Drop-seq Matrix Market sparse format, or integer binary DGE.  Text may be gzipped.
      * @param geneEnumerator Genes are assigned indices by this.
      */
     public SparseDge(final File input, final GeneEnumerator geneEnumerator) {
+        this(input, geneEnumerator, new File[] {IOUtil.getDefaultTmpDir()});
+    }
+
+    /**
+     * Load a DGE, spilling its non-zero entries to a temporary file.
+     * @param input Tabular DGE text, Drop-seq Matrix Market sparse format, or integer binary DGE.  Text may be gzipped.
+     * @param geneEnumerator Genes are assigned indices by this.
+     * @param tmpDirs Directories where the non-zero entries can be spilled.
+     */
+    public SparseDge(final File input, final GeneEnumerator geneEnumerator, final File[] tmpDirs) {
+        this(input, geneEnumerator, tmpDirs, 1);
+    }
+
+    /**
+     * Load a DGE, spilling its non-zero entries to a temporary file.
+     * @param input Tabular DGE text, Drop-seq Matrix Market sparse format, or integer binary DGE.  Text may be gzipped.
+     * @param geneEnumerator Genes are assigned indices by this.
+     * @param tmpDirs Directories where the non-zero entries can be spilled.
+     * @param numThreads Number of threads used to parse an uncompressed Matrix Market DGE.
+     */
+    public SparseDge(final File input, final GeneEnumerator geneEnumerator, final File[] tmpDirs, final int numThreads) {
+        this.input = input;
         try {
-            this.input = input;
-            final BufferedInputStream inputStream = new BufferedInputStream(IOUtil.openFileForReading(input));
-            final RawLoadedDge rawLoadedDge;
-            if (MatrixMarketReader.isMatrixMarketInteger(input))
-				rawLoadedDge = loadDropSeqSparseDge(inputStream, input, geneEnumerator);
-			else
-				rawLoadedDge = loadTabularDge(inputStream, input, geneEnumerator);
-            CloserUtil.close(inputStream);
+            tripletFile = IOUtil.newTempFile("SparseDge.", ".triplets", tmpDirs);
+            tripletFile.deleteOnExit();
+        } catch (IOException e) {
+            throw new RuntimeIOException("Could not create temporary file for " + input.getAbsolutePath(), e);
+        }
+        DataOutputStream tripletStream = null;
+        try {
+            tripletStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tripletFile), Defaults.BUFFER_SIZE));
+            final RawLoadedDge rawLoadedDge = new RawLoadedDge(tripletStream);
+            if (BinaryDgeReader.isBinaryDge(input))
+				loadBinaryDge(input, geneEnumerator, rawLoadedDge);
+            else if (MatrixMarketReader.isMatrixMarketInteger(input) && MappedMatrixMarketReader.canMap(input))
+				loadMappedDropSeqSparseDge(input, geneEnumerator, rawLoadedDge, numThreads);
+            else {
+                final BufferedInputStream inputStream = new BufferedInputStream(IOUtil.openFileForReading(input));
+                if (MatrixMarketReader.isMatrixMarketInteger(input))
+					loadDropSeqSparseDge(inputStream, input, geneEnumerator, rawLoadedDge);
+				else
+					loadTabularDge(inputStream, input, geneEnumerator, rawLoadedDge);
+                CloserUtil.close(inputStream);
+            }
+            tripletStream.close();
             header = rawLoadedDge.header;
-            triplets = rawLoadedDge.rawTriplets;
+            numRawTriplets = rawLoadedDge.numTriplets;
             sortAndFilterRawDge(rawLoadedDge);
         } catch (Exception e) {
+            CloserUtil.close(tripletStream);
+            close();
             throw new RuntimeException("Problem reading " + input.getAbsolutePath(), e);
         }
     }
 
+    /**
+     * Delete the temporary file holding the non-zero entries.  The entries can't be read after this.
+     */
+    @Override
+    public void close() {
+        tripletFile.delete();
+    }
+
     private void sortAndFilterRawDge(final RawLoadedDge rawLoadedDge) {
 
         // Sort cells by rawNumTranscripts (descending)
@@ -112,24 +178,32 @@ public class SparseDge {
         }
 
         // Renumber triplet according to new sort order
-        final int[] oldToNewCellIndexMapping = new int[indices.length];
+        rawToCellIndex = new int[indices.length];
         for (int i = 0; i < indices.length; ++i)
-			oldToNewCellIndexMapping[indices[i]] = i;
-
-        for (final Triplet t: triplets)
-			t.cellIndex = oldToNewCellIndexMapping[t.cellIndex];
+			rawToCellIndex[indices[i]] = i;
     }
 
     public int getNumCells() {
         return cellBarcode.length;
     }
 
+    /**
+     * @return The number of non-zero entries of the cells that haven't been discarded.
+     */
     public int getNumNonZeroEntries() {
-        return triplets.size();
+        int ret = 0;
+        for (final int n : numGenes)
+			ret += n;
+        return ret;
     }
 
-    public Collection<Triplet> getTriplets() {
-        return Collections.unmodifiableCollection(triplets);
+    /**
+     * Stream the non-zero entries of the cells that haven't been discarded back from the temporary file, in the
+     * order they were read from the input.  Each iterator reads the file, and closes it once it has been exhausted,
+     * so iterators should be read to the end.
+     */
+    public Iterable<Triplet> getTriplets() {
+        return TripletIterator::new;
     }
 
     public int getNumTranscripts(final int cellIndex) {
@@ -160,7 +234,9 @@ public class SparseDge {
         numGenes = Arrays.copyOfRange(numGenes, 0, numCellsToKeep);
         cellBarcode = Arrays.copyOfRange(cellBarcode, 0, numCellsToKeep);
 
-        triplets.removeIf(t -> t.cellIndex >= numCellsToKeep);
+        for (int i = 0; i < rawToCellIndex.length; ++i)
+			if (rawToCellIndex[i] >= numCellsToKeep)
+				rawToCellIndex[i] = -1;
     }
 
     public void retainOnlyTheseCells(final Set<String> cellBarcodesToRetain) {
@@ -202,14 +278,9 @@ public class SparseDge {
             numTranscripts = removeElements(numTranscripts, cellsToDiscard);
             numGenes = removeElements(numGenes, cellsToDiscard);
             cellBarcode = removeElements(cellBarcode, cellsToDiscard);
-            final Iterator<Triplet> it = triplets.iterator();
-            while (it.hasNext()) {
-                final Triplet t = it.next();
-                if (cellsToDiscard.get(t.cellIndex))
-					it.remove();
-				else
-					t.cellIndex = cellIndexMap[t.cellIndex];
-            }
+            for (int i = 0; i < rawToCellIndex.length; ++i)
+				if (rawToCellIndex[i] != -1)
+					rawToCellIndex[i] = cellIndexMap[rawToCellIndex[i]];
         }
     }
 
@@ -258,15 +329,77 @@ public class SparseDge {
         int[] rawNumTranscripts;
         int[] rawNumGenes;
         String[] rawCellBarcode;
-        private final Collection<Triplet> rawTriplets = new LinkedList<>();
+        private final DataOutputStream tripletStream;
+        private long numTriplets = 0;
         private DgeHeader header;
+
+        RawLoadedDge(final DataOutputStream tripletStream) {
+            this.tripletStream = tripletStream;
+        }
+
+        void addTriplet(final int geneIndex, final int cellIndex, final int value) throws IOException {
+            tripletStream.writeInt(geneIndex);
+            tripletStream.writeInt(cellIndex);
+            tripletStream.writeInt(value);
+            ++numTriplets;
+        }
+    }
+
+    /**
+     * Reads the non-zero entries back from the temporary file, skipping discarded cells.
+     */
+    private class TripletIterator implements Iterator<Triplet> {
+        private DataInputStream tripletStream;
+        private long numTripletsRemaining = numRawTriplets;
+        private Triplet next;
+
+        TripletIterator() {
+            try {
+                tripletStream = new DataInputStream(new BufferedInputStream(new FileInputStream(tripletFile), Defaults.BUFFER_SIZE));
+            } catch (IOException e) {
+                throw new RuntimeIOException("Exception reading " + tripletFile.getAbsolutePath(), e);
+            }
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            try {
+                while (next == null && numTripletsRemaining > 0) {
+                    --numTripletsRemaining;
+                    final int geneIndex = tripletStream.readInt();
+                    final int cellIndex = rawToCellIndex[tripletStream.readInt()];
+                    final int value = tripletStream.readInt();
+                    if (cellIndex != -1)
+						next = new Triplet(geneIndex, cellIndex, value);
+                }
+            } catch (IOException e) {
+                throw new RuntimeIOException("Exception reading " + tripletFile.getAbsolutePath(), e);
+            }
+            if (next == null)
+				CloserUtil.close(tripletStream);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Triplet next() {
+            if (next == null)
+				throw new NoSuchElementException();
+            final Triplet ret = next;
+            advance();
+            return ret;
+        }
     }
 
-    private static RawLoadedDge loadTabularDge(
+    private static void loadTabularDge(
             final BufferedInputStream inputStream,
             final File input,
-            final GeneEnumerator geneEnumerator) {
-        final RawLoadedDge ret = new RawLoadedDge();
+            final GeneEnumerator geneEnumerator,
+            final RawLoadedDge ret) throws IOException {
         ret.header = new DgeHeaderCodec().decode(inputStream, input.getAbsolutePath());
 
         TabbedInputParser parser = new TabbedInputParser(false, inputStream);
@@ -296,19 +429,18 @@ public class SparseDge {
                 final int expression = Integer.parseInt(expressionStr);
                 ret.rawNumTranscripts[j] += expression;
                 ++ret.rawNumGenes[j];
-                ret.rawTriplets.add(new Triplet(geneId, j, expression));
+                ret.addTriplet(geneId, j, expression);
             }
         }
-        return ret;
     }
 
-    private static RawLoadedDge loadDropSeqSparseDge(
+    private static void loadDropSeqSparseDge(
             final BufferedInputStream inputStream,
             final File input,
-            final GeneEnumerator geneEnumerator) {
+            final GeneEnumerator geneEnumerator,
+            final RawLoadedDge ret) throws IOException {
         final MatrixMarketReader mmReader = new MatrixMarketReader(new BufferedReader(new InputStreamReader(inputStream)),
                 input.getAbsolutePath(), MatrixMarketConstants.GENES, MatrixMarketConstants.CELL_BARCODES);
-        final RawLoadedDge ret = new RawLoadedDge();
         ret.rawNumTranscripts = new int[mmReader.getNumCols()];
         ret.rawNumGenes = new int[mmReader.getNumCols()];
         ret.rawCellBarcode = mmReader.getColNames().toArray(new String[mmReader.getColNames().size()]);
@@ -324,9 +456,80 @@ public class SparseDge {
             final int expression = ((MatrixMarketReader.IntElement) element).val;
             ret.rawNumTranscripts[element.col] += expression;
             ++ret.rawNumGenes[element.col];
-            ret.rawTriplets.add(new Triplet(geneId, element.col, expression));
+            ret.addTriplet(geneId, element.col, expression);
+        }
+    }
+
+    /**
+     * Like loadDropSeqSparseDge, but the file is memory-mapped and parsed in chunks on several threads.
+     */
+    private static void loadMappedDropSeqSparseDge(
+            final File input,
+            final GeneEnumerator geneEnumerator,
+            final RawLoadedDge ret,
+            final int numThreads) {
+        final MappedMatrixMarketReader mmReader = new MappedMatrixMarketReader(input, MatrixMarketConstants.GENES,
+                MatrixMarketConstants.CELL_BARCODES, numThreads);
+        ret.rawNumTranscripts = new int[mmReader.getNumCols()];
+        ret.rawNumGenes = new int[mmReader.getNumCols()];
+        ret.rawCellBarcode = mmReader.getColNames().toArray(new String[mmReader.getColNames().size()]);
+        final String[] genes = mmReader.getRowNames().toArray(new String[mmReader.getRowNames().size()]);
+        final int[] geneIndices = new int[genes.length];
+        for (int i = 0; i < genes.length; ++i)
+			geneIndices[i] = geneEnumerator.getGeneIndex(genes[i]);
+        mmReader.readTriplets(triplets -> {
+            try {
+                for (int i = 0; i < triplets.size(); ++i) {
+                    final int geneId = geneIndices[triplets.rows[i]];
+                    if (geneId == -1)
+						// E.g. for an MT gene
+                        continue;
+                    final int cell = triplets.cols[i];
+                    final int expression = triplets.values[i];
+                    ret.rawNumTranscripts[cell] += expression;
+                    ++ret.rawNumGenes[cell];
+                    ret.addTriplet(geneId, cell, expression);
+                }
+            } catch (IOException e) {
+                throw new RuntimeIOException("Exception writing triplets for " + input.getAbsolutePath(), e);
+            }
+        });
+    }
+
+    /**
+     * Reads a binary DGE a cell at a time.
+     */
+    private static void loadBinaryDge(
+            final File input,
+            final GeneEnumerator geneEnumerator,
+            final RawLoadedDge ret) throws IOException {
+        final BinaryDgeReader reader = new BinaryDgeReader(input);
+        try {
+            if (reader.getElementType() != MatrixMarketConstants.ElementType.integer)
+				throw new RuntimeException(input.getAbsolutePath() + " is not an integer DGE");
+            ret.header = reader.getDgeHeader();
+            ret.rawNumTranscripts = new int[reader.getNumCells()];
+            ret.rawNumGenes = new int[reader.getNumCells()];
+            ret.rawCellBarcode = reader.getCellBarcodes().toArray(new String[reader.getNumCells()]);
+            final int[] geneIndices = new int[reader.getNumGenes()];
+            for (int i = 0; i < geneIndices.length; ++i)
+				geneIndices[i] = geneEnumerator.getGeneIndex(reader.getGenes().get(i));
+            for (int cell = 0; cell < reader.getNumCells(); ++cell) {
+                final BinaryDgeReader.SparseVector entries = reader.getCell(cell);
+                for (int i = 0; i < entries.size(); ++i) {
+                    final int geneId = geneIndices[entries.indices[i]];
+                    if (geneId == -1)
+						// E.g. for an MT gene
+                        continue;
+                    final int expression = entries.values[i];
+                    ret.rawNumTranscripts[cell] += expression;
+                    ++ret.rawNumGenes[cell];
+                    ret.addTriplet(geneId, cell, expression);
+                }
+            }
+        } finally {
+            reader.close();
         }
-        return ret;
     }
 
     public Collection<String> getDiscardedCells() {
@@ -0,0 +1,527 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.matrixmarket;
+
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Reads the body of an uncompressed Matrix Market file into primitive arrays, either all at once or a chunk at a time.
+ * The file is memory-mapped and split on line boundaries into chunks that are parsed by a pool of threads,
+ * directly from bytes, without creating an object per element.  The header is read by {@link MatrixMarketReader},
+ * so row and column names and validation are the same.
+ * Use {@link #canMap(File)} to decide between this and {@link MatrixMarketReader}, which also reads gzipped files.
+ */
+public class MappedMatrixMarketReader {
+    private static final Log log = Log.getInstance(MappedMatrixMarketReader.class);
+
+    // Chunks are small enough to balance the threads, and never larger than what one MappedByteBuffer can hold.
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final long MIN_CHUNK_SIZE = 1L << 20;
+    private static final long MAX_CHUNK_SIZE = 1L << 26;
+
+    private final File inputFile;
+    private final int numThreads;
+    private final int numRows;
+    private final int numCols;
+    private final int numElements;
+    private final List<String> rowNames;
+    private final List<String> colNames;
+    private final MatrixMarketConstants.ElementType elementType;
+    private final long bodyStart;
+    // may be lowered by tests to split small files into several chunks.
+    long minChunkSize = MIN_CHUNK_SIZE;
+
+    /**
+     * Non-zero elements as parallel arrays, in file order.  Row and column indices are 0-based.
+     * values is populated for integer files and realValues for real files; the other is null.
+     */
+    public static class Triplets {
+        public final int[] rows;
+        public final int[] cols;
+        public final int[] values;
+        public final double[] realValues;
+
+        Triplets(final int[] rows, final int[] cols, final int[] values, final double[] realValues) {
+            this.rows = rows;
+            this.cols = cols;
+            this.values = values;
+            this.realValues = realValues;
+        }
+
+        public int size() {
+            return rows.length;
+        }
+    }
+
+    /**
+     * @return true if the file can be memory-mapped, i.e. it is a regular file that is not gzipped.
+     */
+    public static boolean canMap(final File file) {
+        if (!file.isFile() || file.getName().endsWith(".gz")) {
+            return false;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            return !(in.read() == 0x1f && in.read() == 0x8b);
+        } catch (IOException e) {
+            throw new RuntimeIOException("Exception reading " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * @param inputFile Uncompressed Matrix Market file.
+     * @param rowNamesLabel Header label for row names.  If null, "ROWS" is expected.
+     * @param colNamesLabel Header label for column names.  If null, "COLS" is expected.
+     * @param numThreads Number of threads that parse the body.
+     */
+    public MappedMatrixMarketReader(final File inputFile, final String rowNamesLabel, final String colNamesLabel, final int numThreads) {
+        if (!canMap(inputFile)) {
+            throw new IllegalArgumentException(inputFile.getAbsolutePath() + " is compressed or not a regular file, and can't be memory-mapped");
+        }
+        this.inputFile = inputFile;
+        this.numThreads = Math.max(1, numThreads);
+        final MatrixMarketReader headerReader = new MatrixMarketReader(inputFile, rowNamesLabel, colNamesLabel);
+        try {
+            numRows = headerReader.getNumRows();
+            numCols = headerReader.getNumCols();
+            numElements = headerReader.getNumElements();
+            rowNames = headerReader.getRowNames();
+            colNames = headerReader.getColNames();
+            elementType = headerReader.getElementType();
+        } finally {
+            CloserUtil.close(headerReader);
+        }
+        bodyStart = findBodyStart();
+    }
+
+    public MappedMatrixMarketReader(final File inputFile, final int numThreads) {
+        this(inputFile, null, null, numThreads);
+    }
+
+    public String getFilename() {
+        return inputFile.getAbsolutePath();
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getNumCols() {
+        return numCols;
+    }
+
+    public int getNumElements() {
+        return numElements;
+    }
+
+    public MatrixMarketConstants.ElementType getElementType() {
+        return elementType;
+    }
+
+    public List<String> getRowNames() {
+        return rowNames;
+    }
+
+    public List<String> getColNames() {
+        return colNames;
+    }
+
+    /**
+     * Parse every element of the body into one set of arrays.
+     * The number of elements must agree with the dimension line of the header.
+     */
+    public Triplets readTriplets() {
+        final boolean isReal = elementType == MatrixMarketConstants.ElementType.real;
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try (FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+            final List<MappedByteBuffer> chunks = mapChunks(channel);
+
+            // First count the lines of each chunk so that each can be parsed directly into its place in the arrays.
+            final List<Future<Integer>> counts = new ArrayList<>(chunks.size());
+            for (final MappedByteBuffer chunk : chunks) {
+                counts.add(executor.submit(() -> countLines(chunk)));
+            }
+            final int[] offsets = new int[chunks.size()];
+            long total = 0;
+            for (int i = 0; i < chunks.size(); ++i) {
+                offsets[i] = (int) Math.min(total, Integer.MAX_VALUE);
+                total += getResult(counts.get(i));
+            }
+            checkNumElements(total);
+
+            final Triplets ret = new Triplets(new int[numElements], new int[numElements],
+                    isReal ? null : new int[numElements], isReal ? new double[numElements] : null);
+            final List<Future<Integer>> parsed = new ArrayList<>(chunks.size());
+            for (int i = 0; i < chunks.size(); ++i) {
+                final MappedByteBuffer chunk = chunks.get(i);
+                final int offset = offsets[i];
+                parsed.add(executor.submit(() -> parseChunk(chunk, ret, offset)));
+            }
+            for (final Future<Integer> f : parsed) {
+                getResult(f);
+            }
+            log.info("Read [" + numElements + "] elements from " + getFilename() + " in [" + chunks.size() + "] chunks");
+            return ret;
+        } catch (IOException e) {
+            throw new RuntimeIOException("Exception reading " + getFilename(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Parse the body a chunk at a time, handing each chunk's elements to the consumer in file order.
+     * Only a few chunks per thread are held in memory, so this can read files whose elements don't fit in memory.
+     * The number of elements must agree with the dimension line of the header.
+     */
+    public void readTriplets(final Consumer<Triplets> consumer) {
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        final int maxInFlight = numThreads * CHUNKS_PER_THREAD;
+        final Deque<Future<Triplets>> pending = new ArrayDeque<>(maxInFlight);
+        try (FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+            long total = 0;
+            for (final MappedByteBuffer chunk : mapChunks(channel)) {
+                pending.add(executor.submit(() -> parseChunk(chunk)));
+                if (pending.size() >= maxInFlight) {
+                    total += consume(consumer, pending.poll());
+                }
+            }
+            while (!pending.isEmpty()) {
+                total += consume(consumer, pending.poll());
+            }
+            checkNumElements(total);
+        } catch (IOException e) {
+            throw new RuntimeIOException("Exception reading " + getFilename(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int consume(final Consumer<Triplets> consumer, final Future<Triplets> future) {
+        final Triplets triplets = getResult(future);
+        consumer.accept(triplets);
+        return triplets.size();
+    }
+
+    private void checkNumElements(final long total) {
+        if (total != numElements) {
+            throw new RuntimeException(String.format("%s has %d elements, but header says %d", getFilename(), total, numElements));
+        }
+    }
+
+    private <T> T getResult(final Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while reading " + getFilename(), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Exception reading " + getFilename(), e.getCause());
+        }
+    }
+
+    /**
+     * Byte offset of the first line after the dimension line.  Like {@link MatrixMarketReader}, the header is the
+     * first line, then comment lines, then the dimension line.
+     */
+    private long findBodyStart() {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(inputFile));
+            long position = skipLine(in, 0);
+            while (true) {
+                final int first = in.read();
+                if (first == -1) {
+                    throw new RuntimeException(getFilename() + " appears to be truncated");
+                }
+                position = skipLine(in, position + 1);
+                if (first != MatrixMarketConstants.MM_COMMENT_LINE_START.charAt(0)) {
+                    return position;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeIOException("Exception reading " + getFilename(), e);
+        } finally {
+            CloserUtil.close(in);
+        }
+    }
+
+    /**
+     * @return position after the next newline, or of the end of the stream.
+     */
+    private static long skipLine(final InputStream in, long position) throws IOException {
+        int b;
+        while ((b = in.read()) != -1) {
+            ++position;
+            if (b == '\n') {
+                break;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Split the body into chunks that each start at the beginning of a line, and map them.
+     */
+    private List<MappedByteBuffer> mapChunks(final FileChannel channel) throws IOException {
+        final long end = channel.size();
+        final long bodyLength = end - bodyStart;
+        // enough chunks to keep every thread busy, unless that would make them tiny, and always enough to keep them under the maximum size.
+        final long minChunks = (bodyLength + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE;
+        final long maxChunks = (bodyLength + minChunkSize - 1) / minChunkSize;
+        final long numChunks = Math.max(1, Math.max(minChunks, Math.min((long) numThreads * CHUNKS_PER_THREAD, maxChunks)));
+        final List<MappedByteBuffer> ret = new ArrayList<>();
+        long chunkStart = bodyStart;
+        for (long i = 1; i <= numChunks && chunkStart < end; ++i) {
+            final long chunkEnd = i == numChunks ? end : findLineStart(channel, bodyStart + bodyLength / numChunks * i, end);
+            if (chunkEnd > chunkStart) {
+                if (chunkEnd - chunkStart > Integer.MAX_VALUE) {
+                    throw new RuntimeException(getFilename() + " has a line that is too long");
+                }
+                ret.add(channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, chunkEnd - chunkStart));
+            }
+            chunkStart = Math.max(chunkStart, chunkEnd);
+        }
+        return ret;
+    }
+
+    /**
+     * @return the first position at or after the given one that starts a line, or end.
+     */
+    private static long findLineStart(final FileChannel channel, long position, final long end) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(8192);
+        // the line starts at position if the byte before it ends a line.
+        --position;
+        while (position < end) {
+            buf.clear();
+            final int n = channel.read(buf, position);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; ++i) {
+                if (buf.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += n;
+        }
+        return end;
+    }
+
+    private static boolean isWhitespace(final byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    /**
+     * @return the number of lines in the chunk that are not blank.
+     */
+    private static int countLines(final MappedByteBuffer chunk) {
+        final int limit = chunk.limit();
+        int count = 0;
+        boolean lineHasContent = false;
+        for (int i = 0; i < limit; ++i) {
+            final byte b = chunk.get(i);
+            if (b == '\n') {
+                lineHasContent = false;
+            } else if (!lineHasContent && !isWhitespace(b)) {
+                lineHasContent = true;
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private Triplets parseChunk(final MappedByteBuffer chunk) {
+        final int numLines = countLines(chunk);
+        final boolean isReal = elementType == MatrixMarketConstants.ElementType.real;
+        final Triplets ret = new Triplets(new int[numLines], new int[numLines],
+                isReal ? null : new int[numLines], isReal ? new double[numLines] : null);
+        parseChunk(chunk, ret, 0);
+        return ret;
+    }
+
+    /**
+     * Parse the lines of a chunk into the arrays of ret, starting at index offset.
+     * @return the number of elements parsed.
+     */
+    private int parseChunk(final MappedByteBuffer chunk, final Triplets ret, final int offset) {
+        final ChunkParser parser = new ChunkParser(chunk);
+        int index = offset;
+        while (parser.skipToContent()) {
+            final int lineStart = parser.pos;
+            final int oneBasedRow = parser.parseInt(lineStart);
+            final int oneBasedCol = parser.parseInt(lineStart);
+            if (oneBasedRow < 1 || oneBasedRow > numRows || oneBasedCol < 1 || oneBasedCol > numCols) {
+                throw new RuntimeException(getFilename() + " has an element line with index out of range: " + parser.lineAt(lineStart));
+            }
+            ret.rows[index] = oneBasedRow - 1;
+            ret.cols[index] = oneBasedCol - 1;
+            if (ret.values != null) {
+                ret.values[index] = parser.parseInt(lineStart);
+            } else {
+                ret.realValues[index] = parser.parseDouble(lineStart);
+            }
+            parser.endLine(lineStart);
+            ++index;
+        }
+        return index - offset;
+    }
+
+    /**
+     * Tokenizes the whitespace separated fields of a chunk, straight from the mapped bytes.
+     */
+    private class ChunkParser {
+        private final MappedByteBuffer chunk;
+        private final int limit;
+        private int pos = 0;
+
+        ChunkParser(final MappedByteBuffer chunk) {
+            this.chunk = chunk;
+            this.limit = chunk.limit();
+        }
+
+        /**
+         * Move to the first non-blank character, skipping blank lines.
+         * @return false if the chunk has no more content.
+         */
+        boolean skipToContent() {
+            while (pos < limit && isWhitespace(chunk.get(pos))) {
+                ++pos;
+            }
+            return pos < limit;
+        }
+
+        /**
+         * Skip spaces and tabs, but not the end of the line.
+         */
+        private void skipFieldSeparator() {
+            while (pos < limit) {
+                final byte b = chunk.get(pos);
+                if (b != ' ' && b != '\t') {
+                    break;
+                }
+                ++pos;
+            }
+        }
+
+        int parseInt(final int lineStart) {
+            skipFieldSeparator();
+            boolean negative = false;
+            if (pos < limit && (chunk.get(pos) == '-' || chunk.get(pos) == '+')) {
+                negative = chunk.get(pos) == '-';
+                ++pos;
+            }
+            final int start = pos;
+            long value = 0;
+            while (pos < limit) {
+                final byte b = chunk.get(pos);
+                if (b < '0' || b > '9') {
+                    break;
+                }
+                value = value * 10 + (b - '0');
+                if (value > Integer.MAX_VALUE) {
+                    throw badLine(lineStart);
+                }
+                ++pos;
+            }
+            if (pos == start || (pos < limit && !isWhitespace(chunk.get(pos)))) {
+                throw badLine(lineStart);
+            }
+            return (int) (negative ? -value : value);
+        }
+
+        double parseDouble(final int lineStart) {
+            skipFieldSeparator();
+            final int start = pos;
+            while (pos < limit && !isWhitespace(chunk.get(pos))) {
+                ++pos;
+            }
+            if (pos == start) {
+                throw badLine(lineStart);
+            }
+            try {
+                return Double.parseDouble(substring(start, pos));
+            } catch (NumberFormatException e) {
+                throw badLine(lineStart);
+            }
+        }
+
+        /**
+         * Only trailing whitespace may follow the last field.
+         */
+        void endLine(final int lineStart) {
+            skipFieldSeparator();
+            if (pos < limit && chunk.get(pos) == '\r') {
+                ++pos;
+            }
+            if (pos < limit && chunk.get(pos) != '\n') {
+                throw badLine(lineStart);
+            }
+        }
+
+        private String substring(final int start, final int end) {
+            final byte[] bytes = new byte[end - start];
+            for (int i = start; i < end; ++i) {
+                bytes[i - start] = chunk.get(i);
+            }
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+
+        String lineAt(final int lineStart) {
+            int end = lineStart;
+            while (end < limit && chunk.get(end) != '\n' && end - lineStart < 200) {
+                ++end;
+            }
+            return substring(lineStart, end);
+        }
+
+        private RuntimeException badLine(final int lineStart) {
+            return new RuntimeException(getFilename() + " has a bad data line: " + lineAt(lineStart));
+        }
+    }
+}
@@ -28,13 +28,17 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.Consumer;
 
 import org.apache.commons.lang.StringUtils;
 import org.broadinstitute.barclay.argparser.Argument;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
 import org.broadinstitute.dropseqrna.utils.ObjectCounter;
+import org.broadinstitute.dropseqrna.utils.OpenHashObjectCounter;
+import org.broadinstitute.dropseqrna.utils.editdistance.PackedBarcodeCounter;
 import org.broadinstitute.dropseqrna.utils.io.ErrorCheckingPrintStream;
+import org.broadinstitute.dropseqrna.utils.io.ShardedBamProcessor;
 
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
@@ -74,6 +78,10 @@ public class BamTagHistogram extends CommandLineProgram {
 	@Argument(shortName="READ_MQ", doc = "Minimum mapping quality to include the read in the analysis. Set to 0 to not filter reads by map quality.")
 	public Integer MINIMUM_MAPPING_QUALITY=10;
 
+	@Argument(doc="Number of threads to use.  When more than 1 and the input is indexed and coordinate sorted, the genome is split into shards "
+			+ "that are counted in parallel.  Otherwise the input is read in a single pass.")
+	public int NUM_THREADS=1;
+
 	@Override
 	protected int doWork() {
 		IOUtil.assertFileIsReadable(INPUT);
@@ -108,7 +116,10 @@ public class BamTagHistogram extends CommandLineProgram {
 	}
 
 	public ObjectCounter<String> getBamTagCounts (final File bamFile, final String tag, final int readQuality, final boolean filterPCRDuplicates) {
-		SamReader inputSam = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.EAGERLY_DECODE).open(bamFile);
+		final SamReaderFactory factory = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.EAGERLY_DECODE);
+		if (NUM_THREADS>1 && ShardedBamProcessor.canShard(bamFile, factory))
+			return getShardedBamTagCounts(bamFile, factory, tag, readQuality, filterPCRDuplicates);
+		SamReader inputSam = factory.open(bamFile);
         try {
             return getBamTagCounts(inputSam.iterator(), tag, readQuality, filterPCRDuplicates);
         } finally {
@@ -117,21 +128,47 @@ public class BamTagHistogram extends CommandLineProgram {
     }
 
     public ObjectCounter<String> getBamTagCounts (final Iterator<SAMRecord> iterator, final String tag, final int readQuality, final boolean filterPCRDuplicates) {
-        ProgressLogger pl = new ProgressLogger(log, 10000000);
+        ObjectCounter<String> counter = new OpenHashObjectCounter<>();
+        countBamTags(iterator, tag, readQuality, filterPCRDuplicates, counter::increment);
+        return (counter);
+    }
+
+    /**
+     * Count each genomic shard of an indexed, coordinate sorted BAM on its own thread, then merge the counts.
+     */
+    private ObjectCounter<String> getShardedBamTagCounts (final File bamFile, final SamReaderFactory factory, final String tag, final int readQuality, final boolean filterPCRDuplicates) {
+        return ShardedBamProcessor.accumulate(bamFile, factory, NUM_THREADS,
+                OpenHashObjectCounter<String>::new,
+                (counter, r) -> countBamTag(r, tag, readQuality, filterPCRDuplicates, counter::increment),
+                ObjectCounter::increment);
+    }
+
+    /**
+     * Count tag values as packed barcodes.  This uses far less memory than an ObjectCounter when the tag holds
+     * DNA barcodes, such as cell barcodes or UMIs.
+     */
+    public PackedBarcodeCounter getPackedBamTagCounts (final Iterator<SAMRecord> iterator, final String tag, final int readQuality, final boolean filterPCRDuplicates) {
+        PackedBarcodeCounter counter = new PackedBarcodeCounter();
+        countBamTags(iterator, tag, readQuality, filterPCRDuplicates, counter::increment);
+        return (counter);
+    }
 
-        ObjectCounter<String> counter = new ObjectCounter<>();
+    private void countBamTags (final Iterator<SAMRecord> iterator, final String tag, final int readQuality, final boolean filterPCRDuplicates, final Consumer<String> counter) {
+        ProgressLogger pl = new ProgressLogger(log, 10000000);
 
         for (final SAMRecord r : new IterableAdapter<>(iterator)) {
             pl.record(r);
-            if (filterPCRDuplicates && r.getDuplicateReadFlag()) continue;
-            if (r.getMappingQuality()<readQuality) continue;
-            if (r.isSecondaryOrSupplementary()) continue;
-            //String s1 = r.getStringAttribute(tag);
-            String s1 = getAnyTagAsString(r, tag);
-            if (s1!=null && s1!="") counter.increment(s1); // if the tag doesn't have a value, don't increment it.
-
+            countBamTag(r, tag, readQuality, filterPCRDuplicates, counter);
         }
-        return (counter);
+    }
+
+    private void countBamTag (final SAMRecord r, final String tag, final int readQuality, final boolean filterPCRDuplicates, final Consumer<String> counter) {
+        if (filterPCRDuplicates && r.getDuplicateReadFlag()) return;
+        if (r.getMappingQuality()<readQuality) return;
+        if (r.isSecondaryOrSupplementary()) return;
+        //String s1 = r.getStringAttribute(tag);
+        String s1 = getAnyTagAsString(r, tag);
+        if (s1!=null && s1!="") counter.accept(s1); // if the tag doesn't have a value, don't increment it.
     }
 
 
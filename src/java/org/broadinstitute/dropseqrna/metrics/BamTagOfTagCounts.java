@@ -35,6 +35,7 @@ import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
 import org.broadinstitute.dropseqrna.utils.CustomBAMIterators;
 import org.broadinstitute.dropseqrna.utils.io.ErrorCheckingPrintStream;
+import org.broadinstitute.dropseqrna.utils.io.ShardedBamProcessor;
 
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
@@ -81,6 +82,11 @@ private static final Log log = Log.getInstance(BamTagOfTagCounts.class);
 	@Argument(doc="If the secondary tag can occur multiple times, break it up with this delimiter.", optional=true)
 	public String SECONDARY_DELIMITER;
 
+	@Argument(doc="Number of threads to use.  When more than 1 and the input is indexed and coordinate sorted, the genome is split into shards "
+			+ "that are processed in parallel, and the reads are not sorted by the primary tag.  Otherwise the input is sorted by the primary tag "
+			+ "and read in a single pass.  Reads without the primary tag are ignored when processing shards.")
+	public int NUM_THREADS=1;
+
 	public static final int MAX_RECORDS_IN_RAM = 500000;
 
 	@Override
@@ -104,8 +110,11 @@ private static final Log log = Log.getInstance(BamTagOfTagCounts.class);
 	}
 
 	public TagOfTagResults<String,String> getResults (final File inputBAM, final String primaryTag, final String secondaryTag, final boolean filterPCRDuplicates, final Integer readQuality) {
+		final SamReaderFactory factory = SamReaderFactory.makeDefault();
+		if (NUM_THREADS>1 && ShardedBamProcessor.canShard(inputBAM, factory))
+			return getShardedResults(inputBAM, factory, primaryTag, secondaryTag, filterPCRDuplicates, readQuality);
 		TagOfTagResults<String,String> result = new TagOfTagResults<>();
-		SamReader reader = SamReaderFactory.makeDefault().open(inputBAM);
+		SamReader reader = factory.open(inputBAM);
 		CloseableIterator<SAMRecord> iter = CustomBAMIterators.getReadsInTagOrder(reader, primaryTag);
 		CloserUtil.close(reader);
 		String currentTag="";
@@ -155,6 +164,35 @@ private static final Log log = Log.getInstance(BamTagOfTagCounts.class);
 		return (result);
 	}
 
+	/**
+	 * Gather each genomic shard of an indexed, coordinate sorted BAM on its own thread, then merge the results.
+	 * As the results are gathered in a map, there's no need to sort the reads by the primary tag.
+	 */
+	private TagOfTagResults<String,String> getShardedResults (final File inputBAM, final SamReaderFactory factory, final String primaryTag, final String secondaryTag, final boolean filterPCRDuplicates, final int readQuality) {
+		return ShardedBamProcessor.accumulate(inputBAM, factory, NUM_THREADS,
+				TagOfTagResults<String,String>::new,
+				(result, r) -> addRead(r, result, primaryTag, secondaryTag, filterPCRDuplicates, readQuality),
+				TagOfTagResults::addAll);
+	}
+
+	private void addRead (final SAMRecord r, final TagOfTagResults<String,String> result, final String primaryTag, final String secondaryTag, final boolean filterPCRDuplicates, final int readQuality) {
+		if ((filterPCRDuplicates && r.getDuplicateReadFlag()) || r.getMappingQuality()<readQuality || r.isSecondaryOrSupplementary()) return;
+		Object d = r.getAttribute(secondaryTag);
+		if (d==null) return;
+		String tag = r.getStringAttribute(primaryTag);
+		if (tag==null || tag.equals("")) return;
+		String data = null;
+		if (d instanceof String)
+			data=(String) d;
+		else if (d instanceof Integer)
+			data=d.toString();
+		if (SECONDARY_DELIMITER!=null)
+			for (String v: data.split(this.SECONDARY_DELIMITER))
+				result.addEntry(tag, v);
+		else
+			result.addEntry(tag, data);
+	}
+
 	private Set<String> addTagToCollection (final String data, final Set<String> collection) {
 		if (SECONDARY_DELIMITER!=null) {
 			String [] d2= data.split(this.SECONDARY_DELIMITER);
@@ -0,0 +1,122 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.Interval;
+
+/**
+ * Finds the intervals overlapping the alignment blocks of reads by sweeping across intervals sorted by start, instead
+ * of querying an overlap detector for each block.  The sweeper keeps a window of active intervals: those that start at
+ * or before the end of a read seen so far and don't end before the start of the current read.  Since coordinate
+ * sorted reads never start before the previous read, intervals that leave the window are never needed again.
+ *
+ * Reads out of coordinate order are still tagged correctly, as the sweep restarts at the beginning of the contig,
+ * but they lose the benefit of the sweep.  A sweeper is not thread-safe; make a copy for each thread.
+ */
+public class IntervalSweeper {
+
+	private final Map<String, Interval []> intervalsByContig;
+
+	private String currentContig = null;
+	private Interval [] contigIntervals = new Interval [0];
+	// the next interval of the contig not yet added to the window.
+	private int next = 0;
+	private int lastStart = 0;
+	private final List<Interval> active = new ArrayList<>();
+
+	public IntervalSweeper (final Collection<Interval> intervals) {
+		Map<String, List<Interval>> lists = new HashMap<>();
+		for (Interval i: intervals)
+			lists.computeIfAbsent(i.getContig(), k -> new ArrayList<>()).add(i);
+		intervalsByContig = new HashMap<>();
+		for (Map.Entry<String, List<Interval>> e: lists.entrySet()) {
+			Interval [] a = e.getValue().toArray(new Interval [0]);
+			Arrays.sort(a, Comparator.comparingInt(Interval::getStart));
+			intervalsByContig.put(e.getKey(), a);
+		}
+	}
+
+	/**
+	 * A new sweeper over the same intervals, starting with an empty window.
+	 */
+	public IntervalSweeper (final IntervalSweeper other) {
+		this.intervalsByContig = other.intervalsByContig;
+	}
+
+	/**
+	 * Add the intervals overlapping any alignment block of the mapped read to the result.
+	 * Intervals are added in order of start, ties in the order they were given, however the sweep got to this read.
+	 */
+	public void getOverlaps (final SAMRecord r, final Collection<Interval> result) {
+		final int readStart = r.getAlignmentStart();
+		final int readEnd = r.getAlignmentEnd();
+		if (!r.getReferenceName().equals(currentContig) || readStart < lastStart)
+			reset(r.getReferenceName());
+		lastStart = readStart;
+
+		// drop intervals that end before this read, and so before every later read, keeping the window in start order.
+		int numKept = 0;
+		for (int i = 0; i < active.size(); i++) {
+			Interval interval = active.get(i);
+			if (interval.getEnd() >= readStart)
+				active.set(numKept++, interval);
+		}
+		while (active.size() > numKept)
+			active.remove(active.size()-1);
+		while (next < contigIntervals.length && contigIntervals[next].getStart() <= readEnd) {
+			Interval interval = contigIntervals[next++];
+			if (interval.getEnd() >= readStart)
+				active.add(interval);
+		}
+
+		final List<AlignmentBlock> blocks = r.getAlignmentBlocks();
+		for (Interval interval: active)
+			for (AlignmentBlock b: blocks) {
+				int blockStart = b.getReferenceStart();
+				int blockEnd = blockStart+b.getLength()-1;
+				if (interval.getStart() <= blockEnd && interval.getEnd() >= blockStart) {
+					result.add(interval);
+					break;
+				}
+			}
+	}
+
+	private void reset (final String contig) {
+		currentContig = contig;
+		Interval [] a = intervalsByContig.get(contig);
+		contigIntervals = a == null ? new Interval [0] : a;
+		next = 0;
+		active.clear();
+	}
+}
@@ -65,6 +65,15 @@ public class TagOfTagResults<KEY,VALUE> {
 		}
 	}
 	
+	/**
+	 * Add all the entries of another result to this one.
+	 */
+	public void addAll(TagOfTagResults<KEY,VALUE> other) {
+		for (Map.Entry<KEY, Set<VALUE>> e: other.result.entrySet()) {
+			addEntries(e.getKey(), e.getValue());
+		}
+	}
+	
 	private VALUE checkCache(VALUE key) {
 		VALUE v = this.valueCache.get(key);
 		if (v!=null) return (v);
@@ -38,14 +38,13 @@ import org.broadinstitute.dropseqrna.annotation.GeneAnnotationReader;
 import org.broadinstitute.dropseqrna.barnyard.Utils;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
 import org.broadinstitute.dropseqrna.utils.SamHeaderUtil;
+import org.broadinstitute.dropseqrna.utils.io.ParallelSamIO;
 
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.metrics.MetricBase;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.CloserUtil;
@@ -97,6 +96,9 @@ public class TagReadWithGeneExonFunction extends CommandLineProgram {
     @Argument(doc="Allow a read to span multiple genes.  If set to true, the gene name will be set to all of the gene/exons the read spans.  In that case, the gene names will be comma separated.")
     public boolean ALLOW_MULTI_GENE_READS=false;
 
+    @Argument(doc="Number of threads used to decompress INPUT and compress the tagged OUTPUT.")
+    public int IO_THREADS=1;
+
     private ReadTaggingMetric metrics = new ReadTaggingMetric();
     static String RECORD_SEP=",";
 
@@ -107,14 +109,14 @@ public class TagReadWithGeneExonFunction extends CommandLineProgram {
         if (this.SUMMARY!=null) IOUtil.assertFileIsWritable(this.SUMMARY);
         IOUtil.assertFileIsWritable(this.OUTPUT);
 
-        SamReader inputSam = SamReaderFactory.makeDefault().open(INPUT);
+        SamReader inputSam = ParallelSamIO.openReader(INPUT, IO_THREADS);
 
         SAMFileHeader header = inputSam.getFileHeader();
         SamHeaderUtil.addPgRecord(header, this);
         SAMSequenceDictionary bamDict = header.getSequenceDictionary();
 
         final OverlapDetector<Gene> geneOverlapDetector = GeneAnnotationReader.loadAnnotationsFile(ANNOTATIONS_FILE, bamDict);
-        SAMFileWriter writer= new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, OUTPUT);
+        SAMFileWriter writer= ParallelSamIO.makeSAMOrBAMWriter(header, true, OUTPUT, IO_THREADS);
 
         for (SAMRecord r: inputSam) {
             pl.record(r);
@@ -34,6 +34,8 @@ import org.broadinstitute.dropseqrna.annotation.GeneAnnotationReader;
 import org.broadinstitute.dropseqrna.barnyard.Utils;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
 import org.broadinstitute.dropseqrna.utils.SamHeaderUtil;
+import org.broadinstitute.dropseqrna.utils.io.OrderedParallelExecutor;
+import org.broadinstitute.dropseqrna.utils.io.ParallelSamIO;
 import picard.annotation.Gene;
 import picard.annotation.LocusFunction;
 import picard.cmdline.CommandLineProgram;
@@ -92,11 +94,20 @@ public class TagReadWithGeneFunction extends CommandLineProgram {
 	@Argument(doc="Use strand info to determine what gene to assign the read to.  If this is on, reads can be assigned to a maximum one one gene.  This is used for the READ_FUNCTION_TAG output only.")
 	public boolean USE_STRAND_INFO=true;
 
+	@Argument(doc="Number of threads to use to annotate reads.  When more than 1, reads are also decompressed and compressed on their own threads.")
+	public int NUM_THREADS=1;
+
+	@Argument(doc="Number of threads used to decompress INPUT and compress the tagged OUTPUT.  When 1, OUTPUT is written asynchronously if NUM_THREADS > 1.")
+	public int IO_THREADS=1;
+
 	// @Option(doc="Allow a read to span the exons of multiple genes.  If set to true, the gene name will be set to all of the gene/exons the read spans.  In that case, the gene names will be comma separated.")
 	private boolean ALLOW_MULTI_GENE_READS=false;
 
 	private ReadTaggingMetric metrics = new ReadTaggingMetric();
 
+	// the number of reads each annotation task works on.
+	private static final int BATCH_SIZE=10000;
+
 	@Override
 	protected int doWork() {
 		IOUtil.assertFileIsReadable(this.INPUT);
@@ -104,23 +115,27 @@ public class TagReadWithGeneFunction extends CommandLineProgram {
 		if (this.SUMMARY!=null) IOUtil.assertFileIsWritable(this.SUMMARY);
 		IOUtil.assertFileIsWritable(this.OUTPUT);
 
-		SamReader inputSam = SamReaderFactory.makeDefault().open(INPUT);
+		SamReader inputSam = ParallelSamIO.openReader(INPUT, SamReaderFactory.makeDefault().setUseAsyncIo(this.NUM_THREADS>1), IO_THREADS);
 
 		SAMFileHeader header = inputSam.getFileHeader();
 		SamHeaderUtil.addPgRecord(header, this);
 		SAMSequenceDictionary bamDict = header.getSequenceDictionary();
 
         final OverlapDetector<Gene> geneOverlapDetector = GeneAnnotationReader.loadAnnotationsFile(ANNOTATIONS_FILE, bamDict);
-        SAMFileWriter writer= new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, OUTPUT);
-
-        for (SAMRecord r: inputSam) {
-        	pl.record(r);
-
-        	if (!r.getReadUnmappedFlag())
-				// r=	setGeneExons(r, geneOverlapDetector, this.ALLOW_MULTI_GENE_READS);
-        		r= setAnnotations(r, geneOverlapDetector, this.ALLOW_MULTI_GENE_READS);
-        	writer.addAlignment(r);
-        }
+        SAMFileWriter writer= this.IO_THREADS>1 ? ParallelSamIO.makeSAMOrBAMWriter(header, true, OUTPUT, IO_THREADS) :
+        	new SAMFileWriterFactory().setUseAsyncIo(this.NUM_THREADS>1).makeSAMOrBAMWriter(header, true, OUTPUT);
+
+        if (this.NUM_THREADS>1)
+			tagReadsParallel(inputSam, writer, geneOverlapDetector);
+		else
+			for (SAMRecord r: inputSam) {
+				pl.record(r);
+
+				if (!r.getReadUnmappedFlag())
+					// r=	setGeneExons(r, geneOverlapDetector, this.ALLOW_MULTI_GENE_READS);
+					r= setAnnotations(r, geneOverlapDetector, this.ALLOW_MULTI_GENE_READS);
+				writer.addAlignment(r);
+			}
 
 		CloserUtil.close(inputSam);
 		writer.close();
@@ -135,6 +150,38 @@ public class TagReadWithGeneFunction extends CommandLineProgram {
 
 	}
 
+	/**
+	 * Annotate batches of reads on a pool of worker threads that share the gene overlap detector.
+	 * Reads are read and written on this thread, and batches are written in the order they were read, so the output
+	 * is identical to the single threaded version.
+	 */
+	private void tagReadsParallel (final Iterable<SAMRecord> reads, final SAMFileWriter writer, final OverlapDetector<Gene> geneOverlapDetector) {
+		try (OrderedParallelExecutor<List<SAMRecord>> executor = new OrderedParallelExecutor<>("annotating reads", this.NUM_THREADS,
+				batch -> batch.forEach(writer::addAlignment))) {
+			List<SAMRecord> batch = new ArrayList<>(BATCH_SIZE);
+			for (SAMRecord r: reads) {
+				pl.record(r);
+				batch.add(r);
+				if (batch.size()==BATCH_SIZE) {
+					submitBatch(executor, batch, geneOverlapDetector);
+					batch = new ArrayList<>(BATCH_SIZE);
+				}
+			}
+			if (!batch.isEmpty())
+				submitBatch(executor, batch, geneOverlapDetector);
+			executor.finish();
+		}
+	}
+
+	private void submitBatch (final OrderedParallelExecutor<List<SAMRecord>> executor, final List<SAMRecord> batch, final OverlapDetector<Gene> geneOverlapDetector) {
+		executor.submit(() -> {
+			for (SAMRecord r: batch)
+				if (!r.getReadUnmappedFlag())
+					setAnnotations(r, geneOverlapDetector, this.ALLOW_MULTI_GENE_READS);
+			return batch;
+		});
+	}
+
 	/*
 	public SAMRecord setGeneExons (final SAMRecord r, final OverlapDetector<Gene> geneOverlapDetector, final boolean allowMultiGeneReads) {
 		Map<Gene, LocusFunction> map = AnnotationUtils.getInstance().getLocusFunctionForReadByGene(r, geneOverlapDetector);
@@ -264,8 +311,6 @@ public class TagReadWithGeneFunction extends CommandLineProgram {
 	 * @return returns the gene the read is consistent with.
 	 */
 	private List<Gene> getGenesConsistentWithReadStrand(final List<Gene> genes, final SAMRecord r) {
-		this.metrics.TOTAL_READS++;
-
 		List<Gene> sameStrand = new ArrayList<Gene>();
 		List<Gene> oppositeStrand = new ArrayList<Gene>();
 
@@ -279,11 +324,21 @@ public class TagReadWithGeneFunction extends CommandLineProgram {
 				oppositeStrand.add(g);
 		}
 
-		if (sameStrand.size()==0 && oppositeStrand.size()>0) {
-			this.metrics.READS_WRONG_STRAND++;
-			return new ArrayList<Gene>();
+		// reads may be annotated on many threads at once.
+		synchronized (this.metrics) {
+			this.metrics.TOTAL_READS++;
+			if (sameStrand.size()==0 && oppositeStrand.size()>0)
+				this.metrics.READS_WRONG_STRAND++;
+			else {
+				if (oppositeStrand.size()>0)
+					this.metrics.READ_AMBIGUOUS_GENE_FIXED++;
+				this.metrics.READS_RIGHT_STRAND++;
+			}
 		}
 
+		if (sameStrand.size()==0 && oppositeStrand.size()>0)
+			return new ArrayList<Gene>();
+
 		/**
 		if (sameStrand.size()>1) {
 			this.metrics.AMBIGUOUS_READS_REJECTED++;
@@ -291,10 +346,6 @@ public class TagReadWithGeneFunction extends CommandLineProgram {
 		}
 		*/
 		// otherwise, the read is unambiguously assigned to a gene on the correct strand - the sameStrandSize must be 1 as it's not 0 and not > 1.
-		if (oppositeStrand.size()>0)
-			this.metrics.READ_AMBIGUOUS_GENE_FIXED++;
-
-		this.metrics.READS_RIGHT_STRAND++;
 		return sameStrand;
 
 	}
@@ -24,10 +24,16 @@
 package org.broadinstitute.dropseqrna.metrics;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang.StringUtils;
@@ -35,11 +41,13 @@ import org.broadinstitute.barclay.argparser.Argument;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
 import org.broadinstitute.dropseqrna.utils.SamHeaderUtil;
+import org.broadinstitute.dropseqrna.utils.io.OrderedParallelExecutor;
+import org.broadinstitute.dropseqrna.utils.io.ParallelSamIO;
+import org.broadinstitute.dropseqrna.utils.io.ShardedBamProcessor;
 
 import htsjdk.samtools.AlignmentBlock;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
@@ -69,34 +77,60 @@ public class TagReadWithInterval extends CommandLineProgram {
 	@Argument(doc = "The tag name to use.  Defaults to ZI.  If a read previously had a tag and now does not, the tag is removed.", optional=true)
 	public String TAG="ZI";
 
+	@Argument(doc="Number of threads used to decompress INPUT and compress OUTPUT.  When an indexed INPUT is split across NUM_THREADS workers, they read it themselves and only OUTPUT uses these threads.")
+	public int IO_THREADS=1;
+
+	@Argument(doc="Number of threads used to read and tag the input.  When more than 1 and the input is indexed and coordinate sorted, "
+			+ "regions of the genome are read and tagged in parallel, and written in their original order.")
+	public int NUM_THREADS=1;
+
+	// with NUM_THREADS, the genome is tagged in regions of this many bases, and tagged reads are passed on to be written
+	// in chunks of this many reads.
+	int SHARD_LENGTH=1000000;
+	int READS_PER_CHUNK=1000;
+	private static final int SHARDS_IN_FLIGHT_PER_THREAD=2;
+
+	// the order of interval names in the tag, however the overlapping intervals were found.
+	private static final Comparator<Interval> TAG_ORDER = Comparator.comparingInt(Interval::getStart).thenComparingInt(Interval::getEnd)
+			.thenComparing(Interval::isNegativeStrand).thenComparing(Interval::getName, Comparator.nullsFirst(Comparator.naturalOrder()));
+
 	@Override
 	protected int doWork() {
 		IOUtil.assertFileIsReadable(INPUT);
 		IOUtil.assertFileIsWritable(OUTPUT);
-		SamReader inputSam = SamReaderFactory.makeDefault().open(INPUT);
+		SamReaderFactory factory = SamReaderFactory.makeDefault();
+		boolean sharded = NUM_THREADS>1 && ShardedBamProcessor.canShard(INPUT, factory);
+		SamReader inputSam = sharded ? factory.open(INPUT) : ParallelSamIO.openReader(INPUT, IO_THREADS);
 		SAMFileHeader header = inputSam.getFileHeader();
+		boolean coordinateSorted = header.getSortOrder()==SAMFileHeader.SortOrder.coordinate;
         header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
 		SamHeaderUtil.addPgRecord(header, this);
 
-		SAMFileWriter writer= new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, OUTPUT);
+		SAMFileWriter writer= ParallelSamIO.makeSAMOrBAMWriter(header, true, OUTPUT, IO_THREADS);
 
 		IntervalList loci = IntervalList.fromFile(this.INTERVALS);
-		OverlapDetector<Interval> od =getOverlapDetector (loci);
 		ProgressLogger processLogger = new ProgressLogger(log);
 
-		for (SAMRecord record: inputSam) {
-			processLogger.record(record);
-
-			if (record.getReadUnmappedFlag()==false)
-				// use alignment blocks instead of start/end to properly deal with split reads mapped over exon/exon boundaries.
-				record=tagRead(record, od);
-			else
-				record.setAttribute(this.TAG, null);
-			writer.addAlignment(record);
-
+		if (sharded) {
+			CloserUtil.close(inputSam);
+			tagShardsParallel(factory, ShardedBamProcessor.makeShards(header.getSequenceDictionary(), SHARD_LENGTH),
+					new IntervalSweeper(loci.getIntervals()), writer, processLogger);
+		} else {
+			// the sweep only pays off when reads are in coordinate order.
+			BiConsumer<SAMRecord, Collection<Interval>> overlaps;
+			if (coordinateSorted)
+				overlaps = new IntervalSweeper(loci.getIntervals())::getOverlaps;
+			else {
+				OverlapDetector<Interval> od = getOverlapDetector(loci);
+				overlaps = (r, result) -> getOverlaps(r, od, result);
+			}
+			Set<Interval> intervals = new TreeSet<>(TAG_ORDER);
+			for (SAMRecord record: inputSam) {
+				processLogger.record(record);
+				writer.addAlignment(tagRead(record, overlaps, intervals));
+			}
+			CloserUtil.close(inputSam);
 		}
-
-		CloserUtil.close(inputSam);
 		writer.close();
 
 		return(0);
@@ -104,21 +138,67 @@ public class TagReadWithInterval extends CommandLineProgram {
 
 	}
 
-	private SAMRecord tagRead(final SAMRecord r, final OverlapDetector<Interval> od) {
-		Set<Interval>intervals = new HashSet<>();
-		List<AlignmentBlock> blocks = r.getAlignmentBlocks();
-		for (AlignmentBlock b: blocks) {
-			int refStart =b.getReferenceStart();
-			int refEnd = refStart+b.getLength()-1;
-			Interval v = new Interval(r.getReferenceName(), refStart, refEnd);
-			Collection<Interval> blockResult = od.getOverlaps(v);
-			intervals.addAll(blockResult);
+	/**
+	 * Read and tag regions of an indexed BAM on a pool of threads, each with its own reader and sweeper.
+	 * Regions are written in order, so the output is identical to the single threaded version.  Each region passes
+	 * its reads on in chunks as they are tagged, and waits while it has too many chunks waiting to be written, so
+	 * the regions in flight hold about MAX_RECORDS_IN_RAM reads at most, however many reads a region has.
+	 */
+	private void tagShardsParallel (final SamReaderFactory factory, final List<ShardedBamProcessor.Shard> shards, final IntervalSweeper sweeper,
+			final SAMFileWriter writer, final ProgressLogger processLogger) {
+		log.info("Tagging " + shards.size() + " regions on " + NUM_THREADS + " threads");
+		BlockingQueue<SamReader> readers = new ArrayBlockingQueue<>(this.NUM_THREADS);
+		int chunksPerShard = Math.max(1, this.MAX_RECORDS_IN_RAM / (this.NUM_THREADS * SHARDS_IN_FLIGHT_PER_THREAD * READS_PER_CHUNK));
+		try (OrderedParallelExecutor<List<SAMRecord>> executor = new OrderedParallelExecutor<>("tagging reads", this.NUM_THREADS,
+				SHARDS_IN_FLIGHT_PER_THREAD, reads -> writeChunk(writer, reads, processLogger))) {
+			for (int i=0; i<this.NUM_THREADS; i++)
+				readers.add(factory.open(INPUT));
+			for (ShardedBamProcessor.Shard shard: shards)
+				executor.submitProducer(output -> tagShard(readers, shard, new IntervalSweeper(sweeper), output), chunksPerShard);
+			executor.finish();
+		} finally {
+			for (SamReader reader: readers)
+				CloserUtil.close(reader);
 		}
-		String tagName = getIntervalName(intervals);
-		if (tagName!=null)
-			r.setAttribute(this.TAG, tagName);
-		else
-			r.setAttribute(this.TAG, null);
+	}
+
+	private void tagShard (final BlockingQueue<SamReader> readers, final ShardedBamProcessor.Shard shard, final IntervalSweeper sweeper,
+			final Consumer<List<SAMRecord>> output) throws InterruptedException {
+		List<SAMRecord> chunk = new ArrayList<>(READS_PER_CHUNK);
+		BiConsumer<SAMRecord, Collection<Interval>> overlaps = sweeper::getOverlaps;
+		Set<Interval> intervals = new TreeSet<>(TAG_ORDER);
+		SamReader reader = readers.take();
+		try {
+			ShardedBamProcessor.forEachRead(reader, shard, r -> {
+				chunk.add(tagRead(r, overlaps, intervals));
+				if (chunk.size()==READS_PER_CHUNK) {
+					output.accept(new ArrayList<>(chunk));
+					chunk.clear();
+				}
+			});
+		} finally {
+			readers.add(reader);
+		}
+		if (!chunk.isEmpty())
+			output.accept(chunk);
+	}
+
+	private void writeChunk (final SAMFileWriter writer, final List<SAMRecord> reads, final ProgressLogger processLogger) {
+		for (SAMRecord r: reads) {
+			processLogger.record(r);
+			writer.addAlignment(r);
+		}
+	}
+
+	private SAMRecord tagRead(final SAMRecord r, final BiConsumer<SAMRecord, Collection<Interval>> overlaps, final Set<Interval> intervals) {
+		String tagName = null;
+		if (!r.getReadUnmappedFlag()) {
+			// use alignment blocks instead of start/end to properly deal with split reads mapped over exon/exon boundaries.
+			intervals.clear();
+			overlaps.accept(r, intervals);
+			tagName = getIntervalName(intervals);
+		}
+		r.setAttribute(this.TAG, tagName);
 		return (r);
 
 	}
@@ -137,6 +217,15 @@ public class TagReadWithInterval extends CommandLineProgram {
 	}
 
 
+	private static void getOverlaps (final SAMRecord r, final OverlapDetector<Interval> od, final Collection<Interval> result) {
+		for (AlignmentBlock b: r.getAlignmentBlocks()) {
+			int refStart =b.getReferenceStart();
+			int refEnd = refStart+b.getLength()-1;
+			Interval v = new Interval(r.getReferenceName(), refStart, refEnd);
+			result.addAll(od.getOverlaps(v));
+		}
+	}
+
 	/**
 	 * Each interval has a corresponding ReadDepthMetric.
 	 * @param loci
@@ -31,6 +31,7 @@ import org.broadinstitute.barclay.argparser.Argument;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
 import org.broadinstitute.dropseqrna.utils.SamHeaderUtil;
+import org.broadinstitute.dropseqrna.utils.io.ParallelSamIO;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.StandardOptionDefinitions;
 import picard.util.ClippingUtility;
@@ -94,6 +95,9 @@ public class PolyATrimmer extends CommandLineProgram {
 	@Argument(doc = "When looking for poly A, allow this fraction of bases not to be A (new trim algo)")
 	public double MAX_POLY_A_ERROR_RATE = 0.1;
 
+	@Argument(doc="Number of threads used to decompress INPUT and compress the trimmed OUTPUT.")
+	public int IO_THREADS=1;
+
 	private Integer readsTrimmed = 0;
 	private int readsCompletelyTrimmed = 0;
 	final private Histogram<Integer> numBasesTrimmed = new Histogram<>();
@@ -103,6 +107,9 @@ public class PolyATrimmer extends CommandLineProgram {
 	int numOldDidntClip = 0;
 	int numNewDidntClip = 0;
 
+	private PolyAFinder simplePolyAFinder = null;
+	private PolyAFinder polyAWithAdapterFinder = null;
+
 	@Override
 	protected int doWork() {
 
@@ -110,50 +117,68 @@ public class PolyATrimmer extends CommandLineProgram {
 		IOUtil.assertFileIsWritable(OUTPUT);
 		final ProgressLogger progress = new ProgressLogger(log);
 
-		final SamReader bamReader = SamReaderFactory.makeDefault().open(INPUT);
+		final SamReader bamReader = ParallelSamIO.openReader(INPUT, IO_THREADS);
 		final SAMFileHeader header = bamReader.getFileHeader();
 		SamHeaderUtil.addPgRecord(header, this);
-		final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, OUTPUT);
-		PolyAFinder simplePolyAFinder = new SimplePolyAFinder(this.NUM_BASES, this.MISMATCHES);
-		PolyAFinder polyAWithAdapterFinder = new PolyAWithAdapterFinder(ADAPTER, MIN_ADAPTER_MATCH,
-				MAX_ADAPTER_ERROR_RATE, MIN_POLY_A_LENGTH, MIN_POLY_A_LENGTH_NO_ADAPTER_MATCH, MAX_POLY_A_ERROR_RATE,
-				DUBIOUS_ADAPTER_MATCH_LENGTH);
+		final SAMFileWriter writer = ParallelSamIO.makeSAMOrBAMWriter(header, true, OUTPUT, IO_THREADS);
+		for (SAMRecord r : bamReader) {
+			trimRecord(r);
+			writer.addAlignment(r);
+			progress.record(r);
+		}
+		CloserUtil.close(bamReader);
+		writer.close();
+		finish();
+
+		return 0;
+	}
+
+	/**
+	 * Finds the poly A run in the read with the configured trimmer and hard clips it, counting the read towards
+	 * the summary.
+	 */
+	void trimRecord(final SAMRecord r) {
+		if (simplePolyAFinder == null) {
+			simplePolyAFinder = new SimplePolyAFinder(this.NUM_BASES, this.MISMATCHES);
+			polyAWithAdapterFinder = new PolyAWithAdapterFinder(ADAPTER, MIN_ADAPTER_MATCH,
+					MAX_ADAPTER_ERROR_RATE, MIN_POLY_A_LENGTH, MIN_POLY_A_LENGTH_NO_ADAPTER_MATCH, MAX_POLY_A_ERROR_RATE,
+					DUBIOUS_ADAPTER_MATCH_LENGTH);
+		}
 		final PolyAFinder polyAFinder;
 		if (USE_NEW_TRIMMER)
 			polyAFinder = polyAWithAdapterFinder;
 		else
 			polyAFinder = simplePolyAFinder;
-		for (SAMRecord r : bamReader) {
-			final SimplePolyAFinder.PolyARun polyARun = polyAFinder.getPolyAStart(r);
-			final int polyAStart = polyARun.startPos;
-
-			if (log.isEnabled(Log.LogLevel.DEBUG)) {
-				final PolyAFinder.PolyARun simple;
-				final PolyAFinder.PolyARun withAdapter;
-				if (USE_NEW_TRIMMER) {
-					withAdapter = polyARun;
-					simple = simplePolyAFinder.getPolyAStart(r);
-				} else {
-					simple = polyARun;
-					withAdapter = polyAWithAdapterFinder.getPolyAStart(r);
-				}
-				logTrimDifference(simple, withAdapter, r);
-			}
 
-			hardClipPolyAFromRecord(r, polyAStart);
-			writer.addAlignment(r);
-			progress.record(r);
+		final SimplePolyAFinder.PolyARun polyARun = polyAFinder.getPolyAStart(r);
+		final int polyAStart = polyARun.startPos;
+
+		if (log.isEnabled(Log.LogLevel.DEBUG)) {
+			final PolyAFinder.PolyARun simple;
+			final PolyAFinder.PolyARun withAdapter;
+			if (USE_NEW_TRIMMER) {
+				withAdapter = polyARun;
+				simple = simplePolyAFinder.getPolyAStart(r);
+			} else {
+				simple = polyARun;
+				withAdapter = polyAWithAdapterFinder.getPolyAStart(r);
+			}
+			logTrimDifference(simple, withAdapter, r);
 		}
-		CloserUtil.close(bamReader);
-		writer.close();
+
+		hardClipPolyAFromRecord(r, polyAStart);
+	}
+
+	/**
+	 * Logs trimming counts and writes OUTPUT_SUMMARY if it is set.
+	 */
+	void finish() {
 		log.info("Number of reads trimmed: ", this.readsTrimmed);
 		log.info("Number of reads completely trimmed: ", this.readsCompletelyTrimmed);
 		log.debug(String.format("differences: %d; old didn't clip: %d; new didn't clip: %d", numDiffs, numOldDidntClip,
 				numNewDidntClip));
 		if (this.OUTPUT_SUMMARY != null)
 			writeSummary(this.numBasesTrimmed);
-
-		return 0;
 	}
 
 	private void logTrimDifference(final PolyAFinder.PolyARun simpleRun, final PolyAFinder.PolyARun withAdapterRun,
@@ -0,0 +1,225 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.readtrimming;
+
+import htsjdk.samtools.*;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.util.*;
+import org.broadinstitute.barclay.argparser.Argument;
+import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
+import org.broadinstitute.dropseqrna.TranscriptomeException;
+import org.broadinstitute.dropseqrna.cmdline.DropSeq;
+import org.broadinstitute.dropseqrna.utils.BaseQualityFilter;
+import org.broadinstitute.dropseqrna.utils.CustomBAMIterators;
+import org.broadinstitute.dropseqrna.utils.SamHeaderUtil;
+import org.broadinstitute.dropseqrna.utils.TagBamWithReadSequenceExtended;
+import org.broadinstitute.dropseqrna.utils.readpairs.ReadPair;
+import org.broadinstitute.dropseqrna.utils.io.ParallelSamIO;
+import picard.cmdline.CommandLineProgram;
+import picard.cmdline.StandardOptionDefinitions;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the pre-alignment steps of the Drop-seq pipeline in a single pass over the unaligned BAM:
+ * TagBamWithReadSequenceExtended for the cell barcode, TagBamWithReadSequenceExtended for the molecular barcode,
+ * FilterBam TAG_REJECT on the barcode quality tag, TrimStartingSequence and PolyATrimmer.
+ * Each step is delegated to the program that implements it, so the reads and summaries are the same as running
+ * the programs one after another, without writing and re-reading a BAM between each step.
+ */
+@CommandLineProgramProperties(summary = "Tags reads with the cell and molecular barcodes, filters reads with low quality barcodes, " +
+		"and trims the starting sequence and poly A tail, in a single pass.  This is equivalent to running " +
+		"TagBamWithReadSequenceExtended (twice), FilterBam, TrimStartingSequence and PolyATrimmer in sequence.",
+        oneLineSummary = "Tags and trims an unaligned BAM in a single pass",
+        programGroup = DropSeq.class)
+public class TagAndTrimUnalignedBam extends CommandLineProgram {
+
+	private final Log log = Log.getInstance(TagAndTrimUnalignedBam.class);
+
+	@Argument(shortName = StandardOptionDefinitions.INPUT_SHORT_NAME, doc = "The input unaligned SAM or BAM file to analyze.")
+	public File INPUT;
+
+	@Argument(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc = "The tagged, filtered and trimmed BAM.")
+	public File OUTPUT;
+
+	@Argument(doc = "The read the barcodes come from [1/2].  The other read is tagged and retained.")
+	public Integer BARCODED_READ=1;
+
+	@Argument(doc = "Base range of the cell barcode.  See TagBamWithReadSequenceExtended BASE_RANGE.")
+	public String CELL_BARCODE_BASE_RANGE="1-12";
+
+	@Argument(doc = "The tag for the cell barcode.")
+	public String CELL_BARCODE_TAG="XC";
+
+	@Argument(doc = "Summary of cell barcode base quality", optional=true)
+	public File CELL_BARCODE_SUMMARY;
+
+	@Argument(doc = "Base range of the molecular barcode.  See TagBamWithReadSequenceExtended BASE_RANGE.")
+	public String MOLECULAR_BARCODE_BASE_RANGE="13-20";
+
+	@Argument(doc = "The tag for the molecular barcode.")
+	public String MOLECULAR_BARCODE_TAG="XM";
+
+	@Argument(doc = "Summary of molecular barcode base quality", optional=true)
+	public File MOLECULAR_BARCODE_SUMMARY;
+
+	@Argument (doc="Minimum base quality required for barcode")
+	public Integer BASE_QUALITY=10;
+
+	@Argument (doc="Number of bases below minimum base quality to fail the barcode.")
+	public Integer NUM_BASES_BELOW_QUALITY=1;
+
+	@Argument (doc="The tag for the barcode quality.  Reads that have this tag after barcode tagging are discarded.")
+	public String TAG_QUALITY="XQ";
+
+	@Argument(doc="The sequence to look for at the start of reads.")
+	public String TRIM_SEQUENCE="AAGCAGTGGTATCAACGCAGAGTGAATGGG";
+
+	@Argument(doc="How many mismatches are acceptable in the starting sequence.")
+	public Integer TRIM_SEQUENCE_MISMATCHES=0;
+
+	@Argument(doc="How many bases at the begining of the starting sequence must match before trimming occurs.")
+	public Integer TRIM_SEQUENCE_NUM_BASES=5;
+
+	@Argument(doc = "The starting sequence trimming summary statistics", optional=true)
+	public File TRIM_SEQUENCE_SUMMARY;
+
+	@Argument(doc = "Use the poly A trimmer that accounts for adapter sequence.  See PolyATrimmer USE_NEW_TRIMMER.")
+	public boolean USE_NEW_POLY_A_TRIMMER=true;
+
+	@Argument(doc = "How many mismatches are acceptable in the poly A run (old trim algo).")
+	public Integer POLY_A_MISMATCHES=0;
+
+	@Argument(doc = "How many bases of polyA qualifies as a run of A's (old trim algo).")
+	public Integer POLY_A_NUM_BASES=6;
+
+	@Argument(doc = "The poly A trimming summary statistics", optional=true)
+	public File POLY_A_SUMMARY;
+
+	@Argument(doc="Number of threads used to decompress the unaligned INPUT and compress the tagged and trimmed OUTPUT.")
+	public int IO_THREADS=1;
+
+	@Override
+	protected int doWork() {
+		IOUtil.assertFileIsReadable(INPUT);
+		IOUtil.assertFileIsWritable(OUTPUT);
+
+		final TagBamWithReadSequenceExtended cellTagger = buildTagger(CELL_BARCODE_BASE_RANGE, CELL_BARCODE_TAG, CELL_BARCODE_SUMMARY, false);
+		final TagBamWithReadSequenceExtended molecularTagger = buildTagger(MOLECULAR_BARCODE_BASE_RANGE, MOLECULAR_BARCODE_TAG, MOLECULAR_BARCODE_SUMMARY, true);
+		final BaseQualityFilter cellFilter = cellTagger.buildFilter();
+		final BaseQualityFilter molecularFilter = molecularTagger.buildFilter();
+
+		final TrimStartingSequence sequenceTrimmer = new TrimStartingSequence();
+		sequenceTrimmer.SEQUENCE=TRIM_SEQUENCE;
+		sequenceTrimmer.MISMATCHES=TRIM_SEQUENCE_MISMATCHES;
+		sequenceTrimmer.NUM_BASES=TRIM_SEQUENCE_NUM_BASES;
+		sequenceTrimmer.OUTPUT_SUMMARY=TRIM_SEQUENCE_SUMMARY;
+
+		final PolyATrimmer polyATrimmer = new PolyATrimmer();
+		polyATrimmer.USE_NEW_TRIMMER=USE_NEW_POLY_A_TRIMMER;
+		polyATrimmer.MISMATCHES=POLY_A_MISMATCHES;
+		polyATrimmer.NUM_BASES=POLY_A_NUM_BASES;
+		polyATrimmer.OUTPUT_SUMMARY=POLY_A_SUMMARY;
+
+		SamReader inputSam = ParallelSamIO.openReader(INPUT, IO_THREADS);
+		SAMFileHeader h= inputSam.getFileHeader();
+		PeekableIterator<SAMRecord> iter = new PeekableIterator<>(CustomBAMIterators.getQuerynameSortedRecords(inputSam));
+		SamHeaderUtil.addPgRecord(h, this);
+		boolean assumeSorted = h.getSortOrder().equals(SortOrder.queryname);
+		final SAMFileWriter writer= ParallelSamIO.makeSAMOrBAMWriter(h, assumeSorted, OUTPUT, IO_THREADS);
+
+		ProgressLogger progress = new ProgressLogger(this.log);
+		// records tagged with the cell barcode, waiting for the molecular barcode.
+		final List<SAMRecord> cellTagged = new ArrayList<>(2);
+		// records tagged with both barcodes, waiting for filtering and trimming.
+		final List<SAMRecord> tagged = new ArrayList<>(2);
+
+		while (iter.hasNext()) {
+			SAMRecord r1 = iter.next();
+			SAMRecord r2 = iter.peek();
+			if (r2!=null && r1.getReadName().equals(r2.getReadName())) {
+				iter.next();
+				cellTagger.processReadPair(getReadPair(r1, r2), cellFilter, cellTagged::add);
+				progress.record(r1);
+				progress.record(r2);
+			} else {
+				cellTagger.processSingleRead(r1, cellFilter, cellTagged::add);
+				progress.record(r1);
+			}
+
+			// the cell barcode tagger retains both reads of a pair, so the output is tagged the same way it would be
+			// if it were read back in.
+			if (cellTagged.size()==2)
+				molecularTagger.processReadPair(getReadPair(cellTagged.get(0), cellTagged.get(1)), molecularFilter, tagged::add);
+			else
+				for (SAMRecord r: cellTagged)
+					molecularTagger.processSingleRead(r, molecularFilter, tagged::add);
+			cellTagged.clear();
+
+			for (SAMRecord r: tagged) {
+				if (r.getAttribute(TAG_QUALITY)!=null) continue;
+				SAMRecord trimmed = sequenceTrimmer.trimRecord(r);
+				polyATrimmer.trimRecord(trimmed);
+				writer.addAlignment(trimmed);
+			}
+			tagged.clear();
+		}
+		writer.close();
+		CloserUtil.close(inputSam);
+		CloserUtil.close(iter);
+
+		cellTagger.writeSummary(cellFilter);
+		molecularTagger.writeSummary(molecularFilter);
+		sequenceTrimmer.finish();
+		polyATrimmer.finish();
+		return 0;
+	}
+
+	private TagBamWithReadSequenceExtended buildTagger (final String baseRange, final String tag, final File summary, final boolean discardRead) {
+		TagBamWithReadSequenceExtended result = new TagBamWithReadSequenceExtended();
+		result.BASE_RANGE=baseRange;
+		result.BARCODED_READ=BARCODED_READ;
+		result.DISCARD_READ=discardRead;
+		result.BASE_QUALITY=BASE_QUALITY;
+		result.NUM_BASES_BELOW_QUALITY=NUM_BASES_BELOW_QUALITY;
+		result.TAG_NAME=tag;
+		result.TAG_QUALITY=TAG_QUALITY;
+		result.SUMMARY=summary;
+		return result;
+	}
+
+	private ReadPair getReadPair (final SAMRecord r1, final SAMRecord r2) {
+		ReadPair p = new ReadPair(r1, r2);
+		if (!p.testProperlyPaired())
+			throw new TranscriptomeException("Reads not properly paired! R1: " + r1.getReadName() + " R2: " + r2.getReadName());
+		return p;
+	}
+
+	/** Stock main method. */
+	public static void main(final String[] args) {
+		System.exit(new TagAndTrimUnalignedBam().instanceMain(args));
+	}
+}
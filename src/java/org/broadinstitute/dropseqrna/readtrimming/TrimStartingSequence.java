@@ -31,6 +31,7 @@ import org.broadinstitute.barclay.argparser.Argument;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
 import org.broadinstitute.dropseqrna.utils.SamHeaderUtil;
+import org.broadinstitute.dropseqrna.utils.io.ParallelSamIO;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.StandardOptionDefinitions;
 
@@ -64,9 +65,13 @@ public class TrimStartingSequence extends CommandLineProgram {
 	@Argument (doc="The tag to set for trimmed reads.  This tags the first base to keep in the read.  6 would mean to trim the first 5 bases.")
 	public String TRIM_TAG="ZS";
 
+	@Argument(doc="Number of threads used to decompress INPUT and compress the trimmed OUTPUT.")
+	public int IO_THREADS=1;
+
 	private Integer readsTrimmed=0;
 	private int numReadsTotal=0;
 	private Histogram<Integer> numBasesTrimmed= new Histogram<Integer>();
+	private TrimSequenceTemplate template=null;
 
 	@Override
 	protected int doWork() {
@@ -75,29 +80,42 @@ public class TrimStartingSequence extends CommandLineProgram {
 		IOUtil.assertFileIsWritable(OUTPUT);
 		final ProgressLogger progress = new ProgressLogger(log);
 
-		SamReader bamReader = SamReaderFactory.makeDefault().open(this.INPUT);
+		SamReader bamReader = ParallelSamIO.openReader(this.INPUT, IO_THREADS);
 		SAMFileHeader header = bamReader.getFileHeader();
 		SamHeaderUtil.addPgRecord(header, this);
-        SAMFileWriter writer= new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, OUTPUT);
-
-        TrimSequenceTemplate t = new TrimSequenceTemplate(this.SEQUENCE);
+        SAMFileWriter writer= ParallelSamIO.makeSAMOrBAMWriter(header, true, OUTPUT, IO_THREADS);
 
         for (SAMRecord r: bamReader) {
-        	SAMRecord rr =  hardClipBarcodeFromRecord(r, t, this.NUM_BASES, this.MISMATCHES);
+        	SAMRecord rr = trimRecord(r);
         	writer.addAlignment(rr);
         	progress.record(r);
-        	this.numReadsTotal++;
         }
 
         CloserUtil.close(bamReader);
 
         writer.close();
-        log.info("Number of reads trimmed: " + this.readsTrimmed, " total reads: " + this.numReadsTotal);
-        if (this.OUTPUT_SUMMARY!=null) writeSummary(this.numBasesTrimmed);
+        finish();
 
 		return 0;
 	}
 
+	/**
+	 * Trims SEQUENCE from the start of the read and counts the read towards the summary.
+	 */
+	SAMRecord trimRecord (final SAMRecord r) {
+		if (this.template==null) this.template = new TrimSequenceTemplate(this.SEQUENCE);
+		this.numReadsTotal++;
+		return hardClipBarcodeFromRecord(r, this.template, this.NUM_BASES, this.MISMATCHES);
+	}
+
+	/**
+	 * Logs the number of reads trimmed and writes OUTPUT_SUMMARY if it is set.
+	 */
+	void finish () {
+		log.info("Number of reads trimmed: " + this.readsTrimmed, " total reads: " + this.numReadsTotal);
+		if (this.OUTPUT_SUMMARY!=null) writeSummary(this.numBasesTrimmed);
+	}
+
 	private void writeSummary (final Histogram<Integer> h) {
 
 		MetricsFile<TrimMetric, Integer> mf = new MetricsFile<TrimMetric, Integer>();
@@ -70,6 +70,13 @@ public class BaseDistributionMetricCollection implements Serializable {
 		}
 	}
 
+	/**
+	 * Replace the base counts at a position.
+	 */
+	public void setDistributionAtPosition (final int position, final BaseDistributionMetric metric) {
+		this.collection.put(position, metric);
+	}
+
 	public BaseDistributionMetric getDistributionAtPosition (final int position) {
 		return this.collection.get(position);
 	}
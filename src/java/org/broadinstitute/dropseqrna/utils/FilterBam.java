@@ -35,17 +35,16 @@ import java.util.regex.Pattern;
 import org.broadinstitute.barclay.argparser.Argument;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
+import org.broadinstitute.dropseqrna.utils.io.ParallelSamIO;
 
 import htsjdk.samtools.Cigar;
 import htsjdk.samtools.CigarElement;
 import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
@@ -119,6 +118,9 @@ public class FilterBam extends CommandLineProgram{
             "to have an unmapped mate.")
     public boolean DROP_REJECTED_REF = false;
 
+    @Argument(doc="Number of threads used to decompress INPUT and compress the filtered OUTPUT.")
+    public int IO_THREADS=1;
+
 	//@Argument (doc="File with one or more TAG:Value combinations, for example ZC:Z:AAACCCTTGGG.  Any read with any of the tags in the file will be retained.")
 
 	private static final String UNION="UNION";
@@ -136,11 +138,11 @@ public class FilterBam extends CommandLineProgram{
 		IOUtil.assertFileIsWritable(OUTPUT);
 		buildPatterns();
 
-		SamReader in = SamReaderFactory.makeDefault().open(INPUT);
+		SamReader in = ParallelSamIO.openReader(INPUT, IO_THREADS);
 
 		SAMFileHeader fileHeader = editSequenceDictionary(in.getFileHeader().clone());
 		SamHeaderUtil.addPgRecord(fileHeader, this);
-		SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(fileHeader, true, OUTPUT);
+		SAMFileWriter out = ParallelSamIO.makeSAMOrBAMWriter(fileHeader, true, OUTPUT, IO_THREADS);
 		ProgressLogger progLog=new ProgressLogger(log);
 
 		final boolean sequencesRemoved = fileHeader.getSequenceDictionary().getSequences().size() != in.getFileHeader().getSequenceDictionary().getSequences().size();
@@ -32,9 +32,9 @@ import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
 import org.broadinstitute.dropseqrna.utils.modularfileparser.DelimiterParser;
 import org.broadinstitute.dropseqrna.utils.modularfileparser.ModularFileParser;
+import org.broadinstitute.dropseqrna.utils.io.ParallelSamIO;
 
 import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
@@ -73,6 +73,9 @@ public class FilterBamByTag extends CommandLineProgram {
 			+ "of the need to queryname sort the data, so only turn it on if you need it!")
 	public Boolean PAIRED_MODE=false;
 
+	@Argument(doc="Number of threads used to decompress INPUT and compress the reads that pass the tag filter.")
+	public int IO_THREADS=1;
+
 	@Override
 	protected int doWork() {
 		if (TAG_VALUES_FILE == null && TAG == null) {
@@ -93,9 +96,9 @@ public class FilterBamByTag extends CommandLineProgram {
 				values.add(this.TAG_VALUE);
 		}
 
-		SamReader in = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.EAGERLY_DECODE).open(INPUT);
-		SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(
-				in.getFileHeader(), true, OUTPUT);
+		SamReader in = ParallelSamIO.openReader(INPUT, SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.EAGERLY_DECODE), IO_THREADS);
+		SAMFileWriter out = ParallelSamIO.makeSAMOrBAMWriter(
+				in.getFileHeader(), true, OUTPUT, IO_THREADS);
 
 		if (!this.PAIRED_MODE)
 			processUnpairedMode(in, out, values);
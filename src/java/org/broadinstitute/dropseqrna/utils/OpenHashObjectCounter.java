@@ -0,0 +1,458 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An ObjectCounter that stores counts in an int array instead of a map of boxed Integers.
+ * Keys are kept in insertion order in parallel arrays, and found through an open addressing hash table of entry
+ * indexes, so incrementing an existing key doesn't allocate anything.  The total count is kept up to date as counts
+ * change, and keys are ordered by count by sorting entry indexes instead of building a reverse mapping.
+ *
+ * Iteration is in the order keys were first counted, which differs from the hash order of ObjectCounter.  Use this
+ * where that order doesn't end up in an output, or where keys are ordered by count before they are written.
+ *
+ * All of the methods of ObjectCounter are overridden, so the (empty) map in the base class is never used.
+ * @param <T> The type of object to count.  Object needs to have equals and hashCode methods implemented!
+ */
+public class OpenHashObjectCounter<T extends Comparable<T>> extends ObjectCounter<T> {
+
+	private static final int DEFAULT_CAPACITY=4;
+	// stands in for a null key, so a null entry in the keys array can mark a removed entry.
+	private static final Object NULL_KEY = new Object();
+
+	private Object [] keys;
+	private int [] hashes;
+	private int [] counts;
+	// number of entries, including removed entries.
+	private int numEntries;
+	// number of entries that have not been removed.
+	private int size;
+	private int totalCount;
+	// hash table of entry index+1, 0 marks an empty slot.  Slots of removed entries are left in place so probing
+	// continues past them, and are cleared when the table is rebuilt.
+	private int [] table;
+
+	public OpenHashObjectCounter () {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public OpenHashObjectCounter (final int expectedSize) {
+		init(Math.max(expectedSize, DEFAULT_CAPACITY));
+	}
+
+	/**
+	 * Make a shallow copy of the input object counter.
+	 */
+	public OpenHashObjectCounter (final ObjectCounter<T> counter) {
+		this(counter.getSize());
+		for (T key: counter.getKeys())
+			setCount(key, counter.getCountForKey(key));
+	}
+
+	private void init (final int capacity) {
+		this.keys=new Object [capacity];
+		this.hashes=new int [capacity];
+		this.counts=new int [capacity];
+		this.numEntries=0;
+		this.size=0;
+		this.totalCount=0;
+		this.table=new int [tableSizeFor(capacity)];
+	}
+
+	private static int tableSizeFor (final int numEntries) {
+		int n=DEFAULT_CAPACITY;
+		// keep the table at most half full.
+		while (n < numEntries*2) n<<=1;
+		return n;
+	}
+
+	private static Object mask (final Object key) {
+		return (key==null) ? NULL_KEY : key;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T unmask (final int entry) {
+		Object key = this.keys[entry];
+		return (key==NULL_KEY) ? null : (T) key;
+	}
+
+	private static int hash (final Object key) {
+		// spread the bits, as linear probing is sensitive to clustered hash codes.
+		int h = key.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return The slot holding the key, or the empty slot where it would be inserted.
+	 */
+	private int findSlot (final Object key, final int hash) {
+		int mask = this.table.length-1;
+		int slot = hash & mask;
+		while (this.table[slot]!=0) {
+			int e = this.table[slot]-1;
+			if (this.hashes[e]==hash && this.keys[e]!=null && this.keys[e].equals(key))
+				return slot;
+			slot=(slot+1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * @return The entry index of the key, or -1 if it isn't counted.
+	 */
+	private int findEntry (final T object) {
+		Object key = mask(object);
+		int slot = findSlot(key, hash(key));
+		return this.table[slot]-1;
+	}
+
+	private void addEntry (final Object key, final int hash, final int count) {
+		if (this.numEntries==this.keys.length) {
+			// reclaim removed entries before growing.
+			if (this.numEntries-this.size > this.size) compact();
+			else {
+				int capacity = this.numEntries*2;
+				this.keys=Arrays.copyOf(this.keys, capacity);
+				this.hashes=Arrays.copyOf(this.hashes, capacity);
+				this.counts=Arrays.copyOf(this.counts, capacity);
+			}
+		}
+		int e = this.numEntries++;
+		this.keys[e]=key;
+		this.hashes[e]=hash;
+		this.counts[e]=count;
+		this.size++;
+		this.totalCount+=count;
+		if (this.numEntries*2 > this.table.length) rebuildTable();
+		else this.table[findSlot(key, hash)]=e+1;
+	}
+
+	private void removeEntry (final int e) {
+		this.totalCount-=this.counts[e];
+		this.keys[e]=null;
+		this.counts[e]=0;
+		this.size--;
+	}
+
+	/**
+	 * Drop removed entries, keeping the remaining entries in order.
+	 */
+	private void compact () {
+		int kept=0;
+		for (int e=0; e<this.numEntries; e++)
+			if (this.keys[e]!=null) {
+				this.keys[kept]=this.keys[e];
+				this.hashes[kept]=this.hashes[e];
+				this.counts[kept]=this.counts[e];
+				kept++;
+			}
+		Arrays.fill(this.keys, kept, this.numEntries, null);
+		this.numEntries=kept;
+		rebuildTable();
+	}
+
+	private void rebuildTable () {
+		this.table=new int [tableSizeFor(this.numEntries)];
+		int mask = this.table.length-1;
+		for (int e=0; e<this.numEntries; e++) {
+			if (this.keys[e]==null) continue;
+			int slot = this.hashes[e] & mask;
+			while (this.table[slot]!=0)
+				slot=(slot+1) & mask;
+			this.table[slot]=e+1;
+		}
+	}
+
+	@Override
+	public boolean hasKey (final T object) {
+		return findEntry(object)>=0;
+	}
+
+	@Override
+	public void increment (final ObjectCounter<T> object) {
+		for (T key : object.getKeys())
+			incrementByCount(key, object.getCountForKey(key));
+	}
+
+	@Override
+	public void clear() {
+		init(DEFAULT_CAPACITY);
+	}
+
+	@Override
+	public void incrementByCount (final T object, final int count) {
+		Object key = mask(object);
+		int hash = hash(key);
+		int slot = findSlot(key, hash);
+		if (this.table[slot]==0)
+			addEntry(key, hash, count);
+		else {
+			this.counts[this.table[slot]-1]+=count;
+			this.totalCount+=count;
+		}
+	}
+
+	@Override
+	public void setCount(final T object, final int count) {
+		Object key = mask(object);
+		int hash = hash(key);
+		int slot = findSlot(key, hash);
+		if (this.table[slot]==0)
+			addEntry(key, hash, count);
+		else {
+			int e = this.table[slot]-1;
+			this.totalCount+=count-this.counts[e];
+			this.counts[e]=count;
+		}
+	}
+
+	@Override
+	public void remove (final T object) {
+		int e = findEntry(object);
+		if (e<0) return;
+		removeEntry(e);
+		if (this.numEntries-this.size > Math.max(this.size, DEFAULT_CAPACITY)) compact();
+	}
+
+	/**
+	 * @return A view of the keys, in the order they were first counted.
+	 */
+	@Override
+	public Collection<T> getKeys () {
+		return new KeySet();
+	}
+
+	@Override
+	public int getSize () {
+		return this.size;
+	}
+
+	@Override
+	public int getCountForKey (final T key) {
+		int e = findEntry(key);
+		return (e<0) ? 0 : this.counts[e];
+	}
+
+	/**
+	 * @return A copy of the counts, in the same order as the keys.
+	 */
+	@Override
+	public Collection<Integer> getCounts() {
+		List<Integer> result = new ArrayList<>(this.size);
+		for (int e=0; e<this.numEntries; e++)
+			if (this.keys[e]!=null) result.add(this.counts[e]);
+		return result;
+	}
+
+	@Override
+	public int getTotalCount() {
+		return this.totalCount;
+	}
+
+	@Override
+	public int getNumberOfSize(final int size) {
+		int result = 0;
+		for (int e=0; e<this.numEntries; e++)
+			if (this.keys[e]!=null && this.counts[e]==size) result++;
+		return result;
+	}
+
+	@Override
+	public T getMode () {
+		int max=-1;
+		int maxCount=0;
+		for (int e=0; e<this.numEntries; e++)
+			if (this.keys[e]!=null && this.counts[e]>maxCount) {
+				max=e;
+				maxCount=this.counts[e];
+			}
+		return (max<0) ? null : unmask(max);
+	}
+
+	@Override
+	public T getMin() {
+		int min=-1;
+		int minCount=Integer.MAX_VALUE;
+		for (int e=0; e<this.numEntries; e++)
+			if (this.keys[e]!=null && this.counts[e]<minCount) {
+				min=e;
+				minCount=this.counts[e];
+			}
+		return (min<0) ? null : unmask(min);
+	}
+
+	/**
+	 * Keys ordered by count, and then by their natural order within a count, the same as
+	 * {@link ObjectCounter#getKeysOrderedByCount(boolean)}.
+	 */
+	@Override
+	public List<T> getKeysOrderedByCount (final boolean decreasing) {
+		Integer [] order = new Integer [this.size];
+		int i=0;
+		for (int e=0; e<this.numEntries; e++)
+			if (this.keys[e]!=null) order[i++]=e;
+		Comparator<Integer> byCount = Comparator.comparingInt(x -> this.counts[x]);
+		if (decreasing) byCount=byCount.reversed();
+		Arrays.sort(order, byCount.thenComparing(this::unmask));
+		List<T> result = new ArrayList<>(this.size);
+		for (Integer e: order)
+			result.add(unmask(e));
+		return result;
+	}
+
+	@Override
+	public Map<Integer, List<T>> getReverseMapping () {
+		Map<Integer, List<T>> result = new HashMap<>();
+		for (int e=0; e<this.numEntries; e++)
+			if (this.keys[e]!=null)
+				result.computeIfAbsent(this.counts[e], k -> new ArrayList<>()).add(unmask(e));
+		return result;
+	}
+
+	/**
+	 * Filters this counter to that only entries with at least <count> number of reads remain.
+	 */
+	@Override
+	public void filterByMinCount (final int count) {
+		for (int e=0; e<this.numEntries; e++)
+			if (this.keys[e]!=null && this.counts[e]<count) removeEntry(e);
+		compact();
+	}
+
+	/**
+	 * Subset this set of counts to a subset of the keys.
+	 * @param keys A collection of keys to restrict the data to.
+	 */
+	@Override
+	public void subset (final Set<T> keys) {
+		for (int e=0; e<this.numEntries; e++)
+			if (this.keys[e]!=null && !keys.contains(unmask(e))) removeEntry(e);
+		compact();
+	}
+
+	@Override
+	public String toString () {
+		StringBuilder b = new StringBuilder("{");
+		for (int e=0; e<this.numEntries; e++)
+			if (this.keys[e]!=null) {
+				if (b.length()>1) b.append(", ");
+				b.append(unmask(e)).append('=').append(this.counts[e]);
+			}
+		return b.append('}').toString();
+	}
+
+	/**
+	 * The same hash code as an ObjectCounter with the same counts.
+	 */
+	@Override
+	public int hashCode() {
+		// matches the hash code of a Map of keys to Integer counts.
+		int mapHash=0;
+		for (int e=0; e<this.numEntries; e++)
+			if (this.keys[e]!=null) {
+				T key = unmask(e);
+				mapHash+=((key==null) ? 0 : key.hashCode()) ^ this.counts[e];
+			}
+		return 31 + mapHash;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		@SuppressWarnings("unchecked")
+		OpenHashObjectCounter<T> other = (OpenHashObjectCounter<T>) obj;
+		if (this.size!=other.size) return false;
+		for (int e=0; e<this.numEntries; e++)
+			if (this.keys[e]!=null) {
+				int o = other.findEntry(unmask(e));
+				if (o<0 || other.counts[o]!=this.counts[e]) return false;
+			}
+		return true;
+	}
+
+	private class KeySet extends AbstractSet<T> {
+
+		@Override
+		public Iterator<T> iterator() {
+			return new Iterator<T>() {
+				private int next=advance(0);
+				private int last=-1;
+
+				private int advance (int e) {
+					while (e<numEntries && keys[e]==null) e++;
+					return e;
+				}
+
+				@Override
+				public boolean hasNext() {
+					return this.next<numEntries;
+				}
+
+				@Override
+				public T next() {
+					if (!hasNext()) throw new NoSuchElementException();
+					this.last=this.next;
+					this.next=advance(this.next+1);
+					return unmask(this.last);
+				}
+
+				@Override
+				public void remove() {
+					if (this.last<0 || keys[this.last]==null) throw new IllegalStateException();
+					// leave the entry arrays in place while iterating.
+					removeEntry(this.last);
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public boolean contains(final Object o) {
+			return findEntry((T) o)>=0;
+		}
+	}
+
+}
@@ -32,12 +32,14 @@ import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
 import org.broadinstitute.dropseqrna.utils.BaseQualityFilter.FailedBaseMetric;
 import org.broadinstitute.dropseqrna.utils.readpairs.ReadPair;
+import org.broadinstitute.dropseqrna.utils.io.ParallelSamIO;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.StandardOptionDefinitions;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.util.List;
+import java.util.function.Consumer;
 
 @CommandLineProgramProperties(summary = "Adds a BAM tag to every read of the defined range of bases of the sequence of the 1st or 2nd read.  " +
         "Reads must be paired for this program to run.",
@@ -84,6 +86,9 @@ public class TagBamWithReadSequenceExtended extends CommandLineProgram {
 	@Argument (doc="The tag for the barcode quality.  The number of bases that are below the quality threshold.")
 	public String TAG_QUALITY="XQ";
 
+	@Argument(doc="Number of threads used to decompress INPUT and compress the tagged OUTPUT.")
+	public int IO_THREADS=1;
+
 	@Override
 	protected int doWork() {
 		if (this.TAG_BARCODED_READ && this.DISCARD_READ) {
@@ -98,18 +103,16 @@ public class TagBamWithReadSequenceExtended extends CommandLineProgram {
 		IOUtil.assertFileIsWritable(OUTPUT);
 
 		// get the header.
-		SamReader inputSam = SamReaderFactory.makeDefault().open(INPUT);
+		SamReader inputSam = ParallelSamIO.openReader(INPUT, IO_THREADS);
 		SAMFileHeader h= inputSam.getFileHeader();
 		PeekableIterator<SAMRecord> iter = new PeekableIterator<>(CustomBAMIterators.getQuerynameSortedRecords(inputSam));
 
 		SamHeaderUtil.addPgRecord(h, this);
 		// only assume reads are correctly sorted for output if the input BAM is queryname sorted.
 		boolean assumeSorted = h.getSortOrder().equals(SortOrder.queryname);
-		SAMFileWriter writer= new SAMFileWriterFactory().makeSAMOrBAMWriter(h, assumeSorted, OUTPUT);
-
-		List<BaseRange> baseRanges = BaseRange.parseBaseRange(this.BASE_RANGE);
+		SAMFileWriter writer= ParallelSamIO.makeSAMOrBAMWriter(h, assumeSorted, OUTPUT, IO_THREADS);
 
-		BaseQualityFilter filter = new BaseQualityFilter(baseRanges, this.BASE_QUALITY);
+		BaseQualityFilter filter = buildFilter();
 
 		// this.metric = new FailedBaseMetric(BaseRange.getTotalRangeSize(this.BASE_RANGE));
 
@@ -126,7 +129,7 @@ public class TagBamWithReadSequenceExtended extends CommandLineProgram {
 				sameName=r1.getReadName().equals(r2.getReadName());
 
 			if (!sameName) {
-				processSingleRead(r1, filter, writer, this.HARD_CLIP_BASES);
+				processSingleRead(r1, filter, writer::addAlignment, this.HARD_CLIP_BASES);
 				continue;
 			}
 
@@ -138,25 +141,54 @@ public class TagBamWithReadSequenceExtended extends CommandLineProgram {
 
 			}
 			// since you're in paired end land, make the 2nd read a real read and not a peeked read.
-			r2=iter.next();
-			r1=p.getRead1();
-			r2=p.getRead2();
-			if (BARCODED_READ==1)
-				processReadPair(r1, r2, filter, writer, this.DISCARD_READ, this.HARD_CLIP_BASES);
-			if (BARCODED_READ==2)
-				processReadPair(r2, r1, filter, writer, this.DISCARD_READ, this.HARD_CLIP_BASES);
-			progress.record(r1);
-			progress.record(r2);
+			iter.next();
+			processReadPair(p, filter, writer::addAlignment);
+			progress.record(p.getRead1());
+			progress.record(p.getRead2());
 
 		}
 		writer.close();
-		if (this.SUMMARY!=null) writeOutput (filter.getMetric(), this.SUMMARY);
+		writeSummary(filter);
 		CloserUtil.close(inputSam);
 		CloserUtil.close(iter);
 		return (0);
 	}
 
-	void processSingleRead(final SAMRecord barcodedRead, final BaseQualityFilter filter, final SAMFileWriter writer, final boolean hardClipBases) {
+	/**
+	 * Builds the base quality filter for BASE_RANGE and BASE_QUALITY.  The filter accumulates the summary metric
+	 * for every read it scores.
+	 */
+	public BaseQualityFilter buildFilter () {
+		List<BaseRange> baseRanges = BaseRange.parseBaseRange(this.BASE_RANGE);
+		return new BaseQualityFilter(baseRanges, this.BASE_QUALITY);
+	}
+
+	/**
+	 * Tags a properly paired set of reads using the read selected by BARCODED_READ.
+	 * The records that are retained are handed to the consumer in output order.
+	 */
+	public void processReadPair (final ReadPair pair, final BaseQualityFilter filter, final Consumer<SAMRecord> out) {
+		if (BARCODED_READ==1)
+			processReadPair(pair.getRead1(), pair.getRead2(), filter, out, this.DISCARD_READ, this.HARD_CLIP_BASES);
+		if (BARCODED_READ==2)
+			processReadPair(pair.getRead2(), pair.getRead1(), filter, out, this.DISCARD_READ, this.HARD_CLIP_BASES);
+	}
+
+	/**
+	 * Tags an unpaired read.  The tagged read is handed to the consumer.
+	 */
+	public void processSingleRead (final SAMRecord read, final BaseQualityFilter filter, final Consumer<SAMRecord> out) {
+		processSingleRead(read, filter, out, this.HARD_CLIP_BASES);
+	}
+
+	/**
+	 * Writes the barcode base quality summary collected by the filter, if SUMMARY is set.
+	 */
+	public void writeSummary (final BaseQualityFilter filter) {
+		if (this.SUMMARY!=null) writeOutput (filter.getMetric(), this.SUMMARY);
+	}
+
+	void processSingleRead(final SAMRecord barcodedRead, final BaseQualityFilter filter, final Consumer<SAMRecord> out, final boolean hardClipBases) {
 		int numBadBases = filter.scoreBaseQuality(barcodedRead);
 		String seq = barcodedRead.getReadString();
 		// does this have an off by 1 error?  I think it's 0 based so should be ok.
@@ -177,7 +209,7 @@ public class TagBamWithReadSequenceExtended extends CommandLineProgram {
 		barcodedRead.setAttribute(TAG_NAME, seq);
 		SAMRecord result = barcodedRead;
 		if (hardClipBases) result = hardClipBasesFromRead(barcodedRead, filter.getBaseRanges());
-		writer.addAlignment(result);
+		out.accept(result);
 	}
 
 	static SAMRecord hardClipBasesFromRead (final SAMRecord r, final List<BaseRange> baseRanges) {
@@ -208,7 +240,7 @@ public class TagBamWithReadSequenceExtended extends CommandLineProgram {
 	}
 
 	void processReadPair (SAMRecord barcodedRead, final SAMRecord otherRead, final BaseQualityFilter filter,
-						  final SAMFileWriter writer, final boolean discardRead, final boolean hardClipBases) {
+						  final Consumer<SAMRecord> out, final boolean discardRead, final boolean hardClipBases) {
 		int numBadBases= filter.scoreBaseQuality(barcodedRead);
 		String seq = barcodedRead.getReadString();
 		seq=BaseRange.getSequenceForBaseRange(filter.getBaseRanges(), seq);
@@ -228,9 +260,9 @@ public class TagBamWithReadSequenceExtended extends CommandLineProgram {
 
 		} else {
 			if (hardClipBases) barcodedRead = hardClipBasesFromRead(barcodedRead, filter.getBaseRanges());
-			writer.addAlignment(barcodedRead);
+			out.accept(barcodedRead);
         }
-        writer.addAlignment(otherRead);
+        out.accept(otherRead);
 	}
 
 
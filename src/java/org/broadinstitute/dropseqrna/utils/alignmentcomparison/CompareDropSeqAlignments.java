@@ -216,7 +216,8 @@ public class CompareDropSeqAlignments extends CommandLineProgram {
 			return reader.iterator();
 		log.info("Input SAM/BAM not in queryname order, sorting...");
         final ProgressLogger progressLogger = new ProgressLogger(log, 1000000, "Sorting reads in query name order");
-        final CloseableIterator<SAMRecord> result = SamRecordSortingIteratorFactory.create(reader.getFileHeader(), reader.iterator(), READ_NAME_COMPARATOR, progressLogger);
+        final CloseableIterator<SAMRecord> result = SamRecordSortingIteratorFactory.create(reader.getFileHeader(), reader.iterator(), READ_NAME_COMPARATOR, progressLogger,
+        		this.GENE_EXON_TAG==null ? Collections.emptyList() : Collections.singletonList(this.GENE_EXON_TAG), false);
         log.info("Sorting finished.");
         return result;
 	}
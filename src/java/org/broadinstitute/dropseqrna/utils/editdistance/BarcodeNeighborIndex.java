@@ -0,0 +1,225 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.editdistance;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index over a set of barcodes that answers "which barcodes are within edit distance K of this barcode" without
+ * comparing the query against every barcode.
+ *
+ * This is a pigeonhole index: each barcode is split into a fixed set of segments, and each segment is stored in a hash.
+ * For hamming distance, K substitutions can change at most K of K+1 segments, so any neighbor shares at least one
+ * segment exactly with the query.  For the indel corrected edit distance (see {@link LevenshteinDistance#getIndelSlidingWindowEditDistance(String, String)})
+ * each inserted or deleted base can break one segment and shift the remaining bases by one, so barcodes are split into
+ * 2K+1 segments and the query is probed at offsets -K to +K.
+ *
+ * The segment matches only generate candidates - every candidate is then tested with the same edit distance function a
+ * full scan would use, so results are identical to comparing against all barcodes.
+ *
+ * Barcodes can be removed from the index as they are collapsed, so the index can be built once and reused as the
+ * set of eligible barcodes shrinks.  If the barcodes are not all the same length, or are too short to split into
+ * the required number of segments, the index falls back to scanning all barcodes.
+ */
+public class BarcodeNeighborIndex {
+
+	private final int maxEditDistance;
+	private final boolean findIndels;
+	private final Set<String> barcodes;
+	// the length of all barcodes, or -1 if the index can't be segmented.
+	private final int barcodeLength;
+	private final int [] segmentStarts;
+	private final int [] segmentLengths;
+	// one map per segment, from the segment sequence to the barcodes that contain it.
+	private final List<Map<String, Set<String>>> segmentMaps;
+
+	/**
+	 * Build an index.
+	 * @param barcodes The barcodes to index.
+	 * @param maxEditDistance The largest edit distance that will be queried.
+	 * @param findIndels If true, use the indel corrected edit distance.  If false, use hamming distance.
+	 */
+	public BarcodeNeighborIndex (final Collection<String> barcodes, final int maxEditDistance, final boolean findIndels) {
+		this.maxEditDistance=maxEditDistance;
+		this.findIndels=findIndels;
+		this.barcodes=new HashSet<>(barcodes.size());
+
+		int length = getCommonLength(barcodes);
+		int numSegments = findIndels ? (2*maxEditDistance)+1 : maxEditDistance+1;
+		if (length<numSegments || maxEditDistance<0) length=-1;
+		this.barcodeLength=length;
+
+		if (this.barcodeLength==-1) {
+			this.segmentStarts=new int [0];
+			this.segmentLengths=new int [0];
+		} else {
+			this.segmentStarts=new int [numSegments];
+			this.segmentLengths=new int [numSegments];
+			// spread the remainder over the first segments.
+			int start=0;
+			for (int i=0; i<numSegments; i++) {
+				int len = this.barcodeLength/numSegments + ((i < this.barcodeLength % numSegments) ? 1 : 0);
+				this.segmentStarts[i]=start;
+				this.segmentLengths[i]=len;
+				start+=len;
+			}
+		}
+		this.segmentMaps=new ArrayList<>(this.segmentStarts.length);
+		for (int i=0; i<this.segmentStarts.length; i++)
+			this.segmentMaps.add(new HashMap<>());
+
+		for (String b: barcodes)
+			add(b);
+	}
+
+	/**
+	 * @return true if the index is segmented, false if it falls back to scanning all barcodes.
+	 */
+	public boolean isSegmented () {
+		return this.barcodeLength!=-1;
+	}
+
+	public int size () {
+		return this.barcodes.size();
+	}
+
+	public boolean contains (final String barcode) {
+		return this.barcodes.contains(barcode);
+	}
+
+	public void add (final String barcode) {
+		if (isSegmented() && barcode.length()!=this.barcodeLength)
+			throw new IllegalArgumentException("Barcode [" + barcode + "] is not the same length as the indexed barcodes [" + this.barcodeLength + "]");
+		if (!this.barcodes.add(barcode)) return;
+		for (int i=0; i<this.segmentStarts.length; i++) {
+			String key = getSegment(barcode, i);
+			Set<String> s = this.segmentMaps.get(i).get(key);
+			if (s==null) {
+				s=new HashSet<>();
+				this.segmentMaps.get(i).put(key, s);
+			}
+			s.add(barcode);
+		}
+	}
+
+	public void remove (final String barcode) {
+		if (!this.barcodes.remove(barcode)) return;
+		for (int i=0; i<this.segmentStarts.length; i++) {
+			Map<String, Set<String>> m = this.segmentMaps.get(i);
+			String key = getSegment(barcode, i);
+			Set<String> s = m.get(key);
+			s.remove(barcode);
+			if (s.isEmpty()) m.remove(key);
+		}
+	}
+
+	public void removeAll (final Collection<String> barcodes) {
+		for (String b: barcodes)
+			remove(b);
+	}
+
+	/**
+	 * Find all barcodes in the index within the edit distance of the query.
+	 * If the query is in the index, it is returned as well (at edit distance 0.)
+	 * @param barcode The query barcode
+	 * @param editDistance The maximum edit distance.  Must be no larger than the edit distance the index was built with.
+	 * @return The set of barcodes within the edit distance.
+	 */
+	public Set<String> getNeighbors (final String barcode, final int editDistance) {
+		return getNeighborDistances(barcode, editDistance).keySet();
+	}
+
+	/**
+	 * Find all barcodes in the index within the edit distance of the query, and the edit distance to each.
+	 * If the query is in the index, it is returned as well (at edit distance 0.)
+	 * @param barcode The query barcode
+	 * @param editDistance The maximum edit distance.  Must be no larger than the edit distance the index was built with.
+	 * @return A map from each barcode within the edit distance to the edit distance from the query.
+	 */
+	public Map<String, Integer> getNeighborDistances (final String barcode, final int editDistance) {
+		if (editDistance>this.maxEditDistance)
+			throw new IllegalArgumentException("Index was built for edit distance [" + this.maxEditDistance +"], can't search at edit distance [" + editDistance+"]");
+		Collection<String> candidates = getCandidates(barcode);
+		Map<String, Integer> result = new HashMap<>();
+		for (String c: candidates) {
+			int ed = getEditDistance(barcode, c, editDistance);
+			if (ed<=editDistance)
+				result.put(c, ed);
+		}
+		return result;
+	}
+
+	private Collection<String> getCandidates (final String barcode) {
+		// queries that can't use the segments are compared to everything.
+		if (!isSegmented() || barcode.length()!=this.barcodeLength)
+			return this.barcodes;
+
+		Set<String> result = new HashSet<>();
+		int maxOffset = this.findIndels ? this.maxEditDistance : 0;
+		for (int i=0; i<this.segmentStarts.length; i++) {
+			Map<String, Set<String>> m = this.segmentMaps.get(i);
+			int len = this.segmentLengths[i];
+			for (int offset=-maxOffset; offset<=maxOffset; offset++) {
+				int start = this.segmentStarts[i]+offset;
+				if (start<0 || start+len>barcode.length()) continue;
+				Set<String> s = m.get(barcode.substring(start, start+len));
+				if (s!=null) result.addAll(s);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Distances larger than maxEditDistance are reported as some value larger than maxEditDistance.
+	 */
+	private int getEditDistance (final String barcode, final String other, final int maxEditDistance) {
+		if (this.findIndels)
+			return LevenshteinDistance.getIndelSlidingWindowEditDistance(barcode, other, maxEditDistance+1);
+		return HammingDistance.getHammingDistance(barcode, other);
+	}
+
+	private String getSegment (final String barcode, final int segment) {
+		int start = this.segmentStarts[segment];
+		return barcode.substring(start, start+this.segmentLengths[segment]);
+	}
+
+	/**
+	 * @return the length of all barcodes, or -1 if the barcodes are not all the same length (or there are none.)
+	 */
+	private static int getCommonLength (final Collection<String> barcodes) {
+		int length=-1;
+		for (String b: barcodes) {
+			if (length==-1) length=b.length();
+			else if (length!=b.length()) return -1;
+		}
+		return length;
+	}
+
+}
@@ -37,11 +37,12 @@ import org.broadinstitute.dropseqrna.metrics.BamTagHistogram;
 import org.broadinstitute.dropseqrna.utils.ObjectCounter;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamFileMergeUtil;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamHeaderAndIterator;
+import org.broadinstitute.dropseqrna.utils.io.ParallelSamIO;
 
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
@@ -105,6 +106,9 @@ public class CollapseBarcodesInPlace extends CommandLineProgram {
 	@Argument(doc="Number of threads to use.  Defaults to 1.")
 	public int NUM_THREADS=1;
 
+	@Argument(doc="Number of threads used to decompress the merged INPUT BAMs and compress the collapsed OUTPUT.")
+	public int IO_THREADS=1;
+
 	@Override
 	protected int doWork() {
 		log.info("Number of cores selected [" + Integer.toString(this.NUM_THREADS) + "]");
@@ -123,7 +127,7 @@ public class CollapseBarcodesInPlace extends CommandLineProgram {
 		CloseableIterator<SAMRecord> inputSam = inputs.iterator;
 		SAMFileHeader header = inputs.header;
 		header.addComment("Edit distance collapsed tag " +  this.PRIMARY_BARCODE + " to new tag " + this.OUT_BARCODE+ " with edit distance "+ this.EDIT_DISTANCE);
-        SAMFileWriter writer= new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, this.OUTPUT);
+        SAMFileWriter writer= ParallelSamIO.makeSAMOrBAMWriter(header, true, this.OUTPUT, IO_THREADS);
 
 		// gather up the barcodes that exist in the BAM
         final SamHeaderAndIterator inputs2 = openInputs();
@@ -145,7 +149,7 @@ public class CollapseBarcodesInPlace extends CommandLineProgram {
 	}
 
     private SamHeaderAndIterator openInputs() {
-        final SamHeaderAndIterator ret = SamFileMergeUtil.mergeInputs(INPUT, true);
+        final SamHeaderAndIterator ret = SamFileMergeUtil.mergeInputs(INPUT, true, SamReaderFactory.makeDefault(), IO_THREADS);
         if (SAMFileHeader.SortOrder.coordinate != ret.header.getSortOrder())
 			throw new PicardException("Input files are not coordinate sorted");
         return ret;
@@ -33,15 +33,19 @@ import org.broadinstitute.dropseqrna.cmdline.DropSeq;
 import org.broadinstitute.dropseqrna.utils.*;
 import org.broadinstitute.dropseqrna.utils.editdistance.MapBarcodesByEditDistance.AdaptiveMappingResult;
 import org.broadinstitute.dropseqrna.utils.io.ErrorCheckingPrintStream;
+import org.broadinstitute.dropseqrna.utils.io.OrderedParallelExecutor;
 import org.broadinstitute.dropseqrna.utils.readiterators.MapQualityPredicate;
 import org.broadinstitute.dropseqrna.utils.readiterators.RequiredTagPredicate;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamRecordSortingIteratorFactory;
+import org.broadinstitute.dropseqrna.utils.io.ParallelSamIO;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.StandardOptionDefinitions;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.PrintStream;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @CommandLineProgramProperties(summary = "Collapse set of barcodes that all share the same BAM tags.  For example, collapse all UMIs that have the same cell, gene, and gene strand tags.  This would be equivilent to collapsing the UMIs in DGE.",
@@ -98,6 +102,9 @@ public class CollapseTagWithContext extends CommandLineProgram {
 	@Argument(doc="Number of threads to use.  Defaults to 1.")
 	public int NUM_THREADS=1;
 
+	@Argument(doc="How to find barcodes within the edit distance of each barcode: FULL_SCAN compares every pair of barcodes, INDEXED only compares barcodes that share a segment.  Both give the same results.  Adaptive edit distance collapse always uses FULL_SCAN.")
+	public NeighborSearchStrategy NEIGHBOR_SEARCH_STRATEGY=NeighborSearchStrategy.FULL_SCAN;
+
 	@Argument (doc="Instead of using the default fixed edit distance, use an adaptive edit distance.  "
 			+ "For each mergable entity, this tries to determine if there are 2 clusters of data by edit distance, and only merge the close-by neighbors.")
 	public boolean ADAPTIVE_EDIT_DISTANCE=false;
@@ -128,6 +135,14 @@ public class CollapseTagWithContext extends CommandLineProgram {
 	@Argument (doc="Use less memory but more time.  Useful if your context groups are huge - very large cells with lots of sequence data, etc.")
 	public Boolean LOW_MEMORY_MODE=false;
 
+	@Argument(doc="Number of threads used to decompress INPUT and compress OUTPUT with the collapsed tag.")
+	public int IO_THREADS=1;
+
+	@Argument(doc="Use the NUM_THREADS threads to collapse whole context groups in parallel, instead of comparing the barcodes of one context group in parallel.  "
+			+ "This is much faster when there are many small context groups, such as collapsing UMIs in the context of cell and gene.  Output is identical to the default mode.  "
+			+ "Up to MAX_RECORDS_IN_RAM informative reads are held in memory across the groups being processed.  Can not be used with LOW_MEMORY_MODE.")
+	public boolean PARALLEL_CONTEXTS=false;
+
 	// make this once and reuse it.
 	private MapBarcodesByEditDistance med;
 	private MapBarcodesByEditDistance medUMI;
@@ -157,6 +172,10 @@ public class CollapseTagWithContext extends CommandLineProgram {
 			log.error("Can't specifiy both adaptive edit distance collapse AND mutational collapse.");
 			return 1;
 		}
+		if (this.PARALLEL_CONTEXTS && this.LOW_MEMORY_MODE) {
+			log.error("PARALLEL_CONTEXTS holds several context groups in memory at once, and can't be used with LOW_MEMORY_MODE.");
+			return 1;
+		}
 		return 0;
 	}
 	@Override
@@ -166,7 +185,9 @@ public class CollapseTagWithContext extends CommandLineProgram {
 
 		if (this.COUNT_TAGS_EDIT_DISTANCE>0) this.medUMI = new MapBarcodesByEditDistance(false);
 
-		med = new MapBarcodesByEditDistance(false, this.NUM_THREADS, 0);
+		// when context groups are processed in parallel, each group compares its barcodes on a single thread.
+		int barcodeThreads = this.PARALLEL_CONTEXTS ? 1 : this.NUM_THREADS;
+		med = new MapBarcodesByEditDistance(false, barcodeThreads, 0, this.NEIGHBOR_SEARCH_STRATEGY);
 		
 		PrintStream outMetrics = null;
 		if (this.ADAPTIVE_ED_METRICS_FILE!=null) {
@@ -175,7 +196,7 @@ public class CollapseTagWithContext extends CommandLineProgram {
 		}
 		
 		if (this.MUTATIONAL_COLLAPSE_METRICS_FILE!=null) {
-			med = new MapBarcodesByEditDistance(true, this.NUM_THREADS, 1000);
+			med = new MapBarcodesByEditDistance(true, barcodeThreads, 1000, this.NEIGHBOR_SEARCH_STRATEGY);
 			outMetrics = new ErrorCheckingPrintStream(IOUtil.openFileForWriting(this.MUTATIONAL_COLLAPSE_METRICS_FILE));
 			writeMutationalCollapseMetricsHeader(this.ADAPTIVE_ED_METRICS_ED_LIST, outMetrics);
 		}
@@ -183,7 +204,7 @@ public class CollapseTagWithContext extends CommandLineProgram {
 		IOUtil.assertFileIsReadable(INPUT);
         IOUtil.assertFileIsWritable(OUTPUT);
 
-        SamReader reader = SamReaderFactory.makeDefault().open(INPUT);
+        SamReader reader = ParallelSamIO.openReader(INPUT, IO_THREADS);
         SAMFileHeader header =  reader.getFileHeader();
         SortOrder sortOrder= header.getSortOrder();
         
@@ -194,7 +215,9 @@ public class CollapseTagWithContext extends CommandLineProgram {
 
         log.info("Collapsing tag and writing results");
 
-        if (!LOW_MEMORY_MODE) 
+        if (PARALLEL_CONTEXTS && NUM_THREADS>1)
+        	parallelIteration(groupingIter, writer, outMetrics);
+        else if (!LOW_MEMORY_MODE) 
         	fasterIteration(groupingIter, writer, outMetrics);
         else
         	lowMemoryIteration(groupingIter, writer, outMetrics, header);
@@ -238,9 +261,72 @@ public class CollapseTagWithContext extends CommandLineProgram {
         	}
         	
         	// get context.
-        	processContext(informativeRecs, writer, verbose, outMetrics);    	
+        	processContext(informativeRecs, writer::addAlignment, verbose, outMetrics);    	
         }		
 	}
+
+	/**
+	 * Like fasterIteration, but whole context groups are collapsed on a pool of worker threads.
+	 * Groups are read and written on this thread, in the order they were read, so the BAM and metrics output are
+	 * identical to the single threaded version.  Reading ahead stops when enough groups are queued for the workers,
+	 * or when the queued groups hold more than MAX_RECORDS_IN_RAM reads.
+	 * @param groupingIter
+	 * @param writer
+	 * @param outMetrics
+	 */
+	private void parallelIteration (PeekableGroupingIterator<SAMRecord> groupingIter, SAMFileWriter writer, PrintStream outMetrics) {
+		log.info("Running parallel context mode with [" + this.NUM_THREADS + "] threads");
+		int maxNumInformativeReadsInMemory=1000;
+		try (OrderedParallelExecutor<ContextResult> executor = new OrderedParallelExecutor<>("collapsing context", this.NUM_THREADS,
+				OrderedParallelExecutor.DEFAULT_TASKS_IN_FLIGHT_PER_THREAD, this.MAX_RECORDS_IN_RAM, result -> writeContext(writer, outMetrics, result))) {
+			while (groupingIter.hasNext()) {
+				List<SAMRecord> informativeRecs = new ArrayList<>();
+				informativeRecs.add(groupingIter.next());
+				while (groupingIter.hasNextInGroup())
+					informativeRecs.add(groupingIter.next());
+
+				boolean verbose = false;
+				if (informativeRecs.size()>maxNumInformativeReadsInMemory) {
+					maxNumInformativeReadsInMemory=informativeRecs.size();
+					log.info("Max informative reads in memory [" + maxNumInformativeReadsInMemory +"]");
+					verbose=true;
+				}
+				submitContext(executor, informativeRecs, verbose, outMetrics!=null);
+			}
+			executor.finish();
+		}
+	}
+
+	private void submitContext (final OrderedParallelExecutor<ContextResult> executor, final List<SAMRecord> informativeRecs, final boolean verbose, final boolean writeMetrics) {
+		executor.submit(() -> {
+			ContextResult result = new ContextResult(informativeRecs.size(), writeMetrics);
+			processContext(informativeRecs, result.records::add, verbose, result.metrics);
+			if (result.metrics!=null) result.metrics.flush();
+			return result;
+		}, informativeRecs.size());
+	}
+
+	private void writeContext (final SAMFileWriter writer, final PrintStream outMetrics, final ContextResult result) {
+		for (SAMRecord r: result.records)
+			writer.addAlignment(r);
+		if (outMetrics!=null)
+			outMetrics.print(result.metricsBuffer.toString());
+	}
+
+	/**
+	 * The retagged reads and metrics lines of one context group, held until it is this group's turn to be written.
+	 */
+	private static class ContextResult {
+		private final List<SAMRecord> records;
+		private final ByteArrayOutputStream metricsBuffer;
+		private final PrintStream metrics;
+
+		ContextResult (final int numRecords, final boolean writeMetrics) {
+			this.records = new ArrayList<>(numRecords);
+			this.metricsBuffer = writeMetrics ? new ByteArrayOutputStream() : null;
+			this.metrics = writeMetrics ? new PrintStream(metricsBuffer) : null;
+		}
+	}
 	
 	/**
 	 * If the number of records exceeds the number of records allowed in memory, spill to disk.
@@ -268,11 +354,11 @@ public class CollapseTagWithContext extends CommandLineProgram {
         	sortingCollection.doneAdding();
         	sortingCollection.setDestructiveIteration(false);
         	
-        	processContext(sortingCollection, writer, false, outMetrics);        	
+        	processContext(sortingCollection, writer::addAlignment, false, outMetrics);        	
         }	
 	}
 	
-	private void processContext (Iterable<SAMRecord> i, SAMFileWriter writer, boolean verbose, PrintStream outMetrics) {
+	private void processContext (Iterable<SAMRecord> i, Consumer<SAMRecord> writer, boolean verbose, PrintStream outMetrics) {
 		PeekableIterator<SAMRecord> iter = new PeekableIterator<>(i.iterator());
     	if (!iter.hasNext()) return;
 
@@ -289,7 +375,7 @@ public class CollapseTagWithContext extends CommandLineProgram {
 
 	}
 			
-	private void retagBarcodedReads (Iterator<SAMRecord> informativeRecs, ObjectCounter<String> barcodeCounts, Map<String, String> collapseMap, boolean dropSmallCounts, SAMFileWriter writer,
+	private void retagBarcodedReads (Iterator<SAMRecord> informativeRecs, ObjectCounter<String> barcodeCounts, Map<String, String> collapseMap, boolean dropSmallCounts, Consumer<SAMRecord> writer,
 			String collapseTag, String outTag) {
 		
 		Set<String> expectedBarcodes = null;
@@ -312,7 +398,7 @@ public class CollapseTagWithContext extends CommandLineProgram {
 					tagValue = collapseMap.get(tagValue);
 				r.setAttribute(outTag, tagValue);
 			}
-			writer.addAlignment(r);
+			writer.accept(r);
 		}		
 	}
 
@@ -386,7 +472,7 @@ public class CollapseTagWithContext extends CommandLineProgram {
 		SamHeaderUtil.addPgRecord(header, this);
 		String context = StringUtil.join(" ", this.CONTEXT_TAGS);
 		header.addComment("Edit distance collapsed tag " +  this.COLLAPSE_TAG + " to new tag " + this.OUT_TAG+ " with edit distance "+ this.EDIT_DISTANCE + "using indels=" + this.FIND_INDELS + " in the context of tags [" + context + "]");
-        SAMFileWriter writer= new SAMFileWriterFactory().makeSAMOrBAMWriter(header, false, this.OUTPUT);
+        SAMFileWriter writer= ParallelSamIO.makeSAMOrBAMWriter(header, false, this.OUTPUT, IO_THREADS);
         return writer;
 	}
 
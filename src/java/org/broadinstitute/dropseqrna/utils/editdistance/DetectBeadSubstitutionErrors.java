@@ -46,10 +46,11 @@ import org.broadinstitute.dropseqrna.utils.io.ErrorCheckingPrintStream;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamFileMergeUtil;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamHeaderAndIterator;
 import org.broadinstitute.dropseqrna.utils.readiterators.UMIIterator;
+import org.broadinstitute.dropseqrna.utils.io.ParallelSamIO;
 
 import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.IterableAdapter;
@@ -122,6 +123,12 @@ public class DetectBeadSubstitutionErrors extends CommandLineProgram{
 	@Argument(doc="Number of threads to use.  Defaults to 1.")
 	public int NUM_THREADS=1;
 
+	@Argument(doc="How to find barcodes within the edit distance of each barcode: FULL_SCAN compares every pair of barcodes, INDEXED only compares barcodes that share a segment.  Both give the same results.")
+	public NeighborSearchStrategy NEIGHBOR_SEARCH_STRATEGY=NeighborSearchStrategy.FULL_SCAN;
+
+	@Argument(doc="Number of threads used to decompress the INPUT BAMs and compress OUTPUT while the repaired BAM is written.  Has no effect when OUTPUT is not set.")
+	public int IO_THREADS=1;
+
 	@Override
 	protected int doWork() {
 		for (final File input : INPUT)
@@ -158,7 +165,7 @@ public class DetectBeadSubstitutionErrors extends CommandLineProgram{
         	log.warn("No barcodes found for collapse.  This means you have no cell barcodes with at least [" + MIN_UMIS_PER_CELL + "] transcripts and aren't UMI biased at the last base. You might have a problem in your input!");
 
         // how do they collapse bottom up?
-        MapBarcodesByEditDistance med = new MapBarcodesByEditDistance(true, this.NUM_THREADS, 10000);
+        MapBarcodesByEditDistance med = new MapBarcodesByEditDistance(true, this.NUM_THREADS, 10000, this.NEIGHBOR_SEARCH_STRATEGY);
         log.info("Starting Barcode Collapse of [" + umiCounts.getSize()+ "] barcodes");
         BottomUpCollapseResult result= med.bottomUpCollapse(umiCounts, this.EDIT_DISTANCE);
         log.info("Barcode Collapse Complete - ["+ result.getUnambiguousSmallBarcodes().size() + "] barcodes collapsed");
@@ -286,10 +293,10 @@ public class DetectBeadSubstitutionErrors extends CommandLineProgram{
 
 	private void repairBAM (final BottomUpCollapseResult result) {
 
-		final SamHeaderAndIterator headerAndIterator = SamFileMergeUtil.mergeInputs(this.INPUT, true);
+		final SamHeaderAndIterator headerAndIterator = SamFileMergeUtil.mergeInputs(this.INPUT, true, SamReaderFactory.makeDefault(), IO_THREADS);
 		SamHeaderUtil.addPgRecord(headerAndIterator.header, this);
 		headerAndIterator.header.addComment("Bottom-up edit distance collapse tag " + this.CELL_BARCODE_TAG +" with edit distance " + this.EDIT_DISTANCE+ " filtering ambiguous neighbors=" + this.FILTER_AMBIGUOUS);
-		SAMFileWriter writer= new SAMFileWriterFactory().setCreateIndex(CREATE_INDEX).makeSAMOrBAMWriter(headerAndIterator.header, true, OUTPUT);
+		SAMFileWriter writer= ParallelSamIO.makeSAMOrBAMWriter(headerAndIterator.header, true, OUTPUT, CREATE_INDEX, IO_THREADS);
 
 		ProgressLogger pl = new ProgressLogger(log);
 		log.info("Repairing BAM");
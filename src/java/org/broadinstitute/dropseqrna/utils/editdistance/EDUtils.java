@@ -53,7 +53,7 @@ public class EDUtils {
 
 	public Set<String> getStringsWithinEditDistanceWithIndel(final String baseString,
 			final List<String> comparisonStrings, final int editDistance) {
-		Set<String> result = comparisonStrings.stream().filter(x -> LevenshteinDistance.getIndelSlidingWindowEditDistance(baseString, x) <= editDistance).collect(Collectors.toSet());
+		Set<String> result = comparisonStrings.stream().filter(x -> LevenshteinDistance.isWithinIndelSlidingWindowEditDistance(baseString, x, editDistance)).collect(Collectors.toSet());
 		return (result);
 	}
 
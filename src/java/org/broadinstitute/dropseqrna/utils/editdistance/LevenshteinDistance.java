@@ -26,12 +26,34 @@ package org.broadinstitute.dropseqrna.utils.editdistance;
 
 public class LevenshteinDistance {
 
+	/**
+	 * The longest string (the shorter of the two being compared) that fits in the bit vectors of the bit-parallel implementations.
+	 */
+	static final int MAX_BIT_PARALLEL_LENGTH = 64;
+
 	private static int minimum(final int a, final int b, final int c) {
 		return Math.min(Math.min(a, b), c);
 	}
 
+	/**
+	 * The unit cost edit distance between two strings.
+	 * Uses Myers' bit-parallel algorithm when the shorter string is at most 64 characters long, and the full DP matrix otherwise.
+	 */
 	public static int getDistance (final String str1, final String str2) {
-		return computeLevenshteinDistanceResult(str1, str2).getEditDistance();
+		return getDistance(str1, str2, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * The unit cost edit distance between two strings, giving up early once the distance is known to be larger than maxDistance.
+	 * @param maxDistance The largest distance of interest.
+	 * @return The edit distance if it is no larger than maxDistance, otherwise some value larger than maxDistance.
+	 */
+	public static int getDistance (final String str1, final String str2, final int maxDistance) {
+		final String pattern = str1.length()<=str2.length() ? str1 : str2;
+		final String text = pattern==str1 ? str2 : str1;
+		if (pattern.length()>MAX_BIT_PARALLEL_LENGTH)
+			return computeLevenshteinDistanceResult(str1, str2).getEditDistance();
+		return myersDistance(pattern, text, maxDistance);
 	}
 
 	public static int getDistance (final String str1,final String str2, final int deletionCost, final int insertionCost, final int substitutionCost) {
@@ -93,8 +115,9 @@ public class LevenshteinDistance {
 
 	/**
 	 * Compute the edit distance between two strings, using Jim's indel window modification.
-	 * If the naive edit distance is greater than the threshold, then return the threshold.
-	 * Otherwise, do lots of fancy (but expensive) stuff to calculate the edit distance.
+	 * If the edit distance is greater than the threshold, then return the threshold.
+	 * When the shorter string is at most 64 characters this is computed from a bit-parallel LCS, which stops as soon as the
+	 * distance is known to exceed the threshold; otherwise the full DP matrix is traced back via {@link LevenshteinDistanceResult}.
 	 *
 	 * @param str1
 	 * @param str2
@@ -102,8 +125,119 @@ public class LevenshteinDistance {
 	 * @return
 	 */
 	public static int getIndelSlidingWindowEditDistance(final String str1, final String str2, final int threshold) {
-		int r = computeLevenshteinDistanceResult (str1,str2, 1,1,2).getEditDistanceIndelCorrected();
-		return r;
+		final String pattern = str1.length()<=str2.length() ? str1 : str2;
+		final String text = pattern==str1 ? str2 : str1;
+		if (pattern.length()>MAX_BIT_PARALLEL_LENGTH) {
+			int r = computeLevenshteinDistanceResult (str1,str2, 1,1,2).getEditDistanceIndelCorrected();
+			return Math.min(r, threshold);
+		}
+		// With substitutions costing 2 and indels costing 1 the weighted distance is (m+n-2*LCS), and the indel corrected distance is half that.
+		final int total = pattern.length()+text.length();
+		// the smallest LCS that keeps the corrected distance at or below the threshold.
+		final long minLcs = (total - 2L*threshold) / 2;
+		final int lcs = lcsLength(pattern, text, (int) Math.max(0, minLcs));
+		if (lcs<0) return threshold;
+		return Math.min((total-2*lcs)/2, threshold);
+	}
+
+	/**
+	 * Is the indel corrected edit distance (see {@link #getIndelSlidingWindowEditDistance(String, String)}) between two strings
+	 * at most maxDistance?  Stops comparing the strings as soon as the answer is known.
+	 */
+	public static boolean isWithinIndelSlidingWindowEditDistance(final String str1, final String str2, final int maxDistance) {
+		return getIndelSlidingWindowEditDistance(str1, str2, maxDistance+1) <= maxDistance;
+	}
+
+	/**
+	 * Myers' bit-vector edit distance (in the formulation of Hyyro) for a pattern of at most 64 characters.
+	 * Column j of the DP matrix is held as vertical +1/-1 deltas in Pv/Mv, and the score tracks the last row.
+	 * @return the edit distance, or maxDistance+1 if the distance must exceed maxDistance.
+	 */
+	private static int myersDistance (final String pattern, final String text, final int maxDistance) {
+		final int m = pattern.length();
+		final int n = text.length();
+		if (n-m>maxDistance) return maxDistance+1;
+		if (m==0) return n;
+		final PatternMasks peq = new PatternMasks(pattern);
+		final long last = 1L << (m-1);
+		long pv = -1L;
+		long mv = 0L;
+		int score = m;
+		for (int j=0; j<n; j++) {
+			final long eq = peq.get(text.charAt(j));
+			final long xv = eq | mv;
+			final long xh = (((eq & pv) + pv) ^ pv) | eq;
+			long ph = mv | ~(xh | pv);
+			long mh = pv & xh;
+			if ((ph & last)!=0) score++;
+			else if ((mh & last)!=0) score--;
+			// the first row of the matrix increases by one per column.
+			ph = (ph << 1) | 1L;
+			mh = mh << 1;
+			pv = mh | ~(xv | ph);
+			mv = ph & xv;
+			// each remaining column can lower the score by at most one.
+			if (score - (n-j-1) > maxDistance) return maxDistance+1;
+		}
+		return score;
+	}
+
+	/**
+	 * Bit-parallel longest common subsequence length (Allison-Dix / Hyyro) for a pattern of at most 64 characters.
+	 * Zero bits of V mark the positions where the LCS of the pattern prefix and the text seen so far increases.
+	 * @param minLcs Stop early if the LCS can no longer reach this length.
+	 * @return the length of the LCS, or -1 if it is shorter than minLcs.
+	 */
+	private static int lcsLength (final String pattern, final String text, final int minLcs) {
+		final int m = pattern.length();
+		final int n = text.length();
+		if (m<minLcs) return -1;
+		if (m==0) return 0;
+		final PatternMasks peq = new PatternMasks(pattern);
+		final long mask = m==64 ? -1L : (1L << m) -1;
+		long v = -1L;
+		for (int j=0; j<n; j++) {
+			final long u = v & peq.get(text.charAt(j));
+			v = (v + u) | (v - u);
+			// each remaining text character can extend the LCS by at most one.
+			if (m - Long.bitCount(v & mask) + (n-j-1) < minLcs) return -1;
+		}
+		return m - Long.bitCount(v & mask);
+	}
+
+	/**
+	 * For each distinct character of a pattern, the bit mask of the positions it occupies.
+	 * Barcodes use only a handful of distinct characters, so a linear scan beats a lookup table that must be cleared per pattern.
+	 */
+	private static class PatternMasks {
+		private final char [] chars;
+		private final long [] masks;
+		private int size=0;
+
+		PatternMasks (final String pattern) {
+			this.chars = new char [pattern.length()];
+			this.masks = new long [pattern.length()];
+			for (int i=0; i<pattern.length(); i++) {
+				final char c = pattern.charAt(i);
+				int idx = indexOf(c);
+				if (idx<0) {
+					idx=size++;
+					chars[idx]=c;
+				}
+				masks[idx] |= 1L << i;
+			}
+		}
+
+		private int indexOf (final char c) {
+			for (int i=0; i<size; i++)
+				if (chars[i]==c) return i;
+			return -1;
+		}
+
+		long get (final char c) {
+			final int idx = indexOf(c);
+			return idx<0 ? 0L : masks[idx];
+		}
 	}
 
 	/**
@@ -35,6 +35,7 @@ import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.broadinstitute.dropseqrna.utils.ObjectCounter;
 
@@ -52,16 +53,29 @@ public class MapBarcodesByEditDistance {
 	private final Log log = Log.getInstance(MapBarcodesByEditDistance.class);
 	private final int REPORT_PROGRESS_INTERVAL;
 	private final boolean verbose;
+	private final NeighborSearchStrategy neighborSearchStrategy;
 	private ForkJoinPool forkJoinPool;
 
-	public MapBarcodesByEditDistance (final boolean verbose, final int numThreads, final int reportProgressInterval) {
+	/**
+	 * @param verbose Log timing information for each collapse.
+	 * @param numThreads The number of threads used to compare barcodes during a full scan.
+	 * @param reportProgressInterval Log progress every this many barcodes.  Set to 0 to disable.
+	 * @param neighborSearchStrategy How to find the neighbors of a barcode.  INDEXED builds a {@link BarcodeNeighborIndex} once per
+	 * collapse instead of comparing each barcode to every other barcode.
+	 */
+	public MapBarcodesByEditDistance (final boolean verbose, final int numThreads, final int reportProgressInterval, final NeighborSearchStrategy neighborSearchStrategy) {
 		this.verbose=verbose;
 		this.NUM_THREADS=numThreads;
 		this.REPORT_PROGRESS_INTERVAL=reportProgressInterval;
+		this.neighborSearchStrategy=neighborSearchStrategy;
 		// https://blog.krecan.net/2014/03/18/how-to-specify-thread-pool-for-java-8-parallel-streams/
 		forkJoinPool = new ForkJoinPool(numThreads);
 	}
 
+	public MapBarcodesByEditDistance (final boolean verbose, final int numThreads, final int reportProgressInterval) {
+		this(verbose, numThreads, reportProgressInterval, NeighborSearchStrategy.FULL_SCAN);
+	}
+
 	public MapBarcodesByEditDistance (final boolean verbose, final int reportProgressInterval) {
 		this(verbose, 1, reportProgressInterval);
 	}
@@ -84,8 +98,19 @@ public class MapBarcodesByEditDistance {
 		Map<String, String> result=new HashMap<>();
 		long startTime = System.currentTimeMillis();
 
+		BarcodeNeighborIndex indelIndex = null;
+		BarcodeNeighborIndex hammingIndex = null;
+		if (useIndex()) {
+			indelIndex = new BarcodeNeighborIndex(potentialIntendedSequences, editDistance, true);
+			hammingIndex = new BarcodeNeighborIndex(potentialIntendedSequences, editDistance, false);
+		}
+
 		for (String repairedBC: repairedCellBarcodes) {
-			Set<String> possibleIntendedSequences = findIntendedIndelSequences(repairedBC, potentialIntendedSequences, editDistance);
+			Set<String> possibleIntendedSequences;
+			if (useIndex())
+				possibleIntendedSequences = filterIntendedIndelSequences(repairedBC, indelIndex.getNeighbors(repairedBC, editDistance), hammingIndex.getNeighbors(repairedBC, editDistance));
+			else
+				possibleIntendedSequences = findIntendedIndelSequences(repairedBC, potentialIntendedSequences, editDistance);
 			if (possibleIntendedSequences.size()==1)
 				result.put(repairedBC, possibleIntendedSequences.iterator().next());
 		}
@@ -111,6 +136,17 @@ public class MapBarcodesByEditDistance {
 	Set<String> findIntendedIndelSequences (final String repairedCellBarcode, final List<String> otherBarcodes, final int editDistance) {
 		Set<String> indelResult = processSingleBarcodeMultithreaded(repairedCellBarcode, otherBarcodes, true, editDistance);
 		Set<String> hammingResult = processSingleBarcodeMultithreaded(repairedCellBarcode, otherBarcodes, false, editDistance);
+		return filterIntendedIndelSequences(repairedCellBarcode, indelResult, hammingResult);
+	}
+
+	/**
+	 * Restrict the barcodes within the edit distance of a repaired barcode to those that are intended sequences.
+	 * @param repairedCellBarcode
+	 * @param indelResult barcodes within the indel corrected edit distance of the repaired barcode.
+	 * @param hammingResult barcodes within the hamming distance of the repaired barcode.
+	 * @return
+	 */
+	private Set<String> filterIntendedIndelSequences (final String repairedCellBarcode, final Set<String> indelResult, final Set<String> hammingResult) {
 		Set<String> hammingResultPos12 = new HashSet<>();
 
 		// indel changes must be deletions in the repaired region (or insertions in the intended sequence)
@@ -160,20 +196,35 @@ public class MapBarcodesByEditDistance {
 		int totalCollapsed=0;
 		
 		List<String> barcodeList = barcodes.getKeysOrderedByCount(true);
+		// the index tracks the barcodes that are still eligible to be collapsed.
+		BarcodeNeighborIndex index = null;
+		if (useIndex()) index = new BarcodeNeighborIndex(barcodeList, maxEditDistance, findIndels);
 		
 		long startTime = System.currentTimeMillis();
 		if (this.REPORT_PROGRESS_INTERVAL!=0)
 			log.info("Start of mutational barcode collapse for [", barcodes.getKeys().size()+"] barcodes with minimum parent size [", minSizeToCollapse, "] and max edit distance [", maxEditDistance+"]");
-		while (barcodeList.isEmpty()==false) {
-			String b = barcodeList.get(0);
+		int position=0;
+		while (position<barcodeList.size()) {
+			// with an index, walk the ordered list and skip barcodes that have already been collapsed.
+			// without one, collapsed barcodes are removed from the list so the next barcode is always first.
+			String b = (index!=null) ? barcodeList.get(position++) : barcodeList.get(0);
+			if (index!=null && !index.contains(b))
+				continue;
 			int barcodeSize=barcodes.getCountForKey(b);
 			// if you've iterated past the smallest barcode you're willing to consider, break the loop.
 			if (barcodeSize<minSizeToCollapse)
 				break;  
 			count++;
-			barcodeList.remove(b);
-			
-			Set<String> closeBC=findRelatedBarcodesByMutationalCollapse(b, barcodeList, findIndels, maxEditDistance, pathStepSize);
+
+			Set<String> closeBC;
+			if (index!=null) {
+				index.remove(b);
+				closeBC=findRelatedBarcodesByMutationalCollapse(b, index, findIndels, maxEditDistance, pathStepSize);
+				index.removeAll(closeBC);
+			} else {
+				barcodeList.remove(b);
+				closeBC=findRelatedBarcodesByMutationalCollapse(b, barcodeList, findIndels, maxEditDistance, pathStepSize);
+			}
 			numBCCollapsed+=closeBC.size();
 			totalCollapsed+=closeBC.size();
 			if (result.containsKey(b))
@@ -183,9 +234,10 @@ public class MapBarcodesByEditDistance {
 			Collections.sort(closeBCList);
 			result.put(b, closeBCList);
 
-			barcodeList.removeAll(closeBC);			
+			if (index==null) barcodeList.removeAll(closeBC);
 			if (this.REPORT_PROGRESS_INTERVAL!=0 && count % this.REPORT_PROGRESS_INTERVAL == 0) {
-				if (barcodes.getSize()>10000) log.info("Processed [" + count + "] records, totals BC Space left [" + barcodeList.size() +"]", " # collapsed this set [" + numBCCollapsed+"]");				
+				int remaining = (index!=null) ? index.size() : barcodeList.size();
+				if (barcodes.getSize()>10000) log.info("Processed [" + count + "] records, totals BC Space left [" + remaining +"]", " # collapsed this set [" + numBCCollapsed+"]");				
 				numBCCollapsed=0;
 				
 			}
@@ -213,24 +265,46 @@ public class MapBarcodesByEditDistance {
 	 * @return
 	 */
 	public Set<String> findRelatedBarcodesByMutationalCollapse (final String barcode, final List<String> allBarcodes, final boolean findIndels, final int maxEditDistance, final int pathStepSize) {
-		// parameterizing minEditDistance could lead to complications - how far apart are subseqeunt jumps from the first set of barcodes found?  ED=1 or ED=minEditDistance?		
-		// store results for each edit distance here.
-		Map<Integer, List<String>> validBarcodes = new HashMap<> ();
-
 		// map from the initial barcode to all the other barcodes, group by edit distance.
 		Map<Integer, Set<String>> barcodesAtED = new HashMap<>();
 		int [] edList = getEditDistanceDistributioneMultithreaded(barcode, allBarcodes, findIndels);
-		for (int i=0; i<allBarcodes.size(); i++) {
-			int ed = edList[i];
-			if (ed<=maxEditDistance) {
-				Set<String> bcSet = barcodesAtED.get(ed);
-				if (bcSet==null) {
-					bcSet=new HashSet<>();
-					barcodesAtED.put(ed, bcSet);
-				}
-				bcSet.add(allBarcodes.get(i));
+		for (int i=0; i<allBarcodes.size(); i++)
+			addBarcodeAtEditDistance(allBarcodes.get(i), edList[i], maxEditDistance, barcodesAtED);
+		return findRelatedBarcodesByMutationalCollapse(barcodesAtED, findIndels, maxEditDistance, pathStepSize);
+	}
+
+	/**
+	 * Find barcodes related to the core barcode, using an index of all barcodes to search.
+	 * @see #findRelatedBarcodesByMutationalCollapse(String, List, boolean, int, int)
+	 * @param barcode The barcode to find neighbors for
+	 * @param index An index of all barcodes to search, built for at least maxEditDistance.
+	 * @param findIndels Should we find indels, or hamming distance only?
+	 * @param maxEditDistance The maximum edit distance to search
+	 * @param pathStepSize The maximum edit distance from any child to another child.
+	 * @return
+	 */
+	public Set<String> findRelatedBarcodesByMutationalCollapse (final String barcode, final BarcodeNeighborIndex index, final boolean findIndels, final int maxEditDistance, final int pathStepSize) {
+		Map<Integer, Set<String>> barcodesAtED = new HashMap<>();
+		for (Map.Entry<String, Integer> e: index.getNeighborDistances(barcode, maxEditDistance).entrySet())
+			addBarcodeAtEditDistance(e.getKey(), e.getValue(), maxEditDistance, barcodesAtED);
+		return findRelatedBarcodesByMutationalCollapse(barcodesAtED, findIndels, maxEditDistance, pathStepSize);
+	}
+
+	private void addBarcodeAtEditDistance (final String barcode, final int ed, final int maxEditDistance, final Map<Integer, Set<String>> barcodesAtED) {
+		if (ed<=maxEditDistance) {
+			Set<String> bcSet = barcodesAtED.get(ed);
+			if (bcSet==null) {
+				bcSet=new HashSet<>();
+				barcodesAtED.put(ed, bcSet);
 			}
+			bcSet.add(barcode);
 		}
+	}
+
+	private Set<String> findRelatedBarcodesByMutationalCollapse (final Map<Integer, Set<String>> barcodesAtED, final boolean findIndels, final int maxEditDistance, final int pathStepSize) {
+		// parameterizing minEditDistance could lead to complications - how far apart are subseqeunt jumps from the first set of barcodes found?  ED=1 or ED=minEditDistance?		
+		// store results for each edit distance here.
+		Map<Integer, List<String>> validBarcodes = new HashMap<> ();
 
 		for (int editDistance=pathStepSize; editDistance<=maxEditDistance; editDistance+=pathStepSize) {
 			// short circuit this edit distance if there are no barcodes at the edit distance.
@@ -278,22 +352,47 @@ public class MapBarcodesByEditDistance {
 			return result;
 		// ordered from smallest to largest.
 		List<String> barcodeList = barcodes.getKeysOrderedByCount(false);
-		List<char []> barcodeListArrays = barcodeList.stream().map(x-> x.toCharArray()).collect(Collectors.toList());
-
-		// assert all the char [] are the same length to speed things up.
-		if (!assertAllArraysSameLength(barcodeListArrays))
+		// assert all the barcodes are the same length to speed things up.
+		if (!assertAllStringsSameLength(barcodeList))
 			throw new IllegalArgumentException("This collapse requires all strings to be the same length!");
 
+		// when every barcode can be packed, compare packed barcodes instead of char []'s.
+		long [] packedBases = null;
+		long [] packedNMasks = null;
+		List<char []> barcodeListArrays = null;
+		if (barcodeList.stream().allMatch(PackedBarcode::isPackable)) {
+			packedBases = new long [barcodeList.size()];
+			packedNMasks = new long [barcodeList.size()];
+			for (int i=0; i<barcodeList.size(); i++) {
+				PackedBarcode p = PackedBarcode.fromString(barcodeList.get(i));
+				packedBases[i]=p.getBases();
+				packedNMasks[i]=p.getNMask();
+			}
+		} else
+			barcodeListArrays = barcodeList.stream().map(x-> x.toCharArray()).collect(Collectors.toList());
+
 		long startTime = System.currentTimeMillis();
 
+		// the index holds barcodes [i+1:(end-1)]
+		BarcodeNeighborIndex index = null;
+		if (useIndex()) index = new BarcodeNeighborIndex(barcodeList, editDistance, false);
+
 		// process [i] vs [i+1:(end-1)]
 		// can't collapse the last barcode with nothing...
-		int len=barcodeListArrays.size();
+		int len=barcodeList.size();
 		for (int i=0; i<(len-1); i++) {
 			String smallBC = barcodeList.get(i);
-			List<char [] > largerBarcodes= barcodeListArrays.subList(i+1, len);
-			// get the small barcode as the char []
-			Set<String> largerRelatedBarcodes = processHammingDistanceEqualSizedStrings(barcodeListArrays.get(i), largerBarcodes, editDistance);
+			Set<String> largerRelatedBarcodes;
+			if (index!=null) {
+				index.remove(smallBC);
+				largerRelatedBarcodes = index.getNeighbors(smallBC, editDistance);
+			} else if (packedBases!=null)
+				largerRelatedBarcodes = processHammingDistancePacked(i, packedBases, packedNMasks, barcodeList, editDistance);
+			else {
+				List<char [] > largerBarcodes= barcodeListArrays.subList(i+1, len);
+				// get the small barcode as the char []
+				largerRelatedBarcodes = processHammingDistanceEqualSizedStrings(barcodeListArrays.get(i), largerBarcodes, editDistance);
+			}
 
 			// if there's just 1 larger neighbor, the result is unambiguous.
 			if (largerRelatedBarcodes.size()==1 ) {
@@ -344,14 +443,40 @@ public class MapBarcodesByEditDistance {
 	}
 
 	/**
-	 * Make sure all character arrays are the same size so you can use the short-cut hamming distance that doesn't do this check.
-	 * @param charArrays
+	 * Find the packed barcodes after position [index] that are within the hamming distance of the barcode at [index].
+	 * All barcodes must be the same length.
+	 * @param index The barcode to compare
+	 * @param bases The packed bases of all barcodes
+	 * @param nMasks The packed N masks of all barcodes
+	 * @param barcodeList The barcodes as Strings, in the same order as the packed barcodes.
+	 * @param editDistance
+	 * @return
+	 */
+	private Set<String> processHammingDistancePacked (final int index, final long [] bases, final long [] nMasks, final List<String> barcodeList, final int editDistance) {
+		final int length=barcodeList.get(index).length();
+		final long b = bases[index];
+		final long n = nMasks[index];
+		if (this.NUM_THREADS==1)
+			return IntStream.range(index+1, bases.length).filter(x -> PackedBarcode.getHammingDistance(b, n, bases[x], nMasks[x], length) <= editDistance).mapToObj(barcodeList::get).collect(Collectors.toSet());
+		try {
+			return forkJoinPool.submit(() -> IntStream.range(index+1, bases.length).parallel().filter(x -> PackedBarcode.getHammingDistance(b, n, bases[x], nMasks[x], length) <= editDistance).mapToObj(barcodeList::get).collect(Collectors.toSet())).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while comparing barcodes", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Exception comparing barcodes", e.getCause());
+		}
+	}
+
+	/**
+	 * Make sure all strings are the same size so you can use the short-cut hamming distance that doesn't do this check.
+	 * @param strings
 	 * @return
 	 */
-	private boolean assertAllArraysSameLength (final Collection<char []> charArrays) {
-		int length = charArrays.iterator().next().length;
-		for (char [] s: charArrays){
-			int l = s.length;
+	private boolean assertAllStringsSameLength (final Collection<String> strings) {
+		int length = strings.iterator().next().length();
+		for (String s: strings){
+			int l = s.length();
 			if (l!=length) return false;
 		}
 		return true;
@@ -396,6 +521,43 @@ public class MapBarcodesByEditDistance {
 
 	}
 
+	/**
+	 * Collapses packed barcodes by hamming distance.
+	 * Returns a counter of the barcodes, with the counts of the barcodes updated to reflect barcodes that were collapsed.
+	 * This gives the same result as {@link #collapseAndMergeBarcodes(ObjectCounter, boolean, int)} without indels, but
+	 * compares barcodes with {@link PackedBarcode#getHammingDistance(PackedBarcode)}.
+	 * @param barcodes
+	 * @param editDistance
+	 * @return
+	 */
+	public PackedBarcodeCounter collapseAndMergeBarcodes (final PackedBarcodeCounter barcodes, final int editDistance) {
+		if (editDistance==0) return barcodes;
+		if (barcodes.hasUnpackedKeys())
+			return new PackedBarcodeCounter(collapseAndMergeBarcodes(barcodes.toObjectCounter(), false, editDistance));
+
+		// every barcode is a core barcode, so walk from largest to smallest and merge each remaining barcode into the first barcode it's close to.
+		List<PackedBarcode> barcodeList = barcodes.getPackedKeysOrderedByCount(true);
+		int len = barcodeList.size();
+		int [] counts = new int [len];
+		for (int i=0; i<len; i++)
+			counts[i]=barcodes.getCountForKey(barcodeList.get(i));
+		boolean [] collapsed = new boolean [len];
+
+		PackedBarcodeCounter result = new PackedBarcodeCounter(len);
+		for (int i=0; i<len; i++) {
+			if (collapsed[i]) continue;
+			PackedBarcode core = barcodeList.get(i);
+			int totalCount=counts[i];
+			for (int j=i+1; j<len; j++)
+				if (!collapsed[j] && core.getHammingDistance(barcodeList.get(j))<=editDistance) {
+					totalCount+=counts[j];
+					collapsed[j]=true;
+				}
+			result.incrementByCount(core, totalCount);
+		}
+		return result;
+	}
+
 	public AdaptiveMappingResult collapseBarcodesAdaptive (final ObjectCounter<String> barcodes, final boolean findIndels, final int defaultEditDistance, final int minEditDistance, final int maxEditDistance) {
 		List<String> coreBarcodes = barcodes.getKeysOrderedByCount(true);
 		return (collapseBarcodesAdaptive(coreBarcodes, barcodes, findIndels, defaultEditDistance, minEditDistance, maxEditDistance));
@@ -426,15 +588,26 @@ public class MapBarcodesByEditDistance {
 		int numBCCollapsed=0;
 
 		List<String> barcodeList = barcodes.getKeysOrderedByCount(true);
+		// the index tracks the barcodes that are still eligible to be collapsed.
+		BarcodeNeighborIndex index = null;
+		if (useIndex()) index = new BarcodeNeighborIndex(barcodeList, editDistance, findIndels);
 		int coreBarcodeCount=coreBarcodes.size();
 		long startTime = System.currentTimeMillis();
 		while (coreBarcodes.isEmpty()==false) {
 			String b = coreBarcodes.get(0);
 			count++;
 			coreBarcodes.remove(b);
-			barcodeList.remove(b);
 
-			Set<String> closeBC=processSingleBarcode(b, barcodeList, findIndels, editDistance);
+			Set<String> closeBC;
+			if (index!=null) {
+				index.remove(b);
+				closeBC=new HashSet<>(index.getNeighbors(b, editDistance));
+				index.removeAll(closeBC);
+			} else {
+				barcodeList.remove(b);
+				closeBC=processSingleBarcode(b, barcodeList, findIndels, editDistance);
+				barcodeList.removeAll(closeBC);
+			}
 			numBCCollapsed+=closeBC.size();
 
 			if (result.containsKey(b))
@@ -444,10 +617,10 @@ public class MapBarcodesByEditDistance {
 			Collections.sort(closeBCList);
 			result.put(b, closeBCList);
 
-			barcodeList.removeAll(closeBC);
 			coreBarcodes.removeAll(closeBC);
 			if (this.REPORT_PROGRESS_INTERVAL!=0 && count % this.REPORT_PROGRESS_INTERVAL == 0) {
-				if (barcodes.getSize()>10000) log.info("Processed [" + count + "] records, totals BC Space left [" + barcodeList.size() +"]", " # collapsed this set [" + numBCCollapsed+"]");
+				int remaining = (index!=null) ? index.size() : barcodeList.size();
+				if (barcodes.getSize()>10000) log.info("Processed [" + count + "] records, totals BC Space left [" + remaining +"]", " # collapsed this set [" + numBCCollapsed+"]");
 				numBCCollapsed=0;
 			}
 		}
@@ -677,6 +850,10 @@ public class MapBarcodesByEditDistance {
 
 
 
+	private boolean useIndex () {
+		return this.neighborSearchStrategy==NeighborSearchStrategy.INDEXED;
+	}
+
 	private Set<String> processSingleBarcode(final String barcode, final List<String> comparisonBarcodes, final boolean findIndels, final int editDistance) {
 		Set<String> closeBarcodes =null;
 
@@ -705,7 +882,7 @@ public class MapBarcodesByEditDistance {
 		Set<String> result = Collections.EMPTY_SET;
 		try {
 			if (findIndels)
-				result = forkJoinPool.submit(() -> comparisonBarcodes.parallelStream().filter(x -> LevenshteinDistance.getIndelSlidingWindowEditDistance(barcode, x) <= editDistance).collect(Collectors.toSet())).get();
+				result = forkJoinPool.submit(() -> comparisonBarcodes.parallelStream().filter(x -> LevenshteinDistance.isWithinIndelSlidingWindowEditDistance(barcode, x, editDistance)).collect(Collectors.toSet())).get();
 			else
 				result = forkJoinPool.submit(() -> comparisonBarcodes.parallelStream().filter(x -> HammingDistance.getHammingDistance(barcode, x) <= editDistance).collect(Collectors.toSet())).get();
 		} catch (InterruptedException e) {
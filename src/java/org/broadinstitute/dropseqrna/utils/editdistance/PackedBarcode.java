@@ -0,0 +1,185 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.editdistance;
+
+/**
+ * A barcode of up to 32 bases packed into a pair of longs.
+ * Each base is stored as 2 bits (A=0, C=1, G=2, T=3) at bit position 2*i.  N bases are stored as A, with the low bit of
+ * their 2 bit slot set in a separate N mask.  This lets hamming distance be computed with an XOR and a popcount instead
+ * of comparing characters one at a time, and costs 2 longs instead of a String and a char array.
+ */
+public final class PackedBarcode implements Comparable<PackedBarcode> {
+
+	/** The longest barcode that can be packed. */
+	public static final int MAX_LENGTH=32;
+
+	// the low bit of every 2 bit slot.
+	private static final long LOW_BITS=0x5555555555555555L;
+
+	private final long bases;
+	private final long nMask;
+	private final int length;
+
+	public PackedBarcode (final long bases, final long nMask, final int length) {
+		if (length<0 || length>MAX_LENGTH)
+			throw new IllegalArgumentException("Packed barcodes must be between 0 and " + MAX_LENGTH + " bases long.  Length [" + length + "]");
+		this.bases=bases;
+		this.nMask=nMask;
+		this.length=length;
+	}
+
+	/**
+	 * @return true if the barcode is at most MAX_LENGTH bases long and only contains A, C, G, T or N.
+	 */
+	public static boolean isPackable (final String barcode) {
+		if (barcode.length()>MAX_LENGTH) return false;
+		for (int i=0; i<barcode.length(); i++)
+			if (getBaseCode(barcode.charAt(i))==-1 && barcode.charAt(i)!='N') return false;
+		return true;
+	}
+
+	/**
+	 * Pack a barcode.
+	 * @param barcode A barcode of at most MAX_LENGTH bases containing only A, C, G, T or N.
+	 * @return The packed barcode
+	 */
+	public static PackedBarcode fromString (final String barcode) {
+		if (barcode.length()>MAX_LENGTH)
+			throw new IllegalArgumentException("Barcode [" + barcode +"] is longer than " + MAX_LENGTH + " bases and can't be packed");
+		long bases=0;
+		long nMask=0;
+		for (int i=0; i<barcode.length(); i++) {
+			char c = barcode.charAt(i);
+			long code = getBaseCode(c);
+			if (code==-1) {
+				if (c!='N')
+					throw new IllegalArgumentException("Barcode [" + barcode +"] contains a base other than A, C, G, T or N and can't be packed");
+				nMask|= 1L << (2*i);
+			} else
+				bases|= code << (2*i);
+		}
+		return new PackedBarcode(bases, nMask, barcode.length());
+	}
+
+	private static int getBaseCode (final char base) {
+		switch (base) {
+			case 'A': return 0;
+			case 'C': return 1;
+			case 'G': return 2;
+			case 'T': return 3;
+			default: return -1;
+		}
+	}
+
+	public long getBases() {
+		return bases;
+	}
+
+	public long getNMask() {
+		return nMask;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the base at the position as a character.
+	 */
+	public char getBase (final int position) {
+		if (((this.nMask >>> (2*position)) & 1L) == 1L) return 'N';
+		switch ((int) ((this.bases >>> (2*position)) & 3L)) {
+			case 0: return 'A';
+			case 1: return 'C';
+			case 2: return 'G';
+			default: return 'T';
+		}
+	}
+
+	/**
+	 * The hamming distance between two packed barcodes.
+	 * As with {@link HammingDistance#getHammingDistance(String, String)}, if the barcodes are not the same length the
+	 * extra bases of the longer barcode all count as differences.
+	 */
+	public int getHammingDistance (final PackedBarcode other) {
+		int shorter=Math.min(this.length, other.length);
+		int longer=Math.max(this.length, other.length);
+		return getHammingDistance(this.bases, this.nMask, other.bases, other.nMask, shorter) + (longer-shorter);
+	}
+
+	/**
+	 * The hamming distance between two packed barcodes of the same length, without creating PackedBarcode objects.
+	 * @param length The number of bases to compare.
+	 */
+	public static int getHammingDistance (final long bases1, final long nMask1, final long bases2, final long nMask2, final int length) {
+		long x = bases1 ^ bases2;
+		// a position differs if either bit of the base differs, or only one of the two bases is an N.
+		long diff = ((x | (x >>> 1)) & LOW_BITS) | (nMask1 ^ nMask2);
+		if (length<MAX_LENGTH) diff&= (1L << (2*length)) - 1;
+		return Long.bitCount(diff);
+	}
+
+	/**
+	 * Orders barcodes the same way as their String representations.
+	 */
+	@Override
+	public int compareTo (final PackedBarcode o) {
+		int shorter=Math.min(this.length, o.length);
+		for (int i=0; i<shorter; i++) {
+			char c1 = getBase(i);
+			char c2 = o.getBase(i);
+			if (c1!=c2) return c1-c2;
+		}
+		return this.length-o.length;
+	}
+
+	@Override
+	public boolean equals (final Object obj) {
+		if (this == obj) return true;
+		if (obj == null || getClass() != obj.getClass()) return false;
+		PackedBarcode other = (PackedBarcode) obj;
+		return this.bases==other.bases && this.nMask==other.nMask && this.length==other.length;
+	}
+
+	@Override
+	public int hashCode () {
+		return hashCode(this.bases, this.nMask, this.length);
+	}
+
+	static int hashCode (final long bases, final long nMask, final int length) {
+		long h = bases * 0x9E3779B97F4A7C15L;
+		h^= nMask * 0xC2B2AE3D27D4EB4FL;
+		h^= length;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	@Override
+	public String toString () {
+		char [] result = new char [this.length];
+		for (int i=0; i<this.length; i++)
+			result[i]=getBase(i);
+		return new String(result);
+	}
+
+}
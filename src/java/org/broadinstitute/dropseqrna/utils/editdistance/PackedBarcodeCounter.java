@@ -0,0 +1,273 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.editdistance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.broadinstitute.dropseqrna.utils.ObjectCounter;
+
+/**
+ * Counts barcodes, storing them as {@link PackedBarcode}s in primitive arrays instead of a map of Strings to Integers.
+ * Entries are kept in insertion order in parallel arrays, and found through an open addressing hash table of entry
+ * indexes, so a barcode costs 2 longs, a byte and a couple of ints instead of a String, a char array, a boxed Integer
+ * and a map entry.  Keys are iterated in insertion order, which does not match the hash order of an ObjectCounter
+ * holding the same counts.
+ *
+ * Barcodes that can't be packed (too long, or containing bases other than ACGTN) are counted in an ObjectCounter
+ * alongside the packed barcodes, so any String can be counted.
+ */
+public class PackedBarcodeCounter {
+
+	private static final int DEFAULT_CAPACITY=4;
+
+	private long [] bases;
+	private long [] nMasks;
+	private byte [] lengths;
+	private int [] counts;
+	private int size;
+	// hash table of entry index+1, 0 marks an empty slot.
+	private int [] table;
+	// only created if an unpackable barcode is seen.
+	private ObjectCounter<String> unpacked;
+
+	public PackedBarcodeCounter () {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public PackedBarcodeCounter (final int expectedSize) {
+		int capacity = Math.max(expectedSize, DEFAULT_CAPACITY);
+		this.bases=new long [capacity];
+		this.nMasks=new long [capacity];
+		this.lengths=new byte [capacity];
+		this.counts=new int [capacity];
+		this.size=0;
+		this.table=new int [tableSizeFor(capacity)];
+	}
+
+	/**
+	 * Make a copy of the counts in an ObjectCounter.
+	 */
+	public PackedBarcodeCounter (final ObjectCounter<String> counter) {
+		this(counter.getSize());
+		for (String key: counter.getKeys())
+			incrementByCount(key, counter.getCountForKey(key));
+	}
+
+	private static int tableSizeFor (final int numEntries) {
+		int n=DEFAULT_CAPACITY;
+		// keep the table at most half full.
+		while (n < numEntries*2) n<<=1;
+		return n;
+	}
+
+	public void increment (final String barcode) {
+		incrementByCount(barcode, 1);
+	}
+
+	public void incrementByCount (final String barcode, final int count) {
+		if (PackedBarcode.isPackable(barcode))
+			incrementByCount(PackedBarcode.fromString(barcode), count);
+		else {
+			if (this.unpacked==null) this.unpacked=new ObjectCounter<>();
+			this.unpacked.incrementByCount(barcode, count);
+		}
+	}
+
+	public void incrementByCount (final PackedBarcode barcode, final int count) {
+		int slot = findSlot(barcode.getBases(), barcode.getNMask(), barcode.getLength());
+		if (this.table[slot]==0)
+			addEntry(slot, barcode.getBases(), barcode.getNMask(), (byte) barcode.getLength(), count);
+		else
+			this.counts[this.table[slot]-1]+=count;
+	}
+
+	private void addEntry (final int slot, final long b, final long n, final byte length, final int count) {
+		if (this.size==this.bases.length) {
+			int capacity = this.size*2;
+			this.bases=Arrays.copyOf(this.bases, capacity);
+			this.nMasks=Arrays.copyOf(this.nMasks, capacity);
+			this.lengths=Arrays.copyOf(this.lengths, capacity);
+			this.counts=Arrays.copyOf(this.counts, capacity);
+		}
+		this.bases[this.size]=b;
+		this.nMasks[this.size]=n;
+		this.lengths[this.size]=length;
+		this.counts[this.size]=count;
+		this.size++;
+		this.table[slot]=this.size;
+		if (this.size*2 > this.table.length) rebuildTable();
+	}
+
+	public int getCountForKey (final String barcode) {
+		if (PackedBarcode.isPackable(barcode))
+			return getCountForKey(PackedBarcode.fromString(barcode));
+		return (this.unpacked==null) ? 0 : this.unpacked.getCountForKey(barcode);
+	}
+
+	public int getCountForKey (final PackedBarcode barcode) {
+		int slot = findSlot(barcode.getBases(), barcode.getNMask(), barcode.getLength());
+		if (this.table[slot]==0) return 0;
+		return this.counts[this.table[slot]-1];
+	}
+
+	public boolean hasKey (final String barcode) {
+		if (PackedBarcode.isPackable(barcode)) {
+			PackedBarcode p = PackedBarcode.fromString(barcode);
+			return this.table[findSlot(p.getBases(), p.getNMask(), p.getLength())]!=0;
+		}
+		return this.unpacked!=null && this.unpacked.hasKey(barcode);
+	}
+
+	/**
+	 * @return The slot holding the barcode, or the empty slot where it would be inserted.
+	 */
+	private int findSlot (final long b, final long n, final int length) {
+		int mask = this.table.length-1;
+		int slot = PackedBarcode.hashCode(b, n, length) & mask;
+		while (this.table[slot]!=0) {
+			int e = this.table[slot]-1;
+			if (this.bases[e]==b && this.nMasks[e]==n && this.lengths[e]==length)
+				return slot;
+			slot=(slot+1) & mask;
+		}
+		return slot;
+	}
+
+	private void rebuildTable () {
+		this.table=new int [tableSizeFor(this.size)];
+		for (int e=0; e<this.size; e++)
+			this.table[findSlot(this.bases[e], this.nMasks[e], this.lengths[e])]=e+1;
+	}
+
+	/**
+	 * @return The number of distinct barcodes.
+	 */
+	public int getSize () {
+		return this.size+((this.unpacked==null) ? 0 : this.unpacked.getSize());
+	}
+
+	public int getTotalCount () {
+		int result=(this.unpacked==null) ? 0 : this.unpacked.getTotalCount();
+		for (int e=0; e<this.size; e++)
+			result+=this.counts[e];
+		return result;
+	}
+
+	/**
+	 * @return true if some barcodes could not be packed.
+	 */
+	public boolean hasUnpackedKeys () {
+		return this.unpacked!=null && this.unpacked.getSize()>0;
+	}
+
+	/**
+	 * @return The packed barcodes in the order they were first counted.  Barcodes that could not be packed are not included.
+	 */
+	public List<PackedBarcode> getPackedKeys () {
+		List<PackedBarcode> result = new ArrayList<>(this.size);
+		for (int e=0; e<this.size; e++)
+			result.add(getEntry(e));
+		return result;
+	}
+
+	public List<String> getKeys () {
+		List<String> result = new ArrayList<>(getSize());
+		for (int e=0; e<this.size; e++)
+			result.add(getEntry(e).toString());
+		if (this.unpacked!=null) result.addAll(this.unpacked.getKeys());
+		return result;
+	}
+
+	private PackedBarcode getEntry (final int e) {
+		return new PackedBarcode(this.bases[e], this.nMasks[e], this.lengths[e]);
+	}
+
+	/**
+	 * Packed barcodes ordered the same way as {@link ObjectCounter#getKeysOrderedByCount(boolean)}: by count, and then
+	 * alphabetically within a count.  Barcodes that could not be packed are not included.
+	 */
+	public List<PackedBarcode> getPackedKeysOrderedByCount (final boolean decreasing) {
+		PackedBarcode [] keys = new PackedBarcode [this.size];
+		Integer [] order = new Integer [this.size];
+		for (int e=0; e<this.size; e++) {
+			keys[e]=getEntry(e);
+			order[e]=e;
+		}
+		Comparator<Integer> byCount = Comparator.comparingInt(x -> this.counts[x]);
+		if (decreasing) byCount=byCount.reversed();
+		Arrays.sort(order, byCount.thenComparing(x -> keys[x]));
+		List<PackedBarcode> result = new ArrayList<>(this.size);
+		for (Integer e: order)
+			result.add(keys[e]);
+		return result;
+	}
+
+	/**
+	 * Barcodes ordered the same way as {@link ObjectCounter#getKeysOrderedByCount(boolean)}: by count, and then
+	 * alphabetically within a count.
+	 */
+	public List<String> getKeysOrderedByCount (final boolean decreasing) {
+		if (!hasUnpackedKeys()) {
+			List<String> result = new ArrayList<>(this.size);
+			for (PackedBarcode b: getPackedKeysOrderedByCount(decreasing))
+				result.add(b.toString());
+			return result;
+		}
+		return toObjectCounter().getKeysOrderedByCount(decreasing);
+	}
+
+	/**
+	 * Filters this counter so only entries with at least <count> number of reads remain.
+	 */
+	public void filterByMinCount (final int count) {
+		if (this.unpacked!=null) this.unpacked.filterByMinCount(count);
+		int kept=0;
+		for (int e=0; e<this.size; e++)
+			if (this.counts[e]>=count) {
+				this.bases[kept]=this.bases[e];
+				this.nMasks[kept]=this.nMasks[e];
+				this.lengths[kept]=this.lengths[e];
+				this.counts[kept]=this.counts[e];
+				kept++;
+			}
+		this.size=kept;
+		rebuildTable();
+	}
+
+	public ObjectCounter<String> toObjectCounter () {
+		ObjectCounter<String> result = (this.unpacked==null) ? new ObjectCounter<>() : new ObjectCounter<>(this.unpacked);
+		for (int e=0; e<this.size; e++)
+			result.setCount(getEntry(e).toString(), this.counts[e]);
+		return result;
+	}
+
+	@Override
+	public String toString () {
+		return toObjectCounter().toString();
+	}
+
+}
@@ -0,0 +1,222 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.io;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Runs tasks on a pool of threads and passes their results to a consumer on the submitting thread, in the order the
+ * tasks were submitted.  Submitting blocks, consuming finished results, while too many tasks are in flight, so a
+ * producer that reads its input faster than the workers can keep up holds only a bounded amount of work in memory.
+ *
+ * With fewer than 2 threads every task is run on the submitting thread as it is submitted.
+ */
+public class OrderedParallelExecutor<T> implements Closeable {
+
+    // a few tasks queued per thread keeps the workers busy while the submitting thread waits on the oldest one.
+    public static final int DEFAULT_TASKS_IN_FLIGHT_PER_THREAD = 4;
+
+    /**
+     * A task that passes on any number of results as it goes, instead of returning one at the end.
+     */
+    public interface Producer<T> {
+        void produce(Consumer<T> output) throws Exception;
+    }
+
+    private final String description;
+    private final Consumer<T> consumer;
+    private final ExecutorService executor;
+    private final int maxTasksInFlight;
+    private final long maxWeightInFlight;
+    private final Deque<Task> pending = new ArrayDeque<>();
+    private long weightInFlight = 0;
+    // marks the end of the results of a task.
+    private final Result<T> end = new Result<>(null);
+
+    /**
+     * @param description What the tasks do, for error messages, e.g. "tagging reads".
+     * @param numThreads The number of worker threads.
+     * @param consumer Passed the result of each task, in order, on the submitting thread.
+     */
+    public OrderedParallelExecutor(final String description, final int numThreads, final Consumer<T> consumer) {
+        this(description, numThreads, DEFAULT_TASKS_IN_FLIGHT_PER_THREAD, consumer);
+    }
+
+    /**
+     * @param tasksInFlightPerThread How many tasks per thread may be running or waiting to be consumed.
+     */
+    public OrderedParallelExecutor(final String description, final int numThreads, final int tasksInFlightPerThread,
+                                   final Consumer<T> consumer) {
+        this(description, numThreads, tasksInFlightPerThread, Long.MAX_VALUE, consumer);
+    }
+
+    /**
+     * @param maxWeightInFlight Results are also consumed while the total weight of the tasks in flight is more
+     *                          than this, unless only one task is in flight.
+     */
+    public OrderedParallelExecutor(final String description, final int numThreads, final int tasksInFlightPerThread,
+                                   final long maxWeightInFlight, final Consumer<T> consumer) {
+        this.description = description;
+        this.consumer = consumer;
+        this.executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+        this.maxTasksInFlight = Math.max(1, numThreads * tasksInFlightPerThread);
+        this.maxWeightInFlight = maxWeightInFlight;
+    }
+
+    public void submit(final Callable<T> task) {
+        submit(task, 0);
+    }
+
+    /**
+     * @param weight The size of the task, e.g. the number of reads it holds, counted against maxWeightInFlight
+     *               until its result is consumed.
+     */
+    public void submit(final Callable<T> task, final long weight) {
+        submit(output -> output.accept(task.call()), 1, weight);
+    }
+
+    /**
+     * Run a task whose results are consumed as it produces them.  The task waits while maxQueued of its results are
+     * waiting to be consumed, so a task with a great many results holds only a few of them at once.
+     */
+    public void submitProducer(final Producer<T> producer, final int maxQueued) {
+        if (maxQueued < 1)
+            throw new IllegalArgumentException("maxQueued must be positive");
+        submit(producer, maxQueued, 0);
+    }
+
+    private void submit(final Producer<T> producer, final int maxQueued, final long weight) {
+        if (executor == null) {
+            run(producer);
+            return;
+        }
+        final Task task = new Task(producer, maxQueued, weight);
+        pending.add(task);
+        weightInFlight += weight;
+        while (pending.size() >= maxTasksInFlight || (pending.size() > 1 && weightInFlight > maxWeightInFlight))
+            consumeNext();
+    }
+
+    /**
+     * Wait for every task submitted so far and consume its results.
+     */
+    public void finish() {
+        while (!pending.isEmpty())
+            consumeNext();
+    }
+
+    /**
+     * Stop the workers.  Results not yet consumed are dropped, so call finish first unless giving up.
+     */
+    @Override
+    public void close() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    private void consumeNext() {
+        final Task task = pending.poll();
+        try {
+            Result<T> result;
+            while ((result = task.results.take()) != end) {
+                consumer.accept(result.value);
+                task.queued.release();
+            }
+            task.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while " + description, e);
+        } catch (ExecutionException e) {
+            // unchecked exceptions are thrown as they would be with 1 thread.
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new RuntimeException("Exception " + description, e.getCause());
+        }
+        weightInFlight -= task.weight;
+    }
+
+    private void run(final Producer<T> producer) {
+        try {
+            producer.produce(consumer);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Exception " + description, e);
+        }
+    }
+
+    /**
+     * A submitted task, and its results waiting to be consumed.
+     */
+    private class Task {
+        private final BlockingQueue<Result<T>> results = new LinkedBlockingQueue<>();
+        private final Semaphore queued;
+        private final long weight;
+        private final Future<Void> future;
+
+        Task(final Producer<T> producer, final int maxQueued, final long weight) {
+            this.queued = new Semaphore(maxQueued);
+            this.weight = weight;
+            this.future = executor.submit(() -> {
+                try {
+                    producer.produce(this::add);
+                } finally {
+                    results.add(end);
+                }
+                return null;
+            });
+        }
+
+        private void add(final T value) {
+            try {
+                queued.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while " + description, e);
+            }
+            results.add(new Result<>(value));
+        }
+    }
+
+    private static class Result<T> {
+        private final T value;
+
+        Result(final T value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.io;
+
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BufferedLineReader;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Reads a BAM file sequentially, inflating BGZF blocks on multiple threads.  Records are decoded with htsjdk's
+ * BAMRecordCodec and validated the same way htsjdk's BAM reader does.
+ * Only a single pass over the file is supported, and there is no support for indexed queries.
+ */
+public class ParallelBAMFileReader implements SamReader.PrimitiveSamReader {
+
+    private static final byte[] BAM_MAGIC = "BAM\1".getBytes();
+
+    private final File input;
+    private final BinaryCodec inputBinaryCodec;
+    private final ValidationStringency validationStringency;
+    private final SAMFileHeader header;
+    private boolean iteratorCreated = false;
+
+    public ParallelBAMFileReader(final File input, final ValidationStringency validationStringency, final int numThreads) {
+        this(input, validationStringency, null, numThreads);
+    }
+
+    /**
+     * @param executor Pool shared with other readers, which the caller shuts down.  If null, the reader
+     *                 inflates on its own pool of numThreads threads.
+     * @param numThreads Number of threads used to inflate blocks.
+     */
+    public ParallelBAMFileReader(final File input, final ValidationStringency validationStringency,
+                                 final ExecutorService executor, final int numThreads) {
+        this.input = input;
+        this.validationStringency = validationStringency;
+        try {
+            final BufferedInputStream is = new BufferedInputStream(new FileInputStream(input), Defaults.BUFFER_SIZE);
+            final String source = input.getAbsolutePath();
+            this.inputBinaryCodec = new BinaryCodec(executor == null ?
+                    new ParallelBlockCompressedInputStream(is, numThreads, source) :
+                    new ParallelBlockCompressedInputStream(is, executor, numThreads, source));
+        } catch (FileNotFoundException e) {
+            throw new RuntimeIOException("Could not open " + input.getAbsolutePath(), e);
+        }
+        this.inputBinaryCodec.setInputFileName(input.getAbsolutePath());
+        this.header = readHeader();
+    }
+
+    private SAMFileHeader readHeader() {
+        final byte[] magic = new byte[BAM_MAGIC.length];
+        inputBinaryCodec.readBytes(magic);
+        if (!Arrays.equals(magic, BAM_MAGIC))
+            throw new SAMFormatException("Invalid BAM file header in " + input.getAbsolutePath());
+
+        final int headerTextLength = inputBinaryCodec.readInt();
+        String headerText = inputBinaryCodec.readString(headerTextLength);
+        // the header text may be padded with nulls.
+        final int nullPos = headerText.indexOf('\0');
+        if (nullPos >= 0)
+            headerText = headerText.substring(0, nullPos);
+        final SAMTextHeaderCodec headerCodec = new SAMTextHeaderCodec();
+        headerCodec.setValidationStringency(validationStringency);
+        final SAMFileHeader result = headerCodec.decode(BufferedLineReader.fromString(headerText), input.getAbsolutePath());
+
+        final int numSequences = inputBinaryCodec.readInt();
+        final List<SAMSequenceRecord> sequences = new ArrayList<>(numSequences);
+        for (int i = 0; i < numSequences; i++) {
+            final int nameLength = inputBinaryCodec.readInt();
+            // the name is null terminated.
+            final String name = inputBinaryCodec.readString(nameLength).substring(0, nameLength - 1);
+            sequences.add(new SAMSequenceRecord(name, inputBinaryCodec.readInt()));
+        }
+        final SAMSequenceDictionary textDictionary = result.getSequenceDictionary();
+        if (textDictionary.isEmpty())
+            result.setSequenceDictionary(new SAMSequenceDictionary(sequences));
+        else {
+            // binary sequences are authoritative for reference indices, so make sure the text header agrees.
+            boolean same = textDictionary.size() == sequences.size();
+            for (int i = 0; same && i < sequences.size(); i++)
+                same = textDictionary.getSequence(i).getSequenceName().equals(sequences.get(i).getSequenceName()) &&
+                        textDictionary.getSequence(i).getSequenceLength() == sequences.get(i).getSequenceLength();
+            if (!same)
+                throw new SAMFormatException("Sequence dictionary in text header does not match binary sequences in " + input.getAbsolutePath());
+        }
+        return result;
+    }
+
+    @Override
+    public SamReader.Type type() {
+        return SamReader.Type.BAM_TYPE;
+    }
+
+    @Override
+    public boolean hasIndex() {
+        return false;
+    }
+
+    @Override
+    public BAMIndex getIndex() {
+        throw new UnsupportedOperationException("ParallelBAMFileReader does not support indices");
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader() {
+        return header;
+    }
+
+    @Override
+    public CloseableIterator<SAMRecord> getIterator() {
+        if (iteratorCreated)
+            throw new IllegalStateException("ParallelBAMFileReader only supports a single iteration of " + input.getAbsolutePath());
+        iteratorCreated = true;
+        return new BAMRecordIterator();
+    }
+
+    @Override
+    public CloseableIterator<SAMRecord> getIterator(final SAMFileSpan fileSpan) {
+        throw new UnsupportedOperationException("ParallelBAMFileReader does not support random access");
+    }
+
+    @Override
+    public SAMFileSpan getFilePointerSpanningReads() {
+        throw new UnsupportedOperationException("ParallelBAMFileReader does not support random access");
+    }
+
+    @Override
+    public CloseableIterator<SAMRecord> query(final QueryInterval[] intervals, final boolean contained) {
+        throw new UnsupportedOperationException("ParallelBAMFileReader does not support queries");
+    }
+
+    @Override
+    public CloseableIterator<SAMRecord> queryAlignmentStart(final String sequence, final int start) {
+        throw new UnsupportedOperationException("ParallelBAMFileReader does not support queries");
+    }
+
+    @Override
+    public CloseableIterator<SAMRecord> queryUnmapped() {
+        throw new UnsupportedOperationException("ParallelBAMFileReader does not support queries");
+    }
+
+    @Override
+    public void close() {
+        inputBinaryCodec.close();
+    }
+
+    @Override
+    public ValidationStringency getValidationStringency() {
+        return validationStringency;
+    }
+
+    private class BAMRecordIterator implements CloseableIterator<SAMRecord> {
+        private final BAMRecordCodec bamRecordCodec = new BAMRecordCodec(header, DefaultSAMRecordFactory.getInstance());
+        private SAMRecord next;
+        private long recordIndex = 0;
+
+        BAMRecordIterator() {
+            bamRecordCodec.setInputStream(inputBinaryCodec.getInputStream(), input.getAbsolutePath());
+            advance();
+        }
+
+        private void advance() {
+            next = bamRecordCodec.decode();
+            if (next == null)
+                return;
+            ++recordIndex;
+            next.setValidationStringency(validationStringency);
+            if (validationStringency != ValidationStringency.SILENT)
+                SAMUtils.processValidationErrors(next.isValid(validationStringency == ValidationStringency.STRICT), recordIndex, validationStringency);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public SAMRecord next() {
+            if (next == null)
+                throw new NoSuchElementException();
+            final SAMRecord result = next;
+            advance();
+            return result;
+        }
+
+        @Override
+        public void close() {
+            ParallelBAMFileReader.this.close();
+        }
+    }
+}
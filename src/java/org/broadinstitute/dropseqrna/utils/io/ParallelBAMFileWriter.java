@@ -0,0 +1,94 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.io;
+
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.*;
+
+/**
+ * A BAM writer that compresses BGZF blocks on multiple threads.  Records are encoded with htsjdk's BAMRecordCodec
+ * and the sorting behavior is inherited from SAMFileWriterImpl, so the only difference from htsjdk's BAM writer is
+ * how the blocks are compressed.  Does not build an index or an md5.
+ */
+public class ParallelBAMFileWriter extends SAMFileWriterImpl {
+
+    private static final byte[] BAM_MAGIC = "BAM\1".getBytes();
+
+    private final File output;
+    private final BinaryCodec outputBinaryCodec;
+    private BAMRecordCodec bamRecordCodec = null;
+
+    public ParallelBAMFileWriter(final File output, final int compressionLevel, final int numThreads) {
+        this.output = output;
+        try {
+            final OutputStream os = new BufferedOutputStream(new FileOutputStream(output), Defaults.BUFFER_SIZE);
+            this.outputBinaryCodec = new BinaryCodec(new ParallelBlockCompressedOutputStream(os, compressionLevel, numThreads));
+        } catch (FileNotFoundException e) {
+            throw new RuntimeIOException("Could not open " + output.getAbsolutePath() + " for writing", e);
+        }
+        this.outputBinaryCodec.setOutputFileName(output.getAbsolutePath());
+    }
+
+    @Override
+    protected void writeHeader(final SAMFileHeader header) {
+        final StringWriter headerText = new StringWriter();
+        new SAMTextHeaderCodec().encode(headerText, header);
+        outputBinaryCodec.writeBytes(BAM_MAGIC);
+        outputBinaryCodec.writeString(headerText.toString(), true, false);
+        outputBinaryCodec.writeInt(header.getSequenceDictionary().size());
+        for (final SAMSequenceRecord sequenceRecord: header.getSequenceDictionary().getSequences()) {
+            outputBinaryCodec.writeString(sequenceRecord.getSequenceName(), true, true);
+            outputBinaryCodec.writeInt(sequenceRecord.getSequenceLength());
+        }
+        bamRecordCodec = new BAMRecordCodec(header);
+        bamRecordCodec.setOutputStream(outputBinaryCodec.getOutputStream(), getFilename());
+    }
+
+    /**
+     * Required by SAMFileWriterImpl, but never called, because {@link #writeHeader(SAMFileHeader)} is overridden.
+     */
+    @Deprecated
+    @Override
+    protected void writeHeader(final String textHeader) {
+        throw new UnsupportedOperationException("The header is written from the SAMFileHeader");
+    }
+
+    @Override
+    protected void writeAlignment(final SAMRecord alignment) {
+        bamRecordCodec.encode(alignment);
+    }
+
+    @Override
+    protected void finish() {
+        outputBinaryCodec.close();
+    }
+
+    @Override
+    protected String getFilename() {
+        return output.getAbsolutePath();
+    }
+}
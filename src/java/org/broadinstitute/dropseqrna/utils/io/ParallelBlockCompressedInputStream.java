@@ -0,0 +1,232 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.io;
+
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads BGZF, inflating blocks on a pool of threads.
+ * Compressed blocks are read sequentially from the underlying stream and each is inflated as a separate task.
+ * The reader stays at most 4 blocks per thread ahead of the consumer, so memory use is bounded.
+ * This stream does not support seeking; use htsjdk's BlockCompressedInputStream for random access.
+ */
+public class ParallelBlockCompressedInputStream extends InputStream {
+
+    private final InputStream in;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final int maxBlocksInFlight;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final String source;
+
+    private byte[] current = new byte[0];
+    private int currentOffset = 0;
+    private boolean endOfInput = false;
+    private boolean closed = false;
+
+    /**
+     * @param in The BGZF stream to read.  It is closed when this stream is closed.
+     * @param numThreads Number of threads that inflate blocks.
+     * @param source Description of the stream for error messages.
+     */
+    public ParallelBlockCompressedInputStream(final InputStream in, final int numThreads, final String source) {
+        this(in, ParallelSamIO.newThreadPool(numThreads), true, numThreads, source);
+    }
+
+    /**
+     * Inflates blocks on a pool that may be shared with other streams.  The pool is not shut down when this
+     * stream is closed.
+     * @param in The BGZF stream to read.  It is closed when this stream is closed.
+     * @param executor The pool that inflates blocks.
+     * @param numThreads Number of threads in the pool, which bounds how far ahead this stream reads.
+     * @param source Description of the stream for error messages.
+     */
+    public ParallelBlockCompressedInputStream(final InputStream in, final ExecutorService executor, final int numThreads,
+                                              final String source) {
+        this(in, executor, false, numThreads, source);
+    }
+
+    private ParallelBlockCompressedInputStream(final InputStream in, final ExecutorService executor, final boolean ownsExecutor,
+                                               final int numThreads, final String source) {
+        if (numThreads < 1)
+            throw new IllegalArgumentException("numThreads must be at least 1");
+        this.in = in;
+        this.source = source;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.maxBlocksInFlight = numThreads * 4;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureAvailable())
+            return -1;
+        return current[currentOffset++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!ensureAvailable())
+            return -1;
+        final int n = Math.min(len, current.length - currentOffset);
+        System.arraycopy(current, currentOffset, b, off, n);
+        currentOffset += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.length - currentOffset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            in.close();
+        } finally {
+            if (ownsExecutor)
+                executor.shutdownNow();
+            else
+                for (final Future<byte[]> future : pending)
+                    future.cancel(false);
+        }
+    }
+
+    /**
+     * Moves on to the next non-empty block if the current one is used up.
+     * @return false if there are no more bytes.
+     */
+    private boolean ensureAvailable() throws IOException {
+        while (currentOffset == current.length) {
+            fillQueue();
+            if (pending.isEmpty())
+                return false;
+            current = take(pending.removeFirst());
+            currentOffset = 0;
+        }
+        return true;
+    }
+
+    private void fillQueue() throws IOException {
+        while (!endOfInput && pending.size() < maxBlocksInFlight) {
+            final byte[] block = readBlock();
+            if (block == null)
+                endOfInput = true;
+            else
+                pending.addLast(executor.submit(() -> inflateBlock(block, source)));
+        }
+    }
+
+    private byte[] take(final Future<byte[]> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeIOException("Interrupted while inflating BGZF block in " + source, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeIOException("Exception inflating BGZF block in " + source, e.getCause());
+        }
+    }
+
+    /**
+     * @return the next compressed block including header and footer, or null at the end of the stream.
+     */
+    private byte[] readBlock() throws IOException {
+        final byte[] header = new byte[BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+        final int n = readFully(header, 0, header.length);
+        if (n == 0)
+            return null;
+        if (n < header.length)
+            throw new EOFException("Truncated BGZF block header in " + source);
+        if (header[0] != BlockCompressedStreamConstants.GZIP_ID1 || (header[1] & 0xFF) != BlockCompressedStreamConstants.GZIP_ID2 ||
+                (header[3] & BlockCompressedStreamConstants.GZIP_FLG) == 0 ||
+                readShort(header, 10) != BlockCompressedStreamConstants.GZIP_XLEN ||
+                header[12] != BlockCompressedStreamConstants.BGZF_ID1 || header[13] != BlockCompressedStreamConstants.BGZF_ID2)
+            throw new SAMFormatException("Invalid BGZF block header in " + source);
+        final int blockLength = readShort(header, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1;
+        if (blockLength < BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH)
+            throw new SAMFormatException("Invalid BGZF block size in " + source);
+        final byte[] block = new byte[blockLength];
+        System.arraycopy(header, 0, block, 0, header.length);
+        if (readFully(block, header.length, blockLength - header.length) < blockLength - header.length)
+            throw new EOFException("Truncated BGZF block in " + source);
+        return block;
+    }
+
+    private int readFully(final byte[] b, final int off, final int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            final int n = in.read(b, off + total, len - total);
+            if (n < 0)
+                break;
+            total += n;
+        }
+        return total;
+    }
+
+    static byte[] inflateBlock(final byte[] block, final String source) throws DataFormatException {
+        final int uncompressedLength = readInt(block, block.length - 4);
+        final byte[] result = new byte[uncompressedLength];
+        if (uncompressedLength == 0)
+            return result;
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(block, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH,
+                    block.length - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH);
+            final int n = inflater.inflate(result);
+            if (n != uncompressedLength)
+                throw new SAMFormatException("Did not inflate expected number of bytes from BGZF block in " + source);
+        } finally {
+            inflater.end();
+        }
+        return result;
+    }
+
+    private static int readShort(final byte[] b, final int pos) {
+        return (b[pos] & 0xFF) | ((b[pos + 1] & 0xFF) << 8);
+    }
+
+    private static int readInt(final byte[] b, final int pos) {
+        return readShort(b, pos) | (readShort(b, pos + 2) << 16);
+    }
+}
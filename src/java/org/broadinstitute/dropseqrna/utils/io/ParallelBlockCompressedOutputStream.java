@@ -0,0 +1,203 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.io;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes BGZF, compressing blocks on a pool of threads.
+ * Uncompressed bytes are cut into blocks of the same size htsjdk uses, each block is deflated as a separate task,
+ * and blocks are written to the underlying stream in order.  At most 4 blocks per thread are in flight, so memory
+ * use is bounded no matter how far the writer gets ahead of compression.  The output is a standard BGZF file
+ * terminated with the empty EOF block.
+ */
+public class ParallelBlockCompressedOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final int compressionLevel;
+    private final ExecutorService executor;
+    private final int maxBlocksInFlight;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private byte[] buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+    private int numBuffered = 0;
+    private boolean closed = false;
+
+    /**
+     * @param out The stream the compressed blocks are written to.  It is closed when this stream is closed.
+     * @param compressionLevel Deflate compression level, 0-9.
+     * @param numThreads Number of threads that compress blocks.
+     */
+    public ParallelBlockCompressedOutputStream(final OutputStream out, final int compressionLevel, final int numThreads) {
+        if (numThreads < 1)
+            throw new IllegalArgumentException("numThreads must be at least 1");
+        this.out = out;
+        this.compressionLevel = compressionLevel;
+        this.executor = ParallelSamIO.newThreadPool(numThreads);
+        this.maxBlocksInFlight = numThreads * 4;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        buffer[numBuffered++] = (byte) b;
+        if (numBuffered == buffer.length)
+            submitBlock();
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            final int n = Math.min(len, buffer.length - numBuffered);
+            System.arraycopy(b, off, buffer, numBuffered, n);
+            numBuffered += n;
+            off += n;
+            len -= n;
+            if (numBuffered == buffer.length)
+                submitBlock();
+        }
+    }
+
+    /**
+     * Compresses any partial block and writes all blocks to the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (numBuffered > 0)
+            submitBlock();
+        while (!pending.isEmpty())
+            out.write(take(pending.removeFirst()));
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            flush();
+            out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+            out.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] block = buffer;
+        final int length = numBuffered;
+        pending.addLast(executor.submit(() -> compressBlock(block, length, compressionLevel)));
+        buffer = new byte[buffer.length];
+        numBuffered = 0;
+        while (pending.size() > maxBlocksInFlight)
+            out.write(take(pending.removeFirst()));
+    }
+
+    private static byte[] take(final Future<byte[]> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeIOException("Interrupted while compressing BGZF block", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeIOException("Exception compressing BGZF block", e.getCause());
+        }
+    }
+
+    /**
+     * Deflates the bytes into a single BGZF block, including gzip header and footer.
+     * If the compressed data would not fit in a block, the bytes are stored uncompressed, as htsjdk does.
+     */
+    static byte[] compressBlock(final byte[] bytes, final int length, final int compressionLevel) {
+        final byte[] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+        final int maxDataLength = compressed.length - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        int dataLength = deflate(bytes, length, compressionLevel, compressed, maxDataLength);
+        if (dataLength < 0)
+            dataLength = deflate(bytes, length, Deflater.NO_COMPRESSION, compressed, maxDataLength);
+        if (dataLength < 0)
+            throw new IllegalStateException("Block does not fit in BGZF block when stored uncompressed");
+
+        final int blockLength = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + dataLength + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        int pos = 0;
+        compressed[pos++] = BlockCompressedStreamConstants.GZIP_ID1;
+        compressed[pos++] = (byte) BlockCompressedStreamConstants.GZIP_ID2;
+        compressed[pos++] = BlockCompressedStreamConstants.GZIP_CM_DEFLATE;
+        compressed[pos++] = (byte) BlockCompressedStreamConstants.GZIP_FLG;
+        pos = writeInt(compressed, pos, 0); // modification time
+        compressed[pos++] = (byte) BlockCompressedStreamConstants.GZIP_XFL;
+        compressed[pos++] = (byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN;
+        pos = writeShort(compressed, pos, BlockCompressedStreamConstants.GZIP_XLEN);
+        compressed[pos++] = BlockCompressedStreamConstants.BGZF_ID1;
+        compressed[pos++] = BlockCompressedStreamConstants.BGZF_ID2;
+        pos = writeShort(compressed, pos, BlockCompressedStreamConstants.BGZF_LEN);
+        writeShort(compressed, pos, blockLength - 1);
+
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        pos = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + dataLength;
+        pos = writeInt(compressed, pos, (int) crc.getValue());
+        writeInt(compressed, pos, length);
+
+        final byte[] result = new byte[blockLength];
+        System.arraycopy(compressed, 0, result, 0, blockLength);
+        return result;
+    }
+
+    /**
+     * @return the number of compressed bytes written after the block header, or -1 if they don't fit.
+     */
+    private static int deflate(final byte[] bytes, final int length, final int compressionLevel, final byte[] dest, final int maxLength) {
+        final Deflater deflater = new Deflater(compressionLevel, true);
+        try {
+            deflater.setInput(bytes, 0, length);
+            deflater.finish();
+            final int n = deflater.deflate(dest, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, maxLength);
+            return deflater.finished() ? n : -1;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int writeShort(final byte[] dest, final int pos, final int value) {
+        dest[pos] = (byte) value;
+        dest[pos + 1] = (byte) (value >>> 8);
+        return pos + 2;
+    }
+
+    private static int writeInt(final byte[] dest, final int pos, final int value) {
+        writeShort(dest, pos, value);
+        writeShort(dest, pos + 2, value >>> 16);
+        return pos + 4;
+    }
+}
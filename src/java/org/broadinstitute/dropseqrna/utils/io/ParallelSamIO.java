@@ -0,0 +1,112 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.io;
+
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens SAM readers and writers that decompress and compress BAM files on multiple threads.
+ * When only 1 thread is requested, or the file is not a BAM, the standard htsjdk reader or writer is returned,
+ * so tools can call these methods unconditionally with their IO_THREADS argument.
+ */
+public class ParallelSamIO {
+
+    /**
+     * Opens a reader for sequential iteration.  The parallel reader does not support indexed queries or
+     * more than one iteration.
+     * @param factory Used to open the file if it can't be read in parallel, and for the validation stringency.
+     */
+    public static SamReader openReader(final File input, final SamReaderFactory factory, final int ioThreads) {
+        return openReader(input, factory, null, ioThreads);
+    }
+
+    /**
+     * Opens a reader for sequential iteration that inflates on a pool shared with other readers, so that
+     * several inputs read together use ioThreads threads in total.
+     * @param executor A pool from {@link #newThreadPool(int)}, shut down by the caller.  If null, the reader
+     *                 makes its own pool.
+     */
+    public static SamReader openReader(final File input, final SamReaderFactory factory, final ExecutorService executor,
+                                       final int ioThreads) {
+        if (ioThreads <= 1 || !BamFileIoUtils.isBamFile(input))
+            return factory.open(input);
+        final ParallelBAMFileReader reader = new ParallelBAMFileReader(input, factory.validationStringency(), executor, ioThreads);
+        return new SamReader.PrimitiveSamReaderToSamReaderAdapter(reader, SamInputResource.of(input));
+    }
+
+    /**
+     * Opens a reader for sequential iteration with the default SamReaderFactory.
+     */
+    public static SamReader openReader(final File input, final int ioThreads) {
+        return openReader(input, SamReaderFactory.makeDefault(), ioThreads);
+    }
+
+    /**
+     * Makes a SAM or BAM writer, like SAMFileWriterFactory.makeSAMOrBAMWriter.  The parallel writer is not
+     * used when an index or md5 is needed, as it can create neither.
+     * @param createIndex Create an index for a coordinate sorted BAM.
+     */
+    public static SAMFileWriter makeSAMOrBAMWriter(final SAMFileHeader header, final boolean presorted, final File output,
+                                                   final boolean createIndex, final int ioThreads) {
+        if (ioThreads <= 1 || !BamFileIoUtils.isBamFile(output) ||
+                SAMFileWriterFactory.getDefaultCreateMd5File() ||
+                (createIndex && header.getSortOrder() == SAMFileHeader.SortOrder.coordinate))
+            return new SAMFileWriterFactory().setCreateIndex(createIndex).makeSAMOrBAMWriter(header, presorted, output);
+        final ParallelBAMFileWriter writer = new ParallelBAMFileWriter(output, BlockCompressedOutputStream.getDefaultCompressionLevel(), ioThreads);
+        writer.setSortOrder(header.getSortOrder(), presorted);
+        writer.setHeader(header);
+        return writer;
+    }
+
+    /**
+     * Makes a pool of daemon threads for BGZF compression or decompression.  Idle threads exit after a minute,
+     * so a pool that is never shut down does not hold on to threads or keep the JVM from exiting.
+     */
+    public static ExecutorService newThreadPool(final int numThreads) {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    final Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Makes a SAM or BAM writer that creates an index if the SAMFileWriterFactory default says to.
+     */
+    public static SAMFileWriter makeSAMOrBAMWriter(final SAMFileHeader header, final boolean presorted, final File output,
+                                                   final int ioThreads) {
+        return makeSAMOrBAMWriter(header, presorted, output, SAMFileWriterFactory.getDefaultCreateIndexWhileWriting(), ioThreads);
+    }
+}
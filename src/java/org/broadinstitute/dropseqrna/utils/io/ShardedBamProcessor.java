@@ -0,0 +1,215 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.io;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Splits an indexed, coordinate-sorted BAM into genomic shards and folds the reads of each shard into an accumulator
+ * on a pool of threads.  Each thread opens its own reader and owns one accumulator, which it uses for every shard it
+ * processes, so accumulators need not be thread-safe.  The per-thread accumulators are merged at the end.
+ *
+ * Every read is seen exactly once: a shard gets the reads that start within it, and reads without a reference are
+ * read in a shard of their own.  The order in which reads are seen is not defined.
+ */
+public class ShardedBamProcessor {
+
+    private static final Log log = Log.getInstance(ShardedBamProcessor.class);
+
+    private static final int SHARDS_PER_THREAD = 8;
+    private static final int MIN_SHARD_LENGTH = 1000000;
+
+    /**
+     * A genomic interval, or the reads without a reference if contig is null.
+     */
+    public static class Shard {
+        public final String contig;
+        public final int start;
+        public final int end;
+
+        Shard(final String contig, final int start, final int end) {
+            this.contig = contig;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String toString() {
+            return contig == null ? "unmapped" : contig + ":" + start + "-" + end;
+        }
+    }
+
+    /**
+     * @return true if the input can be processed in shards: it has an index and is coordinate sorted.
+     */
+    public static boolean canShard(final File input, final SamReaderFactory factory) {
+        final SamReader reader = factory.open(input);
+        try {
+            return reader.hasIndex() && reader.getFileHeader().getSortOrder() == SAMFileHeader.SortOrder.coordinate;
+        } finally {
+            CloserUtil.close(reader);
+        }
+    }
+
+    /**
+     * Split the sequences into shards of at most shardLength bases, followed by one shard for the reads without a
+     * reference.
+     */
+    public static List<Shard> makeShards(final SAMSequenceDictionary dict, final int shardLength) {
+        final List<Shard> shards = new ArrayList<>();
+        for (final SAMSequenceRecord sequence : dict.getSequences())
+            for (int start = 1; start <= sequence.getSequenceLength(); start += shardLength)
+                shards.add(new Shard(sequence.getSequenceName(), start,
+                        (int) Math.min((long) start + shardLength - 1, sequence.getSequenceLength())));
+        shards.add(new Shard(null, 0, 0));
+        return shards;
+    }
+
+    /**
+     * Split the sequences into enough shards to balance the work across the threads.
+     */
+    public static List<Shard> makeShardsForThreads(final SAMSequenceDictionary dict, final int numThreads) {
+        final long genomeLength = dict.getReferenceLength();
+        final long target = genomeLength / Math.max(1, (long) numThreads * SHARDS_PER_THREAD);
+        return makeShards(dict, (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_SHARD_LENGTH, target)));
+    }
+
+    /**
+     * Split the sequences of the input into enough shards to balance the work across the threads.
+     */
+    public static List<Shard> makeShardsForThreads(final File input, final SamReaderFactory factory, final int numThreads) {
+        final SamReader reader = factory.open(input);
+        try {
+            return makeShardsForThreads(reader.getFileHeader().getSequenceDictionary(), numThreads);
+        } finally {
+            CloserUtil.close(reader);
+        }
+    }
+
+    /**
+     * Fold every read of the input into accumulators, using shards sized for the number of threads.
+     * @param newAccumulator Makes an empty accumulator for each thread.
+     * @param accumulate Adds a read to an accumulator.
+     * @param merge Adds the contents of the second accumulator to the first.
+     * @return the merged accumulator.
+     */
+    public static <A> A accumulate(final File input, final SamReaderFactory factory, final int numThreads,
+                                   final Supplier<A> newAccumulator, final BiConsumer<A, SAMRecord> accumulate,
+                                   final BiConsumer<A, A> merge) {
+        return accumulate(input, factory, numThreads, makeShardsForThreads(input, factory, numThreads), newAccumulator, accumulate, merge);
+    }
+
+    /**
+     * Fold every read of the given shards into accumulators.
+     */
+    public static <A> A accumulate(final File input, final SamReaderFactory factory, final int numThreads,
+                                   final List<Shard> shards, final Supplier<A> newAccumulator,
+                                   final BiConsumer<A, SAMRecord> accumulate, final BiConsumer<A, A> merge) {
+        final ConcurrentLinkedQueue<Shard> queue = new ConcurrentLinkedQueue<>(shards);
+        log.info(String.format("Processing %s in %d shards on %d threads", input.getAbsolutePath(), shards.size(), numThreads));
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            final List<Future<A>> futures = new ArrayList<>(numThreads);
+            for (int i = 0; i < numThreads; ++i)
+                futures.add(executor.submit(() -> processShards(input, factory, queue, newAccumulator.get(), accumulate)));
+            A result = null;
+            for (final Future<A> future : futures) {
+                final A a = getResult(future);
+                if (result == null)
+                    result = a;
+                else
+                    merge.accept(result, a);
+            }
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <A> A processShards(final File input, final SamReaderFactory factory, final ConcurrentLinkedQueue<Shard> queue,
+                                       final A accumulator, final BiConsumer<A, SAMRecord> accumulate) {
+        final SamReader reader = factory.open(input);
+        try {
+            Shard shard;
+            while ((shard = queue.poll()) != null) {
+                if (Thread.currentThread().isInterrupted())
+                    break;
+                forEachRead(reader, shard, r -> accumulate.accept(accumulator, r));
+            }
+            return accumulator;
+        } finally {
+            CloserUtil.close(reader);
+        }
+    }
+
+    /**
+     * Pass each read that belongs to the shard to the consumer, in the order they appear in the input.  Visiting the
+     * shards in order visits every read of the input in order.
+     */
+    public static void forEachRead(final SamReader reader, final Shard shard, final Consumer<SAMRecord> consumer) {
+        final CloseableIterator<SAMRecord> it = shard.contig == null ?
+                reader.queryUnmapped() : reader.queryOverlapping(shard.contig, shard.start, shard.end);
+        try {
+            while (it.hasNext()) {
+                final SAMRecord r = it.next();
+                // reads that start before the shard belong to an earlier shard.
+                if (shard.contig == null || r.getAlignmentStart() >= shard.start)
+                    consumer.accept(r);
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    private static <A> A getResult(final Future<A> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while processing BAM shards", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Exception processing BAM shard", e.getCause());
+        }
+    }
+}
@@ -27,6 +27,7 @@ import java.util.Iterator;
 
 import org.broadinstitute.dropseqrna.utils.FilteredIterator;
 import org.broadinstitute.dropseqrna.utils.ObjectCounter;
+import org.broadinstitute.dropseqrna.utils.OpenHashObjectCounter;
 
 import htsjdk.samtools.SAMRecord;
 
@@ -37,7 +38,7 @@ public class BamTagCountingIterator extends FilteredIterator<SAMRecord> {
 
 	public BamTagCountingIterator(final Iterator<SAMRecord> underlyingIterator, final String tag) {
 		super(underlyingIterator);
-		if (tag!=null) this.counter = new ObjectCounter<>();
+		if (tag!=null) this.counter = new OpenHashObjectCounter<>();
 		this.tag=tag;
 	}
 
@@ -0,0 +1,201 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.readiterators;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.samtools.util.SortingCollection;
+import picard.PicardException;
+
+/**
+ * A SortingCollection codec for SAMRecords that only keeps what a consumer of the sorted records declares it needs.
+ * The read name, flags, mapping quality, alignment position, cigar and mate position are always kept, as well as the requested tags.
+ * Read bases are optionally kept, base qualities and all other tags are dropped.
+ *
+ * Records should be passed through {@link #project(SAMRecord)} before they are added to the SortingCollection, so records
+ * that stay in memory look the same as records that were spilled to disk.
+ */
+public class ProjectedSAMRecordCodec implements SortingCollection.Codec<SAMRecord> {
+
+	private static final byte STRING_TAG='Z';
+	private static final byte INTEGER_TAG='i';
+	private static final byte CHARACTER_TAG='A';
+	private static final byte FLOAT_TAG='f';
+
+	private final SAMFileHeader header;
+	private final List<String> tags;
+	private final boolean keepReadBases;
+
+	private DataOutputStream outputStream = null;
+	private DataInputStream inputReader = null;
+
+	/**
+	 * @param header The header decoded records are attached to.
+	 * @param tags The tags to keep on each record.
+	 * @param keepReadBases If true, keep the read bases.  Some consumers use the read length.
+	 */
+	public ProjectedSAMRecordCodec(final SAMFileHeader header, final Collection<String> tags, final boolean keepReadBases) {
+		this.header=header;
+		this.tags=new ArrayList<>(tags);
+		this.keepReadBases=keepReadBases;
+	}
+
+	/**
+	 * @return A new record with only the fields this codec keeps.
+	 */
+	public SAMRecord project (final SAMRecord rec) {
+		SAMRecord r = new SAMRecord(this.header);
+		r.setReadName(rec.getReadName());
+		r.setFlags(rec.getFlags());
+		r.setReferenceIndex(rec.getReferenceIndex());
+		r.setAlignmentStart(rec.getAlignmentStart());
+		r.setMappingQuality(rec.getMappingQuality());
+		r.setCigarString(rec.getCigarString());
+		r.setMateReferenceIndex(rec.getMateReferenceIndex());
+		r.setMateAlignmentStart(rec.getMateAlignmentStart());
+		if (this.keepReadBases) r.setReadBases(rec.getReadBases());
+		for (String tag: this.tags) {
+			Object value = rec.getAttribute(tag);
+			if (value!=null) r.setAttribute(tag, value);
+		}
+		return r;
+	}
+
+	@Override
+	public void setOutputStream(final OutputStream stream) {
+		this.outputStream = new DataOutputStream(stream);
+	}
+
+	@Override
+	public void setInputStream(final InputStream stream) {
+		this.inputReader = new DataInputStream(stream);
+	}
+
+	@Override
+	public void encode(final SAMRecord val) {
+		try {
+			this.outputStream.writeUTF(val.getReadName());
+			this.outputStream.writeInt(val.getFlags());
+			this.outputStream.writeInt(val.getReferenceIndex());
+			this.outputStream.writeInt(val.getAlignmentStart());
+			this.outputStream.writeByte(val.getMappingQuality());
+			this.outputStream.writeUTF(val.getCigarString()==null ? SAMRecord.NO_ALIGNMENT_CIGAR : val.getCigarString());
+			this.outputStream.writeInt(val.getMateReferenceIndex());
+			this.outputStream.writeInt(val.getMateAlignmentStart());
+			if (this.keepReadBases) {
+				byte [] bases = val.getReadBases();
+				this.outputStream.writeInt(bases.length);
+				this.outputStream.write(bases);
+			}
+			// tags are written in the order they were declared, with a leading flag for if the tag is present.
+			for (String tag: this.tags)
+				encodeTag(tag, val.getAttribute(tag));
+		} catch (final IOException ioe) {
+			throw new RuntimeIOException("Could not encode SAMRecord for a sorting collection: " + ioe.getMessage(), ioe);
+		}
+	}
+
+	private void encodeTag (final String tag, final Object value) throws IOException {
+		if (value==null) {
+			this.outputStream.writeByte(0);
+			return;
+		}
+		if (value instanceof String) {
+			this.outputStream.writeByte(STRING_TAG);
+			this.outputStream.writeUTF((String) value);
+		} else if (value instanceof Integer) {
+			this.outputStream.writeByte(INTEGER_TAG);
+			this.outputStream.writeInt((Integer) value);
+		} else if (value instanceof Character) {
+			this.outputStream.writeByte(CHARACTER_TAG);
+			this.outputStream.writeChar((Character) value);
+		} else if (value instanceof Float) {
+			this.outputStream.writeByte(FLOAT_TAG);
+			this.outputStream.writeFloat((Float) value);
+		} else
+			throw new IllegalArgumentException("Can't keep tag [" + tag + "] of type [" + value.getClass().getSimpleName() + "] when sorting");
+	}
+
+	@Override
+	public SAMRecord decode() {
+		final String readName;
+		try {
+			readName = this.inputReader.readUTF();
+		} catch (EOFException e) {
+			return null;
+		} catch (IOException e) {
+			throw new PicardException("Exception reading SAMRecord from temporary file.", e);
+		}
+		try {
+			SAMRecord r = new SAMRecord(this.header);
+			r.setReadName(readName);
+			r.setFlags(this.inputReader.readInt());
+			r.setReferenceIndex(this.inputReader.readInt());
+			r.setAlignmentStart(this.inputReader.readInt());
+			r.setMappingQuality(this.inputReader.readUnsignedByte());
+			r.setCigarString(this.inputReader.readUTF());
+			r.setMateReferenceIndex(this.inputReader.readInt());
+			r.setMateAlignmentStart(this.inputReader.readInt());
+			if (this.keepReadBases) {
+				byte [] bases = new byte [this.inputReader.readInt()];
+				this.inputReader.readFully(bases);
+				r.setReadBases(bases);
+			}
+			for (String tag: this.tags)
+				r.setAttribute(tag, decodeTag());
+			return r;
+		} catch (IOException e) {
+			throw new PicardException("Exception reading SAMRecord from temporary file.", e);
+		}
+	}
+
+	private Object decodeTag () throws IOException {
+		byte type = this.inputReader.readByte();
+		switch (type) {
+			case 0: return null;
+			case STRING_TAG: return this.inputReader.readUTF();
+			case INTEGER_TAG: return this.inputReader.readInt();
+			case CHARACTER_TAG: return this.inputReader.readChar();
+			case FLOAT_TAG: return this.inputReader.readFloat();
+			default: throw new PicardException("Unknown tag type [" + type + "] reading SAMRecord from temporary file.");
+		}
+	}
+
+	@Override
+	public ProjectedSAMRecordCodec clone() {
+		return new ProjectedSAMRecordCodec(this.header, this.tags, this.keepReadBases);
+	}
+
+}
@@ -26,12 +26,15 @@ package org.broadinstitute.dropseqrna.utils.readiterators;
 import com.google.common.collect.Interner;
 import com.google.common.collect.Interners;
 import htsjdk.samtools.*;
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.IOUtil;
+import org.broadinstitute.dropseqrna.utils.io.ParallelSamIO;
 import picard.PicardException;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Utilities for creating a single stream of SAMRecords from multiple input files.
@@ -46,6 +49,20 @@ public class SamFileMergeUtil {
     public static SamHeaderAndIterator mergeInputs(final List<File> inputs,
                                                    final boolean maintainSort,
                                                    final SamReaderFactory samReaderFactory) {
+        return mergeInputs(inputs, maintainSort, samReaderFactory, 1);
+    }
+
+    /**
+     * Use this overload to decompress BAM inputs on multiple threads.  The iterator can only be used for a single pass.
+     * @param maintainSort If true, all inputs must be sorted the same way, and they are merge sorted.  If false, inputs
+     *                     are merged in arbitrary order.
+     * @param ioThreads Number of threads used to decompress the BAM inputs.  Multiple inputs share one pool of
+     *                  this many threads, which is shut down when the returned iterator is closed.
+     */
+    public static SamHeaderAndIterator mergeInputs(final List<File> inputs,
+                                                   final boolean maintainSort,
+                                                   final SamReaderFactory samReaderFactory,
+                                                   final int ioThreads) {
         if (inputs.isEmpty()) {
             throw new IllegalArgumentException("At least one input must be provided");
         }
@@ -53,9 +70,10 @@ public class SamFileMergeUtil {
         final List<SAMFileHeader> headers = new ArrayList<SAMFileHeader>(inputs.size());
         final Interner<SAMSequenceDictionary> sequenceDictionaryInterner =Interners.newStrongInterner();
         SAMFileHeader.SortOrder inputSortOrder = null;
+        final ExecutorService executor = ioThreads > 1 && inputs.size() > 1 ? ParallelSamIO.newThreadPool(ioThreads) : null;
         for (final File inFile : inputs) {
             IOUtil.assertFileIsReadable(inFile);
-            final SamReader in = samReaderFactory.open(inFile);
+            final SamReader in = ParallelSamIO.openReader(inFile, samReaderFactory, executor, ioThreads);
             readers.add(in);
             final SAMFileHeader header = in.getFileHeader();
             header.setSequenceDictionary(sequenceDictionaryInterner.intern(header.getSequenceDictionary()));
@@ -81,7 +99,41 @@ public class SamFileMergeUtil {
             }
             final SamFileHeaderMerger headerMerger = new SamFileHeaderMerger(outputSortOrder, headers, false);
             final MergingSamRecordIterator iterator = new MergingSamRecordIterator(headerMerger, readers, true);
-            return new SamHeaderAndIterator(headerMerger.getMergedHeader(), iterator);
+            if (executor == null)
+                return new SamHeaderAndIterator(headerMerger.getMergedHeader(), iterator);
+            return new SamHeaderAndIterator(headerMerger.getMergedHeader(), new ExecutorClosingIterator(iterator, executor));
+        }
+    }
+
+    /**
+     * Shuts down the decompression pool shared by the merged inputs when the merged iterator is closed.
+     */
+    private static class ExecutorClosingIterator implements CloseableIterator<SAMRecord> {
+        private final CloseableIterator<SAMRecord> underlyingIterator;
+        private final ExecutorService executor;
+
+        ExecutorClosingIterator(final CloseableIterator<SAMRecord> underlyingIterator, final ExecutorService executor) {
+            this.underlyingIterator = underlyingIterator;
+            this.executor = executor;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return underlyingIterator.hasNext();
+        }
+
+        @Override
+        public SAMRecord next() {
+            return underlyingIterator.next();
+        }
+
+        @Override
+        public void close() {
+            try {
+                underlyingIterator.close();
+            } finally {
+                executor.shutdownNow();
+            }
         }
     }
 
@@ -30,7 +30,9 @@ import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.ProgressLogger;
 import org.broadinstitute.dropseqrna.utils.SortingIteratorFactory;
+import org.broadinstitute.dropseqrna.utils.TransformingIterator;
 
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
 
@@ -59,4 +61,35 @@ public class SamRecordSortingIteratorFactory {
                 SAMFileWriterImpl.getDefaultMaxRecordsInRam(),
                 progressCallback);
     }
+
+    /**
+     * Sort records that only keep the fields a consumer needs, which is much less to write to temp files than full records.
+     * See {@link ProjectedSAMRecordCodec} for the fields that are kept.
+     * @param tags The tags the consumer of the sorted records reads, including any tags the comparator reads.
+     * @param keepReadBases If true, keep the read bases.
+     * @param progressLogger pass null if not interested in progress.
+     * @return An iterator with projected copies of all the records from underlyingIterator, in order defined by comparator.
+     */
+    public static CloseableIterator<SAMRecord> create(final SAMFileHeader header,
+                                           final Iterator<SAMRecord> underlyingIterator,
+                                           final Comparator<SAMRecord> comparator,
+                                           final ProgressLogger progressLogger,
+                                           final Collection<String> tags,
+                                           final boolean keepReadBases) {
+        final ProjectedSAMRecordCodec codec = new ProjectedSAMRecordCodec(header, tags, keepReadBases);
+        final TransformingIterator<SAMRecord, SAMRecord> projectingIterator = new TransformingIterator<SAMRecord, SAMRecord>(underlyingIterator) {
+            @Override
+            public SAMRecord next() {
+                final SAMRecord rec = this.underlyingIterator.next();
+                // log progress on the full record, before it's projected.
+                if (progressLogger != null)
+                    progressLogger.record(rec);
+                return codec.project(rec);
+            }
+        };
+        return SortingIteratorFactory.create(SAMRecord.class,
+                projectingIterator, comparator, codec,
+                SAMFileWriterImpl.getDefaultMaxRecordsInRam(),
+                null);
+    }
 }
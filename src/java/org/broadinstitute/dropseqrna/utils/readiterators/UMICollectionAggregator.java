@@ -0,0 +1,298 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.readiterators;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.broadinstitute.dropseqrna.barnyard.Utils;
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.UMICollection;
+import org.broadinstitute.dropseqrna.utils.ObjectCounter;
+import org.broadinstitute.dropseqrna.utils.StringInterner;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.PeekableIterator;
+import htsjdk.samtools.util.ProgressLogger;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.samtools.util.SortingCollection;
+import picard.PicardException;
+
+/**
+ * Counts the UMIs of each cell/gene pair in memory instead of sorting the reads by cell and gene.
+ * The UMICollections are emitted in the same order as sorting the reads would produce: by gene then cell, or by cell then gene.
+ *
+ * If there are more UMI counts than fit in memory, the counts (not the reads) are spilled to a SortingCollection,
+ * and merged back together when iterating.
+ */
+public class UMICollectionAggregator implements CloseableIterator<UMICollection> {
+
+	private static final Log log = Log.getInstance(UMICollectionAggregator.class);
+
+	// 128 bytes for one UMI count and its share of the maps holding it, 1/4 of all memory for this, rough estimate
+	public static final int DEFAULT_MAX_UMI_COUNTS_IN_RAM = (int) Math.min(Runtime.getRuntime().maxMemory() / 128 / 4, Integer.MAX_VALUE);
+
+	private final boolean cellFirstSort;
+	// the budget is split between the counts being collected and the SortingCollection they are spilled to.
+	private final int maxUMICountsInRam;
+	private final int maxSpilledCountsInRam;
+	private final StringInterner stringCache = new StringInterner();
+
+	// key: the first sort key [gene or cell].  value: the UMIs of that key, keyed by the second sort key.
+	private final Map<String, Map<String, UMICollection>> umiCollections = new HashMap<>();
+	private int numUMICountsInRam=0;
+	private SortingCollection<UMICount> spilledCounts=null;
+	private final Iterator<UMICollection> iterator;
+
+	/**
+	 * @param records The reads to count.  All reads must have the gene and molecular barcode tags.
+	 * @param geneTag The gene tag on BAM records
+	 * @param cellBarcodeTag The cell barcode tag on BAM records
+	 * @param molecularBarcodeTag The molecular barcode tag on BAM records
+	 * @param cellFirstSort if true, then UMICollections are ordered by cell barcode then gene.  If false, by gene then cell barcode.
+	 * @param maxUMICountsInRam The number of distinct cell/gene/UMI counts held in memory.  Half are collected before they are
+	 * spilled, and half are buffered by the spill before it writes to disk.
+	 * @param progressLogger Pass null if not interested in progress.
+	 */
+	public UMICollectionAggregator(final Iterator<SAMRecord> records, final String geneTag, final String cellBarcodeTag,
+			final String molecularBarcodeTag, final boolean cellFirstSort, final int maxUMICountsInRam, final ProgressLogger progressLogger) {
+		this.cellFirstSort=cellFirstSort;
+		this.maxSpilledCountsInRam=Math.max(1, maxUMICountsInRam/2);
+		this.maxUMICountsInRam=Math.max(1, maxUMICountsInRam-this.maxSpilledCountsInRam);
+
+		while (records.hasNext()) {
+			SAMRecord r = records.next();
+			if (progressLogger!=null) progressLogger.record(r);
+			String gene = stringCache.intern(r.getStringAttribute(geneTag));
+			String cell = stringCache.intern(Utils.getCellBC(r, cellBarcodeTag));
+			String molecularBarcode = r.getStringAttribute(molecularBarcodeTag);
+			add(cell, gene, molecularBarcode, 1);
+			if (this.numUMICountsInRam>=this.maxUMICountsInRam)
+				spill();
+		}
+		CloserUtil.close(records);
+
+		if (this.spilledCounts==null)
+			this.iterator=new InMemoryIterator();
+		else {
+			spill();
+			log.info("Merging UMI counts spilled to disk");
+			this.spilledCounts.doneAdding();
+			this.iterator=new SpilledIterator(this.spilledCounts.iterator());
+		}
+	}
+
+	private void add (final String cell, final String gene, final String molecularBarcode, final int count) {
+		String firstKey = cellFirstSort ? cell : gene;
+		String secondKey = cellFirstSort ? gene : cell;
+		Map<String, UMICollection> m = umiCollections.computeIfAbsent(firstKey, k -> new HashMap<>());
+		UMICollection umis = m.computeIfAbsent(secondKey, k -> new UMICollection(cell, gene));
+		int before = umis.getNumMolecularBarcodes();
+		umis.incrementMolecularBarcodeCount(molecularBarcode, count);
+		numUMICountsInRam+=umis.getNumMolecularBarcodes()-before;
+	}
+
+	/**
+	 * Write out the UMI counts held in memory, and start over with empty counts.
+	 */
+	private void spill () {
+		if (this.spilledCounts==null) {
+			log.info("More than [" + this.maxUMICountsInRam + "] UMI counts, spilling counts to disk");
+			this.spilledCounts=SortingCollection.newInstance(UMICount.class, new UMICountCodec(), new UMICountComparator(this.cellFirstSort), this.maxSpilledCountsInRam);
+		}
+		for (Map<String, UMICollection> m: umiCollections.values())
+			for (UMICollection umis: m.values()) {
+				ObjectCounter<String> counts = umis.getMolecularBarcodeCounts();
+				for (String molecularBarcode: counts.getKeys())
+					this.spilledCounts.add(new UMICount(umis.getCellBarcode(), umis.getGeneName(), molecularBarcode, counts.getCountForKey(molecularBarcode)));
+			}
+		umiCollections.clear();
+		numUMICountsInRam=0;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return this.iterator.hasNext();
+	}
+
+	@Override
+	public UMICollection next() {
+		return this.iterator.next();
+	}
+
+	@Override
+	public void close() {
+		umiCollections.clear();
+		if (this.spilledCounts!=null) this.spilledCounts.cleanup();
+	}
+
+	/**
+	 * Walks the in memory counts in sorted order, releasing each group of UMICollections as it's passed.
+	 */
+	private class InMemoryIterator implements Iterator<UMICollection> {
+		private final Iterator<String> firstKeys;
+		private Map<String, UMICollection> current = Collections.emptyMap();
+		private Iterator<String> secondKeys = Collections.emptyIterator();
+
+		InMemoryIterator() {
+			List<String> keys = new ArrayList<>(umiCollections.keySet());
+			Collections.sort(keys);
+			this.firstKeys=keys.iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!secondKeys.hasNext() && firstKeys.hasNext()) {
+				current = umiCollections.remove(firstKeys.next());
+				List<String> keys = new ArrayList<>(current.keySet());
+				Collections.sort(keys);
+				secondKeys=keys.iterator();
+			}
+			return secondKeys.hasNext();
+		}
+
+		@Override
+		public UMICollection next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return current.get(secondKeys.next());
+		}
+	}
+
+	/**
+	 * Groups the sorted spilled counts back into UMICollections.  A UMI may have been spilled more than once for a cell/gene pair,
+	 * in which case the counts are summed.
+	 */
+	private class SpilledIterator implements Iterator<UMICollection> {
+		private final PeekableIterator<UMICount> counts;
+
+		SpilledIterator(final Iterator<UMICount> counts) {
+			this.counts=new PeekableIterator<>(counts);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return counts.hasNext();
+		}
+
+		@Override
+		public UMICollection next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			UMICount first = counts.peek();
+			UMICollection umis = new UMICollection(first.cell, first.gene);
+			while (counts.hasNext() && counts.peek().cell.equals(first.cell) && counts.peek().gene.equals(first.gene)) {
+				UMICount c = counts.next();
+				umis.incrementMolecularBarcodeCount(c.molecularBarcode, c.count);
+			}
+			return umis;
+		}
+	}
+
+	static class UMICount {
+		private final String cell;
+		private final String gene;
+		private final String molecularBarcode;
+		private final int count;
+
+		UMICount(final String cell, final String gene, final String molecularBarcode, final int count) {
+			this.cell=cell;
+			this.gene=gene;
+			this.molecularBarcode=molecularBarcode;
+			this.count=count;
+		}
+	}
+
+	static class UMICountComparator implements Comparator<UMICount> {
+		private final boolean cellFirstSort;
+
+		UMICountComparator(final boolean cellFirstSort) {
+			this.cellFirstSort=cellFirstSort;
+		}
+
+		@Override
+		public int compare(final UMICount o1, final UMICount o2) {
+			int cmp = cellFirstSort ? o1.cell.compareTo(o2.cell) : o1.gene.compareTo(o2.gene);
+			if (cmp==0) cmp = cellFirstSort ? o1.gene.compareTo(o2.gene) : o1.cell.compareTo(o2.cell);
+			if (cmp==0) cmp = o1.molecularBarcode.compareTo(o2.molecularBarcode);
+			return cmp;
+		}
+	}
+
+	static class UMICountCodec implements SortingCollection.Codec<UMICount> {
+		private DataOutputStream outputStream = null;
+		private DataInputStream inputReader = null;
+
+		@Override
+		public void setOutputStream(final OutputStream stream) {
+			this.outputStream = new DataOutputStream(stream);
+		}
+
+		@Override
+		public void setInputStream(final InputStream stream) {
+			this.inputReader = new DataInputStream(stream);
+		}
+
+		@Override
+		public void encode(final UMICount val) {
+			try {
+				this.outputStream.writeUTF(val.cell);
+				this.outputStream.writeUTF(val.gene);
+				this.outputStream.writeUTF(val.molecularBarcode);
+				this.outputStream.writeInt(val.count);
+			} catch (final IOException ioe) {
+				throw new RuntimeIOException("Could not encode UMI count for a sorting collection: " + ioe.getMessage(), ioe);
+			}
+		}
+
+		@Override
+		public UMICount decode() {
+			try {
+				return new UMICount(this.inputReader.readUTF(), this.inputReader.readUTF(), this.inputReader.readUTF(), this.inputReader.readInt());
+			} catch (EOFException e) {
+				return null;
+			} catch (IOException e) {
+				throw new PicardException("Exception reading UMI count from temporary file.", e);
+			}
+		}
+
+		@Override
+		public UMICountCodec clone() {
+			return new UMICountCodec();
+		}
+	}
+
+}
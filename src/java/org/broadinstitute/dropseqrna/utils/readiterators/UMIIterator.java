@@ -30,6 +30,7 @@ import org.broadinstitute.dropseqrna.barnyard.digitalexpression.UMICollection;
 import org.broadinstitute.dropseqrna.utils.*;
 import picard.annotation.LocusFunction;
 
+import java.util.Arrays;
 import java.util.Collection;
 
 public class UMIIterator implements CloseableIterator<UMICollection>  {
@@ -38,6 +39,8 @@ public class UMIIterator implements CloseableIterator<UMICollection>  {
     private static final ProgressLogger prog = new ProgressLogger(log);
 
 	private final GroupingIterator<SAMRecord> atoi;
+	// set instead of atoi when UMIs are counted without sorting the reads.
+	private final UMICollectionAggregator aggregator;
 	private final String geneTag;
 	private final String cellBarcodeTag;
 	private final String molecularBarcodeTag;
@@ -70,6 +73,26 @@ public class UMIIterator implements CloseableIterator<UMICollection>  {
 		this(headerAndIterator, geneTag, geneStrandTag, geneFunctionTag, strandStrategy, acceptedLociFunctions, cellBarcodeTag, molecularBarcodeTag, readMQ, assignReadsToAllGenes, cellBarcodes, false);
 	}
 
+	/**
+	 * Construct an object that generates UMI objects from a BAM file
+	 * @param cellFirstSort if true, then cell barcodes are sorted first, followed by gene/exon tags.
+     *                      If false, then gene/exon tags are sorted first, followed by cells.  false is the default and used in the other constructor.
+	 */
+	public UMIIterator(final SamHeaderAndIterator headerAndIterator,
+					   final String geneTag,
+                       final String geneStrandTag,
+                       final String geneFunctionTag,
+                       final StrandStrategy strandStrategy,
+                       final Collection <LocusFunction> acceptedLociFunctions,
+                       final String cellBarcodeTag,
+                       final String molecularBarcodeTag,
+                       final int readMQ,
+                       final boolean assignReadsToAllGenes,
+                       final Collection<String> cellBarcodes,
+                       final boolean cellFirstSort) {
+		this(headerAndIterator, geneTag, geneStrandTag, geneFunctionTag, strandStrategy, acceptedLociFunctions, cellBarcodeTag, molecularBarcodeTag, readMQ, assignReadsToAllGenes, cellBarcodes, cellFirstSort, false);
+	}
+
 	/**
 	 * Construct an object that generates UMI objects from a BAM file
 	 * @param headerAndIterator The BAM records to extract UMIs from
@@ -84,6 +107,9 @@ public class UMIIterator implements CloseableIterator<UMICollection>  {
      *                     Only reads with these values will be used.  If set to null, all cell barcodes are used.
 	 * @param cellFirstSort if true, then cell barcodes are sorted first, followed by gene/exon tags.
      *                      If false, then gene/exon tags are sorted first, followed by cells.  false is the default and used in the other constructor.
+	 * @param aggregateUMICounts if true, count the UMIs of each cell/gene pair in memory instead of sorting the reads.
+	 *                      Only the UMI counts are spilled to disk if there are too many to hold in memory.  UMICollections are
+	 *                      produced in the same cell/gene order either way.
 	 */
 	public UMIIterator(final SamHeaderAndIterator headerAndIterator,
 					   final String geneTag,
@@ -96,7 +122,8 @@ public class UMIIterator implements CloseableIterator<UMICollection>  {
                        final int readMQ,
                        final boolean assignReadsToAllGenes,
                        final Collection<String> cellBarcodes,
-                       final boolean cellFirstSort) {
+                       final boolean cellFirstSort,
+                       final boolean aggregateUMICounts) {
 
         this.geneTag=geneTag;
         this.cellBarcodeTag=cellBarcodeTag;
@@ -126,12 +153,23 @@ public class UMIIterator implements CloseableIterator<UMICollection>  {
 		GeneFunctionIteratorWrapper gfteratorWrapper = new GeneFunctionIteratorWrapper(filteringIterator3, geneTag, geneStrandTag, geneFunctionTag, assignReadsToAllGenes, strandStrategy, acceptedLociFunctions);
 
 
+		if (aggregateUMICounts) {
+			this.atoi=null;
+			this.aggregator = new UMICollectionAggregator(gfteratorWrapper, geneTag, cellBarcodeTag, molecularBarcodeTag,
+					cellFirstSort, UMICollectionAggregator.DEFAULT_MAX_UMI_COUNTS_IN_RAM, prog);
+			log.info("Counting UMIs finished.");
+			return;
+		}
+		this.aggregator=null;
+
 		// assign the tags in the order you want data sorted.
 		// UmiIteratorWrapper umiIteratorWrapper = new UmiIteratorWrapper(filteringIterator2.iterator(), cellBarcodeTag,
         //         cellBarcodes, geneTag, strandTag, readMQ, assignReadsToAllGenes, useStrandInfo);
 
+        // only the sort and UMI tags are read from the sorted records.
         CloseableIterator<SAMRecord> sortedAlignmentIterator = SamRecordSortingIteratorFactory.create(
-                headerAndIterator.header, gfteratorWrapper, multiComparator, prog);
+                headerAndIterator.header, gfteratorWrapper, multiComparator, prog,
+                Arrays.asList(geneTag, cellBarcodeTag, molecularBarcodeTag), false);
 
         // Not really -- merge sort is ongoing.
         log.info("Sorting finished.");
@@ -145,8 +183,10 @@ public class UMIIterator implements CloseableIterator<UMICollection>  {
 	 */
 	@Override
 	public UMICollection next () {
-		if (!this.atoi.hasNext())
+		if (!hasNext())
 			return null;
+		if (this.aggregator!=null)
+			return this.aggregator.next();
 
 		Collection<SAMRecord> records = this.atoi.next();
 		PeekableIterator<SAMRecord> recordCollectionIter = new PeekableIterator<>(records.iterator());
@@ -173,16 +213,23 @@ public class UMIIterator implements CloseableIterator<UMICollection>  {
 
 	@Override
 	public void remove() {
+		if (this.aggregator!=null)
+			throw new UnsupportedOperationException();
 		this.atoi.remove();
 	}
 
 	@Override
 	public void close() {
-        CloserUtil.close(this.atoi);
+		if (this.aggregator!=null)
+			this.aggregator.close();
+		else
+			CloserUtil.close(this.atoi);
 	}
 
 	@Override
 	public boolean hasNext() {
+		if (this.aggregator!=null)
+			return this.aggregator.hasNext();
 		return this.atoi.hasNext();
 	}
 
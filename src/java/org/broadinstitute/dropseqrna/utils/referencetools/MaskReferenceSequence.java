@@ -12,11 +12,13 @@ package org.broadinstitute.dropseqrna.utils.referencetools;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.apache.commons.lang.StringUtils;
 import org.broadinstitute.barclay.argparser.Argument;
@@ -63,6 +65,10 @@ public class MaskReferenceSequence extends CommandLineProgram {
 	@Argument (doc="A file containing one or more intervals that will have their bases set to N. This file is in Interval format - tab seperated with fields: chr start end strand name\"", mutex={"CONTIG_PATTERN_TO_IGNORE"})
 	public File INTERVALS;
 
+	@Argument (doc="The number of contigs to mask at the same time.  Used when the reference is an uncompressed fasta, which is copied contig by contig "
+			+ "through small buffers instead of loading each contig into memory.")
+	public int NUM_THREADS=1;
+
 	@Override
 	protected int doWork() {
 		IOUtil.assertFileIsReadable(this.REFERENCE_SEQUENCE);
@@ -72,8 +78,20 @@ public class MaskReferenceSequence extends CommandLineProgram {
 		if (!ref.isIndexed())
 			throw new IllegalStateException ("Input fasta must be indexed.  You can do this by using samtools faidx to create an index");
 
+		boolean maskContigs = this.CONTIG_PATTERN_TO_IGNORE!=null && !this.CONTIG_PATTERN_TO_IGNORE.isEmpty();
+		if (StreamingFastaMasker.canStream(REFERENCE_SEQUENCE)) {
+			SAMSequenceDictionary sd = ref.getSequenceDictionary();
+			CloserUtil.close(ref);
+			Map<String, List<Interval>> intervalsPerContig = new HashMap<>();
+			if (maskContigs) intervalsPerContig=getContigIntervals(sd, this.CONTIG_PATTERN_TO_IGNORE);
+			if (this.INTERVALS!=null) intervalsPerContig=getIntervalsForContig(readIntervals(sd, this.INTERVALS).uniqued());
+			List<String> contigs = sd.getSequences().stream().map(SAMSequenceRecord::getSequenceName).collect(Collectors.toList());
+			new StreamingFastaMasker(REFERENCE_SEQUENCE, OUTPUT_LINE_LENGTH).mask(contigs, intervalsPerContig, OUTPUT, NUM_THREADS);
+			return 0;
+		}
+
 		FastaSequenceFileWriter writer = new FastaSequenceFileWriter(OUTPUT, OUTPUT_LINE_LENGTH);
-		if (this.CONTIG_PATTERN_TO_IGNORE!=null && !this.CONTIG_PATTERN_TO_IGNORE.isEmpty()) processByWholeContig(ref, writer, this.CONTIG_PATTERN_TO_IGNORE);
+		if (maskContigs) processByWholeContig(ref, writer, this.CONTIG_PATTERN_TO_IGNORE);
 		if (this.INTERVALS!=null) processByPartialContig(ref, writer, this.INTERVALS);
 
 		CloserUtil.close(ref);
@@ -82,11 +100,29 @@ public class MaskReferenceSequence extends CommandLineProgram {
 
 	}
 
-	private void processByPartialContig (final ReferenceSequenceFile ref, final FastaSequenceFileWriter writer, final File intervalListFile) {
-		SAMSequenceDictionary sd = ref.getSequenceDictionary();
+	private IntervalList readIntervals (final SAMSequenceDictionary sd, final File intervalListFile) {
 		// validate that the intervals and the reference have the same sequence dictionary.
 		IntervalList iList = IntervalList.fromFile(intervalListFile);
 		iList.getHeader().getSequenceDictionary().assertSameDictionary(sd);
+		return iList;
+	}
+
+	/**
+	 * An interval covering each contig whose name matches one of the patterns.
+	 */
+	private Map<String, List<Interval>> getContigIntervals (final SAMSequenceDictionary sd, final List<String> contigPatternToIgnore) {
+		Map<String, List<Interval>> result = new HashMap<>();
+		for (String contig: selectContigsToIgnore(sd, contigPatternToIgnore)) {
+			SAMSequenceRecord r = sd.getSequence(contig);
+			if (r.getSequenceLength()>0)
+				result.put(contig, Collections.singletonList(new Interval(contig, 1, r.getSequenceLength())));
+		}
+		return result;
+	}
+
+	private void processByPartialContig (final ReferenceSequenceFile ref, final FastaSequenceFileWriter writer, final File intervalListFile) {
+		SAMSequenceDictionary sd = ref.getSequenceDictionary();
+		IntervalList iList = readIntervals(sd, intervalListFile);
 		// map the intervals to a map to each contig.
 		Map<String, List<Interval>> intervalsPerContig = getIntervalsForContig(iList);
 
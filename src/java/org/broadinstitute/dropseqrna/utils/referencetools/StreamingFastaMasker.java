@@ -0,0 +1,201 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.referencetools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.reference.FastaSequenceIndex;
+import htsjdk.samtools.reference.FastaSequenceIndexEntry;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
+import org.broadinstitute.dropseqrna.utils.io.OrderedParallelExecutor;
+
+/**
+ * Copies the contigs of an indexed, uncompressed FASTA file to a new file, setting the bases of intervals to N as they are copied.
+ *
+ * Sequences are streamed through small fixed size buffers, so memory use does not depend on the length of a contig.
+ * The index gives the length of every contig, so the size and offset of every record of the output is known before it is written.
+ * This lets contigs be written concurrently with positional writes, each to its final place in the output.
+ */
+public class StreamingFastaMasker {
+
+	private static final Log log = Log.getInstance(StreamingFastaMasker.class);
+
+	private static final int BUFFER_SIZE=1<<16;
+	private static final byte MASK_BASE='N';
+	private static final byte NEWLINE='\n';
+
+	private final File reference;
+	private final FastaSequenceIndex index;
+	private final int lineLength;
+
+	/**
+	 * @param reference An uncompressed FASTA file with a .fai index.
+	 * @param lineLength The number of bases per line in the output.
+	 */
+	public StreamingFastaMasker (final File reference, final int lineLength) {
+		if (!canStream(reference))
+			throw new IllegalArgumentException("Reference " + reference.getAbsolutePath() + " must be an uncompressed fasta file with an index");
+		if (lineLength<1)
+			throw new IllegalArgumentException("Line length must be positive");
+		this.reference=reference;
+		this.index=new FastaSequenceIndex(ReferenceSequenceFileFactory.getFastaIndexFileName(reference.toPath()));
+		this.lineLength=lineLength;
+	}
+
+	/**
+	 * @return true if the reference is an uncompressed FASTA file with a .fai index, so its sequences can be read in place.
+	 */
+	public static boolean canStream (final File reference) {
+		Path path = reference.toPath();
+		try {
+			return Files.exists(ReferenceSequenceFileFactory.getFastaIndexFileName(path)) && !IOUtil.isBlockCompressed(path);
+		} catch (IOException e) {
+			throw new RuntimeIOException("Error reading " + reference.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Write each contig to the output in the order given, setting the bases of its intervals to N.
+	 * @param contigs The names of the contigs to write, in output order.
+	 * @param intervalsPerContig For each contig, intervals to mask sorted by start and not overlapping.  Contigs without intervals are copied unchanged.
+	 * @param output The FASTA file to write.
+	 * @param numThreads The number of contigs to copy at the same time.
+	 */
+	public void mask (final List<String> contigs, final Map<String, List<Interval>> intervalsPerContig, final File output, final int numThreads) {
+		IOUtil.assertFileIsWritable(output);
+		try (FileChannel in = FileChannel.open(this.reference.toPath(), StandardOpenOption.READ);
+			 FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			 OrderedParallelExecutor<Void> executor = new OrderedParallelExecutor<>("masking reference", numThreads, done -> {})) {
+			long outputOffset=0;
+			for (String contig: contigs) {
+				if (!this.index.hasIndexEntry(contig))
+					throw new IllegalArgumentException("Contig " + contig + " is not in the index of " + this.reference.getAbsolutePath());
+				log.info("Processing contig " + contig);
+				FastaSequenceIndexEntry entry = this.index.getIndexEntry(contig);
+				List<Interval> intervals = intervalsPerContig.getOrDefault(contig, Collections.emptyList());
+				final long offset=outputOffset;
+				executor.submit(() -> copyContig(in, out, entry, intervals, offset));
+				outputOffset+=getRecordLength(entry);
+			}
+			executor.finish();
+		} catch (IOException e) {
+			throw new RuntimeIOException("Error writing " + output.getAbsolutePath(), e);
+		}
+	}
+
+	private byte [] getHeader (final FastaSequenceIndexEntry entry) {
+		return (">" + entry.getContig() + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The number of bytes in the output for a contig: the header, the bases, and a newline at the end of each line.
+	 * A contig without bases is written as an empty line.
+	 */
+	private long getRecordLength (final FastaSequenceIndexEntry entry) {
+		long size = entry.getSize();
+		long numLines = Math.max(1, (size + this.lineLength - 1) / this.lineLength);
+		return getHeader(entry).length + size + numLines;
+	}
+
+	/**
+	 * Copy the bases of one contig from the input, rewrapping lines and setting the bases of intervals to N.
+	 * Positional reads and writes on channels are safe from many threads, so contigs can be copied concurrently.
+	 */
+	private Void copyContig (final FileChannel in, final FileChannel out, final FastaSequenceIndexEntry entry, final List<Interval> intervals,
+			final long outputOffset) throws IOException {
+		ByteBuffer inBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		ByteBuffer outBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		long outputPosition = outputOffset + write(out, ByteBuffer.wrap(getHeader(entry)), outputOffset);
+		long inputPosition = entry.getLocation();
+		long size = entry.getSize();
+		// 0 based position of the next base, and the next interval that may mask it.
+		long base=0;
+		int intervalIndex=0;
+		int lineBases=0;
+		while (base<size) {
+			inBuffer.clear();
+			int numRead = in.read(inBuffer, inputPosition);
+			if (numRead<0)
+				throw new IllegalStateException("Reference " + this.reference.getAbsolutePath() + " ended before the end of contig " + entry.getContig());
+			inputPosition+=numRead;
+			inBuffer.flip();
+			while (inBuffer.hasRemaining() && base<size) {
+				byte b = inBuffer.get();
+				if (b=='\n' || b=='\r') continue;
+				// the interval coordinates are 1 based, inclusive.
+				while (intervalIndex<intervals.size() && base>=intervals.get(intervalIndex).getEnd())
+					intervalIndex++;
+				if (intervalIndex<intervals.size() && base>=intervals.get(intervalIndex).getStart()-1)
+					b=MASK_BASE;
+				// room for a base and a newline.
+				if (outBuffer.remaining()<2)
+					outputPosition+=flush(out, outBuffer, outputPosition);
+				outBuffer.put(b);
+				base++;
+				if (++lineBases==this.lineLength) {
+					outBuffer.put(NEWLINE);
+					lineBases=0;
+				}
+			}
+		}
+		if (lineBases>0 || size==0) {
+			if (!outBuffer.hasRemaining())
+				outputPosition+=flush(out, outBuffer, outputPosition);
+			outBuffer.put(NEWLINE);
+		}
+		outputPosition+=flush(out, outBuffer, outputPosition);
+		if (outputPosition!=outputOffset+getRecordLength(entry))
+			throw new IllegalStateException("Wrote an unexpected number of bytes for contig " + entry.getContig());
+		return null;
+	}
+
+	private int flush (final FileChannel out, final ByteBuffer buffer, final long position) throws IOException {
+		buffer.flip();
+		int numWritten = write(out, buffer, position);
+		buffer.clear();
+		return numWritten;
+	}
+
+	private int write (final FileChannel out, final ByteBuffer buffer, final long position) throws IOException {
+		int numWritten=0;
+		while (buffer.hasRemaining())
+			numWritten+=out.write(buffer, position+numWritten);
+		return numWritten;
+	}
+
+}
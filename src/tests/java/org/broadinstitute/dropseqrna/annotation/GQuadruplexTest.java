@@ -6,6 +6,7 @@ import org.junit.Assert;
 import org.testng.annotations.Test;
 
 import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.StringUtil;
 
 public class GQuadruplexTest {
 
@@ -43,4 +44,14 @@ public class GQuadruplexTest {
 		t1.toString();
 
 	}
+
+	@Test
+	public void testCount() {
+		String seq1 = "GGGGACTTTCCGGGAGGCGTGGGGGTTTTTGGGGG";
+		String seq2 = "GGACGCATTTAAAGCAGTGTGTAAAGAGACATTTATAGCACTAAATGCCCACAAGAGACCTCTGCCTGAGAACGTGGGTTTCAGCCTAAGAGTTGTAATA";
+		String seq3 = seq1 + "TTTT" + seq2 + "gggtgggtgggtggg" + "AAAAAAAAAA" + seq1;
+		for (String seq: new String [] {seq1, seq2, seq3})
+			Assert.assertEquals(GQuadruplex.find("seq", seq).size(), GQuadruplex.count(StringUtil.stringToBytes(seq)));
+		Assert.assertEquals(3, GQuadruplex.count(StringUtil.stringToBytes(seq3)));
+	}
 }
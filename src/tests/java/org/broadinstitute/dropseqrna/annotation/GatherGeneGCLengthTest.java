@@ -25,6 +25,8 @@ package org.broadinstitute.dropseqrna.annotation;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -33,8 +35,10 @@ import org.broadinstitute.dropseqrna.annotation.GatherGeneGCLength.GCResult;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import htsjdk.samtools.reference.FastaSequenceIndexCreator;
 import htsjdk.samtools.reference.ReferenceSequence;
 import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.SequenceUtil;
 import picard.annotation.Gene;
 import picard.util.TabbedTextFileWithHeaderParser;
@@ -189,4 +193,46 @@ public class GatherGeneGCLengthTest {
         Assert.assertEquals(Double.parseDouble(transcriptLevel.getField("PCT_C")), pctC, 0.05);
         Assert.assertEquals(Double.parseDouble(transcriptLevel.getField("PCT_G")), pctG, 0.05);
 	}
+
+	@Test
+	public void testParallel() throws IOException {
+		// the parallel mode needs an uncompressed, indexed reference.
+		final File dir = Files.createTempDirectory("GatherGeneGCLengthTest.").toFile();
+		dir.deleteOnExit();
+		final File fasta = new File(dir, REFERENCE_NAME + ".fasta");
+		final File dictFile = new File(dir, REFERENCE_NAME + ".dict");
+		final File index = new File(dir, REFERENCE_NAME + ".fasta.fai");
+		fasta.deleteOnExit();
+		dictFile.deleteOnExit();
+		index.deleteOnExit();
+		try (InputStream in = IOUtil.openFileForReading(FASTA)) {
+			Files.copy(in, fasta.toPath());
+		}
+		Files.copy(new File(TEST_DATA_DIR, REFERENCE_NAME + ".dict").toPath(), dictFile.toPath());
+		FastaSequenceIndexCreator.create(fasta.toPath(), false);
+
+		final File[] serial = runGatherGeneGCLength(fasta, 1);
+		final File[] parallel = runGatherGeneGCLength(fasta, 3);
+		for (int i=0; i<serial.length; i++)
+			Assert.assertEquals(Files.readAllLines(parallel[i].toPath()), Files.readAllLines(serial[i].toPath()));
+	}
+
+	private File[] runGatherGeneGCLength (final File reference, final int numThreads) throws IOException {
+		final File outputFile = File.createTempFile("GatherGeneGCLengthTest.", ".gc_length_metrics");
+		final File outputTranscriptSequencesFile = File.createTempFile("GatherGeneGCLengthTest.", ".transcript_sequences.fasta");
+		final File outputTranscriptLevelFile = File.createTempFile("GatherGeneGCLengthTest.", ".transcript_level");
+		outputFile.deleteOnExit();
+		outputTranscriptSequencesFile.deleteOnExit();
+		outputTranscriptLevelFile.deleteOnExit();
+		final String[] args = new String[] {
+				"GTF=" + GTF.getAbsolutePath(),
+				"REFERENCE_SEQUENCE=" + reference.getAbsolutePath(),
+				"OUTPUT=" + outputFile.getAbsolutePath(),
+				"OUTPUT_TRANSCRIPT_SEQUENCES=" + outputTranscriptSequencesFile.getAbsolutePath(),
+				"OUTPUT_TRANSCRIPT_LEVEL=" + outputTranscriptLevelFile.getAbsolutePath(),
+				"NUM_THREADS=" + numThreads
+		};
+		Assert.assertEquals(new GatherGeneGCLength().instanceMain(args), 0);
+		return new File[] {outputFile, outputTranscriptSequencesFile, outputTranscriptLevelFile};
+	}
 }
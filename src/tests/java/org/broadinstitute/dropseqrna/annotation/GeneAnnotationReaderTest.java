@@ -23,13 +23,22 @@
  */
 package org.broadinstitute.dropseqrna.annotation;
 
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.OverlapDetector;
 import org.broadinstitute.dropseqrna.annotation.GeneAnnotationReader;
+import org.broadinstitute.dropseqrna.utils.DropSeqSamUtil;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 import picard.annotation.Gene;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 
 public class GeneAnnotationReaderTest {
@@ -57,4 +66,84 @@ public class GeneAnnotationReaderTest {
 		OverlapDetector<Gene> od = GeneAnnotationReader.loadAnnotationsFile(refFlatUncompressed, SD);
         Assert.assertNotNull(od);
 	}
+
+	@Test
+	public void testGTFIndex() throws IOException {
+		testIndex(GTF_FILE1);
+	}
+
+	@Test
+	public void testRefFlatIndex() throws IOException {
+		testIndex(refFlatUncompressed);
+	}
+
+	private void testIndex (final File annotationsFile) throws IOException {
+		// copy the annotations so the index is written next to a temporary file.
+		File dir = Files.createTempDirectory("GeneAnnotationReaderTest").toFile();
+		File annotations = new File(dir, annotationsFile.getName());
+		Files.copy(annotationsFile.toPath(), annotations.toPath());
+		File indexFile = GeneAnnotationIndex.getIndexFile(annotations);
+
+		CreateGeneAnnotationIndex c = new CreateGeneAnnotationIndex();
+		c.ANNOTATIONS_FILE=annotations;
+		c.SEQUENCE_DICTIONARY=SD;
+		Assert.assertEquals(c.doWork(), 0);
+		Assert.assertTrue(indexFile.exists());
+
+		SAMSequenceDictionary dict = DropSeqSamUtil.loadSequenceDictionary(SD);
+		List<Gene> expected = sortedGenes(GeneAnnotationReader.parseAnnotationsFile(annotations, dict));
+		List<Gene> actual = sortedGenes(GeneAnnotationIndex.load(indexFile, annotations, dict));
+		Assert.assertFalse(expected.isEmpty());
+		Assert.assertEquals(actual.size(), expected.size());
+		for (int i=0; i<expected.size(); i++)
+			assertSameGene(actual.get(i), expected.get(i));
+		Assert.assertEquals(sortedGenes(GeneAnnotationReader.loadAnnotationsFile(annotations, dict)).size(), expected.size());
+
+		// the index isn't used with a different sequence dictionary.
+		SAMSequenceDictionary otherDict = new SAMSequenceDictionary();
+		otherDict.addSequence(new SAMSequenceRecord("foo", 100));
+		Assert.assertNull(GeneAnnotationIndex.load(indexFile, annotations, otherDict));
+
+		// or once the annotations file has been modified.
+		Assert.assertTrue(annotations.setLastModified(annotations.lastModified()-10000));
+		Assert.assertNull(GeneAnnotationIndex.load(indexFile, annotations, dict));
+		IOUtil.deleteDirectoryTree(dir);
+	}
+
+	private List<Gene> sortedGenes (final OverlapDetector<Gene> od) {
+		List<Gene> result = new ArrayList<>(od.getAll());
+		result.sort((g1, g2) -> {
+			int cmp = g1.compareTo(g2);
+			if (cmp==0) cmp = g1.getName().compareTo(g2.getName());
+			return cmp;
+		});
+		return result;
+	}
+
+	private void assertSameGene (final Gene actual, final Gene expected) {
+		Assert.assertEquals(actual.getClass(), expected.getClass());
+		Assert.assertEquals(actual, expected);
+		Assert.assertEquals(actual.getName(), expected.getName());
+		Assert.assertEquals(actual.isNegativeStrand(), expected.isNegativeStrand());
+		if (expected instanceof GeneFromGTF) {
+			Assert.assertEquals(((GeneFromGTF) actual).getGeneID(), ((GeneFromGTF) expected).getGeneID());
+			Assert.assertEquals(((GeneFromGTF) actual).getTranscriptType(), ((GeneFromGTF) expected).getTranscriptType());
+			Assert.assertEquals(((GeneFromGTF) actual).getGeneVersion(), ((GeneFromGTF) expected).getGeneVersion());
+		}
+		Iterator<Gene.Transcript> actualIter = actual.iterator();
+		for (Gene.Transcript t: expected) {
+			Gene.Transcript a = actualIter.next();
+			Assert.assertEquals(a.name, t.name);
+			Assert.assertEquals(a.transcriptionStart, t.transcriptionStart);
+			Assert.assertEquals(a.transcriptionEnd, t.transcriptionEnd);
+			Assert.assertEquals(a.codingStart, t.codingStart);
+			Assert.assertEquals(a.codingEnd, t.codingEnd);
+			Assert.assertEquals(a.exons.length, t.exons.length);
+			for (int i=0; i<t.exons.length; i++) {
+				Assert.assertEquals(a.exons[i].start, t.exons[i].start);
+				Assert.assertEquals(a.exons[i].end, t.exons[i].end);
+			}
+		}
+		Assert.assertFalse(actualIter.hasNext());
+	}
 }
@@ -47,13 +47,23 @@ public class ValidateReferenceTest {
 
     @Test
     public void testProblems() throws IOException {
+        testProblems(1);
+    }
+
+    @Test
+    public void testProblemsMultiThreaded() throws IOException {
+        testProblems(3);
+    }
+
+    private void testProblems(final int numThreads) throws IOException {
         final String refName = "buggy";
         final File output = File.createTempFile("ValidateReferenceTest.", ".json");
         output.deleteOnExit();
         final String[] args = new String[]{
                 "GTF=" + new File(TEST_DATA_DIR, refName + ".gtf").getAbsolutePath(),
                 "REFERENCE_SEQUENCE=" + new File(TEST_DATA_DIR, refName + ".fasta").getAbsolutePath(),
-                "OUTPUT=" + output.getAbsolutePath()
+                "OUTPUT=" + output.getAbsolutePath(),
+                "NUM_THREADS=" + numThreads
         };
         Assert.assertEquals(new ValidateReference().instanceMain(args), 0);
         final FileReader reader = new FileReader(output);
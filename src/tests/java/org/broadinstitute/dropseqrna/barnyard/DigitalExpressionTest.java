@@ -32,6 +32,7 @@ import java.util.List;
 import java.util.Random;
 
 import org.apache.commons.io.FileUtils;
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeIterator;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.UMICollection;
 import org.broadinstitute.dropseqrna.utils.io.ErrorCheckingPrintWriter;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamFileMergeUtil;
@@ -148,6 +149,59 @@ public class DigitalExpressionTest {
 
 	}
 
+	@Test
+	public void testDoWorkMultipleThreads () throws IOException {
+		File outFile = File.createTempFile("testDigitalExpression.", ".digital_expression.txt");
+		File summaryFile = File.createTempFile("testDigitalExpression.", ".digital_expression_summary.txt");
+		File longOutput=File.createTempFile("testDigitalExpression.", ".digital_expression_long.txt");
+		outFile.deleteOnExit();
+		summaryFile.deleteOnExit();
+		longOutput.deleteOnExit();
+
+		final DigitalExpression de = new DigitalExpression();
+		de.INPUT = IN_FILE;
+		de.CELL_BC_FILE = IN_CELL_BARCODE_FILE;
+		de.OUTPUT = outFile;
+		de.SUMMARY = summaryFile;
+		de.OUTPUT_LONG_FORMAT=longOutput;
+		de.NUM_THREADS=4;
+
+		int result = de.doWork();
+		Assert.assertEquals(result, 0);
+		// the output should be identical to the single threaded output.
+		Assert.assertTrue (FileUtils.contentEquals(outFile, EXPECTED_OUTFILE));
+		Assert.assertTrue (FileUtils.contentEquals(summaryFile, EXPECTED_OUTFILE_SUMMARY));
+		Assert.assertTrue (FileUtils.contentEquals(longOutput, EXPECTED_OUTFILE_LONG));
+	}
+
+	@Test
+	public void testDoWorkBinaryOutput () throws IOException {
+		File outFile = File.createTempFile("testDigitalExpression.", ".digital_expression.bin");
+		outFile.deleteOnExit();
+
+		final DigitalExpression de = new DigitalExpression();
+		de.INPUT = IN_FILE;
+		de.CELL_BC_FILE = IN_CELL_BARCODE_FILE;
+		de.OUTPUT = outFile;
+		de.OUTPUT_FORMAT = DigitalExpression.OutputFormat.BINARY;
+
+		Assert.assertEquals(de.doWork(), 0);
+		// the binary output should hold the same matrix as the text output.
+		DgeIterator expected = new DgeIterator(EXPECTED_OUTFILE);
+		DgeIterator actual = new DgeIterator(outFile);
+		Assert.assertEquals(actual.getIdentifiers(), expected.getIdentifiers());
+		while (expected.hasNext()) {
+			Assert.assertTrue(actual.hasNext());
+			DgeIterator.DgeLine e = expected.next();
+			DgeIterator.DgeLine a = actual.next();
+			Assert.assertEquals(a.getGene(), e.getGene());
+			Assert.assertEquals(a.getExpression(), e.getExpression());
+		}
+		Assert.assertFalse(actual.hasNext());
+		expected.close();
+		actual.close();
+	}
+
 	//TODO: set up the proper output files.
 	@Test (enabled=true)
 	public void testDoWorkSingleBarcode () {
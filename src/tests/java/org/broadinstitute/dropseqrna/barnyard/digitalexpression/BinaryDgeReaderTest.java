@@ -0,0 +1,181 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.barnyard.digitalexpression;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketConstants;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class BinaryDgeReaderTest {
+
+    private static final File TEXT_DGE = new File("testdata/org/broadinstitute/transcriptome/barnyard/digitalexpression/test_with_header.dge.txt.gz");
+
+    private static File makeTempFile() throws IOException {
+        final File f = File.createTempFile("BinaryDgeReaderTest.", ".dge.bin");
+        f.deleteOnExit();
+        return f;
+    }
+
+    @Test
+    public void testRandomAccessInteger() throws IOException {
+        final int numGenes = 50;
+        final int numCells = 70;
+        final int[][] expected = new int[numGenes][numCells];
+        final Random random = new Random(17);
+        for (int gene = 0; gene < numGenes; ++gene)
+            for (int cell = 0; cell < numCells; ++cell)
+                if (random.nextInt(4) == 0)
+                    // occasional large and negative values exercise the varint encoding.
+                    expected[gene][cell] = random.nextInt(10) == 0 ? random.nextInt() : random.nextInt(20) + 1;
+        final List<String> genes = makeNames("gene", numGenes);
+        final List<String> cells = makeNames("cell", numCells);
+
+        final File f = makeTempFile();
+        // A tiny maxRecordsInRam makes the writer spill.
+        final BinaryDgeWriter writer = new BinaryDgeWriter(f, MatrixMarketConstants.ElementType.integer, genes, cells,
+                null, BinaryDgeConstants.DEFAULT_GENE_COLUMN_LABEL, 100, Collections.singletonList(f.getParentFile()));
+        // write in column-major order, reversed, to show that order doesn't matter
+        for (int cell = numCells - 1; cell >= 0; --cell)
+            for (int gene = numGenes - 1; gene >= 0; --gene)
+                if (expected[gene][cell] != 0)
+                    writer.writeTriplet(gene, cell, expected[gene][cell]);
+        writer.close();
+
+        Assert.assertTrue(BinaryDgeReader.isBinaryDge(f));
+        final BinaryDgeReader reader = new BinaryDgeReader(f);
+        Assert.assertEquals(reader.getElementType(), MatrixMarketConstants.ElementType.integer);
+        Assert.assertEquals(reader.getGenes(), genes);
+        Assert.assertEquals(reader.getCellBarcodes(), cells);
+        Assert.assertEquals(reader.getDgeHeader().getExpressionFormat(), DgeHeader.ExpressionFormat.unknown);
+        long numNonZero = 0;
+        for (int gene = 0; gene < numGenes; ++gene) {
+            final BinaryDgeReader.SparseVector v = reader.getGene(gene);
+            Assert.assertNull(v.realValues);
+            final int[] dense = new int[numCells];
+            for (int i = 0; i < v.size(); ++i)
+                dense[v.indices[i]] = v.values[i];
+            Assert.assertEquals(dense, expected[gene]);
+            numNonZero += v.size();
+        }
+        Assert.assertEquals(reader.getNumNonZeroElements(), numNonZero);
+        // read cells out of order
+        for (int cell = numCells - 1; cell >= 0; cell -= 3) {
+            final BinaryDgeReader.SparseVector v = reader.getCell(cells.get(cell));
+            final int[] dense = new int[numGenes];
+            for (int i = 0; i < v.size(); ++i)
+                dense[v.indices[i]] = v.values[i];
+            for (int gene = 0; gene < numGenes; ++gene)
+                Assert.assertEquals(dense[gene], expected[gene][cell]);
+        }
+        Assert.assertEquals(reader.getCellIndex("no such cell"), -1);
+        reader.close();
+    }
+
+    @Test
+    public void testReal() throws IOException {
+        final File f = makeTempFile();
+        final List<String> genes = Arrays.asList("A", "B", "C");
+        final List<String> cells = Arrays.asList("c1", "c2");
+        final BinaryDgeWriter writer = new BinaryDgeWriter(f, MatrixMarketConstants.ElementType.real, genes, cells, null);
+        writer.writeTriplet(2, 1, 0.125);
+        writer.writeTriplet(0, 1, 3);
+        writer.writeTriplet(1, 0, -1e-9);
+        writer.close();
+
+        final BinaryDgeReader reader = new BinaryDgeReader(f);
+        Assert.assertEquals(reader.getElementType(), MatrixMarketConstants.ElementType.real);
+        final BinaryDgeReader.SparseVector cell = reader.getCell(1);
+        Assert.assertNull(cell.values);
+        Assert.assertEquals(cell.indices, new int[]{0, 2});
+        Assert.assertEquals(cell.realValues, new double[]{3, 0.125});
+        Assert.assertEquals(reader.getGene("B").realValues, new double[]{-1e-9});
+        Assert.assertEquals(reader.getGene("B").indices, new int[]{0});
+        reader.close();
+    }
+
+    @Test
+    public void testHeaderAndAddGene() throws IOException {
+        final DgeIterator text = new DgeIterator(TEXT_DGE);
+        final File f = makeTempFile();
+        final BinaryDgeWriter writer = new BinaryDgeWriter(f, MatrixMarketConstants.ElementType.integer,
+                Collections.emptyList(), text.getIdentifiers(), text.getDgeHeader());
+        while (text.hasNext()) {
+            final DgeIterator.DgeLine line = text.next();
+            final int gene = writer.addGene(line.getGene());
+            final int[] expression = line.getExpression();
+            for (int i = 0; i < expression.length; ++i)
+                if (expression[i] != 0)
+                    writer.writeTriplet(gene, i, expression[i]);
+        }
+        text.close();
+        writer.close();
+
+        final BinaryDgeReader reader = new BinaryDgeReader(f);
+        final DgeHeader expectedHeader = new DgeIterator(TEXT_DGE).getDgeHeader();
+        Assert.assertEquals(reader.getDgeHeader().getVersion(), expectedHeader.getVersion());
+        Assert.assertEquals(reader.getDgeHeader().getNumLibraries(), expectedHeader.getNumLibraries());
+        Assert.assertEquals(reader.getDgeHeader().getLibrary(0).getInput(), expectedHeader.getLibrary(0).getInput());
+        Assert.assertEquals(reader.getNumGenes(), 10);
+        Assert.assertEquals(reader.getGenes().get(0), "A4GALT");
+        Assert.assertEquals(reader.getGene("A4GALT").indices, new int[]{0, 1, 2, 5});
+        Assert.assertEquals(reader.getGene("A4GALT").values, new int[]{2, 2, 1, 3});
+        reader.close();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testDuplicateEntry() throws IOException {
+        final File f = makeTempFile();
+        final BinaryDgeWriter writer = new BinaryDgeWriter(f, MatrixMarketConstants.ElementType.integer,
+                Arrays.asList("A", "B"), Arrays.asList("c1", "c2"), null);
+        writer.writeTriplet(1, 1, 3);
+        writer.writeTriplet(1, 1, 4);
+        writer.close();
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testRealIntoInteger() throws IOException {
+        final BinaryDgeWriter writer = new BinaryDgeWriter(makeTempFile(), MatrixMarketConstants.ElementType.integer,
+                Arrays.asList("A"), Arrays.asList("c1"), null);
+        writer.writeTriplet(0, 0, 0.5);
+    }
+
+    @Test
+    public void testIsBinaryDge() {
+        Assert.assertFalse(BinaryDgeReader.isBinaryDge(TEXT_DGE));
+    }
+
+    private static List<String> makeNames(final String prefix, final int count) {
+        final String[] ret = new String[count];
+        for (int i = 0; i < count; ++i)
+            ret[i] = prefix + i;
+        return Arrays.asList(ret);
+    }
+}
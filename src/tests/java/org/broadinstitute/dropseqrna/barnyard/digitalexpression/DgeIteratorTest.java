@@ -1,13 +1,19 @@
 package org.broadinstitute.dropseqrna.barnyard.digitalexpression;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeIterator.DgeLine;
+import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketConstants;
 import org.junit.Assert;
 import org.testng.annotations.Test;
 
@@ -61,6 +67,103 @@ public class DgeIteratorTest {
 
 	}
 
+	@Test
+	public void testBinary () throws IOException {
+		File binaryFile = File.createTempFile("DgeIteratorTest.", ".dge.bin");
+		binaryFile.deleteOnExit();
+		DgeIterator text = new DgeIterator(this.inFile);
+		BinaryDgeWriter writer = new BinaryDgeWriter(binaryFile, MatrixMarketConstants.ElementType.integer,
+				Collections.emptyList(), text.getIdentifiers(), text.getDgeHeader());
+		while (text.hasNext()) {
+			DgeLine l = text.next();
+			int gene = writer.addGene(l.getGene());
+			int [] exp = l.getExpression();
+			for (int j=0; j<exp.length; j++)
+				if (exp[j]!=0)
+					writer.writeTriplet(gene, j, exp[j]);
+		}
+		text.close();
+		writer.close();
+
+		text = new DgeIterator(this.inFile);
+		DgeIterator binary = new DgeIterator(binaryFile);
+		Assert.assertEquals(text.getIdentifiers(), binary.getIdentifiers());
+		Assert.assertEquals(text.getGeneColumnLabel(), binary.getGeneColumnLabel());
+		Assert.assertEquals(text.getDgeHeader().getExpressionFormat(), binary.getDgeHeader().getExpressionFormat());
+		while (text.hasNext()) {
+			Assert.assertTrue(binary.hasNext());
+			DgeLine expected = text.next();
+			DgeLine actual = binary.next();
+			Assert.assertEquals(expected.getGene(), actual.getGene());
+			Assert.assertArrayEquals(expected.getExpression(), actual.getExpression());
+		}
+		Assert.assertFalse(binary.hasNext());
+		text.close();
+		binary.close();
+	}
+
+	@Test
+	public void testIteratorSubset () {
+		// in a different order than the file, plus one that isn't in the file.
+		Set<String> cellBarcodes = new HashSet<>(Arrays.asList("CCACCTAGTGTCCTCT", "GGATTACTCATTATCC", "AACCATGCACATCTTT", "NOT_A_CELL"));
+		DgeIterator full = new DgeIterator(this.inFile);
+		DgeIterator subset = new DgeIterator(this.inFile);
+		subset.subset(cellBarcodes);
+		subset.setReuseLines(true);
+		Assert.assertEquals(Arrays.asList("GGATTACTCATTATCC", "AACCATGCACATCTTT", "CCACCTAGTGTCCTCT"), subset.getIdentifiers());
+		int index = subset.getIdentifierIndex("CCACCTAGTGTCCTCT");
+		Assert.assertEquals(2, index);
+		Assert.assertEquals(-1, subset.getIdentifierIndex("GATCGATAGAAACCAT"));
+		DgeLine previous = null;
+		while (full.hasNext()) {
+			DgeLine expected = full.next();
+			DgeLine actual = subset.next();
+			// lines are reused.
+			if (previous!=null)
+				Assert.assertSame(previous, actual);
+			previous=actual;
+			Assert.assertEquals(expected.getGene(), actual.getGene());
+			Assert.assertEquals(3, actual.getExpression().length);
+			for (String id: subset.getIdentifiers())
+				Assert.assertEquals(expected.getExpression(id), actual.getExpression(id));
+			Assert.assertEquals(expected.getExpression("CCACCTAGTGTCCTCT"), actual.getExpression(index));
+		}
+		Assert.assertFalse(subset.hasNext());
+		full.close();
+		subset.close();
+	}
+
+	@Test
+	public void testLineEndings () {
+		String dge = "#DGE\tVERSION:1.1\tEXPRESSION_FORMAT:raw\nGENE\tA\tB\tC\r\nG1\t1\t-2\t30\r\n\nG2\t0\t5\t2147483647";
+		DgeIterator iter = new DgeIterator(toStream(dge), "test");
+		Assert.assertEquals(Arrays.asList("A", "B", "C"), iter.getIdentifiers());
+		DgeLine l = iter.next();
+		Assert.assertEquals("G1", l.getGene());
+		Assert.assertArrayEquals(new int [] {1, -2, 30}, l.getExpression());
+		l = iter.next();
+		Assert.assertEquals("G2", l.getGene());
+		Assert.assertArrayEquals(new int [] {0, 5, Integer.MAX_VALUE}, l.getExpression());
+		Assert.assertFalse(iter.hasNext());
+		iter.close();
+	}
+
+	@Test(expectedExceptions = RuntimeException.class)
+	public void testBadValue () {
+		DgeIterator iter = new DgeIterator(toStream("GENE\tA\tB\nG1\t1\tx\n"), "test");
+		iter.next();
+	}
+
+	@Test(expectedExceptions = RuntimeException.class)
+	public void testWrongNumberOfColumns () {
+		DgeIterator iter = new DgeIterator(toStream("GENE\tA\tB\nG1\t1\n"), "test");
+		iter.next();
+	}
+
+	private static BufferedInputStream toStream (final String s) {
+		return new BufferedInputStream(new ByteArrayInputStream(s.getBytes(StandardCharsets.US_ASCII)));
+	}
+
 	public void testSubset () {
 		Set<String> cellBarcodes = new HashSet<>(Arrays.asList("GGATTACTCATTATCC","TCGAGGCTCAGCCTAA","CTAATGGCAATACGCT","AGGTCCGCATGTAGTC","TTTGCGCAGCAACGGT","CCACCTAGTGTCCTCT"));
 		DgeIterator iter = new DgeIterator(this.inFile);
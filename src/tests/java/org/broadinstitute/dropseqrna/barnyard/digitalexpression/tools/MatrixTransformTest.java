@@ -23,7 +23,6 @@
  */
 package org.broadinstitute.dropseqrna.barnyard.digitalexpression.tools;
 
-import org.la4j.Matrix;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -39,9 +38,9 @@ public class MatrixTransformTest {
 	public void testNormalizeRows() {
 		DGEMatrix result= DGEMatrix.parseFile(exampleOne);				
 		result.applyTransform(MatrixTransformFactory.normalizeColumns());
-		Matrix m = result.getMatrix();
+		SparseExpressionMatrix m = result.getMatrix();
 		Assert.assertNotNull(m);
-		double [] [] actualValues = m.toDenseMatrix().toArray();
+		double [] [] actualValues = m.toArray();
 		// sweep(a,2,colSums(a),'/')
 		double [] [] expectedVals = {{0.609756, 0.731707, 0.765957, 0.666667, 0.828571},
 									   {0.024390, 0.000000, 0.000000, 0.000000, 0.000000},
@@ -80,9 +79,9 @@ public class MatrixTransformTest {
 		
 		result.applyTransform(MatrixTransformFactory.normalizeColumns());
 		result.applyTransform(MatrixTransformFactory.logOfDGE(10000, 1));
-		Matrix m = result.getMatrix();
+		SparseExpressionMatrix m = result.getMatrix();
 		Assert.assertNotNull(m);
-		double [] [] actualValues = m.toDenseMatrix().toArray();
+		double [] [] actualValues = m.toArray();
 		// b=log(10000*sweep(a,2,colSums(a),'/')+1)
 		double [] [] expectedVals = {{8.715808, 8.898102, 8.943842, 8.805025, 9.022409},
 									 {5.50086, 0, 0, 0, 0},
@@ -118,7 +117,7 @@ public class MatrixTransformTest {
 	@Test(enabled=true)
 	public void test() {
 		DGEMatrix result= DGEMatrix.parseFile(exampleOne);
-		Matrix m = result.getMatrix();
+		SparseExpressionMatrix m = result.getMatrix();
 		result.applyTransform(MatrixTransformFactory.normalizeColumns());
 		result.applyTransform(MatrixTransformFactory.logOfDGE(10000, 1));
 		result.toDenseMatrix();
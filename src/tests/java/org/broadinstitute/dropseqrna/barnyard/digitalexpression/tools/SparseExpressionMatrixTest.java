@@ -0,0 +1,112 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.barnyard.digitalexpression.tools;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class SparseExpressionMatrixTest {
+
+	private final double [] [] data = {{1,0,2,0},{0,0,0,0},{0,3,0,4},{5,0,0,6}};
+
+	@Test
+	public void testBuilder() {
+		// entries out of order, with a duplicate that is summed.
+		SparseExpressionMatrix.Builder b = new SparseExpressionMatrix.Builder(4, 4);
+		b.add(3, 3, 6);
+		b.add(2, 3, 4);
+		b.add(0, 2, 1);
+		b.add(3, 0, 5);
+		b.add(0, 0, 1);
+		b.add(2, 1, 3);
+		b.add(0, 2, 1);
+		SparseExpressionMatrix m = b.build();
+		Assert.assertEquals(m, SparseExpressionMatrix.fromDense(data));
+		assertMatrix(m, data);
+		Assert.assertEquals(m.cardinality(), 6);
+		Assert.assertEquals(m.get(2, 3), 4, 0);
+		Assert.assertEquals(m.get(1, 1), 0, 0);
+	}
+
+	@Test(expectedExceptions=IllegalArgumentException.class)
+	public void testBuilderOutOfBounds() {
+		new SparseExpressionMatrix.Builder(2, 2).add(0, 2, 1);
+	}
+
+	@Test
+	public void testSums() {
+		SparseExpressionMatrix m = SparseExpressionMatrix.fromDense(data);
+		Assert.assertEquals(m.columnSums(), new double [] {6,3,2,10});
+		Assert.assertEquals(m.rowSums(), new double [] {3,0,7,11});
+		Assert.assertEquals(m.columnNonZeroCounts(), new int [] {2,1,1,2});
+		Assert.assertEquals(m.rowNonZeroCounts(), new int [] {2,0,2,2});
+	}
+
+	@Test
+	public void testRemoveRowsAndColumns() {
+		SparseExpressionMatrix m = SparseExpressionMatrix.fromDense(data);
+		m.removeColumns(new boolean [] {false, true, false, false});
+		assertMatrix(m, new double [] [] {{1,2,0},{0,0,0},{0,0,4},{5,0,6}});
+		m.removeRows(new boolean [] {true, true, false, false});
+		assertMatrix(m, new double [] [] {{0,0,4},{5,0,6}});
+		Assert.assertEquals(m.rows(), 2);
+		Assert.assertEquals(m.columns(), 3);
+	}
+
+	@Test
+	public void testUpdate() {
+		SparseExpressionMatrix m = SparseExpressionMatrix.fromDense(data);
+		// maps 0 to 0, so the matrix stays sparse.
+		m.update(v -> v*2);
+		Assert.assertEquals(m.getStoredRowValues(0).length, 2);
+		Assert.assertEquals(m.get(3, 3), 12, 0);
+		// fills in the zeros.
+		m.update(v -> v+1);
+		Assert.assertEquals(m.getStoredRowValues(1), new double [] {1,1,1,1});
+		Assert.assertEquals(m.get(0, 2), 5, 0);
+		m.update(v -> (v-1)/2);
+		m.compact();
+		Assert.assertEquals(m.getStoredRowValues(1).length, 0);
+		Assert.assertEquals(m, SparseExpressionMatrix.fromDense(data));
+	}
+
+	@Test
+	public void testMerge() {
+		SparseExpressionMatrix a = SparseExpressionMatrix.fromDense(new double [] [] {{1,2},{3,0}});
+		SparseExpressionMatrix b = SparseExpressionMatrix.fromDense(new double [] [] {{4,5},{0,6}});
+		// row 0 comes from a's row 1, row 1 from both, row 2 from b's row 1.
+		// b's column 1 is the same as a's column 0, so their values are summed.
+		SparseExpressionMatrix m = SparseExpressionMatrix.merge(3, 3,
+				a, new int [] {1,0,-1}, new int [] {0,1},
+				b, new int [] {-1,0,1}, new int [] {2,0});
+		assertMatrix(m, new double [] [] {{3,0,0},{6,2,4},{6,0,0}});
+	}
+
+	private void assertMatrix (final SparseExpressionMatrix m, final double [] [] expected) {
+		double [] [] actual = m.toArray();
+		Assert.assertEquals(actual.length, expected.length);
+		for (int i=0; i<expected.length; i++)
+			Assert.assertEquals(actual[i], expected[i]);
+	}
+}
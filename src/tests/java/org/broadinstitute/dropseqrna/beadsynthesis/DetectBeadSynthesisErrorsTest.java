@@ -46,8 +46,17 @@ public class DetectBeadSynthesisErrorsTest {
 	private static File EXPECTED_SUMMARY = new File ("testdata/org/broadinstitute/dropseq/beadsynthesis/DetectBeadSynthesisErrors.summary");
 	private static File EXPECTED_BAM = new File ("testdata/org/broadinstitute/dropseq/beadsynthesis/DetectBeadSynthesisErrors.bam");
 
-		@Test
+	@Test
 	public void testDoWork() {
+		testDoWork(1);
+	}
+
+	@Test
+	public void testDoWorkMultiThreaded() {
+		testDoWork(3);
+	}
+
+	private void testDoWork(final int numThreads) {
 		DetectBeadSynthesisErrors gbse = new DetectBeadSynthesisErrors();
 
 		File report = getTempReportFile("DetectBeadSynthesisErrorsTest", ".report");
@@ -66,6 +75,8 @@ public class DetectBeadSynthesisErrorsTest {
 	    gbse.OUTPUT=cleanBAM;
 		gbse.REPORT=report;
 		gbse.OUTPUT_STATS=stats;
+		gbse.NUM_THREADS=numThreads;
+		gbse.CELLS_PER_BATCH=7;  // many batches, so their results are gathered in order.
 
 		// test custom command line validation
 		gbse.MAX_BARCODE_ERRORS_IN_RAM=5;  // i want to test serialization/deserialization.
@@ -27,6 +27,9 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.util.List;
+import java.util.Random;
+
+import org.broadinstitute.dropseqrna.utils.editdistance.EDUtils;
 
 public class DetectPrimerTest {
 
@@ -49,4 +52,30 @@ public class DetectPrimerTest {
 			Assert.assertEquals(substrings.get(i), expected[i]);
 		}		
 	}
+
+	@Test
+	public void testIndexMatchesScan() {
+		DetectPrimerInUMI dpu = new DetectPrimerInUMI(this.primer);
+		Random random = new Random(1);
+		String bases = "ACGTN";
+		for (int editDistance=0; editDistance<=3; editDistance++)
+			for (int length: new int [] {0, 6, 8, 12, 23, 24}) {
+				List<String> substrings = dpu.getSubstrings(length);
+				for (int i=0; i<500; i++) {
+					// half the strings are mutated substrings of the primer, so some match.
+					char [] s = new char [length];
+					for (int c=0; c<length; c++)
+						s[c] = bases.charAt(random.nextInt(4));
+					if (i%2==0 && !substrings.isEmpty())
+						s = substrings.get(random.nextInt(substrings.size())).toCharArray();
+					// an N sometimes, which can't be looked up in the index.
+					int changes = random.nextInt(editDistance+2);
+					for (int c=0; c<changes && length>0; c++)
+						s[random.nextInt(length)] = bases.charAt(random.nextInt(i%10==0 ? 5 : 4));
+					String str = new String(s);
+					boolean expected = !EDUtils.getInstance().getStringsWithinHammingDistance(str, substrings, editDistance).isEmpty();
+					Assert.assertEquals(dpu.isStringInPrimer(str, editDistance), expected, str + " " + editDistance);
+				}
+			}
+	}
 }
@@ -25,8 +25,11 @@ package org.broadinstitute.dropseqrna.cluster;
 
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.TestUtil;
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.BinaryDgeReader;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeaderMerger;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.tools.DGEMatrix;
+import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketConstants;
+import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketReader;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -123,6 +126,73 @@ public class MergeDgeSparseTest {
         Assert.assertEquals(rawMatrix.getCellBarcodes().size(), expectedNumCells);
     }
 
+    @Test
+    public void testBinaryOutput() throws IOException {
+        final File tempDir = TestUtil.getTempDirectory("MergeDgeSparseTest.", ".tmp");
+        tempDir.deleteOnExit();
+        final File rawMm = new File(tempDir, "test.raw.mtx");                 rawMm.deleteOnExit();
+        final File scaledMm = new File(tempDir, "test.scaled.mtx");           scaledMm.deleteOnExit();
+        final File rawBinary = new File(tempDir, "test.raw.dge.bin");         rawBinary.deleteOnExit();
+        final File scaledBinary = new File(tempDir, "test.scaled.dge.bin");   scaledBinary.deleteOnExit();
+        Assert.assertEquals(makeMerger(rawMm, scaledMm, MergeDgeSparse.OutputFormat.MATRIX_MARKET).doWork(), 0);
+        Assert.assertEquals(makeMerger(rawBinary, scaledBinary, MergeDgeSparse.OutputFormat.BINARY).doWork(), 0);
+        assertSameMatrix(rawMm, rawBinary);
+        assertSameMatrix(scaledMm, scaledBinary);
+
+        // The binary output can itself be read as an input DGE.
+        final GeneEnumerator geneEnumerator = new GeneEnumerator(Collections.emptyList());
+        try (SparseDge fromMm = new SparseDge(rawMm, geneEnumerator);
+             SparseDge fromBinary = new SparseDge(rawBinary, geneEnumerator)) {
+            Assert.assertEquals(fromBinary.getNumCells(), fromMm.getNumCells());
+            Assert.assertEquals(fromBinary.getNumNonZeroEntries(), fromMm.getNumNonZeroEntries());
+            for (int i = 0; i < fromMm.getNumCells(); ++i) {
+                Assert.assertEquals(fromBinary.getCellBarcode(i), fromMm.getCellBarcode(i));
+                Assert.assertEquals(fromBinary.getNumTranscripts(i), fromMm.getNumTranscripts(i));
+            }
+        }
+    }
+
+    private MergeDgeSparse makeMerger(final File rawOutput, final File scaledOutput, final MergeDgeSparse.OutputFormat format) {
+        final MergeDgeSparse merger = new MergeDgeSparse();
+        merger.YAML = YAML;
+        merger.RAW_DGE_OUTPUT_FILE = rawOutput;
+        merger.SCALED_DGE_OUTPUT_FILE = scaledOutput;
+        merger.OUTPUT_FORMAT = format;
+        merger.MIN_GENES = 0;
+        merger.FILTERED_GENE_RE = Collections.emptyList();
+        // small enough that the binary writer spills to disk
+        merger.MAX_RECORDS_IN_RAM = 1000;
+        return merger;
+    }
+
+    private void assertSameMatrix(final File mmFile, final File binaryFile) throws IOException {
+        final MatrixMarketReader mmReader = new MatrixMarketReader(mmFile, MatrixMarketConstants.GENES, MatrixMarketConstants.CELL_BARCODES);
+        final BinaryDgeReader binaryReader = new BinaryDgeReader(binaryFile);
+        Assert.assertEquals(binaryReader.getElementType(), mmReader.getElementType());
+        Assert.assertEquals(binaryReader.getGenes(), mmReader.getRowNames());
+        Assert.assertEquals(binaryReader.getCellBarcodes(), mmReader.getColNames());
+        Assert.assertEquals(binaryReader.getNumNonZeroElements(), mmReader.getNumElements());
+        final boolean real = mmReader.getElementType() == MatrixMarketConstants.ElementType.real;
+        final Map<Long, Double> mmValues = new HashMap<>();
+        for (final MatrixMarketReader.Element element : mmReader)
+            mmValues.put(((long)element.row << 32) | element.col, element.realValue());
+        mmReader.close();
+        for (int cell = 0; cell < binaryReader.getNumCells(); ++cell) {
+            final BinaryDgeReader.SparseVector v = binaryReader.getCell(cell);
+            for (int i = 0; i < v.size(); ++i) {
+                final Double expected = mmValues.remove(((long)v.indices[i] << 32) | cell);
+                Assert.assertNotNull(expected);
+                if (real)
+                    // Matrix Market reals are written with 8 significant digits.
+                    Assert.assertEquals(v.realValues[i], expected, Math.abs(expected) * 1e-7);
+                else
+                    Assert.assertEquals(v.values[i], expected.intValue());
+            }
+        }
+        Assert.assertTrue(mmValues.isEmpty());
+        binaryReader.close();
+    }
+
     @DataProvider(name="testBasicDataProvider")
     private Object[][] testBasicDataProvider() throws IOException {
         final List<File> selectedCellsFiles = new ArrayList<File>();
@@ -0,0 +1,167 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.matrixmarket;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class MappedMatrixMarketReaderTest {
+
+    @Test(dataProvider = "threadsAndChunks")
+    public void testIntMatchesMatrixMarketReader(final int numThreads, final long minChunkSize) throws IOException {
+        final List<String> rowNames = makeNames("GENE", 300);
+        final List<String> colNames = makeNames("CELL", 50);
+        final File mmFile = File.createTempFile("MappedMatrixMarketReaderTest.", ".mtx");
+        mmFile.deleteOnExit();
+        final Random random = new Random(1);
+        final List<int[]> expected = new ArrayList<>();
+        for (int j = 0; j < colNames.size(); ++j) {
+            for (int i = 0; i < rowNames.size(); ++i) {
+                if (random.nextInt(3) == 0) {
+                    expected.add(new int[]{i, j, random.nextInt(1000) - 10});
+                }
+            }
+        }
+        final MatrixMarketWriter writer = new MatrixMarketWriter(mmFile, MatrixMarketConstants.ElementType.integer,
+                rowNames.size(), colNames.size(), expected.size(), rowNames, colNames, MatrixMarketConstants.GENES, MatrixMarketConstants.CELL_BARCODES);
+        for (final int[] e : expected) {
+            writer.writeTriplet(e[0], e[1], e[2]);
+        }
+        writer.close();
+
+        Assert.assertTrue(MappedMatrixMarketReader.canMap(mmFile));
+        final MappedMatrixMarketReader reader = new MappedMatrixMarketReader(mmFile, MatrixMarketConstants.GENES, MatrixMarketConstants.CELL_BARCODES, numThreads);
+        reader.minChunkSize = minChunkSize;
+        Assert.assertEquals(reader.getNumRows(), rowNames.size());
+        Assert.assertEquals(reader.getNumCols(), colNames.size());
+        Assert.assertEquals(reader.getNumElements(), expected.size());
+        Assert.assertEquals(reader.getRowNames(), rowNames);
+        Assert.assertEquals(reader.getColNames(), colNames);
+        Assert.assertEquals(reader.getElementType(), MatrixMarketConstants.ElementType.integer);
+
+        final MappedMatrixMarketReader.Triplets triplets = reader.readTriplets();
+        Assert.assertNull(triplets.realValues);
+        Assert.assertEquals(triplets.size(), expected.size());
+        for (int k = 0; k < expected.size(); ++k) {
+            Assert.assertEquals(new int[]{triplets.rows[k], triplets.cols[k], triplets.values[k]}, expected.get(k));
+        }
+
+        // chunks arrive in file order.
+        final List<int[]> streamed = new ArrayList<>();
+        reader.readTriplets(chunk -> {
+            for (int k = 0; k < chunk.size(); ++k) {
+                streamed.add(new int[]{chunk.rows[k], chunk.cols[k], chunk.values[k]});
+            }
+        });
+        Assert.assertEquals(streamed.size(), expected.size());
+        for (int k = 0; k < expected.size(); ++k) {
+            Assert.assertEquals(streamed.get(k), expected.get(k));
+        }
+    }
+
+    @DataProvider(name = "threadsAndChunks")
+    public Object[][] threadsAndChunks() {
+        return new Object[][]{
+                {1, 1L << 20},
+                {3, 1L << 20},
+                {3, 100},
+                {4, 1},
+        };
+    }
+
+    @Test
+    public void testReal() throws IOException {
+        final File mmFile = writeFile("%%MatrixMarket matrix coordinate real general",
+                "3 2 3", "1 1 0.5", "  2\t2  1e-3 ", "", "3 1 -2.25");
+        final MappedMatrixMarketReader reader = new MappedMatrixMarketReader(mmFile, 2);
+        final MappedMatrixMarketReader.Triplets triplets = reader.readTriplets();
+        Assert.assertNull(triplets.values);
+        Assert.assertEquals(triplets.rows, new int[]{0, 1, 2});
+        Assert.assertEquals(triplets.cols, new int[]{0, 1, 0});
+        Assert.assertTrue(Arrays.equals(triplets.realValues, new double[]{0.5, 0.001, -2.25}));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        final File mmFile = writeFile(MatrixMarketConstants.MM_HEADER_INT, "% a comment", "3 2 0");
+        Assert.assertEquals(new MappedMatrixMarketReader(mmFile, 2).readTriplets().size(), 0);
+    }
+
+    @Test(expectedExceptions = RuntimeException.class, expectedExceptionsMessageRegExp = ".*bad data line.*")
+    public void testBadLine() throws IOException {
+        final File mmFile = writeFile(MatrixMarketConstants.MM_HEADER_INT, "3 2 2", "1 1 5", "2 2 x");
+        new MappedMatrixMarketReader(mmFile, 1).readTriplets();
+    }
+
+    @Test(expectedExceptions = RuntimeException.class, expectedExceptionsMessageRegExp = ".*out of range.*")
+    public void testIndexOutOfRange() throws IOException {
+        final File mmFile = writeFile(MatrixMarketConstants.MM_HEADER_INT, "3 2 1", "4 1 5");
+        new MappedMatrixMarketReader(mmFile, 1).readTriplets();
+    }
+
+    @Test(expectedExceptions = RuntimeException.class, expectedExceptionsMessageRegExp = ".*header says.*")
+    public void testWrongNumberOfElements() throws IOException {
+        final File mmFile = writeFile(MatrixMarketConstants.MM_HEADER_INT, "3 2 3", "1 1 5", "2 2 6");
+        new MappedMatrixMarketReader(mmFile, 1).readTriplets(chunk -> {});
+    }
+
+    @Test
+    public void testCanMapGzip() throws IOException {
+        final File mmFile = File.createTempFile("MappedMatrixMarketReaderTest.", ".mtx.gz");
+        mmFile.deleteOnExit();
+        final MatrixMarketWriter writer = new MatrixMarketWriter(mmFile, MatrixMarketConstants.ElementType.integer,
+                1, 1, 1, null, null, null, null);
+        writer.writeTriplet(0, 0, 1);
+        writer.close();
+        Assert.assertFalse(MappedMatrixMarketReader.canMap(mmFile));
+    }
+
+    private static List<String> makeNames(final String prefix, final int num) {
+        final List<String> ret = new ArrayList<>(num);
+        for (int i = 0; i < num; ++i) {
+            ret.add(prefix + i);
+        }
+        return ret;
+    }
+
+    private static File writeFile(final String... lines) throws IOException {
+        final File ret = File.createTempFile("MappedMatrixMarketReaderTest.", ".mtx");
+        ret.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(ret)) {
+            for (final String line : lines) {
+                out.print(line + "\n");
+            }
+        }
+        return ret;
+    }
+}
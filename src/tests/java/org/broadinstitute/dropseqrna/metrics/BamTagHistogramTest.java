@@ -3,7 +3,9 @@ package org.broadinstitute.dropseqrna.metrics;
 import java.io.File;
 import java.io.IOException;
 
+import org.broadinstitute.dropseqrna.utils.ObjectCounter;
 import org.broadinstitute.dropseqrna.utils.TestUtils;
+import org.broadinstitute.dropseqrna.utils.io.ShardedBamProcessorTest;
 import org.testng.annotations.Test;
 
 import junit.framework.Assert;
@@ -47,4 +49,18 @@ public class BamTagHistogramTest {
 		Assert.assertTrue(t1);
 	}
 
+	@Test
+	public void testSharded() throws IOException {
+		File indexedBam = ShardedBamProcessorTest.makeIndexedBam();
+		for (String tag: new String [] {"XC", "NM"}) {
+			BamTagHistogram bth = new BamTagHistogram();
+			ObjectCounter<String> expected = bth.getBamTagCounts(indexedBam, tag, 0, false);
+			bth.NUM_THREADS=3;
+			ObjectCounter<String> actual = bth.getBamTagCounts(indexedBam, tag, 0, false);
+			Assert.assertEquals(expected.getKeys(), actual.getKeys());
+			for (String k: expected.getKeys())
+				Assert.assertEquals(expected.getCountForKey(k), actual.getCountForKey(k));
+		}
+	}
+
 }
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 
 import org.apache.commons.io.FileUtils;
+import org.broadinstitute.dropseqrna.utils.io.ShardedBamProcessorTest;
 import org.junit.Assert;
 import org.testng.annotations.Test;
 
@@ -67,4 +68,16 @@ public class BamTagOfTagCountsTest {
 
 	}
 
+	@Test
+	public void testSharded() throws IOException {
+		File indexedBam = ShardedBamProcessorTest.makeIndexedBam();
+		BamTagOfTagCounts b = new BamTagOfTagCounts();
+		TagOfTagResults<String,String> expected = b.getResults(indexedBam, "XC", "XM", true, 0);
+		b.NUM_THREADS=3;
+		TagOfTagResults<String,String> actual = b.getResults(indexedBam, "XC", "XM", true, 0);
+		Assert.assertEquals(expected.getKeys(), actual.getKeys());
+		for (String k: expected.getKeys())
+			Assert.assertEquals(expected.getValues(k), actual.getValues(k));
+	}
+
 }
@@ -7,6 +7,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import org.apache.commons.io.FileUtils;
 import org.broadinstitute.dropseqrna.annotation.GeneAnnotationReader;
 import org.broadinstitute.dropseqrna.annotation.GeneFromGTF;
 import org.broadinstitute.dropseqrna.utils.CompareBAMTagValues;
@@ -55,6 +56,39 @@ public class TagReadWithGeneFunctionTest {
 
 	}
 
+	@Test
+	public void testDoWorkMultipleThreads() throws IOException {
+		File expectedSummary=File.createTempFile("TagReadWithGeneFunctionTest", ".summary");
+		expectedSummary.deleteOnExit();
+		TagReadWithGeneFunction t = new TagReadWithGeneFunction();
+		t.INPUT=testBAMFile;
+		t.OUTPUT=File.createTempFile("TagReadWithGeneFunctionTest", ".bam");
+		t.OUTPUT.deleteOnExit();
+		t.ANNOTATIONS_FILE=annotationsFile;
+		t.SUMMARY=expectedSummary;
+		Assert.assertEquals(t.doWork(), 0);
+
+		File tempBAM = File.createTempFile("TagReadWithGeneFunctionTest", ".bam");
+		tempBAM.deleteOnExit();
+		File tempSummary=File.createTempFile("TagReadWithGeneFunctionTest", ".summary");
+		tempSummary.deleteOnExit();
+		t = new TagReadWithGeneFunction();
+		t.INPUT=testBAMFile;
+		t.OUTPUT=tempBAM;
+		t.ANNOTATIONS_FILE=annotationsFile;
+		t.SUMMARY=tempSummary;
+		t.NUM_THREADS=4;
+		Assert.assertEquals(t.doWork(), 0);
+
+		// reads are written in the same order with the same tags.
+		CompareBAMTagValues cbtv = new CompareBAMTagValues();
+		cbtv.INPUT_1=OUT_BAM;
+		cbtv.INPUT_2=tempBAM;
+		cbtv.TAGS=new ArrayList<>(Arrays.asList("XC", "gn", "gs", "gf", "XF"));
+		Assert.assertEquals(cbtv.doWork(), 0);
+		Assert.assertTrue(FileUtils.contentEquals(tempSummary, expectedSummary));
+	}
+
 	@Test
 	public void testTagIntronRead () {
 		SamReader inputSam = SamReaderFactory.makeDefault().open(testBAMFile);
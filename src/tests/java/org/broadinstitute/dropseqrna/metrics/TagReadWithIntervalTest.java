@@ -3,13 +3,25 @@ package org.broadinstitute.dropseqrna.metrics;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.broadinstitute.dropseqrna.utils.CompareBAMTagValues;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
 
 public class TagReadWithIntervalTest {
 	// any BAM will do.
@@ -56,4 +68,155 @@ public class TagReadWithIntervalTest {
 		Assert.assertEquals(result, "foo,bar");
 
 	}
+
+	@Test
+	public void testDoWorkSharded() throws IOException {
+		// an indexed copy of the input, so it can be read in regions.
+		File indexedBAM = makeIndexedCopy(IN_BAM);
+
+		File outBAM = File.createTempFile("TagReadWithIntervalTest.", ".bam");
+		outBAM.deleteOnExit();
+		TagReadWithInterval t = new TagReadWithInterval();
+		t.INPUT=indexedBAM;
+		t.INTERVALS=IN_INTERVAL;
+		t.OUTPUT=outBAM;
+		t.NUM_THREADS=3;
+		Assert.assertEquals(t.doWork(), 0);
+
+		CompareBAMTagValues cbtv = new CompareBAMTagValues();
+		cbtv.INPUT_1=outBAM;
+		cbtv.INPUT_2=TAGGED_BAM;
+		List<String> tags = new ArrayList<>();
+		tags.add("ZI");
+		cbtv.TAGS=tags;
+		Assert.assertEquals(cbtv.doWork(), 0);
+	}
+
+	@Test
+	public void testIntervalSweeper () {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("1", 10000));
+		header.addSequence(new SAMSequenceRecord("2", 10000));
+		List<Interval> intervals = new ArrayList<>();
+		Interval longInterval = new Interval("1", 100, 5000, true, "long");
+		Interval gap = new Interval("1", 160, 180, true, "gap");
+		Interval late = new Interval("1", 300, 400, true, "late");
+		Interval other = new Interval("2", 100, 200, true, "other");
+		intervals.add(late);
+		intervals.add(other);
+		intervals.add(gap);
+		intervals.add(longInterval);
+		IntervalSweeper sweeper = new IntervalSweeper(intervals);
+
+		// a spliced read that skips over the gap interval.
+		Assert.assertEquals(getOverlaps(sweeper, header, "1", 150, "10M50N10M"), asSet(longInterval));
+		Assert.assertEquals(getOverlaps(sweeper, header, "1", 170, "150M"), asSet(longInterval, gap, late));
+		Assert.assertEquals(getOverlaps(sweeper, header, "1", 390, "20M"), asSet(longInterval, late));
+		Assert.assertEquals(getOverlaps(sweeper, header, "2", 50, "60M"), asSet(other));
+		// out of order reads restart the sweep.
+		Assert.assertEquals(getOverlaps(sweeper, header, "1", 165, "10M"), asSet(longInterval, gap));
+		Assert.assertEquals(getOverlaps(new IntervalSweeper(sweeper), header, "1", 10, "10M"), asSet());
+	}
+
+	private Set<Interval> asSet (final Interval... intervals) {
+		return new HashSet<>(Arrays.asList(intervals));
+	}
+
+	private Set<Interval> getOverlaps (final IntervalSweeper sweeper, final SAMFileHeader header, final String contig, final int start, final String cigar) {
+		SAMRecord r = new SAMRecord(header);
+		r.setReferenceName(contig);
+		r.setAlignmentStart(start);
+		r.setCigarString(cigar);
+		Set<Interval> result = new HashSet<>();
+		sweeper.getOverlaps(r, result);
+		return result;
+	}
+
+	@Test
+	public void testMultipleOverlapsSharded() throws IOException {
+		File indexedBAM = makeIndexedCopy(IN_BAM);
+		File intervalFile = makeOverlappingIntervals(indexedBAM);
+		List<String> serial = tagWithIntervals(indexedBAM, intervalFile, 1);
+		List<String> sharded = tagWithIntervals(indexedBAM, intervalFile, 3);
+		Assert.assertTrue(serial.stream().anyMatch(tag -> tag!=null && tag.split(",").length>=2));
+		Assert.assertEquals(sharded, serial);
+	}
+
+	@Test
+	public void testNotCoordinateSorted() throws IOException {
+		File intervalFile = makeOverlappingIntervals(IN_BAM);
+		// the same reads, but the header doesn't promise they are in coordinate order.
+		File unsortedBAM = File.createTempFile("TagReadWithIntervalTest.", ".bam");
+		unsortedBAM.deleteOnExit();
+		SamReader reader = SamReaderFactory.makeDefault().open(IN_BAM);
+		SAMFileHeader header = reader.getFileHeader().clone();
+		header.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, unsortedBAM);
+		for (SAMRecord r: reader)
+			writer.addAlignment(r);
+		writer.close();
+		CloserUtil.close(reader);
+
+		List<String> expected = tagWithIntervals(IN_BAM, intervalFile, 1);
+		Assert.assertEquals(tagWithIntervals(unsortedBAM, intervalFile, 1), expected);
+		Assert.assertEquals(tagWithIntervals(unsortedBAM, intervalFile, 3), expected);
+	}
+
+	/**
+	 * Nested and staggered intervals, so reads overlap several intervals, some of which entered the sweep long before.
+	 */
+	private File makeOverlappingIntervals (final File bam) throws IOException {
+		SamReader reader = SamReaderFactory.makeDefault().open(bam);
+		IntervalList intervals = new IntervalList(reader.getFileHeader().getSequenceDictionary());
+		int n=0;
+		for (SAMRecord r: reader) {
+			if (r.getReadUnmappedFlag() || n++%10!=0) continue;
+			intervals.add(new Interval(r.getContig(), r.getAlignmentStart(), r.getAlignmentStart()+20000, true, "long" + n));
+			intervals.add(new Interval(r.getContig(), r.getAlignmentStart(), r.getAlignmentEnd(), true, "read" + n));
+			intervals.add(new Interval(r.getContig(), Math.max(1, r.getAlignmentStart()-50), r.getAlignmentStart()+10, true, "left" + n));
+		}
+		CloserUtil.close(reader);
+		File intervalFile = File.createTempFile("TagReadWithIntervalTest.", ".intervals");
+		intervalFile.deleteOnExit();
+		intervals.write(intervalFile);
+		return intervalFile;
+	}
+
+	private List<String> tagWithIntervals (final File bam, final File intervalFile, final int numThreads) throws IOException {
+		File outBAM = File.createTempFile("TagReadWithIntervalTest.", ".bam");
+		outBAM.deleteOnExit();
+		TagReadWithInterval t = new TagReadWithInterval();
+		t.INPUT=bam;
+		t.INTERVALS=intervalFile;
+		t.OUTPUT=outBAM;
+		t.NUM_THREADS=numThreads;
+		// small regions, so reads in the middle of long intervals start new sweeps, and few reads buffered per region.
+		t.SHARD_LENGTH=1000;
+		t.READS_PER_CHUNK=5;
+		t.MAX_RECORDS_IN_RAM=10;
+		Assert.assertEquals(t.doWork(), 0);
+		List<String> result = new ArrayList<>();
+		SamReader reader = SamReaderFactory.makeDefault().open(outBAM);
+		for (SAMRecord r: reader)
+			result.add(r.getStringAttribute(t.TAG));
+		CloserUtil.close(reader);
+		return result;
+	}
+
+	private File makeIndexedCopy (final File bam) throws IOException {
+		File dir = File.createTempFile("TagReadWithIntervalTest.", ".tmp");
+		Assert.assertTrue(dir.delete() && dir.mkdir());
+		dir.deleteOnExit();
+		File indexedBAM = new File(dir, "indexed.bam");
+		File index = new File(dir, "indexed.bai");
+		indexedBAM.deleteOnExit();
+		index.deleteOnExit();
+		SamReader reader = SamReaderFactory.makeDefault().open(bam);
+		SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(reader.getFileHeader(), true, indexedBAM);
+		for (SAMRecord r: reader)
+			writer.addAlignment(r);
+		writer.close();
+		CloserUtil.close(reader);
+		return indexedBAM;
+	}
 }
@@ -0,0 +1,174 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.readtrimming;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.CloserUtil;
+import org.broadinstitute.dropseqrna.utils.FilterBam;
+import org.broadinstitute.dropseqrna.utils.TagBamWithReadSequenceExtended;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+public class TagAndTrimUnalignedBamTest {
+	private static final String ADAPTER = "AAGCAGTGGTATCAACGCAGAGTGAATGGG";
+	private static final String BASES = "ACGT";
+
+	@Test
+	public void testSameAsSequentialPrograms() throws IOException {
+		final File input = makeUnalignedBam(500);
+
+		// the steps of Drop-seq_alignment.sh, one program at a time.
+		final File cellTagged = getTempFile(".bam");
+		final File cellSummary = getTempFile(".cell_summary.txt");
+		Assert.assertEquals(new TagBamWithReadSequenceExtended().instanceMain(new String[] {
+				"INPUT=" + input, "OUTPUT=" + cellTagged, "SUMMARY=" + cellSummary,
+				"BASE_RANGE=1-12", "BASE_QUALITY=10", "BARCODED_READ=1", "DISCARD_READ=false", "TAG_NAME=XC", "NUM_BASES_BELOW_QUALITY=1"}), 0);
+
+		final File molecularTagged = getTempFile(".bam");
+		final File molecularSummary = getTempFile(".molecular_summary.txt");
+		Assert.assertEquals(new TagBamWithReadSequenceExtended().instanceMain(new String[] {
+				"INPUT=" + cellTagged, "OUTPUT=" + molecularTagged, "SUMMARY=" + molecularSummary,
+				"BASE_RANGE=13-20", "BASE_QUALITY=10", "BARCODED_READ=1", "DISCARD_READ=true", "TAG_NAME=XM", "NUM_BASES_BELOW_QUALITY=1"}), 0);
+
+		final File filtered = getTempFile(".bam");
+		Assert.assertEquals(new FilterBam().instanceMain(new String[] {
+				"TAG_REJECT=XQ", "INPUT=" + molecularTagged, "OUTPUT=" + filtered}), 0);
+
+		final TrimStartingSequence sequenceTrimmer = new TrimStartingSequence();
+		sequenceTrimmer.INPUT=filtered;
+		sequenceTrimmer.OUTPUT=getTempFile(".bam");
+		sequenceTrimmer.OUTPUT_SUMMARY=getTempFile(".adapter_trimming_report.txt");
+		sequenceTrimmer.SEQUENCE="AAGCAGTGGTATCAACGCAGAGTGAATGGG";
+		sequenceTrimmer.MISMATCHES=0;
+		sequenceTrimmer.NUM_BASES=5;
+		Assert.assertEquals(sequenceTrimmer.doWork(), 0);
+
+		final PolyATrimmer polyATrimmer = new PolyATrimmer();
+		polyATrimmer.INPUT=sequenceTrimmer.OUTPUT;
+		polyATrimmer.OUTPUT=getTempFile(".bam");
+		polyATrimmer.OUTPUT_SUMMARY=getTempFile(".polyA_trimming_report.txt");
+		polyATrimmer.MISMATCHES=0;
+		polyATrimmer.NUM_BASES=6;
+		polyATrimmer.USE_NEW_TRIMMER=true;
+		Assert.assertEquals(polyATrimmer.doWork(), 0);
+
+		final TagAndTrimUnalignedBam fused = new TagAndTrimUnalignedBam();
+		fused.INPUT=input;
+		fused.OUTPUT=getTempFile(".bam");
+		fused.CELL_BARCODE_SUMMARY=getTempFile(".cell_summary.txt");
+		fused.MOLECULAR_BARCODE_SUMMARY=getTempFile(".molecular_summary.txt");
+		fused.TRIM_SEQUENCE_SUMMARY=getTempFile(".adapter_trimming_report.txt");
+		fused.POLY_A_SUMMARY=getTempFile(".polyA_trimming_report.txt");
+		Assert.assertEquals(fused.doWork(), 0);
+
+		assertSameRecords(polyATrimmer.OUTPUT, fused.OUTPUT);
+		assertSameContents(cellSummary, fused.CELL_BARCODE_SUMMARY);
+		assertSameContents(molecularSummary, fused.MOLECULAR_BARCODE_SUMMARY);
+		assertSameContents(sequenceTrimmer.OUTPUT_SUMMARY, fused.TRIM_SEQUENCE_SUMMARY);
+		assertSameContents(polyATrimmer.OUTPUT_SUMMARY, fused.POLY_A_SUMMARY);
+	}
+
+	/**
+	 * Drop-seq style read pairs: read 1 is a 12 base cell barcode and 8 base UMI with some low quality bases,
+	 * read 2 sometimes starts with the end of the adapter sequence and sometimes has a poly A tail.
+	 */
+	private File makeUnalignedBam (final int numPairs) throws IOException {
+		final Random random = new Random(1);
+		final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(false, SAMFileHeader.SortOrder.queryname);
+		for (int i=0; i<numPairs; i++)
+			builder.addUnmappedPair(String.format("pair%05d", i));
+		final File result = getTempFile(".bam");
+		final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(builder.getHeader(), false, result);
+		for (final SAMRecord r: builder.getRecords()) {
+			final StringBuilder bases = new StringBuilder();
+			final byte [] quals;
+			if (r.getFirstOfPairFlag()) {
+				bases.append(randomBases(random, 20));
+				quals = new byte[bases.length()];
+				for (int j=0; j<quals.length; j++)
+					quals[j] = (byte) (random.nextInt(50)==0 ? 5: 30);
+			} else {
+				if (random.nextBoolean())
+					bases.append(ADAPTER.substring(ADAPTER.length() - 1 - random.nextInt(15)));
+				bases.append(randomBases(random, 20 + random.nextInt(10)));
+				if (random.nextBoolean())
+					for (int j=random.nextInt(30); j>0; j--)
+						bases.append('A');
+				bases.append(randomBases(random, Math.max(0, 60 - bases.length())));
+				quals = new byte[bases.length()];
+				Arrays.fill(quals, (byte) 30);
+			}
+			r.setReadString(bases.substring(0, Math.min(60, bases.length())));
+			r.setBaseQualities(Arrays.copyOf(quals, r.getReadLength()));
+			writer.addAlignment(r);
+		}
+		writer.close();
+		return result;
+	}
+
+	private String randomBases (final Random random, final int length) {
+		final StringBuilder result = new StringBuilder();
+		for (int i=0; i<length; i++)
+			result.append(BASES.charAt(random.nextInt(BASES.length())));
+		return result.toString();
+	}
+
+	private void assertSameRecords (final File expected, final File actual) {
+		final SamReader expectedReader = SamReaderFactory.makeDefault().open(expected);
+		final SamReader actualReader = SamReaderFactory.makeDefault().open(actual);
+		final SAMRecordIterator actualIterator = actualReader.iterator();
+		int count=0;
+		for (final SAMRecord expectedRec: expectedReader) {
+			Assert.assertTrue(actualIterator.hasNext());
+			Assert.assertEquals(actualIterator.next().getSAMString(), expectedRec.getSAMString());
+			count++;
+		}
+		Assert.assertFalse(actualIterator.hasNext());
+		Assert.assertTrue(count>0);
+		CloserUtil.close(Arrays.asList(expectedReader, actualReader));
+	}
+
+	private void assertSameContents (final File expected, final File actual) throws IOException {
+		Assert.assertEquals(Files.readAllLines(actual.toPath()), Files.readAllLines(expected.toPath()));
+	}
+
+	private File getTempFile (final String suffix) throws IOException {
+		final File f = File.createTempFile("TagAndTrimUnalignedBamTest.", suffix);
+		f.deleteOnExit();
+		return f;
+	}
+}
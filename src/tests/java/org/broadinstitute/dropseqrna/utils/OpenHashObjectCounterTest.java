@@ -0,0 +1,170 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class OpenHashObjectCounterTest {
+
+	@Test
+	public void test() {
+		ObjectCounter<String> o = new OpenHashObjectCounter<>();
+		o.increment("FOO");
+		o.incrementByCount("BAR", 4);
+
+		ObjectCounter<String> o2 = new OpenHashObjectCounter<>();
+		o2.increment("ZOO");
+		o2.incrementByCount("ZAR", 4);
+
+		ObjectCounter<String> both = new OpenHashObjectCounter<>(o);
+		both.increment(o2);
+
+		both.decrement("BAR");  // now 3.
+		both.decrementByCount("ZAR", 2); // now 2.
+
+		Set<String> expectedKeys = new HashSet<>(Arrays.asList("FOO", "BAR", "ZOO", "ZAR"));
+		Assert.assertTrue(expectedKeys.equals(both.getKeys()));
+
+		Assert.assertEquals(both.getKeysOrderedByCount(true), Arrays.asList("BAR", "ZAR", "FOO", "ZOO"));
+		Assert.assertEquals(both.getKeysOrderedByCount(false), Arrays.asList("FOO", "ZOO", "ZAR", "BAR"));
+
+		Assert.assertEquals(both.getSize(), 4);
+		Assert.assertEquals(both.getCountForKey("BAR"), 3);
+		Assert.assertEquals(both.getTotalCount(), 7);
+		Assert.assertEquals(both.getNumberOfSize(1), 2);
+		Assert.assertEquals(both.getMode(), "BAR");
+		both.increment("ZOO");
+		Assert.assertEquals(both.getMin(), "FOO");
+
+		both.filterByMinCount(2);
+		Assert.assertEquals(both.getSize(), 3);
+		Assert.assertEquals(both.getTotalCount(), 7);
+
+		Assert.assertTrue (both.hasKey("ZOO"));
+		Assert.assertFalse (both.hasKey("ZOOPPP"));
+
+		both.setCount("ZOOPPP", 8);
+		Assert.assertEquals(both.getCountForKey("ZOOPPP"), 8);
+		Assert.assertEquals(both.getTotalCount(), 15);
+		both.remove("ZOOPPP");
+		Assert.assertEquals(both.getCountForKey("ZOOPPP"), 0);
+		Assert.assertEquals(both.getTotalCount(), 7);
+
+		// keys iterate in the order they were first counted.
+		Assert.assertEquals(both.toString(), "{BAR=3, ZOO=2, ZAR=2}");
+
+		both.clear();
+		Assert.assertEquals(both.getCounts().size(), 0);
+		Assert.assertEquals(both.getTotalCount(), 0);
+	}
+
+	@Test
+	public void testSubset () {
+		ObjectCounter<String> o = new OpenHashObjectCounter<>();
+		o.increment("FOO");
+		o.incrementByCount("BAR", 4);
+		o.increment("ZOO");
+		o.incrementByCount("ZAR", 4);
+
+		Set<String> subsetKeys = new HashSet<>	(Arrays.asList("FOO", "ZOO", "MOO"));
+		o.subset(subsetKeys);
+
+		Assert.assertEquals(new HashSet<>(o.getKeys()), new HashSet<>(Arrays.asList("FOO", "ZOO")));
+		Assert.assertEquals(o.getTotalCount(), 2);
+	}
+
+	@Test
+	public void testNullKey () {
+		ObjectCounter<String> o = new OpenHashObjectCounter<>();
+		o.incrementByCount(null, 1);
+		o.increment("FOO");
+		o.incrementByCount(null, 1);
+		Assert.assertTrue(o.hasKey(null));
+		Assert.assertEquals(o.getCountForKey(null), 2);
+		Assert.assertEquals(o.getMode(), null);
+		o.remove(null);
+		Assert.assertFalse(o.hasKey(null));
+		Assert.assertEquals(o.getSize(), 1);
+	}
+
+	/**
+	 * Apply the same random increments and removals to an ObjectCounter and an OpenHashObjectCounter, and check
+	 * they agree on everything except iteration order.
+	 */
+	@Test
+	public void testMatchesObjectCounter () {
+		Random random = new Random(42);
+		ObjectCounter<Integer> expected = new ObjectCounter<>();
+		ObjectCounter<Integer> actual = new OpenHashObjectCounter<>();
+		for (int i=0; i<100000; i++) {
+			Integer key = random.nextInt(5000);
+			int op = random.nextInt(10);
+			if (op==0) {
+				expected.remove(key);
+				actual.remove(key);
+			} else if (op==1) {
+				expected.setCount(key, i);
+				actual.setCount(key, i);
+			} else {
+				expected.incrementByCount(key, op);
+				actual.incrementByCount(key, op);
+			}
+		}
+		assertSameCounts(actual, expected);
+
+		expected.filterByMinCount(50);
+		actual.filterByMinCount(50);
+		assertSameCounts(actual, expected);
+
+		for (Integer key: expected.getKeysOrderedByCount(false).subList(0, 100)) {
+			expected.remove(key);
+			actual.remove(key);
+		}
+		assertSameCounts(actual, expected);
+	}
+
+	private void assertSameCounts (final ObjectCounter<Integer> actual, final ObjectCounter<Integer> expected) {
+		Assert.assertEquals(actual.getSize(), expected.getSize());
+		Assert.assertEquals(actual.getTotalCount(), expected.getTotalCount());
+		Assert.assertEquals(new HashSet<>(actual.getKeys()), new HashSet<>(expected.getKeys()));
+		for (Integer key: expected.getKeys())
+			Assert.assertEquals(actual.getCountForKey(key), expected.getCountForKey(key));
+		List<Integer> ordered = expected.getKeysOrderedByCount(true);
+		Assert.assertEquals(actual.getKeysOrderedByCount(true), ordered);
+		Map<Integer, List<Integer>> reversed = actual.getReverseMapping();
+		Assert.assertEquals(reversed.keySet(), expected.getReverseMapping().keySet());
+		for (Map.Entry<Integer, List<Integer>> e: expected.getReverseMapping().entrySet())
+			Assert.assertEquals(new HashSet<>(reversed.get(e.getKey())), new HashSet<>(e.getValue()));
+		Assert.assertEquals(actual.hashCode(), expected.hashCode());
+		Assert.assertEquals(actual, new OpenHashObjectCounter<>(expected));
+	}
+}
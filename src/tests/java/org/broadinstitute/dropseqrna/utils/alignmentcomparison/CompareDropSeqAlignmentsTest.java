@@ -51,6 +51,21 @@ public class CompareDropSeqAlignmentsTest {
 
 	}
 
+	@Test
+	public void testContigReportOnly() throws IOException {
+		CompareDropSeqAlignments c = new CompareDropSeqAlignments();
+		File outContigReport = File.createTempFile("CompareDropSeqAlignmentsTest.", ".contig_report.txt");
+		outContigReport.deleteOnExit();
+
+		// the gene tag is only needed for the gene report.
+		c.INPUT_1=OLD;
+		c.INPUT_2=NEW;
+		c.CONTIG_REPORT=outContigReport;
+		c.GENE_EXON_TAG=null;
+		Assert.assertEquals(c.doWork(), 0);
+		Assert.assertTrue(TestUtils.testFilesSame(this.CONTIG_REPORT, outContigReport));
+	}
+
 	@Test
 	public void testGeneResultAddMapping() {
 		GeneResult r = new GeneResult("GeneA", "1", CompareDropSeqAlignments.noGeneTag);
@@ -0,0 +1,125 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.editdistance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class BarcodeNeighborIndexTest {
+
+	private static final char [] BASES = {'A', 'C', 'G', 'T'};
+
+	@Test(dataProvider="editDistances")
+	public void testMatchesFullScan(final int editDistance, final boolean findIndels) {
+		Random random = new Random(editDistance);
+		List<String> barcodes = getMutatedBarcodes(random, 50, 12, editDistance);
+		BarcodeNeighborIndex index = new BarcodeNeighborIndex(barcodes, editDistance, findIndels);
+		Assert.assertTrue(index.isSegmented());
+
+		for (String query: barcodes)
+			Assert.assertEquals(index.getNeighborDistances(query, editDistance).keySet(), getExpected(query, barcodes, editDistance, findIndels), query);
+
+		// remove half the barcodes and check again.
+		List<String> remaining = new ArrayList<>(barcodes.subList(0, barcodes.size()/2));
+		index.removeAll(barcodes.subList(barcodes.size()/2, barcodes.size()));
+		Assert.assertEquals(index.size(), new HashSet<>(remaining).size());
+		for (String query: barcodes)
+			Assert.assertEquals(index.getNeighbors(query, editDistance), getExpected(query, remaining, editDistance, findIndels), query);
+	}
+
+	@DataProvider(name="editDistances")
+	public Object[][] editDistances() {
+		return new Object[][] {{1, false}, {2, false}, {3, false}, {1, true}, {2, true}};
+	}
+
+	@Test
+	public void testDistances() {
+		BarcodeNeighborIndex index = new BarcodeNeighborIndex(Arrays.asList("AAAAAAAAAAAA", "AAAAAAAAAAAC", "CAAAAAAAAAAC", "GGGGGGGGGGGG"), 2, false);
+		Map<String, Integer> result = index.getNeighborDistances("AAAAAAAAAAAA", 2);
+		Assert.assertEquals(result.size(), 3);
+		Assert.assertEquals(result.get("AAAAAAAAAAAA").intValue(), 0);
+		Assert.assertEquals(result.get("AAAAAAAAAAAC").intValue(), 1);
+		Assert.assertEquals(result.get("CAAAAAAAAAAC").intValue(), 2);
+		Assert.assertEquals(index.getNeighbors("AAAAAAAAAAAA", 1), new HashSet<>(Arrays.asList("AAAAAAAAAAAA", "AAAAAAAAAAAC")));
+	}
+
+	@Test
+	public void testUnequalLengthsFallBackToScan() {
+		List<String> barcodes = Arrays.asList("AAAA", "AAAAC", "CAAA");
+		BarcodeNeighborIndex index = new BarcodeNeighborIndex(barcodes, 1, false);
+		Assert.assertFalse(index.isSegmented());
+		Assert.assertEquals(index.getNeighbors("AAAA", 1), getExpected("AAAA", barcodes, 1, false));
+	}
+
+	@Test(expectedExceptions=IllegalArgumentException.class)
+	public void testEditDistanceTooLarge() {
+		BarcodeNeighborIndex index = new BarcodeNeighborIndex(Arrays.asList("AAAAAAAAAAAA"), 1, false);
+		index.getNeighbors("AAAAAAAAAAAA", 2);
+	}
+
+	private Set<String> getExpected (final String query, final List<String> barcodes, final int editDistance, final boolean findIndels) {
+		if (findIndels)
+			return EDUtils.getInstance().getStringsWithinEditDistanceWithIndel(query, barcodes, editDistance);
+		return EDUtils.getInstance().getStringsWithinEditDistance(query, barcodes, editDistance);
+	}
+
+	/**
+	 * Random barcodes, each with a few neighbors that carry up to editDistance substitutions, insertions or deletions.
+	 */
+	private List<String> getMutatedBarcodes (final Random random, final int numBarcodes, final int length, final int editDistance) {
+		List<String> result = new ArrayList<>();
+		for (int i=0; i<numBarcodes; i++) {
+			StringBuilder b = new StringBuilder();
+			for (int j=0; j<length; j++)
+				b.append(BASES[random.nextInt(4)]);
+			result.add(b.toString());
+			for (int n=0; n<3; n++) {
+				StringBuilder m = new StringBuilder(b);
+				int numChanges=random.nextInt(editDistance+1)+1;
+				for (int c=0; c<numChanges; c++) {
+					int pos = random.nextInt(length);
+					switch (random.nextInt(3)) {
+						case 0: m.setCharAt(pos, BASES[random.nextInt(4)]); break;
+						// deletion, padded at the end.
+						case 1: m.deleteCharAt(pos); m.append(BASES[random.nextInt(4)]); break;
+						// insertion, truncated at the end.
+						default: m.insert(pos, BASES[random.nextInt(4)]); m.setLength(length); break;
+					}
+				}
+				result.add(m.toString());
+			}
+		}
+		return result;
+	}
+
+}
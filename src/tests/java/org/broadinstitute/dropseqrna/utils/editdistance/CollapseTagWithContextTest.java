@@ -25,10 +25,12 @@ package org.broadinstitute.dropseqrna.utils.editdistance;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
@@ -280,6 +282,76 @@ public class CollapseTagWithContextTest {
         CloserUtil.close(samReader);
     }
 
+    @Test
+    public void testParallelContexts() throws IOException {
+        // many small contexts, each with a few UMIs and some 1 base variants of them.
+        final List<String[]> tags = new ArrayList<>();
+        for (int c = 0; c < 200; ++c) {
+            final String cell = makeRandomBaseString(6);
+            final String gene = "GENE" + random.nextInt(5);
+            for (int u = 0; u < 1 + random.nextInt(4); ++u) {
+                final String umi = makeRandomBaseString(8);
+                final int numReads = 1 + random.nextInt(5);
+                for (int i = 0; i < numReads; ++i)
+					tags.add(new String[] {cell, gene, i==0 && numReads>1 ? alterBaseString(umi, 1) : umi});
+            }
+        }
+        final SAMRecordSetBuilder builder = createUnmappedFragments(tags.size());
+        int index=0;
+        for (final SAMRecord rec : builder.getRecords()) {
+            final String[] t = tags.get(index++);
+            rec.setAttribute("XC", t[0]);
+            rec.setAttribute("XG", t[1]);
+            rec.setAttribute("XM", t[2]);
+        }
+        final File input = File.createTempFile("CollapseTagWithContextTest.input.", ".sam");
+        input.deleteOnExit();
+        final SAMFileHeader header = builder.getHeader();
+        header.setSortOrder(SAMFileHeader.SortOrder.queryname);
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeWriter(header, true, input, null);
+        for (final SAMRecord rec : builder.getRecords())
+			writer.addAlignment(rec);
+        writer.close();
+
+        final CollapseTagWithContext serial = makeAdaptiveClp(input);
+        Assert.assertEquals(serial.doWork(), 0);
+        final CollapseTagWithContext parallel = makeAdaptiveClp(input);
+        parallel.PARALLEL_CONTEXTS=true;
+        parallel.NUM_THREADS=3;
+        // small enough that the in-flight limit is hit.
+        parallel.MAX_RECORDS_IN_RAM=50;
+        Assert.assertEquals(parallel.doWork(), 0);
+
+        Assert.assertEquals(readSamStrings(parallel.OUTPUT), readSamStrings(serial.OUTPUT));
+        Assert.assertEquals(Files.readAllLines(parallel.ADAPTIVE_ED_METRICS_FILE.toPath()), Files.readAllLines(serial.ADAPTIVE_ED_METRICS_FILE.toPath()));
+    }
+
+    private CollapseTagWithContext makeAdaptiveClp(final File input) throws IOException {
+        final CollapseTagWithContext clp = new CollapseTagWithContext();
+        clp.INPUT = input;
+        clp.COLLAPSE_TAG="XM";
+        clp.OUT_TAG="XN";
+        clp.CONTEXT_TAGS = Arrays.asList("XC", "XG");
+        clp.READ_MQ = 0;
+        clp.ADAPTIVE_EDIT_DISTANCE=true;
+        clp.ADAPTIVE_ED_MIN=1;
+        clp.ADAPTIVE_ED_MAX=3;
+        clp.OUTPUT = File.createTempFile("CollapseTagWithContextTest.output.", ".sam");
+        clp.OUTPUT.deleteOnExit();
+        clp.ADAPTIVE_ED_METRICS_FILE = File.createTempFile("CollapseTagWithContextTest.", ".adaptive_ed_metrics");
+        clp.ADAPTIVE_ED_METRICS_FILE.deleteOnExit();
+        return clp;
+    }
+
+    private List<String> readSamStrings(final File f) {
+        final List<String> result = new ArrayList<>();
+        final SamReader samReader = SamReaderFactory.makeDefault().open(f);
+        for (final SAMRecord rec : samReader)
+			result.add(rec.getSAMString());
+        CloserUtil.close(samReader);
+        return result;
+    }
+
     @Test
     public void testValidateCommands () {
     	final CollapseTagWithContext clp = new CollapseTagWithContext();
@@ -309,6 +381,10 @@ public class CollapseTagWithContextTest {
     	clp.COUNT_TAGS_EDIT_DISTANCE=1;
     	clp.COUNT_TAGS=null;
     	Assert.assertTrue(clp.validateCommands()==1);
+    	clp.COUNT_TAGS=Arrays.asList("XC");
+    	clp.PARALLEL_CONTEXTS=true;
+    	clp.LOW_MEMORY_MODE=true;
+    	Assert.assertTrue(clp.validateCommands()==1);
 
 
 
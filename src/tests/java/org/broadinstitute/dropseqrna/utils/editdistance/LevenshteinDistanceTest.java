@@ -0,0 +1,110 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.editdistance;
+
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LevenshteinDistanceTest {
+
+	private static final String BASES = "ACGTN";
+
+	@Test
+	public void testDistanceMatchesMatrix() {
+		Random random = new Random(1);
+		for (int i=0; i<20000; i++) {
+			String a = randomBarcode(random, random.nextInt(20));
+			String b = mutate(random, a);
+			int expected = LevenshteinDistance.computeLevenshteinDistanceResult(a, b).getEditDistance();
+			Assert.assertEquals(LevenshteinDistance.getDistance(a, b), expected, a + " " + b);
+			int k = random.nextInt(4);
+			int bounded = LevenshteinDistance.getDistance(a, b, k);
+			if (expected<=k)
+				Assert.assertEquals(bounded, expected, a + " " + b);
+			else
+				Assert.assertTrue(bounded>k, a + " " + b);
+		}
+	}
+
+	@Test
+	public void testIndelDistanceMatchesTraceback() {
+		Random random = new Random(2);
+		for (int i=0; i<20000; i++) {
+			String a = randomBarcode(random, random.nextInt(20));
+			String b = mutate(random, a);
+			int expected = LevenshteinDistance.computeLevenshteinDistanceResult(a, b, 1, 1, 2).getEditDistanceIndelCorrected();
+			Assert.assertEquals(LevenshteinDistance.getIndelSlidingWindowEditDistance(a, b), expected, a + " " + b);
+			int k = random.nextInt(4);
+			Assert.assertEquals(LevenshteinDistance.getIndelSlidingWindowEditDistance(a, b, k), Math.min(expected, k), a + " " + b);
+			Assert.assertEquals(LevenshteinDistance.isWithinIndelSlidingWindowEditDistance(a, b, k), expected<=k, a + " " + b);
+		}
+	}
+
+	@Test
+	public void testLongStrings() {
+		// 64 bases is the widest the bit vectors go; longer strings fall back to the DP matrix.
+		Random random = new Random(3);
+		for (int len: new int [] {63, 64, 65, 100}) {
+			String a = randomBarcode(random, len);
+			String b = mutate(random, a);
+			Assert.assertEquals(LevenshteinDistance.getDistance(a, b), LevenshteinDistance.computeLevenshteinDistanceResult(a, b).getEditDistance());
+			Assert.assertEquals(LevenshteinDistance.getIndelSlidingWindowEditDistance(a, b),
+					LevenshteinDistance.computeLevenshteinDistanceResult(a, b, 1, 1, 2).getEditDistanceIndelCorrected().intValue());
+		}
+	}
+
+	@Test
+	public void testEmpty() {
+		Assert.assertEquals(LevenshteinDistance.getDistance("", ""), 0);
+		Assert.assertEquals(LevenshteinDistance.getDistance("", "ACG"), 3);
+		Assert.assertEquals(LevenshteinDistance.getIndelSlidingWindowEditDistance("ACGT", ""), 2);
+	}
+
+	private String randomBarcode(final Random random, final int length) {
+		StringBuilder b = new StringBuilder();
+		for (int i=0; i<length; i++)
+			b.append(BASES.charAt(random.nextInt(BASES.length())));
+		return b.toString();
+	}
+
+	/**
+	 * Apply a few random substitutions, insertions and deletions.
+	 */
+	private String mutate(final Random random, final String s) {
+		StringBuilder b = new StringBuilder(s);
+		int edits = random.nextInt(5);
+		for (int e=0; e<edits; e++) {
+			int op = random.nextInt(3);
+			if (op==0 && b.length()>0)
+				b.setCharAt(random.nextInt(b.length()), BASES.charAt(random.nextInt(4)));
+			else if (op==1)
+				b.insert(random.nextInt(b.length()+1), BASES.charAt(random.nextInt(4)));
+			else if (b.length()>0)
+				b.deleteCharAt(random.nextInt(b.length()));
+		}
+		return b.toString();
+	}
+}
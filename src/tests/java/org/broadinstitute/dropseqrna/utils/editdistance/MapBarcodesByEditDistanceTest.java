@@ -813,8 +813,39 @@ public class MapBarcodesByEditDistanceTest {
 		m.bottomUpCollapse (barcodes, 1);
 	}
 
-}
+	@Test
+	public void testIndexedSearchMatchesFullScan() {
+		ObjectCounter <String> barcodes = EDUtils.readBarCodeFile(testData);
+		MapBarcodesByEditDistance fullScan = new MapBarcodesByEditDistance(false, 1, 0, NeighborSearchStrategy.FULL_SCAN);
+		MapBarcodesByEditDistance indexed = new MapBarcodesByEditDistance(false, 1, 0, NeighborSearchStrategy.INDEXED);
 
+		for (boolean findIndels: new boolean [] {false, true}) {
+			Assert.assertEquals(fullScan.collapseBarcodes(barcodes, findIndels, 1), indexed.collapseBarcodes(barcodes, findIndels, 1));
+			Assert.assertEquals(fullScan.collapseBarcodesByMutationalCollapse(barcodes, findIndels, 3, 1, 1), indexed.collapseBarcodesByMutationalCollapse(barcodes, findIndels, 3, 1, 1));
+		}
+		Assert.assertEquals(fullScan.collapseBarcodes(barcodes, false, 2), indexed.collapseBarcodes(barcodes, false, 2));
 
+		BottomUpCollapseResult expected = fullScan.bottomUpCollapse(barcodes, 1);
+		BottomUpCollapseResult actual = indexed.bottomUpCollapse(barcodes, 1);
+		Assert.assertEquals(expected.getUnambiguousSmallBarcodes(), actual.getUnambiguousSmallBarcodes());
+		Assert.assertEquals(expected.getAmbiguousBarcodes(), actual.getAmbiguousBarcodes());
+		for (String b: expected.getUnambiguousSmallBarcodes())
+			Assert.assertEquals(expected.getLargerRelatedBarcode(b), actual.getLargerRelatedBarcode(b));
+
+		List<String> intended=readFile(intendedBC);
+		List<String> repaired = readFile(repairedBC);
+		Assert.assertEquals(fullScan.findIntendedIndelSequences(repaired, intended, 1), indexed.findIntendedIndelSequences(repaired, intended, 1));
+	}
 
+	@Test
+	public void testPackedCollapseAndMergeBarcodes() {
+		ObjectCounter <String> barcodes = EDUtils.readBarCodeFile(testData);
+		MapBarcodesByEditDistance m = new MapBarcodesByEditDistance(false);
+		for (int editDistance=0; editDistance<3; editDistance++) {
+			ObjectCounter<String> expected = m.collapseAndMergeBarcodes(barcodes, false, editDistance);
+			PackedBarcodeCounter actual = m.collapseAndMergeBarcodes(new PackedBarcodeCounter(barcodes), editDistance);
+			Assert.assertEquals(expected, actual.toObjectCounter());
+		}
+	}
 
+}
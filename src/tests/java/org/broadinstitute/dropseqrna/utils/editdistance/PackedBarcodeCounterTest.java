@@ -0,0 +1,85 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.editdistance;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.broadinstitute.dropseqrna.utils.ObjectCounter;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class PackedBarcodeCounterTest {
+
+	@Test
+	public void testMatchesObjectCounter() {
+		Random random = new Random(1);
+		char [] bases = {'A', 'C', 'G', 'T', 'N'};
+		ObjectCounter<String> expected = new ObjectCounter<>();
+		PackedBarcodeCounter actual = new PackedBarcodeCounter();
+		for (int i=0; i<20000; i++) {
+			StringBuilder b = new StringBuilder();
+			// short barcodes so there are plenty of repeats.
+			for (int j=0; j<4; j++)
+				b.append(bases[random.nextInt(bases.length)]);
+			expected.increment(b.toString());
+			actual.increment(b.toString());
+		}
+		// some barcodes that can't be packed.
+		for (String s: Arrays.asList("FOO", "BAR", "FOO")) {
+			expected.increment(s);
+			actual.increment(s);
+		}
+		Assert.assertTrue(actual.hasUnpackedKeys());
+		Assert.assertEquals(actual.getSize(), expected.getSize());
+		Assert.assertEquals(actual.getTotalCount(), expected.getTotalCount());
+		Assert.assertEquals(actual.toObjectCounter(), expected);
+		Assert.assertEquals(actual.getKeysOrderedByCount(true), expected.getKeysOrderedByCount(true));
+		Assert.assertEquals(actual.getKeysOrderedByCount(false), expected.getKeysOrderedByCount(false));
+		for (String key: expected.getKeys()) {
+			Assert.assertTrue(actual.hasKey(key));
+			Assert.assertEquals(actual.getCountForKey(key), expected.getCountForKey(key));
+		}
+		Assert.assertEquals(actual.getCountForKey("ACGTACGT"), 0);
+		Assert.assertFalse(actual.hasKey("ACGTACGT"));
+
+		int minCount = expected.getTotalCount()/expected.getSize();
+		expected.filterByMinCount(minCount);
+		actual.filterByMinCount(minCount);
+		Assert.assertEquals(actual.toObjectCounter(), expected);
+		Assert.assertFalse(actual.hasUnpackedKeys());
+	}
+
+	@Test
+	public void testPackedKeysOrderedByCount() {
+		PackedBarcodeCounter c = new PackedBarcodeCounter();
+		c.incrementByCount("CCCC", 5);
+		c.incrementByCount("AAAA", 5);
+		c.incrementByCount("GGGG", 10);
+		c.incrementByCount("AAAN", 1);
+		Assert.assertEquals(c.getKeysOrderedByCount(true), Arrays.asList("GGGG", "AAAA", "CCCC", "AAAN"));
+		Assert.assertEquals(c.getPackedKeysOrderedByCount(false).get(0), PackedBarcode.fromString("AAAN"));
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.editdistance;
+
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class PackedBarcodeTest {
+
+	@Test(dataProvider="barcodes")
+	public void testRoundTrip(final String barcode) {
+		Assert.assertTrue(PackedBarcode.isPackable(barcode));
+		PackedBarcode p = PackedBarcode.fromString(barcode);
+		Assert.assertEquals(p.getLength(), barcode.length());
+		Assert.assertEquals(p.toString(), barcode);
+		Assert.assertEquals(p, PackedBarcode.fromString(barcode));
+		Assert.assertEquals(p.hashCode(), PackedBarcode.fromString(barcode).hashCode());
+	}
+
+	@DataProvider(name="barcodes")
+	public Object[][] barcodes() {
+		return new Object[][] {{""}, {"A"}, {"N"}, {"ACGTN"}, {"TTTTTTTTTTTT"}, {"NNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNN"}, {"ACGTACGTACGTACGTACGTACGTACGTACGT"}};
+	}
+
+	@Test
+	public void testNotPackable() {
+		Assert.assertFalse(PackedBarcode.isPackable("FOO"));
+		Assert.assertFalse(PackedBarcode.isPackable("acgt"));
+		Assert.assertFalse(PackedBarcode.isPackable("ACGTACGTACGTACGTACGTACGTACGTACGTA"));
+	}
+
+	@Test(expectedExceptions=IllegalArgumentException.class)
+	public void testPackInvalidBase() {
+		PackedBarcode.fromString("ACGX");
+	}
+
+	@Test
+	public void testHammingDistanceMatchesStrings() {
+		Random random = new Random(1);
+		char [] bases = {'A', 'C', 'G', 'T', 'N'};
+		for (int i=0; i<10000; i++) {
+			int length1=random.nextInt(PackedBarcode.MAX_LENGTH+1);
+			int length2= random.nextBoolean() ? length1 : random.nextInt(PackedBarcode.MAX_LENGTH+1);
+			String b1 = randomBarcode(random, bases, length1);
+			String b2 = randomBarcode(random, bases, length2);
+			PackedBarcode p1 = PackedBarcode.fromString(b1);
+			PackedBarcode p2 = PackedBarcode.fromString(b2);
+			Assert.assertEquals(p1.getHammingDistance(p2), HammingDistance.getHammingDistance(b1, b2), b1 + " " + b2);
+			Assert.assertEquals(Integer.signum(p1.compareTo(p2)), Integer.signum(b1.compareTo(b2)), b1 + " " + b2);
+		}
+	}
+
+	@Test
+	public void testNHammingDistance() {
+		Assert.assertEquals(PackedBarcode.fromString("ACGN").getHammingDistance(PackedBarcode.fromString("ACGN")), 0);
+		Assert.assertEquals(PackedBarcode.fromString("ACGN").getHammingDistance(PackedBarcode.fromString("ACGA")), 1);
+		Assert.assertEquals(PackedBarcode.fromString("NCGN").getHammingDistance(PackedBarcode.fromString("ACGA")), 2);
+	}
+
+	private String randomBarcode (final Random random, final char [] bases, final int length) {
+		StringBuilder b = new StringBuilder();
+		for (int i=0; i<length; i++)
+			b.append(bases[random.nextInt(bases.length)]);
+		return b.toString();
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.io;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class OrderedParallelExecutorTest {
+
+    @DataProvider(name = "numThreads")
+    public Object[][] numThreads() {
+        return new Object[][]{{1}, {2}, {5}};
+    }
+
+    @Test(dataProvider = "numThreads")
+    public void testResultsInOrder(final int numThreads) {
+        final Random random = new Random(numThreads);
+        final List<Integer> expected = new ArrayList<>();
+        final List<Integer> actual = new ArrayList<>();
+        try (OrderedParallelExecutor<Integer> executor = new OrderedParallelExecutor<>("testing", numThreads, actual::add)) {
+            for (int i = 0; i < 100; i++) {
+                final int value = i;
+                final int sleep = random.nextInt(3);
+                expected.add(value);
+                executor.submit(() -> {
+                    Thread.sleep(sleep);
+                    return value;
+                });
+            }
+            executor.finish();
+        }
+        Assert.assertEquals(actual, expected);
+    }
+
+    @Test
+    public void testBoundedInFlight() {
+        final AtomicInteger submitted = new AtomicInteger();
+        final List<Integer> consumed = new ArrayList<>();
+        // a consumed result was submitted no more than 2 threads * 3 tasks before the latest task.
+        try (OrderedParallelExecutor<Integer> executor = new OrderedParallelExecutor<>("testing", 2, 3, r -> {
+            Assert.assertTrue(submitted.get() - r <= 6);
+            consumed.add(r);
+        })) {
+            for (int i = 1; i <= 50; i++) {
+                final int value = i;
+                submitted.set(value);
+                executor.submit(() -> value);
+            }
+            executor.finish();
+        }
+        Assert.assertEquals(consumed.size(), 50);
+    }
+
+    @Test
+    public void testBoundedWeight() {
+        final AtomicInteger weightInFlight = new AtomicInteger();
+        final List<Integer> consumed = new ArrayList<>();
+        try (OrderedParallelExecutor<Integer> executor = new OrderedParallelExecutor<>("testing", 2, 100, 10, r -> {
+            weightInFlight.addAndGet(-r);
+            consumed.add(r);
+        })) {
+            for (int i = 1; i <= 50; i++) {
+                final int weight = i % 7;
+                // the weight of the tasks before this one is at most the limit.
+                Assert.assertTrue(weightInFlight.get() <= 10);
+                weightInFlight.addAndGet(weight);
+                executor.submit(() -> weight, weight);
+            }
+            executor.finish();
+        }
+        Assert.assertEquals(consumed.size(), 50);
+        Assert.assertEquals(weightInFlight.get(), 0);
+    }
+
+    @Test(dataProvider = "numThreads")
+    public void testProducers(final int numThreads) {
+        final AtomicInteger produced = new AtomicInteger();
+        final List<Integer> expected = new ArrayList<>();
+        final List<Integer> actual = new ArrayList<>();
+        try (OrderedParallelExecutor<Integer> executor = new OrderedParallelExecutor<>("testing", numThreads, 1, r -> {
+            // each of the tasks in flight has at most 2 results being consumed or waiting, and one more being produced.
+            Assert.assertTrue(produced.get() - actual.size() <= 3 * Math.max(1, numThreads));
+            actual.add(r);
+        })) {
+            for (int i = 0; i < 10; i++) {
+                final int first = i * 1000;
+                for (int j = 0; j < 1000; j++)
+                    expected.add(first + j);
+                executor.submitProducer(output -> {
+                    for (int j = 0; j < 1000; j++) {
+                        produced.incrementAndGet();
+                        output.accept(first + j);
+                    }
+                }, 2);
+            }
+            executor.finish();
+        }
+        Assert.assertEquals(actual, expected);
+    }
+
+    @Test(dataProvider = "numThreads", expectedExceptions = IllegalStateException.class)
+    public void testUncheckedException(final int numThreads) {
+        try (OrderedParallelExecutor<Integer> executor = new OrderedParallelExecutor<>("testing", numThreads, r -> {})) {
+            executor.submit(() -> 1);
+            executor.submit(() -> {
+                throw new IllegalStateException();
+            });
+            executor.finish();
+        }
+    }
+
+    @Test(dataProvider = "numThreads")
+    public void testCheckedException(final int numThreads) {
+        try (OrderedParallelExecutor<Integer> executor = new OrderedParallelExecutor<>("testing", numThreads, r -> {})) {
+            executor.submit(() -> {
+                throw new IOException("failed");
+            });
+            executor.finish();
+            Assert.fail("Expected an exception");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+            Assert.assertEquals(e.getMessage(), "Exception testing");
+        }
+    }
+}
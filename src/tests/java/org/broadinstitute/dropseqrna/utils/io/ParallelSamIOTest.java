@@ -0,0 +1,186 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.io;
+
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+public class ParallelSamIOTest {
+
+    private static final File BAM = new File("testdata/org/broadinstitute/dropseq/utils/N701_small.bam");
+
+    @DataProvider(name = "numThreads")
+    public Object[][] numThreads() {
+        return new Object[][]{{1}, {2}, {5}};
+    }
+
+    @Test(dataProvider = "numThreads")
+    public void testStreamRoundTrip(final int numThreads) throws IOException {
+        // half compressible, half random, so both the deflated and stored block paths are used.
+        final Random random = new Random(numThreads);
+        final byte[] data = new byte[1000000];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i < data.length / 2 ? "ACGT".charAt(random.nextInt(4)) : random.nextInt(256));
+
+        final File f = File.createTempFile("ParallelSamIOTest.", ".gz");
+        f.deleteOnExit();
+        try (OutputStream os = new ParallelBlockCompressedOutputStream(new FileOutputStream(f), 5, numThreads)) {
+            // uneven writes that straddle block boundaries.
+            int pos = 0;
+            while (pos < data.length) {
+                final int n = Math.min(data.length - pos, 1 + random.nextInt(100000));
+                os.write(data, pos, n);
+                pos += n;
+            }
+        }
+        Assert.assertEquals(readAll(new BlockCompressedInputStream(f)), data);
+        Assert.assertEquals(readAll(new ParallelBlockCompressedInputStream(new FileInputStream(f), numThreads, f.getPath())), data);
+        Assert.assertTrue(BlockCompressedInputStream.checkTermination(f) == BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK);
+
+        // read a file compressed by htsjdk.
+        final File htsjdkFile = File.createTempFile("ParallelSamIOTest.", ".gz");
+        htsjdkFile.deleteOnExit();
+        try (OutputStream os = new BlockCompressedOutputStream(htsjdkFile)) {
+            os.write(data);
+        }
+        Assert.assertEquals(readAll(new ParallelBlockCompressedInputStream(new FileInputStream(htsjdkFile), numThreads, htsjdkFile.getPath())), data);
+    }
+
+    @Test(dataProvider = "numThreads")
+    public void testBamRoundTrip(final int numThreads) throws IOException {
+        final SamReader expectedReader = SamReaderFactory.makeDefault().open(BAM);
+        final List<String> expected = new ArrayList<>();
+        for (final SAMRecord r : expectedReader)
+            expected.add(r.getSAMString());
+
+        final SamReader reader = ParallelSamIO.openReader(BAM, numThreads);
+        final SAMFileHeader header = reader.getFileHeader();
+        Assert.assertEquals(header, expectedReader.getFileHeader());
+        CloserUtil.close(expectedReader);
+
+        final File output = File.createTempFile("ParallelSamIOTest.", ".bam");
+        output.deleteOnExit();
+        final SAMFileWriter writer = ParallelSamIO.makeSAMOrBAMWriter(header, true, output, numThreads);
+        final List<String> actual = new ArrayList<>();
+        for (final SAMRecord r : reader) {
+            actual.add(r.getSAMString());
+            writer.addAlignment(r);
+        }
+        CloserUtil.close(reader);
+        writer.close();
+        Assert.assertEquals(actual, expected);
+
+        // the output is readable by htsjdk
+        final SamReader outputReader = SamReaderFactory.makeDefault().open(output);
+        Assert.assertEquals(outputReader.getFileHeader(), header);
+        final List<String> written = new ArrayList<>();
+        for (final SAMRecord r : outputReader)
+            written.add(r.getSAMString());
+        CloserUtil.close(outputReader);
+        Assert.assertEquals(written, expected);
+    }
+
+    @Test
+    public void testWriterSorts() throws IOException {
+        final SamReader reader = SamReaderFactory.makeDefault().open(BAM);
+        final SAMFileHeader header = reader.getFileHeader().clone();
+        header.setSortOrder(SAMFileHeader.SortOrder.queryname);
+        final File output = File.createTempFile("ParallelSamIOTest.", ".bam");
+        output.deleteOnExit();
+        final SAMFileWriter writer = ParallelSamIO.makeSAMOrBAMWriter(header, false, output, 3);
+        for (final SAMRecord r : reader)
+            writer.addAlignment(r);
+        CloserUtil.close(reader);
+        writer.close();
+
+        final SamReader outputReader = ParallelSamIO.openReader(output, 3);
+        final SAMRecordQueryNameComparator comparator = new SAMRecordQueryNameComparator();
+        SAMRecord previous = null;
+        int count = 0;
+        for (final SAMRecord r : outputReader) {
+            if (previous != null)
+                Assert.assertTrue(comparator.compare(previous, r) <= 0);
+            previous = r;
+            count++;
+        }
+        CloserUtil.close(outputReader);
+        Assert.assertTrue(count > 0);
+    }
+
+    @Test
+    public void testSharedPool() throws IOException {
+        final List<String> expected = new ArrayList<>();
+        final SamReader expectedReader = SamReaderFactory.makeDefault().open(BAM);
+        for (final SAMRecord r : expectedReader)
+            expected.add(r.getSAMString());
+        CloserUtil.close(expectedReader);
+
+        // two readers interleaved on one pool, as when merging inputs.
+        final ExecutorService executor = ParallelSamIO.newThreadPool(3);
+        try {
+            Assert.assertTrue(executor.submit(() -> Thread.currentThread().isDaemon()).get());
+            final SamReader reader1 = ParallelSamIO.openReader(BAM, SamReaderFactory.makeDefault(), executor, 3);
+            final SamReader reader2 = ParallelSamIO.openReader(BAM, SamReaderFactory.makeDefault(), executor, 3);
+            final Iterator<SAMRecord> it1 = reader1.iterator();
+            final Iterator<SAMRecord> it2 = reader2.iterator();
+            final List<String> actual1 = new ArrayList<>();
+            final List<String> actual2 = new ArrayList<>();
+            while (it1.hasNext() || it2.hasNext()) {
+                if (it1.hasNext()) actual1.add(it1.next().getSAMString());
+                if (it2.hasNext()) actual2.add(it2.next().getSAMString());
+            }
+            CloserUtil.close(reader1);
+            Assert.assertFalse(executor.isShutdown());
+            CloserUtil.close(reader2);
+            Assert.assertEquals(actual1, expected);
+            Assert.assertEquals(actual2, expected);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private byte[] readAll(final InputStream in) throws IOException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        IOUtil.copyStream(in, result);
+        in.close();
+        return result.toByteArray();
+    }
+}
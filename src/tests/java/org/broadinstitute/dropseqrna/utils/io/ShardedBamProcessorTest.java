@@ -0,0 +1,123 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.io;
+
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.CloserUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ShardedBamProcessorTest {
+
+    private static final File BAM = new File("testdata/org/broadinstitute/transcriptome/barnyard/5cell3gene_retagged.bam");
+
+    /**
+     * Write an indexed copy of the test BAM, with one unmapped read placed next to its mate and one without a
+     * reference, so that every kind of shard has reads.
+     */
+    public static File makeIndexedBam() throws IOException {
+        final File dir = File.createTempFile("ShardedBamProcessorTest.", ".tmp");
+        Assert.assertTrue(dir.delete() && dir.mkdir());
+        dir.deleteOnExit();
+        final File bam = new File(dir, "indexed.bam");
+        final File index = new File(dir, "indexed.bai");
+        bam.deleteOnExit();
+        index.deleteOnExit();
+
+        final SamReader reader = SamReaderFactory.makeDefault().open(BAM);
+        final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(reader.getFileHeader(), true, bam);
+        SAMRecord last = null;
+        for (final SAMRecord r : reader) {
+            writer.addAlignment(r);
+            last = r;
+        }
+        final SAMRecord placed = last.deepCopy();
+        placed.setReadName("placedUnmapped");
+        placed.setReadUnmappedFlag(true);
+        placed.setMappingQuality(0);
+        placed.setCigarString("*");
+        writer.addAlignment(placed);
+        final SAMRecord unplaced = placed.deepCopy();
+        unplaced.setReadName("unplacedUnmapped");
+        unplaced.setReferenceIndex(SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX);
+        unplaced.setAlignmentStart(SAMRecord.NO_ALIGNMENT_START);
+        writer.addAlignment(unplaced);
+        writer.close();
+        CloserUtil.close(reader);
+        return bam;
+    }
+
+    @Test
+    public void testMakeShards() {
+        final SAMSequenceDictionary dict = new SAMSequenceDictionary();
+        dict.addSequence(new SAMSequenceRecord("a", 2500));
+        dict.addSequence(new SAMSequenceRecord("b", 1000));
+        final List<ShardedBamProcessor.Shard> shards = ShardedBamProcessor.makeShards(dict, 1000);
+        Assert.assertEquals(shards.toString(), "[a:1-1000, a:1001-2000, a:2001-2500, b:1-1000, unmapped]");
+        // never smaller than the minimum shard length, however many threads.
+        Assert.assertEquals(ShardedBamProcessor.makeShardsForThreads(dict, 64).size(), 3);
+    }
+
+    @Test
+    public void testAccumulate() throws IOException {
+        final File bam = makeIndexedBam();
+        final SamReaderFactory factory = SamReaderFactory.makeDefault();
+        Assert.assertTrue(ShardedBamProcessor.canShard(bam, factory));
+        Assert.assertFalse(ShardedBamProcessor.canShard(BAM, factory));
+
+        final List<String> expected = new ArrayList<>();
+        final Set<String> contigsWithReads = new HashSet<>();
+        final SamReader reader = factory.open(bam);
+        for (final SAMRecord r : reader) {
+            expected.add(r.getSAMString());
+            if (!r.getReadUnmappedFlag())
+                contigsWithReads.add(r.getContig());
+        }
+        CloserUtil.close(reader);
+        Collections.sort(expected);
+
+        // small shards, so that many reads overlap more than one shard.  Only the contigs that hold reads are
+        // sharded, since querying every small shard of the whole genome is slow.
+        final SAMSequenceDictionary dict = new SAMSequenceDictionary();
+        for (final SAMSequenceRecord record : factory.getFileHeader(bam).getSequenceDictionary().getSequences())
+            if (contigsWithReads.contains(record.getSequenceName()))
+                dict.addSequence(new SAMSequenceRecord(record.getSequenceName(), record.getSequenceLength()));
+        final List<ShardedBamProcessor.Shard> shards = ShardedBamProcessor.makeShards(dict, 1000);
+        for (final int numThreads : new int[]{1, 3}) {
+            final List<String> actual = ShardedBamProcessor.accumulate(bam, factory, numThreads,
+                    shards, ArrayList::new,
+                    (list, r) -> list.add(r.getSAMString()), List::addAll);
+            Collections.sort(actual);
+            Assert.assertEquals(actual, expected);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.readiterators;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.CloserUtil;
+
+public class ProjectedSAMRecordCodecTest {
+
+	private static final File IN_FILE = new File("testdata/org/broadinstitute/transcriptome/barnyard/5cell3gene_retagged.bam");
+	private static final List<String> TAGS = Arrays.asList("ZC", "XM", "gn", "NH");
+
+	@Test
+	public void testRoundTrip() {
+		for (boolean keepReadBases: new boolean [] {false, true}) {
+			SamReader reader = SamReaderFactory.makeDefault().open(IN_FILE);
+			ProjectedSAMRecordCodec codec = new ProjectedSAMRecordCodec(reader.getFileHeader(), TAGS, keepReadBases);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			codec.setOutputStream(out);
+			int count=0;
+			for (SAMRecord r: reader) {
+				codec.encode(codec.project(r));
+				count++;
+			}
+			CloserUtil.close(reader);
+			Assert.assertTrue(count>0);
+
+			ProjectedSAMRecordCodec decoder = codec.clone();
+			decoder.setInputStream(new ByteArrayInputStream(out.toByteArray()));
+			reader = SamReaderFactory.makeDefault().open(IN_FILE);
+			for (SAMRecord expected: reader) {
+				SAMRecord actual = decoder.decode();
+				Assert.assertNotNull(actual);
+				Assert.assertEquals(actual.getReadName(), expected.getReadName());
+				Assert.assertEquals(actual.getFlags(), expected.getFlags());
+				Assert.assertEquals(actual.getReferenceIndex(), expected.getReferenceIndex());
+				Assert.assertEquals(actual.getAlignmentStart(), expected.getAlignmentStart());
+				Assert.assertEquals(actual.getAlignmentEnd(), expected.getAlignmentEnd());
+				Assert.assertEquals(actual.getMappingQuality(), expected.getMappingQuality());
+				Assert.assertEquals(actual.getCigarString(), expected.getCigarString());
+				Assert.assertEquals(actual.getReadLength(), keepReadBases ? expected.getReadLength() : 0);
+				for (String tag: TAGS)
+					Assert.assertEquals(actual.getAttribute(tag), expected.getAttribute(tag));
+				// tags that weren't asked for are dropped.
+				Assert.assertNull(actual.getAttribute("XF"));
+			}
+			Assert.assertNull(decoder.decode());
+			CloserUtil.close(reader);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * MIT License
+ *
+ * Copyright 2017 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.readiterators;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.UMICollection;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import picard.annotation.LocusFunction;
+
+public class UMICollectionAggregatorTest {
+
+	private static final File IN_FILE = new File("testdata/org/broadinstitute/transcriptome/barnyard/5cell3gene_retagged.bam");
+	private static final List<LocusFunction> LOCUS_FUNCTION_LIST=Arrays.asList(LocusFunction.CODING, LocusFunction.UTR);
+
+	@Test
+	public void testMatchesSortedUMIIterator() {
+		for (boolean cellFirstSort: new boolean [] {false, true}) {
+			List<UMICollection> expected = drain(getUMIIterator(cellFirstSort, false));
+			Assert.assertFalse(expected.isEmpty());
+			assertSameCollections(drain(getUMIIterator(cellFirstSort, true)), expected);
+		}
+	}
+
+	@Test
+	// forces the counts to be spilled to disk many times.
+	public void testSpilledCounts() {
+		for (boolean cellFirstSort: new boolean [] {false, true}) {
+			List<UMICollection> expected = drain(getUMIIterator(cellFirstSort, false));
+			SamHeaderAndIterator headerAndIterator = SamFileMergeUtil.mergeInputs(Collections.singletonList(IN_FILE), false);
+			MissingTagFilteringIterator filteringIterator = new MissingTagFilteringIterator(headerAndIterator.iterator, "ZC", "gn", "XM");
+			MapQualityFilteredIterator filteringIterator2 = new MapQualityFilteredIterator(filteringIterator, 10, true);
+			GeneFunctionIteratorWrapper gfteratorWrapper = new GeneFunctionIteratorWrapper(filteringIterator2, "gn", "gs", "gf", false, StrandStrategy.SENSE, LOCUS_FUNCTION_LIST);
+			UMICollectionAggregator aggregator = new UMICollectionAggregator(gfteratorWrapper, "gn", "ZC", "XM", cellFirstSort, 5, null);
+			List<UMICollection> actual = new ArrayList<>();
+			while (aggregator.hasNext())
+				actual.add(aggregator.next());
+			aggregator.close();
+			assertSameCollections(actual, expected);
+		}
+	}
+
+	private UMIIterator getUMIIterator (final boolean cellFirstSort, final boolean aggregateUMICounts) {
+		return new UMIIterator(SamFileMergeUtil.mergeInputs(Collections.singletonList(IN_FILE), false), "gn", "gs", "gf",
+				StrandStrategy.SENSE, LOCUS_FUNCTION_LIST, "ZC", "XM", 10, false, null, cellFirstSort, aggregateUMICounts);
+	}
+
+	private List<UMICollection> drain (final UMIIterator iter) {
+		List<UMICollection> result = new ArrayList<>();
+		UMICollection umis;
+		while ((umis=iter.next())!=null)
+			result.add(umis);
+		iter.close();
+		return result;
+	}
+
+	private void assertSameCollections (final List<UMICollection> actual, final List<UMICollection> expected) {
+		Assert.assertEquals(actual.size(), expected.size());
+		for (int i=0; i<expected.size(); i++) {
+			Assert.assertEquals(actual.get(i).getCellBarcode(), expected.get(i).getCellBarcode());
+			Assert.assertEquals(actual.get(i).getGeneName(), expected.get(i).getGeneName());
+			Assert.assertEquals(actual.get(i).getMolecularBarcodeCounts(), expected.get(i).getMolecularBarcodeCounts());
+		}
+	}
+}
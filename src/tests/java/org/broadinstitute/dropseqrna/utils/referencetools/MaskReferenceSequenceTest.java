@@ -7,6 +7,10 @@ import org.apache.commons.io.FileUtils;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+
 public class MaskReferenceSequenceTest {
 
 	private static final File IN_REF = new File("testdata/org/broadinstitute/dropseq/utils/referencetools/fake_ref.fasta");
@@ -68,4 +72,36 @@ public class MaskReferenceSequenceTest {
 			e.printStackTrace();
 		}
 	}
+
+	@Test
+	public void testDoWorkMultiThreaded() throws IOException {
+		File outFile = File.createTempFile("MaskReferenceSequenceTest.", ".fasta");
+		outFile.deleteOnExit();
+		String [] args = {"OUTPUT="+outFile.getAbsolutePath(), "INTERVALS="+INTERVAL_FILE.getAbsolutePath(),
+				"REFERENCE_SEQUENCE="+IN_REF.getAbsolutePath(), "OUTPUT_LINE_LENGTH=50", "NUM_THREADS=3"};
+		Assert.assertEquals(new MaskReferenceSequence().instanceMain(args), 0);
+		Assert.assertTrue(FileUtils.contentEquals(outFile, OUT_REF_INTERVALS));
+	}
+
+	@Test
+	public void testLineLength() throws IOException {
+		File outFile = File.createTempFile("MaskReferenceSequenceTest.", ".fasta");
+		outFile.deleteOnExit();
+		int lineLength=7;
+		String [] args = {"OUTPUT="+outFile.getAbsolutePath(), "CONTIG_PATTERN_TO_IGNORE=fake_contig_2",
+				"REFERENCE_SEQUENCE="+IN_REF.getAbsolutePath(), "OUTPUT_LINE_LENGTH="+lineLength, "NUM_THREADS=2"};
+		Assert.assertEquals(new MaskReferenceSequence().instanceMain(args), 0);
+		for (String line: FileUtils.readLines(outFile))
+			if (!line.startsWith(">"))
+				Assert.assertTrue(line.length()<=lineLength);
+		ReferenceSequenceFile expected = ReferenceSequenceFileFactory.getReferenceSequenceFile(OUT_REF_CONTIGS, true, true);
+		ReferenceSequenceFile actual = ReferenceSequenceFileFactory.getReferenceSequenceFile(outFile, true, true);
+		ReferenceSequence e;
+		while ((e=expected.nextSequence())!=null) {
+			ReferenceSequence a = actual.nextSequence();
+			Assert.assertEquals(a.getName(), e.getName());
+			Assert.assertEquals(a.getBaseString(), e.getBaseString());
+		}
+		Assert.assertNull(actual.nextSequence());
+	}
 }